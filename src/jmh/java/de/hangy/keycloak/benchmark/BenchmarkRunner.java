@@ -0,0 +1,54 @@
+package de.hangy.keycloak.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks once per requested thread count with the GC profiler
+ * attached. Configured through system properties set by the {@code jmh} Maven
+ * profile:
+ * <ul>
+ * <li>{@code jmh.include} - benchmark regexp</li>
+ * <li>{@code jmh.threads} - comma separated thread counts to sweep</li>
+ * <li>{@code jmh.forks} - number of forks per benchmark</li>
+ * <li>{@code jmh.params} - optional parameter overrides, e.g.
+ * {@code cost=16384,32768;parallelism=1}</li>
+ * <li>{@code jmh.result} - JSON result file; the thread count is appended</li>
+ * </ul>
+ */
+public class BenchmarkRunner {
+
+    private BenchmarkRunner() {
+        throw new IllegalStateException("Runner class");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        String include = System.getProperty("jmh.include", ScryptHelperBenchmark.class.getSimpleName());
+        String threads = System.getProperty("jmh.threads", "1");
+        int forks = Integer.getInteger("jmh.forks", 1);
+        String params = System.getProperty("jmh.params", "");
+        String result = System.getProperty("jmh.result", "jmh-result.json");
+
+        for (String threadCount : threads.split(",")) {
+            int t = Integer.parseInt(threadCount.trim());
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .include(include)
+                    .threads(t)
+                    .forks(forks)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(result.replaceFirst("(\\.json)?$", "-t" + t + ".json"));
+            for (String param : params.split(";")) {
+                int separator = param.indexOf('=');
+                if (separator > 0) {
+                    options.param(param.substring(0, separator).trim(), param.substring(separator + 1).split(","));
+                }
+            }
+            new Runner(options.build()).run();
+        }
+    }
+}
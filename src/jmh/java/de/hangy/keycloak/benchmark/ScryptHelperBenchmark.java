@@ -0,0 +1,99 @@
+package de.hangy.keycloak.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.credential.hash.PasswordHashProvider;
+import org.keycloak.models.credential.PasswordCredentialModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.hangy.keycloak.credential.hash.ScryptPasswordHashProviderFactory;
+import de.hangy.keycloak.testing.KeycloakSessionStub;
+import de.hangy.keycloak.utils.ScryptEncodingUtils;
+import de.hangy.keycloak.utils.ScryptHelper;
+
+/**
+ * Measures the per-login cost of the scrypt code paths across the N/r/p/dkLen
+ * matrix. Run through {@link BenchmarkRunner} to sweep thread counts and to get
+ * the GC profiler's allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScryptHelperBenchmark {
+    private static final String PASSWORD = "correct horse battery staple";
+
+    private static final String WRONG_PASSWORD = "correct horse battery stapler";
+
+    private static final int SALT_LENGTH = 16;
+
+    @Param({ "1024", "16384" })
+    public int cost;
+
+    @Param({ "8" })
+    public int blockSize;
+
+    @Param({ "1", "2" })
+    public int parallelism;
+
+    @Param({ "32" })
+    public int hashLength;
+
+    private byte[] salt;
+
+    private PasswordCredentialModel credential;
+
+    private PasswordHashProvider provider;
+
+    @Setup
+    public void setUp() {
+        salt = ScryptHelper.getSalt(SALT_LENGTH);
+        ScryptEncodingUtils.ScryptParameters parameters = new ScryptEncodingUtils.ScryptParameters(
+                cost, blockSize, parallelism, hashLength, SALT_LENGTH);
+        String hash = ScryptHelper.hashPassword(PASSWORD, salt, cost, blockSize, parallelism, hashLength);
+        credential = ScryptEncodingUtils.createPasswordCredentialModel(salt, hash, parameters);
+
+        KeycloakSessionStub stub = new KeycloakSessionStub("benchmark", cost, blockSize, parallelism, hashLength,
+                SALT_LENGTH);
+        provider = new ScryptPasswordHashProviderFactory().create(stub.getSession());
+    }
+
+    @Benchmark
+    public String hash() {
+        return ScryptHelper.hashPassword(PASSWORD, salt, cost, blockSize, parallelism, hashLength);
+    }
+
+    @Benchmark
+    public boolean verifyCorrectPassword() {
+        return ScryptHelper.verifyPassword(PASSWORD, credential);
+    }
+
+    @Benchmark
+    public boolean verifyWrongPassword() {
+        return ScryptHelper.verifyPassword(WRONG_PASSWORD, credential);
+    }
+
+    @Benchmark
+    public PasswordCredentialModel encodedCredential() {
+        return provider.encodedCredential(PASSWORD, -1);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean policyCheck() {
+        return provider.policyCheck(null, credential);
+    }
+}
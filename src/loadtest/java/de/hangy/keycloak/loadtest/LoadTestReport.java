@@ -0,0 +1,245 @@
+package de.hangy.keycloak.loadtest;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+import org.HdrHistogram.Recorder;
+import org.keycloak.util.JsonSerialization;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Collects what a load test run measured: login latency per arrival phase and
+ * overall (from the moment each login was due to start, so queueing counts),
+ * outcomes, GC pauses as reported by the JVM's collection notifications, and
+ * the peak resident set size and heap usage of the process.
+ */
+final class LoadTestReport implements NotificationListener {
+
+    private static final long HIGHEST_LATENCY_MICROS = TimeUnit.HOURS.toMicros(1);
+
+    private final List<String> phaseNames;
+
+    private final List<Histogram> phaseLatencies = new ArrayList<>();
+
+    private final Histogram latency = new ConcurrentHistogram(HIGHEST_LATENCY_MICROS, 3);
+
+    private final Recorder interval = new Recorder(HIGHEST_LATENCY_MICROS, 3);
+
+    private final Histogram gcPauses = new ConcurrentHistogram(TimeUnit.MINUTES.toMillis(10), 3);
+
+    private final AtomicLongArray outcomes = new AtomicLongArray(LoginStorm.Outcome.values().length);
+
+    private final List<NotificationEmitter> emitters = new ArrayList<>();
+
+    private volatile boolean measuring;
+
+    private long startNanos;
+
+    private long endNanos;
+
+    LoadTestReport(List<String> phaseNames) {
+        this.phaseNames = phaseNames;
+        for (int i = 0; i < phaseNames.size(); i++) {
+            phaseLatencies.add(new ConcurrentHistogram(HIGHEST_LATENCY_MICROS, 3));
+        }
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter) {
+                NotificationEmitter emitter = (NotificationEmitter) collector;
+                emitter.addNotificationListener(this, null, null);
+                emitters.add(emitter);
+            }
+        }
+    }
+
+    /**
+     * Starts measuring: everything recorded before is warm-up.
+     */
+    void start() {
+        ManagementFactory.getMemoryPoolMXBeans().forEach(MemoryPoolMXBean::resetPeakUsage);
+        startNanos = System.nanoTime();
+        measuring = true;
+    }
+
+    void stop() {
+        measuring = false;
+        endNanos = System.nanoTime();
+        for (NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(this);
+            } catch (Exception e) {
+                // already gone
+            }
+        }
+    }
+
+    /**
+     * Records one login of the given phase ({@code -1} for warm-up) that was due
+     * at {@code intendedNanos}.
+     */
+    void record(int phase, long intendedNanos, LoginStorm.Outcome outcome) {
+        if (phase < 0 || !measuring) {
+            return;
+        }
+        long micros = Math.min(HIGHEST_LATENCY_MICROS, Math.max(0, (System.nanoTime() - intendedNanos) / 1000));
+        latency.recordValue(micros);
+        phaseLatencies.get(phase).recordValue(micros);
+        interval.recordValue(micros);
+        outcomes.incrementAndGet(outcome.ordinal());
+    }
+
+    /**
+     * Logins completed since the last call, for progress output.
+     */
+    Histogram takeInterval() {
+        return interval.getIntervalHistogram();
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (!measuring
+                || !GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            return;
+        }
+        GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+                .from((CompositeData) notification.getUserData());
+        // Concurrent cycles run alongside the application and are not pauses
+        String name = info.getGcName();
+        if (name.contains("Concurrent") || name.contains("Cycles")) {
+            return;
+        }
+        gcPauses.recordValue(Math.max(0, info.getGcInfo().getDuration()));
+    }
+
+    void print(PrintStream out, Map<String, Object> configuration) {
+        double seconds = (endNanos - startNanos) / 1e9;
+        long completed = latency.getTotalCount();
+        out.println();
+        out.println("Configuration: " + configuration);
+        out.printf(Locale.ROOT, "Logins: %d in %.1f s, %.1f/s%n", completed, seconds, completed / seconds);
+        for (LoginStorm.Outcome outcome : LoginStorm.Outcome.values()) {
+            out.printf(Locale.ROOT, "  %-15s %d%n", outcome.name().toLowerCase(Locale.ROOT), outcomes.get(outcome.ordinal()));
+        }
+        out.println("Latency (ms)       count      p50      p90      p99    p99.9      max");
+        for (int i = 0; i < phaseNames.size(); i++) {
+            printLatency(out, phaseNames.get(i), phaseLatencies.get(i));
+        }
+        printLatency(out, "all", latency);
+        out.printf(Locale.ROOT, "GC pauses: %d, total %d ms, p99 %d ms, max %d ms%n", gcPauses.getTotalCount(),
+                totalPauseMillis(), gcPauses.getValueAtPercentile(99), gcPauses.getMaxValue());
+        long rss = peakRssKb();
+        out.printf(Locale.ROOT, "Peak RSS: %s, peak heap: %d MiB%n", rss < 0 ? "n/a" : rss / 1024 + " MiB",
+                peakHeapBytes() / (1024 * 1024));
+    }
+
+    void write(Path result, Path histogram, Map<String, Object> configuration) throws IOException {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("configuration", configuration);
+        double seconds = (endNanos - startNanos) / 1e9;
+        report.put("durationSeconds", seconds);
+        report.put("throughputPerSecond", latency.getTotalCount() / seconds);
+        Map<String, Long> outcomeCounts = new LinkedHashMap<>();
+        for (LoginStorm.Outcome outcome : LoginStorm.Outcome.values()) {
+            outcomeCounts.put(outcome.name().toLowerCase(Locale.ROOT), outcomes.get(outcome.ordinal()));
+        }
+        report.put("outcomes", outcomeCounts);
+        Map<String, Object> latencies = new LinkedHashMap<>();
+        for (int i = 0; i < phaseNames.size(); i++) {
+            latencies.put(phaseNames.get(i), latencySummary(phaseLatencies.get(i)));
+        }
+        latencies.put("all", latencySummary(latency));
+        report.put("latencyMillis", latencies);
+        Map<String, Object> gc = new LinkedHashMap<>();
+        gc.put("pauses", gcPauses.getTotalCount());
+        gc.put("totalPauseMillis", totalPauseMillis());
+        gc.put("p99PauseMillis", gcPauses.getValueAtPercentile(99));
+        gc.put("maxPauseMillis", gcPauses.getMaxValue());
+        report.put("gc", gc);
+        report.put("peakRssKb", peakRssKb());
+        report.put("peakHeapBytes", peakHeapBytes());
+        Files.createDirectories(result.toAbsolutePath().getParent());
+        Files.write(result, JsonSerialization.writeValueAsPrettyString(report).getBytes(StandardCharsets.UTF_8));
+        try (PrintStream out = new PrintStream(Files.newOutputStream(histogram), false, "UTF-8")) {
+            latency.outputPercentileDistribution(out, 1000.0);
+        }
+    }
+
+    private static void printLatency(PrintStream out, String name, Histogram histogram) {
+        out.printf(Locale.ROOT, "  %-12s %9d %8.1f %8.1f %8.1f %8.1f %8.1f%n", name, histogram.getTotalCount(),
+                millis(histogram, 50), millis(histogram, 90), millis(histogram, 99), millis(histogram, 99.9),
+                histogram.getMaxValue() / 1000.0);
+    }
+
+    private static Map<String, Object> latencySummary(Histogram histogram) {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("count", histogram.getTotalCount());
+        summary.put("p50", millis(histogram, 50));
+        summary.put("p90", millis(histogram, 90));
+        summary.put("p99", millis(histogram, 99));
+        summary.put("p99.9", millis(histogram, 99.9));
+        summary.put("max", histogram.getMaxValue() / 1000.0);
+        return summary;
+    }
+
+    static double millis(Histogram histogram, double percentile) {
+        return histogram.getValueAtPercentile(percentile) / 1000.0;
+    }
+
+    private long totalPauseMillis() {
+        long total = 0;
+        for (HistogramIterationValue value : gcPauses.recordedValues()) {
+            total += value.getValueIteratedTo() * value.getCountAtValueIteratedTo();
+        }
+        return total;
+    }
+
+    private static long peakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * The process's peak resident set size ({@code VmHWM}), or {@code -1} where
+     * {@code /proc} is not available.
+     */
+    private static long peakRssKb() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.US_ASCII)) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.substring("VmHWM:".length()).replace("kB", "").trim());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // not Linux
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,152 @@
+package de.hangy.keycloak.loadtest;
+
+import de.hangy.keycloak.credential.hash.ScryptRealmPolicyCache;
+import de.hangy.keycloak.exceptions.ScryptOverloadedException;
+import de.hangy.keycloak.exceptions.ScryptThrottledException;
+import de.hangy.keycloak.testing.KeycloakModelStub;
+import de.hangy.keycloak.testing.KeycloakSessionStub;
+import de.hangy.keycloak.utils.ScryptEncodingUtils;
+
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.keycloak.credential.hash.PasswordHashProvider;
+import org.keycloak.credential.hash.PasswordHashProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.PasswordPolicy;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.credential.PasswordCredentialModel;
+
+/**
+ * A population of users and the login Keycloak's password credential provider
+ * performs for each of them: {@code verify}, then for a correct password
+ * {@code policyCheck}, and if that fails {@code encodedCredential} with the
+ * realm's current policy, whose result replaces the user's credential.
+ * <p>
+ * A share of the users start out with credentials hashed under an older policy,
+ * as after a policy change, so their first successful login also pays for a
+ * rehash, or hands it to the provider's deferred rehash service if that is
+ * enabled. Users and their credentials live in a {@link KeycloakModelStub},
+ * where the deferred rehash finds and replaces them as it would in Keycloak.
+ */
+final class LoginStorm {
+
+    enum Outcome {
+        /** Correct password, credential up to date. */
+        OK,
+        /** Correct password, credential rehashed with the current policy. */
+        REHASHED,
+        /** Correct password, outdated credential left to the deferred rehash. */
+        DEFERRED,
+        /** Wrong password, refused. */
+        WRONG_PASSWORD,
+        /** Refused by the attempt throttle before the password was checked. */
+        REFUSED,
+        /** Turned away by admission control, the executor or the cluster budget. */
+        OVERLOADED,
+        /** Any other failure. */
+        ERROR
+    }
+
+    private static final String WRONG_PASSWORD = "not the right password";
+
+    private final PasswordHashProviderFactory factory;
+
+    private final KeycloakModelStub model;
+
+    private final String realmName;
+
+    private final PasswordPolicy policy;
+
+    private final ScryptEncodingUtils.ScryptParameters current;
+
+    private final int users;
+
+    private final long seed;
+
+    /**
+     * Creates {@code users} users in the model's realm {@code realmName},
+     * hashing the credentials of the outdated users under {@code legacyRealm}'s
+     * policy and all others under the realm's own.
+     */
+    LoginStorm(PasswordHashProviderFactory factory, KeycloakModelStub model, String realmName,
+            KeycloakSessionStub legacyRealm, int users, double rehashRatio, long seed) {
+        this.factory = factory;
+        this.model = model;
+        this.realmName = realmName;
+        this.users = users;
+        this.seed = seed;
+        RealmModel realm = model.getSessionFactory().create().realms().getRealmByName(realmName);
+        this.policy = realm.getPasswordPolicy();
+        this.current = new ScryptRealmPolicyCache().get(realm);
+        Random random = new Random(seed);
+        boolean[] outdated = new boolean[users];
+        for (int user = 0; user < users; user++) {
+            outdated[user] = random.nextDouble() < rehashRatio;
+        }
+        IntStream.range(0, users).parallel().forEach(user -> {
+            KeycloakSession session = model.getSessionFactory().create();
+            session.getContext().setRealm(realm);
+            KeycloakSession hashSession = outdated[user] ? legacyRealm.getSession() : session;
+            PasswordHashProvider provider = factory.create(hashSession);
+            try {
+                PasswordCredentialModel credential = provider.encodedCredential(password(user),
+                        policy.getHashIterations());
+                UserModel created = session.users().addUser(realm, username(user));
+                created.credentialManager().createStoredCredential(credential);
+            } finally {
+                provider.close();
+            }
+        });
+    }
+
+    int getUsers() {
+        return users;
+    }
+
+    Outcome login(int user, boolean wrongPassword) {
+        String username = username(user);
+        PasswordCredentialModel credential = PasswordCredentialModel
+                .createFromCredentialModel(model.getPasswordCredential(realmName, username));
+        PasswordHashProvider provider = factory.create(model.createLoginSession(realmName, username, null));
+        try {
+            if (!provider.verify(wrongPassword ? WRONG_PASSWORD : password(user), credential)) {
+                return wrongPassword ? Outcome.WRONG_PASSWORD : Outcome.ERROR;
+            }
+            if (wrongPassword) {
+                return Outcome.ERROR;
+            }
+            if (provider.policyCheck(policy, credential)) {
+                return isCurrent(credential) ? Outcome.OK : Outcome.DEFERRED;
+            }
+            PasswordCredentialModel rehashed = provider.encodedCredential(password(user), policy.getHashIterations());
+            rehashed.setId(credential.getId());
+            rehashed.setCreatedDate(credential.getCreatedDate());
+            model.getUser(realmName, username).credentialManager().updateStoredCredential(rehashed);
+            return Outcome.REHASHED;
+        } catch (ScryptThrottledException e) {
+            return Outcome.REFUSED;
+        } catch (ScryptOverloadedException e) {
+            return Outcome.OVERLOADED;
+        } catch (RuntimeException e) {
+            return Outcome.ERROR;
+        } finally {
+            provider.close();
+        }
+    }
+
+    private boolean isCurrent(PasswordCredentialModel credential) {
+        ScryptEncodingUtils.ScryptParameters stored = ScryptEncodingUtils.getScryptParameters(credential);
+        return stored.getCost() == current.getCost() && stored.getBlockSize() == current.getBlockSize()
+                && stored.getParallellism() == current.getParallellism();
+    }
+
+    private static String username(int user) {
+        return "user-" + user;
+    }
+
+    private String password(int user) {
+        return "password-" + user + "-" + seed;
+    }
+}
@@ -0,0 +1,230 @@
+package de.hangy.keycloak.loadtest;
+
+import de.hangy.keycloak.credential.hash.ScryptPasswordHashProviderFactory;
+import de.hangy.keycloak.testing.KeycloakModelStub;
+import de.hangy.keycloak.testing.KeycloakSessionStub;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.keycloak.Config;
+
+/**
+ * Replays a login storm against the scrypt provider, the way Keycloak drives it,
+ * through a stubbed session. Logins arrive open loop, at exponentially
+ * distributed intervals, following a schedule of rate phases; every login is
+ * timed from the moment it was due, so a provider that falls behind shows up
+ * as growing latency rather than as a lower arrival rate. Arrivals, users and
+ * wrong passwords come from a seeded random generator, so runs with the same
+ * settings issue the same logins.
+ * <p>
+ * Configured through system properties set by the {@code loadtest} Maven
+ * profile:
+ * <ul>
+ * <li>{@code loadtest.arrivals} - rate phases as {@code logins/s:seconds},
+ * comma separated, e.g. {@code 20:60,150:120,20:60}</li>
+ * <li>{@code loadtest.warmupSeconds} - seconds at the first phase's rate
+ * before measuring</li>
+ * <li>{@code loadtest.clients} - concurrent request threads</li>
+ * <li>{@code loadtest.users} - user population</li>
+ * <li>{@code loadtest.wrongPasswordRatio} - share of logins with a wrong
+ * password</li>
+ * <li>{@code loadtest.rehashRatio} - share of users whose credentials predate
+ * the current policy and are rehashed on their first login</li>
+ * <li>{@code loadtest.cost}, {@code loadtest.blockSize},
+ * {@code loadtest.parallelism} - the realm's scrypt policy</li>
+ * <li>{@code loadtest.legacyCost} - N of the outdated credentials</li>
+ * <li>{@code loadtest.spi} - provider options, comma separated, e.g.
+ * {@code executorEnabled=true,executorThreads=4}; the cluster budget and the
+ * user import need a running Keycloak and are refused</li>
+ * <li>{@code loadtest.seed} - random seed</li>
+ * <li>{@code loadtest.result} - JSON result file; the latency distribution is
+ * written next to it as {@code .hgrm}</li>
+ * </ul>
+ */
+public class LoginStormRunner {
+
+    private static final String SPI_PREFIX = "loadtest.spi.";
+
+    private static final String REALM = "loadtest";
+
+    private LoginStormRunner() {
+        throw new IllegalStateException("Runner class");
+    }
+
+    public static void main(String[] args) throws Exception {
+        String arrivals = System.getProperty("loadtest.arrivals", "20:60,100:120,20:60");
+        int warmupSeconds = Integer.getInteger("loadtest.warmupSeconds", 10);
+        int clients = Integer.getInteger("loadtest.clients", 64);
+        int users = Integer.getInteger("loadtest.users", 500);
+        double wrongPasswordRatio = Double.parseDouble(System.getProperty("loadtest.wrongPasswordRatio", "0.1"));
+        double rehashRatio = Double.parseDouble(System.getProperty("loadtest.rehashRatio", "0.2"));
+        int cost = Integer.getInteger("loadtest.cost", 16384);
+        int blockSize = Integer.getInteger("loadtest.blockSize", 8);
+        int parallelism = Integer.getInteger("loadtest.parallelism", 1);
+        int legacyCost = Integer.getInteger("loadtest.legacyCost", Math.max(2, cost / 2));
+        String spi = System.getProperty("loadtest.spi", "");
+        long seed = Long.getLong("loadtest.seed", 42L);
+        Path result = Paths.get(System.getProperty("loadtest.result", "loadtest-result.json"));
+
+        List<double[]> phases = parsePhases(arrivals);
+        Map<String, Object> configuration = new LinkedHashMap<>();
+        configuration.put("arrivals", arrivals);
+        configuration.put("warmupSeconds", warmupSeconds);
+        configuration.put("clients", clients);
+        configuration.put("users", users);
+        configuration.put("wrongPasswordRatio", wrongPasswordRatio);
+        configuration.put("rehashRatio", rehashRatio);
+        configuration.put("policy", "N=" + cost + ", r=" + blockSize + ", p=" + parallelism);
+        configuration.put("legacyCost", legacyCost);
+        configuration.put("spi", spi);
+        configuration.put("seed", seed);
+        configuration.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+        configuration.put("maxHeapMb", Runtime.getRuntime().maxMemory() / (1024 * 1024));
+
+        for (String option : spi.split(",")) {
+            int separator = option.indexOf('=');
+            if (separator > 0) {
+                System.setProperty(SPI_PREFIX + option.substring(0, separator).trim(),
+                        option.substring(separator + 1).trim());
+            }
+        }
+        Config.Scope config = new Config.SystemPropertiesScope(SPI_PREFIX);
+        // Both only start on Keycloak's post-migration event, with its Infinispan and realms
+        if (config.getBoolean(ScryptPasswordHashProviderFactory.CLUSTER_BUDGET_ENABLED, false)
+                || config.get(ScryptPasswordHashProviderFactory.IMPORT_FILE) != null) {
+            throw new IllegalArgumentException("The load test cannot run with "
+                    + ScryptPasswordHashProviderFactory.CLUSTER_BUDGET_ENABLED + " or "
+                    + ScryptPasswordHashProviderFactory.IMPORT_FILE + ", they need a running Keycloak");
+        }
+        KeycloakModelStub model = new KeycloakModelStub();
+        model.addRealm(REALM, KeycloakSessionStub.policy(cost, blockSize, parallelism, 32, 16));
+        ScryptPasswordHashProviderFactory factory = new ScryptPasswordHashProviderFactory();
+        model.setPasswordHashProvider(factory::create);
+        factory.init(config);
+        factory.postInit(model.getSessionFactory());
+        try {
+            KeycloakSessionStub legacyRealm = new KeycloakSessionStub("loadtest-legacy", legacyCost, blockSize,
+                    parallelism, 32, 16);
+            System.out.printf(Locale.ROOT, "Creating %d users...%n", users);
+            LoginStorm storm = new LoginStorm(factory, model, REALM, legacyRealm, users, rehashRatio, seed);
+            run(storm, phases, warmupSeconds, clients, wrongPasswordRatio, seed, configuration, result);
+        } finally {
+            factory.close();
+        }
+    }
+
+    private static void run(LoginStorm storm, List<double[]> phases, int warmupSeconds, int clients,
+            double wrongPasswordRatio, long seed, Map<String, Object> configuration, Path result) throws Exception {
+        List<String> phaseNames = new ArrayList<>();
+        for (int i = 0; i < phases.size(); i++) {
+            phaseNames.add((i + 1) + "@" + formatRate(phases.get(i)[0]) + "/s");
+        }
+        LoadTestReport report = new LoadTestReport(phaseNames);
+        ExecutorService requestThreads = Executors.newFixedThreadPool(clients, runnable -> {
+            Thread thread = new Thread(runnable, "loadtest-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicLong submitted = new AtomicLong();
+        AtomicLong completed = new AtomicLong();
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "loadtest-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        progress.scheduleAtFixedRate(() -> {
+            Histogram interval = report.takeInterval();
+            System.out.printf(Locale.ROOT, "%6d logins/5s, p50 %8.1f ms, p99 %8.1f ms, backlog %d%n",
+                    interval.getTotalCount(), LoadTestReport.millis(interval, 50), LoadTestReport.millis(interval, 99),
+                    submitted.get() - completed.get());
+        }, 5, 5, TimeUnit.SECONDS);
+
+        Random random = new Random(seed);
+        long next = System.nanoTime();
+        if (warmupSeconds > 0) {
+            System.out.printf(Locale.ROOT, "Warming up for %d s...%n", warmupSeconds);
+            next = arrive(storm, random, requestThreads, report, -1, phases.get(0)[0], next,
+                    next + TimeUnit.SECONDS.toNanos(warmupSeconds), wrongPasswordRatio, submitted, completed);
+        }
+        report.start();
+        for (int i = 0; i < phases.size(); i++) {
+            double[] phase = phases.get(i);
+            System.out.printf(Locale.ROOT, "Phase %s for %s s%n", phaseNames.get(i), formatRate(phase[1]));
+            long end = Math.max(next, System.nanoTime()) + (long) (phase[1] * 1e9);
+            next = arrive(storm, random, requestThreads, report, i, phase[0], next, end, wrongPasswordRatio, submitted,
+                    completed);
+        }
+        requestThreads.shutdown();
+        requestThreads.awaitTermination(1, TimeUnit.HOURS);
+        report.stop();
+        progress.shutdownNow();
+
+        report.print(System.out, configuration);
+        Path histogram = Paths.get(result.toString().replaceFirst("(\\.json)?$", ".hgrm"));
+        report.write(result, histogram, configuration);
+        System.out.println("Results written to " + result + " and " + histogram);
+    }
+
+    /**
+     * Submits logins at {@code rate} per second until {@code end}.
+     *
+     * @return when the next login is due
+     */
+    private static long arrive(LoginStorm storm, Random random, ExecutorService requestThreads,
+            LoadTestReport report, int phase, double rate, long next, long end, double wrongPasswordRatio,
+            AtomicLong submitted, AtomicLong completed) {
+        while (next < end) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            long intended = next;
+            int user = random.nextInt(storm.getUsers());
+            boolean wrongPassword = random.nextDouble() < wrongPasswordRatio;
+            submitted.incrementAndGet();
+            requestThreads.execute(() -> {
+                LoginStorm.Outcome outcome = storm.login(user, wrongPassword);
+                report.record(phase, intended, outcome);
+                completed.incrementAndGet();
+            });
+            next += (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+        }
+        return next;
+    }
+
+    private static List<double[]> parsePhases(String arrivals) {
+        List<double[]> phases = new ArrayList<>();
+        for (String phase : arrivals.split(",")) {
+            String[] fields = phase.trim().split(":");
+            if (fields.length != 2) {
+                throw new IllegalArgumentException("Arrival phases must look like <logins/s>:<seconds>: " + phase);
+            }
+            double rate = Double.parseDouble(fields[0]);
+            double seconds = Double.parseDouble(fields[1]);
+            if (rate <= 0 || seconds <= 0) {
+                throw new IllegalArgumentException("Arrival rate and duration must be positive: " + phase);
+            }
+            phases.add(new double[] { rate, seconds });
+        }
+        return phases;
+    }
+
+    private static String formatRate(double value) {
+        return value == Math.rint(value) ? String.valueOf((long) value) : String.valueOf(value);
+    }
+}
@@ -0,0 +1,172 @@
+package de.hangy.keycloak.calibration;
+
+import de.hangy.keycloak.utils.ScryptEncodingUtils;
+import de.hangy.keycloak.utils.ScryptEngine;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Finds the largest scrypt cost N whose hashing latency on this machine stays
+ * within a p95 budget and whose working memory stays within a memory budget.
+ * Costs are tried in increasing powers of two, each with a warm-up run followed
+ * by a fixed number of timed samples, and the search stops at the first cost
+ * that exceeds either budget.
+ */
+public class ScryptCalibrator {
+    private static final Logger LOG = Logger.getLogger(ScryptCalibrator.class);
+
+    private static final byte[] PASSWORD = "scrypt-calibration".getBytes(StandardCharsets.UTF_8);
+
+    private final ScryptEngine engine;
+
+    private final long targetP95Nanos;
+
+    private final long memoryBudgetBytes;
+
+    private final int blockSize;
+
+    private final int parallelism;
+
+    private final int hashLength;
+
+    private final int saltLength;
+
+    private final int minCost;
+
+    private final int maxCost;
+
+    private final int samples;
+
+    public ScryptCalibrator(ScryptEngine engine, long targetP95Nanos, long memoryBudgetBytes, int blockSize,
+            int parallelism, int hashLength, int saltLength, int minCost, int maxCost, int samples) {
+        if (minCost <= 1 || Integer.bitCount(minCost) != 1 || maxCost < minCost) {
+            throw new IllegalArgumentException("minCost must be a power of 2 > 1 and maxCost >= minCost");
+        }
+        this.engine = engine;
+        this.targetP95Nanos = targetP95Nanos;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.blockSize = blockSize;
+        this.parallelism = parallelism;
+        this.hashLength = hashLength;
+        this.saltLength = saltLength;
+        this.minCost = minCost;
+        this.maxCost = maxCost;
+        this.samples = Math.max(1, samples);
+    }
+
+    public Result calibrate() {
+        byte[] salt = new byte[saltLength];
+        Map<Integer, Long> measurements = new LinkedHashMap<>();
+        int best = -1;
+        long bestP95 = 0;
+
+        for (long cost = minCost; cost <= maxCost; cost <<= 1) {
+            int N = (int) cost;
+            if (engine.workingMemoryBytes(N, blockSize, parallelism) > memoryBudgetBytes) {
+                LOG.debugf("Calibration stopped at N=%d: working memory exceeds the budget.", N);
+                break;
+            }
+            long p95 = measureP95(N, salt);
+            measurements.put(N, p95);
+            LOG.debugf("Calibration N=%d r=%d p=%d: p95 %d µs.", N, blockSize, parallelism, p95 / 1000);
+            if (p95 > targetP95Nanos) {
+                break;
+            }
+            best = N;
+            bestP95 = p95;
+        }
+
+        boolean withinBudget = best > 0;
+        if (!withinBudget) {
+            best = minCost;
+            bestP95 = measurements.getOrDefault(minCost, 0L);
+        }
+        ScryptEncodingUtils.ScryptParameters parameters = ScryptEncodingUtils.ScryptParameters.of(best, blockSize,
+                parallelism, hashLength, saltLength);
+        return new Result(parameters, bestP95, engine.workingMemoryBytes(best, blockSize, parallelism),
+                withinBudget, targetP95Nanos, memoryBudgetBytes, measurements);
+    }
+
+    private long measureP95(int N, byte[] salt) {
+        // Warm-up run, also brings the scratch arena to its final size
+        engine.generate(PASSWORD, salt, N, blockSize, parallelism, hashLength);
+        long[] timings = new long[samples];
+        for (int i = 0; i < samples; i++) {
+            long start = System.nanoTime();
+            engine.generate(PASSWORD, salt, N, blockSize, parallelism, hashLength);
+            timings[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(timings);
+        int index = (int) Math.ceil(0.95 * samples) - 1;
+        return timings[Math.max(0, index)];
+    }
+
+    /**
+     * Outcome of a calibration run.
+     */
+    public static class Result {
+        private final ScryptEncodingUtils.ScryptParameters parameters;
+        private final long p95Nanos;
+        private final long memoryBytes;
+        private final boolean withinBudget;
+        private final long targetP95Nanos;
+        private final long memoryBudgetBytes;
+        private final Map<Integer, Long> measurements;
+
+        Result(ScryptEncodingUtils.ScryptParameters parameters, long p95Nanos, long memoryBytes,
+                boolean withinBudget, long targetP95Nanos, long memoryBudgetBytes, Map<Integer, Long> measurements) {
+            this.parameters = parameters;
+            this.p95Nanos = p95Nanos;
+            this.memoryBytes = memoryBytes;
+            this.withinBudget = withinBudget;
+            this.targetP95Nanos = targetP95Nanos;
+            this.memoryBudgetBytes = memoryBudgetBytes;
+            this.measurements = measurements;
+        }
+
+        /** Strongest parameters that fit both budgets, or the minimum cost if none do. */
+        public ScryptEncodingUtils.ScryptParameters getParameters() {
+            return parameters;
+        }
+
+        public long getP95Nanos() {
+            return p95Nanos;
+        }
+
+        public long getMemoryBytes() {
+            return memoryBytes;
+        }
+
+        /** Whether even the minimum cost fitted the latency budget. */
+        public boolean isWithinBudget() {
+            return withinBudget;
+        }
+
+        public long getTargetP95Nanos() {
+            return targetP95Nanos;
+        }
+
+        public long getMemoryBudgetBytes() {
+            return memoryBudgetBytes;
+        }
+
+        /** p95 latency in nanoseconds per tried cost N. */
+        public Map<Integer, Long> getMeasurements() {
+            return measurements;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            measurements.forEach((N, p95) -> sb.append(sb.length() == 0 ? "" : ", ")
+                    .append("N=").append(N).append(": ").append(p95 / 1_000_000.0).append(" ms"));
+            return parameters + " (p95 " + p95Nanos / 1_000_000.0 + " ms, target " + targetP95Nanos / 1_000_000
+                    + " ms" + (withinBudget ? "" : ", NOT within budget") + "; measured " + sb + ")";
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package de.hangy.keycloak.concurrent;
+
+import de.hangy.keycloak.exceptions.ScryptOverloadedException;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Caps the scrypt working memory in use at any one time. Each operation takes as
+ * many permits as the memory it needs (in KiB); callers that do not fit wait in a
+ * bounded FIFO queue for at most the configured timeout. Callers that find the
+ * queue full, or time out, get a {@link ScryptOverloadedException} straight away,
+ * so an overloaded node keeps running a fixed amount of work instead of piling up
+ * threads and heap.
+ */
+public class ScryptAdmissionController {
+    private static final Logger LOG = Logger.getLogger(ScryptAdmissionController.class);
+
+    private static final long PERMIT_BYTES = 1024;
+
+    public static final long DEFAULT_MEMORY_BUDGET_BYTES = Runtime.getRuntime().maxMemory() / 2;
+
+    public static final int DEFAULT_MAX_QUEUE_LENGTH = 256;
+
+    public static final long DEFAULT_QUEUE_TIMEOUT_MILLIS = 5000;
+
+    private final boolean enabled;
+
+    private final int totalPermits;
+
+    private final int maxQueueLength;
+
+    private final long queueTimeoutMillis;
+
+    private final Semaphore permits;
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    public ScryptAdmissionController(long memoryBudgetBytes, int maxQueueLength, long queueTimeoutMillis) {
+        this(true, memoryBudgetBytes, maxQueueLength, queueTimeoutMillis);
+    }
+
+    private ScryptAdmissionController(boolean enabled, long memoryBudgetBytes, int maxQueueLength,
+            long queueTimeoutMillis) {
+        if (memoryBudgetBytes < PERMIT_BYTES) {
+            throw new IllegalArgumentException("Memory budget must be at least " + PERMIT_BYTES + " bytes");
+        }
+        this.enabled = enabled;
+        this.totalPermits = (int) Math.min(Integer.MAX_VALUE, memoryBudgetBytes / PERMIT_BYTES);
+        this.maxQueueLength = maxQueueLength;
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        this.permits = new Semaphore(totalPermits, true);
+    }
+
+    /**
+     * A controller that admits everything; used when admission control is switched
+     * off.
+     */
+    public static ScryptAdmissionController unbounded() {
+        return new ScryptAdmissionController(false, Long.MAX_VALUE, Integer.MAX_VALUE, 0);
+    }
+
+    /**
+     * Runs {@code operation} once {@code memoryBytes} of the budget are available.
+     * An operation larger than the whole budget is admitted alone.
+     *
+     * @throws ScryptOverloadedException if the queue is full, the wait times out
+     *                                   or the caller is interrupted while waiting
+     */
+    public <T> T execute(long memoryBytes, Supplier<T> operation) {
+        if (!enabled) {
+            return operation.get();
+        }
+        int required = (int) Math.min(totalPermits, Math.max(1, (memoryBytes + PERMIT_BYTES - 1) / PERMIT_BYTES));
+        acquire(required);
+        try {
+            return operation.get();
+        } finally {
+            permits.release(required);
+        }
+    }
+
+    private void acquire(int required) {
+        try {
+            // Unlike the untimed tryAcquire, this does not barge ahead of callers already waiting
+            if (permits.tryAcquire(required, 0, TimeUnit.NANOSECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw reject("interrupted while waiting for scrypt working memory");
+        }
+        if (queued.incrementAndGet() > maxQueueLength) {
+            queued.decrementAndGet();
+            throw reject("scrypt admission queue is full (" + maxQueueLength + " waiting)");
+        }
+        try {
+            if (!permits.tryAcquire(required, queueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw reject("timed out after " + queueTimeoutMillis + " ms waiting for scrypt working memory");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw reject("interrupted while waiting for scrypt working memory");
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    private ScryptOverloadedException reject(String reason) {
+        rejected.incrementAndGet();
+        LOG.warnf("Rejecting scrypt operation: %s.", reason);
+        return new ScryptOverloadedException("Too many concurrent password hash operations: " + reason);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getMemoryBudgetBytes() {
+        return totalPermits * PERMIT_BYTES;
+    }
+
+    public long getMemoryInUseBytes() {
+        return (totalPermits - (long) permits.availablePermits()) * PERMIT_BYTES;
+    }
+
+    public int getQueueLength() {
+        return queued.get();
+    }
+
+    public int getMaxQueueLength() {
+        return maxQueueLength;
+    }
+
+    public long getQueueTimeoutMillis() {
+        return queueTimeoutMillis;
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+}
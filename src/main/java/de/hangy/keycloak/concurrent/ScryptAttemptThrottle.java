@@ -0,0 +1,266 @@
+package de.hangy.keycloak.concurrent;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Token-bucket rate limit on password verifications, one bucket per account and
+ * client address and one per client address, checked before any scrypt work is
+ * done. A rejected attempt costs a couple of compare-and-sets instead of a full
+ * hash.
+ * <p>
+ * The account limit is kept per address so that one source guessing an
+ * account's password cannot lock its owner out from anywhere else; guesses
+ * spread over many addresses are left to the per-address limit and Keycloak's
+ * brute force detection.
+ * <p>
+ * Buckets live in a fixed-size table per dimension, so memory is bounded no
+ * matter how many accounts or addresses are seen. Keys are only kept as a
+ * 64-bit hash with a random per-node seed. Each key may occupy one of two
+ * slots; a new key takes an empty slot or evicts whichever of the two buckets
+ * has refilled the most, which is harmless once a bucket is full again. All
+ * updates replace an immutable bucket with a compare-and-set, so there are no
+ * locks on the login path.
+ */
+public class ScryptAttemptThrottle {
+    private static final Logger LOG = Logger.getLogger(ScryptAttemptThrottle.class);
+
+    public static final int DEFAULT_STRIPES = 65536;
+
+    public static final int DEFAULT_ACCOUNT_BURST = 10;
+
+    public static final double DEFAULT_ACCOUNT_PER_MINUTE = 6;
+
+    public static final int DEFAULT_ADDRESS_BURST = 100;
+
+    public static final double DEFAULT_ADDRESS_PER_MINUTE = 60;
+
+    private final BucketTable accounts;
+
+    private final BucketTable addresses;
+
+    private final long seed;
+
+    private final LongSupplier nanoClock;
+
+    /**
+     * @param stripes          slots per dimension, rounded up to a power of two
+     * @param accountBurst     attempts an account may make at once from one
+     *                         address; {@code 0} disables the per-account limit
+     * @param accountPerMinute rate at which those attempts are refilled
+     * @param addressBurst     attempts a client address may make at once;
+     *                         {@code 0} disables the per-address limit
+     * @param addressPerMinute rate at which an address's attempts are refilled
+     */
+    public ScryptAttemptThrottle(int stripes, int accountBurst, double accountPerMinute, int addressBurst,
+            double addressPerMinute) {
+        this(stripes, accountBurst, accountPerMinute, addressBurst, addressPerMinute, System::nanoTime);
+    }
+
+    ScryptAttemptThrottle(int stripes, int accountBurst, double accountPerMinute, int addressBurst,
+            double addressPerMinute, LongSupplier nanoClock) {
+        if (stripes < 2 || stripes > 1 << 24) {
+            throw new IllegalArgumentException("stripes must be between 2 and " + (1 << 24));
+        }
+        int slots = Integer.highestOneBit(stripes - 1) << 1;
+        this.accounts = accountBurst > 0 ? new BucketTable(slots, accountBurst, accountPerMinute) : null;
+        this.addresses = addressBurst > 0 ? new BucketTable(slots, addressBurst, addressPerMinute) : null;
+        this.seed = new SecureRandom().nextLong();
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * A throttle that admits every attempt; used when throttling is switched off.
+     */
+    public static ScryptAttemptThrottle unlimited() {
+        return new ScryptAttemptThrottle(2, 0, 0, 0, 0);
+    }
+
+    /**
+     * Takes one attempt from the bucket of the account at this address and from
+     * the address's bucket. If either is empty nothing is taken and the attempt
+     * must be refused. Nothing is charged when the client address is unknown, as
+     * there would be no way to tell the account's owner from anyone else.
+     *
+     * @param account stable identifier of the account, or {@code null}
+     * @param address client address, or {@code null} if unknown
+     */
+    public boolean tryAcquire(String account, String address) {
+        long now = nanoClock.getAsLong();
+        long accountKey = 0;
+        if (accounts != null && account != null && address != null) {
+            accountKey = hash(account, address);
+            if (!accounts.tryAcquire(accountKey, now)) {
+                LOG.debugf("Throttling password verification: too many attempts for the account.");
+                return false;
+            }
+        }
+        if (addresses != null && address != null && !addresses.tryAcquire(hash(address), now)) {
+            if (accountKey != 0) {
+                accounts.refund(accountKey, now);
+            }
+            LOG.debugf("Throttling password verification: too many attempts from the client address.");
+            return false;
+        }
+        return true;
+    }
+
+    public boolean isEnabled() {
+        return accounts != null || addresses != null;
+    }
+
+    public int getStripes() {
+        return accounts != null ? accounts.slots.length() : addresses != null ? addresses.slots.length() : 0;
+    }
+
+    public long getAccountRejectedCount() {
+        return accounts == null ? 0 : accounts.rejected.sum();
+    }
+
+    public long getAddressRejectedCount() {
+        return addresses == null ? 0 : addresses.rejected.sum();
+    }
+
+    /**
+     * Buckets that were replaced by another key before they had refilled, i.e.
+     * whose state was lost because the table was full.
+     */
+    public long getEvictionCount() {
+        return (accounts == null ? 0 : accounts.evictions.sum()) + (addresses == null ? 0 : addresses.evictions.sum());
+    }
+
+    @Override
+    public String toString() {
+        if (!isEnabled()) {
+            return "disabled";
+        }
+        return "account=" + (accounts == null ? "off" : accounts) + ", address="
+                + (addresses == null ? "off" : addresses) + ", stripes=" + getStripes();
+    }
+
+    private long hash(String key) {
+        return hash(key, "");
+    }
+
+    private long hash(String first, String second) {
+        long h = seed ^ first.length();
+        for (int i = 0; i < first.length(); i++) {
+            h = mix(h ^ first.charAt(i));
+        }
+        h = mix(h ^ ((long) second.length() << 32));
+        for (int i = 0; i < second.length(); i++) {
+            h = mix(h ^ second.charAt(i));
+        }
+        h = mix(h);
+        // 0 marks "no account key" in tryAcquire
+        return h == 0 ? 1 : h;
+    }
+
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    private static final class Bucket {
+        final long key;
+        final double tokens;
+        final long updatedNanos;
+
+        Bucket(long key, double tokens, long updatedNanos) {
+            this.key = key;
+            this.tokens = tokens;
+            this.updatedNanos = updatedNanos;
+        }
+    }
+
+    private static final class BucketTable {
+        final AtomicReferenceArray<Bucket> slots;
+        final int mask;
+        final int burst;
+        final double perMinute;
+        final double tokensPerNano;
+        final LongAdder rejected = new LongAdder();
+        final LongAdder evictions = new LongAdder();
+
+        BucketTable(int slots, int burst, double perMinute) {
+            if (perMinute < 0) {
+                throw new IllegalArgumentException("Refill rate must be >= 0");
+            }
+            this.slots = new AtomicReferenceArray<>(slots);
+            this.mask = slots - 1;
+            this.burst = burst;
+            this.perMinute = perMinute;
+            this.tokensPerNano = perMinute / 60e9;
+        }
+
+        boolean tryAcquire(long key, long now) {
+            int first = (int) key & mask;
+            int second = secondSlot(key, first);
+            while (true) {
+                Bucket a = slots.get(first);
+                Bucket b = slots.get(second);
+                int index;
+                Bucket current;
+                if (a != null && a.key == key) {
+                    index = first;
+                    current = a;
+                } else if (b != null && b.key == key) {
+                    index = second;
+                    current = b;
+                } else {
+                    // Unknown key: a fresh bucket, in an empty slot or instead of the fuller neighbour
+                    index = a == null || (b != null && tokens(a, now) >= tokens(b, now)) ? first : second;
+                    current = index == first ? a : b;
+                    if (slots.compareAndSet(index, current, new Bucket(key, burst - 1, now))) {
+                        if (current != null && tokens(current, now) < burst) {
+                            evictions.increment();
+                        }
+                        return true;
+                    }
+                    continue;
+                }
+                double tokens = tokens(current, now);
+                if (tokens < 1) {
+                    rejected.increment();
+                    return false;
+                }
+                if (slots.compareAndSet(index, current, new Bucket(key, tokens - 1, now))) {
+                    return true;
+                }
+            }
+        }
+
+        void refund(long key, long now) {
+            int first = (int) key & mask;
+            int second = secondSlot(key, first);
+            for (int index : new int[] { first, second }) {
+                Bucket current;
+                while ((current = slots.get(index)) != null && current.key == key) {
+                    double tokens = Math.min(burst, tokens(current, now) + 1);
+                    if (slots.compareAndSet(index, current, new Bucket(key, tokens, now))) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        int secondSlot(long key, int first) {
+            int second = (int) (key >>> 32) & mask;
+            return second == first ? first ^ 1 : second;
+        }
+
+        double tokens(Bucket bucket, long now) {
+            return Math.min(burst, bucket.tokens + Math.max(0, now - bucket.updatedNanos) * tokensPerNano);
+        }
+
+        @Override
+        public String toString() {
+            return burst + " then " + perMinute + "/min";
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package de.hangy.keycloak.concurrent;
+
+import de.hangy.keycloak.exceptions.ScryptShedException;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import org.infinispan.Cache;
+import org.infinispan.commons.api.BasicCache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.jboss.logging.Logger;
+
+/**
+ * Shares each node's scrypt load with the rest of the cluster through a
+ * replicated Infinispan cache, so that a node flooded with logins while its
+ * peers are idle can turn hashes away instead of queueing them without end.
+ * <p>
+ * Every node owns one entry, keyed by its node name, holding its in-flight
+ * hashes and its hashing slots. Entries are republished every publish interval
+ * and expire after three, so nodes that leave drop out on their own; since
+ * nobody writes another node's entry there is no contention between nodes.
+ * <p>
+ * A hash is always admitted while the node has a free slot. On a saturated
+ * node it is deferred to the node's own admission queue, as without a budget.
+ * Only once that queue has reached {@code shedQueueLength}, and some peer had a
+ * free slot at the last refresh, is it shed with a {@link ScryptShedException}
+ * instead, because waiting would take longer than starting the login over.
+ * Shedding does not move the login to that peer: Keycloak routes an
+ * authentication session back to the node that owns it, so only logins that
+ * start a new session can be balanced elsewhere. With a {@code shedQueueLength}
+ * of {@code 0} nothing is ever shed.
+ * <p>
+ * Slots are configured, not measured: a node counts as saturated once it runs
+ * as many hashes as it has slots, whatever each of them costs.
+ */
+public class ScryptClusterBudget implements AutoCloseable {
+    private static final Logger LOG = Logger.getLogger(ScryptClusterBudget.class);
+
+    public static final String CACHE_NAME = "scrypt-load";
+
+    public static final long DEFAULT_PUBLISH_INTERVAL_MILLIS = 1000;
+
+    private final BasicCache<String, String> cache;
+
+    private final String nodeName;
+
+    private final int slots;
+
+    private final long publishIntervalMillis;
+
+    private final int shedQueueLength;
+
+    private final IntSupplier localQueueLength;
+
+    private final ScheduledExecutorService publisher;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final LongAdder shed = new LongAdder();
+
+    private final LongAdder deferred = new LongAdder();
+
+    private volatile Snapshot snapshot = new Snapshot(0, 0, 0, 0);
+
+    private ScryptClusterBudget() {
+        this.cache = null;
+        this.nodeName = null;
+        this.slots = 0;
+        this.publishIntervalMillis = 0;
+        this.shedQueueLength = 0;
+        this.localQueueLength = () -> 0;
+        this.publisher = null;
+    }
+
+    /**
+     * Creates a budget that publishes this node's load to {@code cache} and
+     * refreshes its view of the cluster every {@code publishIntervalMillis}.
+     *
+     * @param slots            hashes this node runs at once, normally its hashing
+     *                         threads
+     * @param shedQueueLength  local queue length from which hashes are shed while
+     *                         a peer has room; {@code 0} never sheds
+     * @param localQueueLength hashes waiting on this node, normally in its
+     *                         admission queue
+     */
+    public ScryptClusterBudget(BasicCache<String, String> cache, String nodeName, int slots,
+            long publishIntervalMillis, int shedQueueLength, IntSupplier localQueueLength) {
+        this(cache, nodeName, slots, publishIntervalMillis, shedQueueLength, localQueueLength, true);
+    }
+
+    ScryptClusterBudget(BasicCache<String, String> cache, String nodeName, int slots, long publishIntervalMillis,
+            int shedQueueLength, IntSupplier localQueueLength, boolean schedule) {
+        if (slots < 1) {
+            throw new IllegalArgumentException("slots must be >= 1");
+        }
+        if (publishIntervalMillis < 1) {
+            throw new IllegalArgumentException("publishIntervalMillis must be >= 1");
+        }
+        if (shedQueueLength < 0) {
+            throw new IllegalArgumentException("shedQueueLength must be >= 0");
+        }
+        this.cache = cache;
+        this.nodeName = nodeName;
+        this.slots = slots;
+        this.publishIntervalMillis = publishIntervalMillis;
+        this.shedQueueLength = shedQueueLength;
+        this.localQueueLength = localQueueLength;
+        refresh();
+        if (schedule) {
+            this.publisher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "scrypt-cluster-budget");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.publisher.scheduleWithFixedDelay(this::refreshQuietly, publishIntervalMillis, publishIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            this.publisher = null;
+        }
+    }
+
+    /**
+     * A budget that only looks at this node; used when the cluster budget is
+     * switched off.
+     */
+    public static ScryptClusterBudget standalone() {
+        return new ScryptClusterBudget();
+    }
+
+    /**
+     * The replicated cache the budget is kept in, defined on first use. Values
+     * are plain strings, so whatever marshaller the cache manager uses can carry
+     * them.
+     */
+    public static Cache<String, String> getCache(EmbeddedCacheManager cacheManager) {
+        synchronized (ScryptClusterBudget.class) {
+            if (cacheManager.getCacheConfiguration(CACHE_NAME) == null) {
+                ConfigurationBuilder builder = new ConfigurationBuilder();
+                builder.clustering().cacheMode(cacheManager.getCacheManagerConfiguration().isClustered()
+                        ? CacheMode.REPL_ASYNC
+                        : CacheMode.LOCAL);
+                builder.statistics().disable();
+                cacheManager.defineConfiguration(CACHE_NAME, builder.build());
+            }
+        }
+        return cacheManager.getCache(CACHE_NAME);
+    }
+
+    /**
+     * Takes a slot for one hash, to be given back with {@link #release()}.
+     *
+     * @throws ScryptShedException if this node's queue is too long and a peer
+     *                             has room
+     */
+    public void acquire() {
+        int running = inFlight.incrementAndGet();
+        if (cache == null || running <= slots) {
+            return;
+        }
+        int queued;
+        if (shedQueueLength > 0 && snapshot.peerSpareSlots > 0
+                && (queued = localQueueLength.getAsInt()) >= shedQueueLength) {
+            inFlight.decrementAndGet();
+            shed.increment();
+            LOG.debugf("Shedding scrypt operation: %d hashes in flight on %d slots, %d queued, peers have %d free.",
+                    running - 1, slots, queued, snapshot.peerSpareSlots);
+            throw new ScryptShedException("Too many password hash operations queued on this node");
+        }
+        deferred.increment();
+    }
+
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Publishes this node's load and rereads everyone else's.
+     */
+    public void refresh() {
+        if (cache == null) {
+            return;
+        }
+        cache.put(nodeName, encode(inFlight.get(), slots), 3 * publishIntervalMillis, TimeUnit.MILLISECONDS);
+        int nodes = 0;
+        int clusterInFlight = 0;
+        int clusterSlots = 0;
+        int peerSpareSlots = 0;
+        for (Map.Entry<String, String> entry : cache.entrySet()) {
+            // Nodes of earlier versions append their capacity, which is ignored
+            String[] load = entry.getValue().split(":");
+            if (load.length < 2) {
+                continue;
+            }
+            int nodeInFlight = Integer.parseInt(load[0]);
+            int nodeSlots = Integer.parseInt(load[1]);
+            nodes++;
+            clusterInFlight += nodeInFlight;
+            clusterSlots += nodeSlots;
+            if (!nodeName.equals(entry.getKey())) {
+                peerSpareSlots += Math.max(0, nodeSlots - nodeInFlight);
+            }
+        }
+        snapshot = new Snapshot(nodes, clusterInFlight, clusterSlots, peerSpareSlots);
+    }
+
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    public String getNodeName() {
+        return nodeName;
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    public int getShedQueueLength() {
+        return shedQueueLength;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Nodes that published their load recently, including this one.
+     */
+    public int getNodes() {
+        return snapshot.nodes;
+    }
+
+    public int getClusterInFlight() {
+        return snapshot.clusterInFlight;
+    }
+
+    public int getClusterSlots() {
+        return snapshot.clusterSlots;
+    }
+
+    /**
+     * Hashes turned away because this node's queue was too long while a peer had
+     * room.
+     */
+    public long getShedCount() {
+        return shed.sum();
+    }
+
+    /**
+     * Hashes queued on this node while it was saturated.
+     */
+    public long getDeferredCount() {
+        return deferred.sum();
+    }
+
+    @Override
+    public String toString() {
+        if (cache == null) {
+            return "disabled";
+        }
+        Snapshot current = snapshot;
+        return "node=" + nodeName + ", nodes=" + current.nodes + ", inFlight=" + current.clusterInFlight + "/"
+                + current.clusterSlots + ", shed=" + getShedCount() + ", deferred=" + getDeferredCount();
+    }
+
+    @Override
+    public void close() {
+        if (publisher != null) {
+            publisher.shutdownNow();
+        }
+        if (cache != null) {
+            try {
+                cache.remove(nodeName);
+            } catch (RuntimeException e) {
+                LOG.debugf("Could not withdraw the scrypt load of %s: %s", nodeName, e.getMessage());
+            }
+        }
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        } catch (RuntimeException e) {
+            LOG.warnf("Could not share the scrypt load with the cluster: %s", e.getMessage());
+        }
+    }
+
+    private static String encode(int inFlight, int slots) {
+        return inFlight + ":" + slots;
+    }
+
+    private static final class Snapshot {
+        final int nodes;
+        final int clusterInFlight;
+        final int clusterSlots;
+        final int peerSpareSlots;
+
+        Snapshot(int nodes, int clusterInFlight, int clusterSlots, int peerSpareSlots) {
+            this.nodes = nodes;
+            this.clusterInFlight = clusterInFlight;
+            this.clusterSlots = clusterSlots;
+            this.peerSpareSlots = peerSpareSlots;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package de.hangy.keycloak.concurrent;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import org.jboss.logging.Logger;
+
+/**
+ * The CPUs this process may use. How many it can keep busy comes from
+ * {@link Runtime#availableProcessors()}, which the JVM already limits to the
+ * CPU set and the container's cgroup CPU quota. For reporting, the CPU set
+ * itself ({@code Cpus_allowed_list}, which reflects cgroup cpusets and
+ * {@code taskset}) and how it is spread over NUMA nodes are read from Linux.
+ * Anything that cannot be read is taken to be unrestricted, so on other systems
+ * this reports the available processors on a single node.
+ */
+public class ScryptCpuTopology {
+    private static final Logger LOG = Logger.getLogger(ScryptCpuTopology.class);
+
+    private final int allowedCpus;
+
+    private final int availableProcessors;
+
+    private final List<Integer> cpusPerNode;
+
+    ScryptCpuTopology(int allowedCpus, int availableProcessors, List<Integer> cpusPerNode) {
+        this.allowedCpus = allowedCpus;
+        this.availableProcessors = availableProcessors;
+        this.cpusPerNode = Collections.unmodifiableList(new ArrayList<>(cpusPerNode));
+    }
+
+    public static ScryptCpuTopology detect() {
+        return read(Paths.get("/"), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Reads the topology from {@code proc} and {@code sys} below {@code root}.
+     */
+    static ScryptCpuTopology read(Path root, int availableProcessors) {
+        BitSet allowed = readAllowedCpus(root.resolve("proc/self/status"));
+        if (allowed == null || allowed.isEmpty()) {
+            allowed = new BitSet();
+            allowed.set(0, Math.max(availableProcessors, 1));
+        }
+        List<Integer> nodes = new ArrayList<>();
+        Path nodeRoot = root.resolve("sys/devices/system/node");
+        if (Files.isDirectory(nodeRoot)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(nodeRoot, "node[0-9]*")) {
+                List<Path> nodeDirs = new ArrayList<>();
+                stream.forEach(nodeDirs::add);
+                nodeDirs.sort((a, b) -> Integer.compare(nodeIndex(a), nodeIndex(b)));
+                for (Path nodeDir : nodeDirs) {
+                    String cpuList = readFirstLine(nodeDir.resolve("cpulist"));
+                    if (cpuList == null) {
+                        continue;
+                    }
+                    BitSet nodeCpus = parseCpuList(cpuList);
+                    nodeCpus.and(allowed);
+                    if (!nodeCpus.isEmpty()) {
+                        nodes.add(nodeCpus.cardinality());
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                LOG.debugf("Could not read the NUMA topology: %s", e.getMessage());
+                nodes.clear();
+            }
+        }
+        if (nodes.isEmpty()) {
+            nodes.add(allowed.cardinality());
+        }
+        return new ScryptCpuTopology(allowed.cardinality(), availableProcessors, nodes);
+    }
+
+    /**
+     * CPUs in the process's CPU set.
+     */
+    public int getAllowedCpus() {
+        return allowedCpus;
+    }
+
+    /**
+     * CPUs' worth of time this process can get, as the JVM sees it: the CPU set,
+     * capped by the cgroup CPU quota.
+     */
+    public int getEffectiveCpus() {
+        return Math.max(Math.min(allowedCpus, availableProcessors), 1);
+    }
+
+    /**
+     * Allowed CPUs on each NUMA node that has any, in node order.
+     */
+    public List<Integer> getCpusPerNode() {
+        return cpusPerNode;
+    }
+
+    @Override
+    public String toString() {
+        return "cpus=" + allowedCpus + ", effective=" + getEffectiveCpus() + ", nodes=" + cpusPerNode;
+    }
+
+    /**
+     * Parses a kernel CPU list such as {@code 0-3,8-11,16}.
+     */
+    static BitSet parseCpuList(String list) {
+        BitSet cpus = new BitSet();
+        for (String range : list.trim().split(",")) {
+            if (range.isEmpty()) {
+                continue;
+            }
+            int dash = range.indexOf('-');
+            if (dash < 0) {
+                cpus.set(Integer.parseInt(range.trim()));
+            } else {
+                cpus.set(Integer.parseInt(range.substring(0, dash).trim()),
+                        Integer.parseInt(range.substring(dash + 1).trim()) + 1);
+            }
+        }
+        return cpus;
+    }
+
+    private static BitSet readAllowedCpus(Path status) {
+        try {
+            for (String line : Files.readAllLines(status, StandardCharsets.US_ASCII)) {
+                if (line.startsWith("Cpus_allowed_list:")) {
+                    return parseCpuList(line.substring("Cpus_allowed_list:".length()));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.debugf("Could not read the allowed CPUs: %s", e.getMessage());
+        }
+        return null;
+    }
+
+    private static String readFirstLine(Path file) {
+        if (!Files.isReadable(file)) {
+            return null;
+        }
+        try {
+            List<String> lines = Files.readAllLines(file, StandardCharsets.US_ASCII);
+            return lines.isEmpty() ? null : lines.get(0);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static int nodeIndex(Path nodeDir) {
+        return Integer.parseInt(nodeDir.getFileName().toString().substring("node".length()));
+    }
+}
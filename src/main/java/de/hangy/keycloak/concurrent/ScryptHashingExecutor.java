@@ -0,0 +1,201 @@
+package de.hangy.keycloak.concurrent;
+
+import de.hangy.keycloak.exceptions.ScryptOverloadedException;
+import de.hangy.keycloak.exceptions.ScryptRuntimeException;
+import de.hangy.keycloak.utils.ScryptScratchPool;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Runs scrypt hashes on a fixed number of dedicated platform threads fed by a
+ * bounded queue, so that however many request threads want a hash at once, only
+ * as many hashes as there are hashing threads compete with the rest of
+ * Keycloak's traffic for CPU. The calling thread parks until its result is
+ * ready; on a JVM with virtual threads that costs no carrier thread.
+ * <p>
+ * A caller that finds the queue full gets a {@link ScryptOverloadedException}
+ * straight away, like one rejected by the {@link ScryptAdmissionController}.
+ * <p>
+ * Hashing threads are {@link ScryptScratchPool.ArenaOwner arena owners}, so a
+ * scratch pool with worker arenas lets each of them keep its own working
+ * memory. An optional start task runs on every hashing thread before it takes
+ * its first hash, e.g. to allocate that memory.
+ */
+public class ScryptHashingExecutor implements AutoCloseable {
+    private static final Logger LOG = Logger.getLogger(ScryptHashingExecutor.class);
+
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private ScryptHashingExecutor() {
+        this.executor = null;
+    }
+
+    public ScryptHashingExecutor(int threads, int queueSize) {
+        this(threads, queueSize, null);
+    }
+
+    /**
+     * @param workerStart run on each hashing thread when it starts, or
+     *                    {@code null}; failures are logged and ignored
+     */
+    public ScryptHashingExecutor(int threads, int queueSize, Runnable workerStart) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be >= 1");
+        }
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("queueSize must be >= 1");
+        }
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), new HashingThreadFactory(workerStart), new ThreadPoolExecutor.AbortPolicy());
+        this.executor.prestartAllCoreThreads();
+    }
+
+    /**
+     * An executor that runs every hash on the calling thread; used when the
+     * dedicated threads are switched off.
+     */
+    public static ScryptHashingExecutor callerRuns() {
+        return new ScryptHashingExecutor();
+    }
+
+    /**
+     * Runs {@code task} on a hashing thread and waits for its result.
+     *
+     * @throws ScryptOverloadedException if the queue is full
+     * @throws ScryptRuntimeException    if the caller is interrupted while waiting
+     */
+    public <T> T execute(Supplier<T> task) {
+        if (executor == null) {
+            return task.get();
+        }
+        Future<T> result;
+        try {
+            result = executor.submit(task::get);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            LOG.warnf("Rejecting scrypt operation: the hashing queue is full (%d waiting).", executor.getQueue().size());
+            throw new ScryptOverloadedException("Too many concurrent password hash operations: hashing queue is full", e);
+        }
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            result.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new ScryptRuntimeException("Interrupted while waiting for a scrypt hash", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ScryptRuntimeException("scrypt hash failed", cause);
+        }
+    }
+
+    public boolean isEnabled() {
+        return executor != null;
+    }
+
+    public int getThreads() {
+        return executor == null ? 0 : executor.getCorePoolSize();
+    }
+
+    public int getQueueSize() {
+        return executor == null ? 0 : executor.getQueue().size() + executor.getQueue().remainingCapacity();
+    }
+
+    /**
+     * Hashes waiting for a hashing thread.
+     */
+    public int getQueueLength() {
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    /**
+     * Hashing threads busy right now.
+     */
+    public int getActiveThreads() {
+        return executor == null ? 0 : executor.getActiveCount();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    private static final class HashingThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        private final Runnable workerStart;
+
+        private HashingThreadFactory(Runnable workerStart) {
+            this.workerStart = workerStart;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new HashingThread(runnable, workerStart, "scrypt-hash-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private static final class HashingThread extends Thread implements ScryptScratchPool.ArenaOwner {
+        private final Runnable workerStart;
+
+        private ScryptScratchPool.Scratch arena;
+
+        private HashingThread(Runnable runnable, Runnable workerStart, String name) {
+            super(runnable, name);
+            this.workerStart = workerStart;
+        }
+
+        @Override
+        public void run() {
+            if (workerStart != null) {
+                try {
+                    workerStart.run();
+                } catch (RuntimeException | OutOfMemoryError e) {
+                    // The thread must still go on to serve the pool
+                    LOG.warnf("Start task of %s failed: %s", getName(), e.getMessage());
+                }
+            }
+            super.run();
+        }
+
+        @Override
+        public ScryptScratchPool.Scratch getArena() {
+            return arena;
+        }
+
+        @Override
+        public void setArena(ScryptScratchPool.Scratch arena) {
+            this.arena = arena;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package de.hangy.keycloak.credential.hash;
+
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.credential.hash.PasswordHashProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.credential.PasswordCredentialModel;
+import org.keycloak.models.jpa.entities.CredentialEntity;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import jakarta.persistence.LockModeType;
+
+/**
+ * Re-hashes credentials with outdated scrypt parameters off the login path. The
+ * upgrade runs on a small bounded executor, at most {@code permitsPerSecond}
+ * times per second, each in its own Keycloak transaction, and is dropped if the
+ * credential changed since the login. A credential that cannot be scheduled
+ * (rate limit, full queue, already pending) simply stays as it is and is picked
+ * up again on a later login.
+ */
+public class ScryptDeferredRehashService {
+    private static final Logger LOG = Logger.getLogger(ScryptDeferredRehashService.class);
+
+    private static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final KeycloakSessionFactory sessionFactory;
+
+    private final String providerId;
+
+    private final ThreadPoolExecutor executor;
+
+    private final long permitIntervalNanos;
+
+    private final AtomicLong nextPermitNanos = new AtomicLong(System.nanoTime());
+
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong scheduled = new AtomicLong();
+
+    private final AtomicLong skipped = new AtomicLong();
+
+    private final AtomicLong completed = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    public ScryptDeferredRehashService(KeycloakSessionFactory sessionFactory, String providerId, int threads,
+            int queueSize, double permitsPerSecond) {
+        this.sessionFactory = sessionFactory;
+        this.providerId = providerId;
+        this.permitIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), runnable -> {
+                    Thread thread = new Thread(runnable, "scrypt-rehash-" + threadIndex.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Schedules the upgrade of a credential the user has just logged in with.
+     *
+     * @param verifiedSecretData the secret data the password was verified against;
+     *                           the upgrade is dropped if the stored credential has
+     *                           changed in the meantime
+     * @return {@code false} only if the service is shut down and the caller should
+     *         rehash inline; otherwise the credential was either scheduled or left
+     *         for a later login
+     */
+    public boolean schedule(String realmId, String userId, String credentialId, String verifiedSecretData,
+            String rawPassword) {
+        if (executor.isShutdown()) {
+            return false;
+        }
+        if (!pending.add(credentialId)) {
+            skipped.incrementAndGet();
+            return true;
+        }
+        if (!tryAcquirePermit()) {
+            pending.remove(credentialId);
+            skipped.incrementAndGet();
+            LOG.debugf("Deferred rehash of credential '%s' skipped: rate limit reached.", credentialId);
+            return true;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    upgrade(realmId, userId, credentialId, verifiedSecretData, rawPassword);
+                } finally {
+                    pending.remove(credentialId);
+                }
+            });
+            scheduled.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            pending.remove(credentialId);
+            skipped.incrementAndGet();
+            LOG.debugf("Deferred rehash of credential '%s' skipped: queue is full.", credentialId);
+        }
+        return true;
+    }
+
+    private void upgrade(String realmId, String userId, String credentialId, String verifiedSecretData,
+            String rawPassword) {
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                if (realm == null) {
+                    return;
+                }
+                session.getContext().setRealm(realm);
+                UserModel user = session.users().getUserById(realm, userId);
+                if (user == null) {
+                    return;
+                }
+                CredentialModel stored = user.credentialManager().getStoredCredentialById(credentialId);
+                String secretData = stored == null ? null : lockSecretData(session, credentialId, stored);
+                if (!Objects.equals(secretData, verifiedSecretData)) {
+                    LOG.debugf("Credential '%s' changed since login, dropping its deferred rehash.", credentialId);
+                    return;
+                }
+                PasswordHashProvider hash = session.getProvider(PasswordHashProvider.class, providerId);
+                int iterations = realm.getPasswordPolicy() == null ? -1 : realm.getPasswordPolicy().getHashIterations();
+                PasswordCredentialModel upgraded = hash.encodedCredential(rawPassword, iterations);
+                upgraded.setId(stored.getId());
+                upgraded.setCreatedDate(stored.getCreatedDate());
+                upgraded.setUserLabel(stored.getUserLabel());
+                user.credentialManager().updateStoredCredential(upgraded);
+            });
+            completed.incrementAndGet();
+        } catch (RuntimeException e) {
+            failed.incrementAndGet();
+            LOG.warnf(e, "Deferred rehash of credential '%s' failed, it will be retried on a later login.",
+                    credentialId);
+        }
+    }
+
+    /**
+     * The credential's secret data as stored. With Keycloak's JPA store the row
+     * is read with a write lock held until the transaction commits, so that a
+     * password changed concurrently on any node is either seen here or written
+     * after the upgrade, never overwritten by it; the row is read from the
+     * database rather than the user cache. Other stores are only compared.
+     */
+    private static String lockSecretData(KeycloakSession session, String credentialId, CredentialModel stored) {
+        JpaConnectionProvider jpa = session.getProvider(JpaConnectionProvider.class);
+        if (jpa == null) {
+            return stored.getSecretData();
+        }
+        CredentialEntity entity = jpa.getEntityManager().find(CredentialEntity.class, credentialId,
+                LockModeType.PESSIMISTIC_WRITE);
+        return entity == null ? null : entity.getSecretData();
+    }
+
+    private boolean tryAcquirePermit() {
+        while (true) {
+            long now = System.nanoTime();
+            long next = nextPermitNanos.get();
+            long start = Math.max(next, now - BURST_NANOS);
+            if (start > now) {
+                return false;
+            }
+            if (nextPermitNanos.compareAndSet(next, start + permitIntervalNanos)) {
+                return true;
+            }
+        }
+    }
+
+    public long getScheduled() {
+        return scheduled.get();
+    }
+
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public int getQueueLength() {
+        return executor.getQueue().size();
+    }
+
+    public void close() {
+        executor.shutdownNow();
+        pending.clear();
+    }
+}
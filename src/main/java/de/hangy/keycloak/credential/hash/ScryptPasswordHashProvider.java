@@ -1,15 +1,24 @@
 package de.hangy.keycloak.credential.hash;
 
-import de.hangy.keycloak.policy.*;
+import de.hangy.keycloak.exceptions.ScryptShedException;
+import de.hangy.keycloak.exceptions.ScryptThrottledException;
+import de.hangy.keycloak.utils.ScryptCredentialEncoder;
 import de.hangy.keycloak.utils.ScryptEncodingUtils;
 import de.hangy.keycloak.utils.ScryptHelper;
+import de.hangy.keycloak.utils.ScryptVerificationCache;
+import de.hangy.keycloak.verifier.ScryptCredentialVerifier;
+import de.hangy.keycloak.verifier.ScryptVerifierRegistry;
 
 import org.jboss.logging.Logger;
-import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.common.ClientConnection;
 import org.keycloak.credential.hash.PasswordHashProvider;
+import org.keycloak.http.HttpResponse;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.PasswordPolicy;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
 import org.keycloak.models.credential.PasswordCredentialModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
 
 /**
  * @author <a href="mailto:dries.eestermans@is4u.be">Dries Eestermans</a>
@@ -20,9 +29,46 @@ public class ScryptPasswordHashProvider implements PasswordHashProvider {
     private final String providerId;
     private final KeycloakSession session;
 
+    private final ScryptRealmPolicyCache policyCache;
+
+    private final ScryptDeferredRehashService deferredRehash;
+
+    private final ScryptVerifierRegistry verifiers;
+
+    private final ScryptCredentialEncoder.StorageFormat storageFormat;
+
+    // Password last verified in this session, kept only until the policyCheck that
+    // follows it so that an outdated credential can be upgraded in the background
+    private String verifiedCredentialId;
+    private String verifiedPassword;
+
     public ScryptPasswordHashProvider(String providerId, KeycloakSession session) {
+        this(providerId, session, new ScryptRealmPolicyCache());
+    }
+
+    public ScryptPasswordHashProvider(String providerId, KeycloakSession session, ScryptRealmPolicyCache policyCache) {
+        this(providerId, session, policyCache, null);
+    }
+
+    public ScryptPasswordHashProvider(String providerId, KeycloakSession session, ScryptRealmPolicyCache policyCache,
+            ScryptDeferredRehashService deferredRehash) {
+        this(providerId, session, policyCache, deferredRehash, ScryptVerifierRegistry.defaults());
+    }
+
+    public ScryptPasswordHashProvider(String providerId, KeycloakSession session, ScryptRealmPolicyCache policyCache,
+            ScryptDeferredRehashService deferredRehash, ScryptVerifierRegistry verifiers) {
+        this(providerId, session, policyCache, deferredRehash, verifiers, ScryptCredentialEncoder.StorageFormat.JSON);
+    }
+
+    public ScryptPasswordHashProvider(String providerId, KeycloakSession session, ScryptRealmPolicyCache policyCache,
+            ScryptDeferredRehashService deferredRehash, ScryptVerifierRegistry verifiers,
+            ScryptCredentialEncoder.StorageFormat storageFormat) {
         this.providerId = providerId;
         this.session = session;
+        this.policyCache = policyCache;
+        this.deferredRehash = deferredRehash;
+        this.verifiers = verifiers;
+        this.storageFormat = storageFormat;
     }
 
     @Override
@@ -31,14 +77,27 @@ public class ScryptPasswordHashProvider implements PasswordHashProvider {
         // Check it it is an scrypt encoded password.
         if (!providerId.equals(credential.getPasswordCredentialData().getAlgorithm())) {
             LOG.debugf("< policyCheck() -> Stored password uses a different algorithm and hence does not meet the Realm Password Policy.");
+            ScryptHelper.getMetrics().recordRehashRequired();
+            return false;
+        }
+        // Hashes imported in a legacy format are upgraded after the next successful login
+        ScryptCredentialVerifier verifier = verifiers.find(credential);
+        if (verifier.isLegacy()) {
+            ScryptHelper.getMetrics().recordRehashRequired();
+            if (deferRehash(credential)) {
+                LOG.debugf("< policyCheck() -> Stored password is in legacy format '%s', rehash deferred.", verifier.getFormat());
+                return true;
+            }
+            LOG.debugf("< policyCheck() -> Stored password is in legacy format '%s' and hence does not meet the Realm Password Policy.",
+                    verifier.getFormat());
             return false;
         }
+
         // The stored password is a scrypt hash and hence checking the specific parameters of the policy is required.
 
         // Get the credential's Scrypt parameters
         ScryptEncodingUtils.ScryptParameters storedScryptParameters = ScryptEncodingUtils
-                .extractScryptParametersFromCredentials(credential.getPasswordSecretData().getValue(),
-                        credential.getPasswordCredentialData().getAdditionalParameters());
+                .getScryptParameters(credential);
         // Get the configured Scrypt parameters
         ScryptEncodingUtils.ScryptParameters configuredScryptParameters = getConfiguredScryptParameters();
 
@@ -47,6 +106,15 @@ public class ScryptPasswordHashProvider implements PasswordHashProvider {
                 && storedScryptParameters.getCost() == configuredScryptParameters.getCost()
                 && storedScryptParameters.getBlockSize() == configuredScryptParameters.getBlockSize();
 
+        if (!meetsRealmPolicy) {
+            ScryptHelper.getMetrics().recordRehashRequired();
+            if (deferRehash(credential)) {
+                LOG.debugf("< policyCheck() -> Stored password does not meet Realm Password Policy, rehash deferred.");
+                return true;
+            }
+        }
+        clearVerifiedPassword();
+
         LOG.debugf("< policyCheck() -> Stored password meets Realm Password Policy = '%s'.", String.valueOf(meetsRealmPolicy));
         return meetsRealmPolicy;
     }
@@ -71,15 +139,44 @@ public class ScryptPasswordHashProvider implements PasswordHashProvider {
                 configuredScryptParameters.getHashLength());
 
         LOG.debugf("< encodedCredential()");
-        return ScryptEncodingUtils.createPasswordCredentialModel(salt, hash, configuredScryptParameters);
+        return ScryptCredentialEncoder.createPasswordCredentialModel(storageFormat, salt, hash,
+                configuredScryptParameters);
     }
 
     @Override
     public boolean verify(String rawPassword, PasswordCredentialModel credential) {
         LOG.debugf("> verify()");
 
-        // Verify whether the incoming password matches the stored password
-        boolean passwordsMatch = ScryptHelper.verifyPassword(rawPassword, credential);
+        boolean passwordsMatch;
+        ScryptVerificationCache cache = ScryptHelper.getVerificationCache();
+        if (cache != null && cache.contains(credential, rawPassword)) {
+            // Verified against this exact credential moments ago
+            passwordsMatch = true;
+        } else {
+            // Refuse excess attempts for this account or from this client before spending a hash on them,
+            // without reporting a wrong password that brute force detection would count against the user
+            if (!ScryptHelper.getAttemptThrottle().tryAcquire(credential.getId(), getClientAddress())) {
+                LOG.debugf("< verify() -> Attempt throttled.");
+                throw new ScryptThrottledException("Too many password attempts, try again later");
+            }
+
+            // Verify whether the incoming password matches the stored password
+            ScryptCredentialVerifier verifier = verifiers.find(credential);
+            try {
+                passwordsMatch = verifier.verify(rawPassword, credential.getPasswordSecretData().getValue(),
+                        credential);
+            } catch (ScryptShedException e) {
+                markRetryable();
+                throw e;
+            }
+            if (passwordsMatch && cache != null) {
+                cache.put(credential, rawPassword);
+            }
+        }
+        if (passwordsMatch && deferredRehash != null) {
+            verifiedCredentialId = credential.getId();
+            verifiedPassword = rawPassword;
+        }
 
         LOG.debugf("< verify()");
         return passwordsMatch;
@@ -87,27 +184,72 @@ public class ScryptPasswordHashProvider implements PasswordHashProvider {
 
     @Override
     public void close() {
-        // noop
+        clearVerifiedPassword();
     }
 
-    private <T> T getDefaultValue(String providerId, T defaultValue) {
-        T ret;
+    /**
+     * Hands the credential to the background rehash service if its password was
+     * verified by this provider just before, in a login with a known user.
+     */
+    private boolean deferRehash(PasswordCredentialModel credential) {
+        String password = verifiedPassword;
+        String credentialId = verifiedCredentialId;
+        clearVerifiedPassword();
+        if (password == null || credentialId == null || !credentialId.equals(credential.getId())) {
+            return false;
+        }
+        RealmModel realm;
+        UserModel user;
+        try {
+            realm = session.getContext().getRealm();
+            AuthenticationSessionModel authSession = session.getContext().getAuthenticationSession();
+            user = authSession == null ? null : authSession.getAuthenticatedUser();
+        } catch (Exception e) {
+            return false;
+        }
+        if (realm == null || user == null) {
+            return false;
+        }
+        return deferredRehash.schedule(realm.getId(), user.getId(), credentialId, credential.getSecretData(), password);
+    }
+
+    private void clearVerifiedPassword() {
+        verifiedCredentialId = null;
+        verifiedPassword = null;
+    }
+
+    /**
+     * Keycloak reports a failed verification like a wrong password, so a shed
+     * login is told apart by a {@code Retry-After} header for a proxy in front of
+     * it to act on.
+     */
+    private void markRetryable() {
+        try {
+            HttpResponse response = session.getContext().getHttpResponse();
+            if (response != null) {
+                response.setHeader("Retry-After", "1");
+            }
+        } catch (Exception e) {
+            // Not in an HTTP request
+        }
+    }
+
+    private String getClientAddress() {
         try {
-            ret = this.session.getContext().getRealm().getPasswordPolicy().getPolicyConfig(providerId);
+            ClientConnection connection = session.getContext().getConnection();
+            return connection == null ? null : connection.getRemoteAddr();
         } catch (Exception e) {
-            ret = defaultValue;
+            return null;
         }
-        if (ret == null) ret = defaultValue;
-        return ret;
     }
 
     private ScryptEncodingUtils.ScryptParameters getConfiguredScryptParameters() {
-        return new ScryptEncodingUtils.ScryptParameters(
-                getDefaultValue(ScryptCostPasswordPolicyProviderFactory.ID, ScryptCostPasswordPolicyProviderFactory.DEFAULT_COST),
-                getDefaultValue(ScryptBlockSizePasswordPolicyProviderFactory.ID, ScryptBlockSizePasswordPolicyProviderFactory.DEFAULT_BLOCK_SIZE),
-                getDefaultValue(ScryptParallelismPasswordPolicyProviderFactory.ID, ScryptParallelismPasswordPolicyProviderFactory.DEFAULT_PARALLELISM),
-                getDefaultValue(ScryptHashLengthPasswordPolicyProviderFactory.ID, ScryptHashLengthPasswordPolicyProviderFactory.DEFAULT_HASH_LENGTH),
-                getDefaultValue(ScryptSaltLengthPasswordPolicyProviderFactory.ID, ScryptSaltLengthPasswordPolicyProviderFactory.DEFAULT_SALT_LENGTH)
-        );
+        RealmModel realm;
+        try {
+            realm = this.session.getContext().getRealm();
+        } catch (Exception e) {
+            realm = null;
+        }
+        return policyCache.get(realm);
     }
 }
@@ -1,30 +1,277 @@
 package de.hangy.keycloak.credential.hash;
 
+import de.hangy.keycloak.calibration.ScryptCalibrator;
+import de.hangy.keycloak.concurrent.ScryptAdmissionController;
+import de.hangy.keycloak.concurrent.ScryptAttemptThrottle;
+import de.hangy.keycloak.concurrent.ScryptClusterBudget;
+import de.hangy.keycloak.concurrent.ScryptCpuTopology;
+import de.hangy.keycloak.concurrent.ScryptHashingExecutor;
+import de.hangy.keycloak.metrics.ScryptMetrics;
+import de.hangy.keycloak.migration.LegacyScryptUserReader;
+import de.hangy.keycloak.migration.ScryptUserImporter;
+import de.hangy.keycloak.utils.ParallelScryptEngine;
+import de.hangy.keycloak.utils.ScryptCredentialEncoder;
+import de.hangy.keycloak.utils.ScryptEncodingUtils;
+import de.hangy.keycloak.utils.ScryptEngine;
+import de.hangy.keycloak.utils.ScryptHelper;
+import de.hangy.keycloak.utils.ScryptOffHeapPool;
+import de.hangy.keycloak.utils.ScryptSaltGenerator;
+import de.hangy.keycloak.utils.ScryptScratchPool;
+import de.hangy.keycloak.utils.ScryptVectorSupport;
+import de.hangy.keycloak.utils.ScryptVerificationCache;
+import de.hangy.keycloak.verifier.ScryptVerifierRegistry;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.jboss.logging.Logger;
 import org.keycloak.Config;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
 import org.keycloak.credential.hash.PasswordHashProvider;
 import org.keycloak.credential.hash.PasswordHashProviderFactory;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
+import org.keycloak.provider.ServerInfoAwareProviderFactory;
 
 /**
  * @author <a href="mailto:dries.eestermans@is4u.be">Dries Eestermans</a>
  */
-public class ScryptPasswordHashProviderFactory implements PasswordHashProviderFactory {
+public class ScryptPasswordHashProviderFactory implements PasswordHashProviderFactory, ServerInfoAwareProviderFactory {
+    private static final Logger LOG = Logger.getLogger(ScryptPasswordHashProviderFactory.class);
+
     public static final String ID = "scrypt";
 
+    public static final String ADMISSION_ENABLED = "admissionEnabled";
+
+    public static final String ADMISSION_MEMORY_BUDGET_MB = "admissionMemoryBudgetMb";
+
+    public static final String ADMISSION_MAX_QUEUE_LENGTH = "admissionMaxQueueLength";
+
+    public static final String ADMISSION_QUEUE_TIMEOUT_MS = "admissionQueueTimeoutMs";
+
+    public static final String LANE_THREADS = "laneThreads";
+
+    public static final String OFF_HEAP_ENABLED = "offHeapEnabled";
+
+    public static final String OFF_HEAP_MAX_MB = "offHeapMaxMb";
+
+    public static final String VECTOR_ENABLED = "vectorEnabled";
+
+    public static final String EXECUTOR_ENABLED = "executorEnabled";
+
+    public static final String EXECUTOR_THREADS = "executorThreads";
+
+    public static final String EXECUTOR_QUEUE_SIZE = "executorQueueSize";
+
+    public static final String EXECUTOR_TOPOLOGY_AWARE = "executorTopologyAware";
+
+    public static final String THROTTLE_ENABLED = "throttleEnabled";
+
+    public static final String THROTTLE_STRIPES = "throttleStripes";
+
+    public static final String THROTTLE_ACCOUNT_BURST = "throttleAccountBurst";
+
+    public static final String THROTTLE_ACCOUNT_PER_MINUTE = "throttleAccountPerMinute";
+
+    public static final String THROTTLE_ADDRESS_BURST = "throttleAddressBurst";
+
+    public static final String THROTTLE_ADDRESS_PER_MINUTE = "throttleAddressPerMinute";
+
+    public static final String VERIFICATION_CACHE_ENABLED = "verificationCacheEnabled";
+
+    public static final String VERIFICATION_CACHE_TTL_SECONDS = "verificationCacheTtlSeconds";
+
+    public static final String VERIFICATION_CACHE_MAX_ENTRIES = "verificationCacheMaxEntries";
+
+    public static final String CLUSTER_BUDGET_ENABLED = "clusterBudgetEnabled";
+
+    public static final String CLUSTER_BUDGET_SLOTS = "clusterBudgetSlots";
+
+    public static final String CLUSTER_BUDGET_PUBLISH_INTERVAL_MS = "clusterBudgetPublishIntervalMs";
+
+    public static final String CLUSTER_BUDGET_SHED_QUEUE_LENGTH = "clusterBudgetShedQueueLength";
+
+    public static final String SALT_STRIPES = "saltStripes";
+
+    public static final String SALT_RESEED_INTERVAL_SECONDS = "saltReseedIntervalSeconds";
+
+    public static final String SALT_PREFILL_BYTES = "saltPrefillBytes";
+
+    public static final String METRICS_ENABLED = "metricsEnabled";
+
+    public static final String CALIBRATION_MODE = "calibrationMode";
+
+    public static final String CALIBRATION_TARGET_P95_MS = "calibrationTargetP95Ms";
+
+    public static final String CALIBRATION_MEMORY_BUDGET_MB = "calibrationMemoryBudgetMb";
+
+    public static final String CALIBRATION_BLOCK_SIZE = "calibrationBlockSize";
+
+    public static final String CALIBRATION_PARALLELISM = "calibrationParallelism";
+
+    public static final String CALIBRATION_MAX_COST = "calibrationMaxCost";
+
+    public static final String CALIBRATION_SAMPLES = "calibrationSamples";
+
+    public static final String DEFERRED_REHASH_ENABLED = "deferredRehashEnabled";
+
+    public static final String DEFERRED_REHASH_THREADS = "deferredRehashThreads";
+
+    public static final String DEFERRED_REHASH_QUEUE_SIZE = "deferredRehashQueueSize";
+
+    public static final String DEFERRED_REHASH_PER_SECOND = "deferredRehashPerSecond";
+
+    public static final String STORAGE_FORMAT = "storageFormat";
+
+    public static final String IMPORT_FILE = "importFile";
+
+    public static final String IMPORT_REALM = "importRealm";
+
+    public static final String IMPORT_BATCH_SIZE = "importBatchSize";
+
+    public static final String IMPORT_LOCK_TIMEOUT_SECONDS = "importLockTimeoutSeconds";
+
+    /**
+     * What to do with the calibration result: nothing, or log and show it.
+     * {@code apply} used to make the result the default for settings a realm's
+     * password policy leaves out; it is still accepted, as {@code RECOMMEND}.
+     */
+    public enum CalibrationMode {
+        OFF, RECOMMEND
+    }
+
+    private final ScryptRealmPolicyCache policyCache = new ScryptRealmPolicyCache();
+
+    private Config.Scope config;
+
+    private CalibrationMode calibrationMode = CalibrationMode.OFF;
+
+    private volatile String calibrationStatus = "disabled";
+
+    private volatile ScryptDeferredRehashService deferredRehash;
+
+    private ScryptVerifierRegistry verifiers = ScryptVerifierRegistry.defaults();
+
+    private ScryptCredentialEncoder.StorageFormat storageFormat = ScryptCredentialEncoder.StorageFormat.JSON;
+
+    private ScryptCpuTopology topology;
+
+    private volatile String importStatus;
+
     @Override
     public PasswordHashProvider create(KeycloakSession session) {
-        return new ScryptPasswordHashProvider(ID, session);
+        return new ScryptPasswordHashProvider(ID, session, policyCache, deferredRehash, verifiers, storageFormat);
     }
 
     @Override
     public void init(Config.Scope config) {
-        // noop
+        this.config = config;
+        String mode = config.get(CALIBRATION_MODE, CalibrationMode.OFF.name()).toUpperCase(Locale.ROOT);
+        if ("APPLY".equals(mode)) {
+            // Each node calibrates on its own; nodes picking different defaults would rehash users back and forth
+            LOG.warnf("%s=apply is no longer supported and is treated as recommend; "
+                    + "set the recommended cost in the realms' password policies instead.", CALIBRATION_MODE);
+            mode = CalibrationMode.RECOMMEND.name();
+        }
+        this.calibrationMode = CalibrationMode.valueOf(mode);
+        boolean topologyAware = config.getBoolean(EXECUTOR_ENABLED, false)
+                && config.getBoolean(EXECUTOR_TOPOLOGY_AWARE, false);
+        this.topology = topologyAware ? ScryptCpuTopology.detect() : null;
+        ScryptHelper.setEngine(createEngine(config, topology));
+        ScryptHelper.setSaltGenerator(createSaltGenerator(config));
+        if (config.getBoolean(METRICS_ENABLED, true)) {
+            ScryptHelper.setMetrics(ScryptMetrics.create());
+        }
+        ScryptHelper.setAdmissionController(createAdmissionController(config));
+        ScryptHelper.setHashingExecutor(createHashingExecutor(config, topology, policyCache.getDefaultParameters()));
+        ScryptHelper.setAttemptThrottle(createAttemptThrottle(config));
+        ScryptHelper.setVerificationCache(createVerificationCache(config));
+        this.verifiers = ScryptVerifierRegistry.load(getClass().getClassLoader());
+        this.storageFormat = ScryptCredentialEncoder.StorageFormat.valueOf(
+                config.get(STORAGE_FORMAT, ScryptCredentialEncoder.StorageFormat.JSON.name()).toUpperCase(Locale.ROOT));
     }
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
-        // noop
+        factory.register(event -> {
+            if (event instanceof RealmModel.RealmRemovedEvent) {
+                policyCache.invalidate(((RealmModel.RealmRemovedEvent) event).getRealm().getId());
+            } else if (event instanceof PostMigrationEvent) {
+                KeycloakSessionFactory sessionFactory = ((PostMigrationEvent) event).getFactory();
+                if (config.getBoolean(CLUSTER_BUDGET_ENABLED, false)) {
+                    startClusterBudget(sessionFactory);
+                }
+                if (config.get(IMPORT_FILE) != null) {
+                    startImport(sessionFactory);
+                }
+            }
+        });
+        if (calibrationMode != CalibrationMode.OFF) {
+            startCalibration(createCalibrator(config));
+        }
+        if (config.getBoolean(DEFERRED_REHASH_ENABLED, false)) {
+            deferredRehash = new ScryptDeferredRehashService(factory, ID,
+                    config.getInt(DEFERRED_REHASH_THREADS, 1),
+                    config.getInt(DEFERRED_REHASH_QUEUE_SIZE, 1000),
+                    Double.parseDouble(config.get(DEFERRED_REHASH_PER_SECOND, "10")));
+            LOG.infof("Outdated scrypt credentials are rehashed in the background.");
+        }
+    }
+
+    @Override
+    public Map<String, String> getOperationalInfo() {
+        Map<String, String> info = new LinkedHashMap<>();
+        ScryptEngine engine = ScryptHelper.getEngine();
+        info.put("engine", engine.getClass().getSimpleName());
+        if (engine instanceof ParallelScryptEngine) {
+            info.put("laneThreads", String.valueOf(((ParallelScryptEngine) engine).getLaneThreads()));
+        }
+        if (engine.getOffHeapPool() != null) {
+            info.put("offHeapMaxMb", String.valueOf(engine.getOffHeapPool().getMaxBytes() / (1024 * 1024)));
+        }
+        ScryptAdmissionController admission = ScryptHelper.getAdmissionController();
+        info.put("admissionMemoryBudgetMb", admission.isEnabled()
+                ? String.valueOf(admission.getMemoryBudgetBytes() / (1024 * 1024))
+                : "unbounded");
+        ScryptHashingExecutor executor = ScryptHelper.getHashingExecutor();
+        info.put("executorThreads", executor.isEnabled() ? String.valueOf(executor.getThreads()) : "caller");
+        if (topology != null) {
+            info.put("cpuTopology", topology.toString());
+        }
+        info.put("memoryBandwidthMbPerSecond",
+                String.valueOf(Math.round(ScryptHelper.getMemoryBandwidthBytesPerSecond() / (1024 * 1024))));
+        info.put("throttle", ScryptHelper.getAttemptThrottle().toString());
+        ScryptClusterBudget clusterBudget = ScryptHelper.getClusterBudget();
+        if (clusterBudget.isEnabled()) {
+            info.put("clusterBudget", clusterBudget.toString());
+        }
+        ScryptVerificationCache verificationCache = ScryptHelper.getVerificationCache();
+        if (verificationCache != null) {
+            info.put("verificationCache", "size=" + verificationCache.size() + ", hits="
+                    + verificationCache.getHitCount() + ", misses=" + verificationCache.getMissCount()
+                    + ", expirations=" + verificationCache.getExpirationCount() + ", evictions="
+                    + verificationCache.getEvictionCount());
+        }
+        info.put("legacyFormats", String.join(",", verifiers.getFormats()));
+        info.put("defaultParameters", policyCache.getDefaultParameters().toString());
+        info.put("storageFormat", storageFormat.name().toLowerCase(Locale.ROOT));
+        info.put("calibrationMode", calibrationMode.name().toLowerCase(Locale.ROOT));
+        info.put("calibration", calibrationStatus);
+        ScryptDeferredRehashService rehash = deferredRehash;
+        if (rehash != null) {
+            info.put("deferredRehash", "scheduled=" + rehash.getScheduled() + ", completed=" + rehash.getCompleted()
+                    + ", failed=" + rehash.getFailed() + ", skipped=" + rehash.getSkipped());
+        }
+        if (importStatus != null) {
+            info.put("import", importStatus);
+        }
+        return info;
     }
 
     @Override
@@ -34,6 +281,263 @@ public class ScryptPasswordHashProviderFactory implements PasswordHashProviderFa
 
     @Override
     public void close() {
-        // noop
+        if (deferredRehash != null) {
+            deferredRehash.close();
+        }
+        policyCache.clear();
+        // Install each default before closing what it replaces, so a hash that is still
+        // draining never picks up a component that has already been shut down.
+        ScryptClusterBudget clusterBudget = ScryptHelper.getClusterBudget();
+        ScryptHelper.setClusterBudget(ScryptClusterBudget.standalone());
+        clusterBudget.close();
+        ScryptHelper.setAdmissionController(ScryptAdmissionController.unbounded());
+        ScryptHelper.setAttemptThrottle(ScryptAttemptThrottle.unlimited());
+        ScryptVerificationCache verificationCache = ScryptHelper.getVerificationCache();
+        ScryptHelper.setVerificationCache(null);
+        if (verificationCache != null) {
+            verificationCache.clear();
+        }
+        ScryptHashingExecutor hashingExecutor = ScryptHelper.getHashingExecutor();
+        ScryptHelper.setHashingExecutor(ScryptHashingExecutor.callerRuns());
+        hashingExecutor.close();
+        ScryptEngine engine = ScryptHelper.getEngine();
+        ScryptHelper.setEngine(new ScryptEngine());
+        engine.close();
+        ScryptSaltGenerator saltGenerator = ScryptHelper.getSaltGenerator();
+        ScryptHelper.setSaltGenerator(new ScryptSaltGenerator());
+        saltGenerator.close();
+        ScryptMetrics metrics = ScryptHelper.getMetrics();
+        ScryptHelper.setMetrics(ScryptMetrics.NOOP);
+        metrics.close();
+    }
+
+    private ScryptCalibrator createCalibrator(Config.Scope config) {
+        ScryptEncodingUtils.ScryptParameters defaults = policyCache.getDefaultParameters();
+        // Never recommend a cost below the one used when a realm sets none
+        int minCost = defaults.getCost();
+        return new ScryptCalibrator(
+                ScryptHelper.getEngine(),
+                config.getLong(CALIBRATION_TARGET_P95_MS, 250L) * 1_000_000L,
+                config.getLong(CALIBRATION_MEMORY_BUDGET_MB, 64L) * 1024 * 1024,
+                config.getInt(CALIBRATION_BLOCK_SIZE, defaults.getBlockSize()),
+                config.getInt(CALIBRATION_PARALLELISM, defaults.getParallellism()),
+                defaults.getHashLength(),
+                defaults.getSaltLength(),
+                minCost,
+                Math.max(minCost, config.getInt(CALIBRATION_MAX_COST, 1 << 20)),
+                config.getInt(CALIBRATION_SAMPLES, 10));
+    }
+
+    /**
+     * Calibrates on a background thread so that Keycloak's startup is not held up.
+     * The result is only reported: the parameters in use stay the same on every
+     * node.
+     */
+    private void startCalibration(ScryptCalibrator calibrator) {
+        calibrationStatus = "running";
+        Thread thread = new Thread(() -> {
+            try {
+                ScryptCalibrator.Result result = calibrator.calibrate();
+                calibrationStatus = result.toString();
+                if (!result.isWithinBudget()) {
+                    LOG.warnf("scrypt calibration: even the default cost exceeds the latency budget on this node: %s",
+                            result);
+                } else {
+                    LOG.infof("scrypt calibration recommends: %s", result);
+                }
+            } catch (RuntimeException e) {
+                calibrationStatus = "failed: " + e.getMessage();
+                LOG.warnf(e, "scrypt calibration failed");
+            }
+        }, "scrypt-calibration");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts sharing this node's scrypt load through Keycloak's embedded
+     * Infinispan, once all of Keycloak's caches are up.
+     */
+    private void startClusterBudget(KeycloakSessionFactory sessionFactory) {
+        ScryptHashingExecutor executor = ScryptHelper.getHashingExecutor();
+        int slots = config.getInt(CLUSTER_BUDGET_SLOTS,
+                executor.isEnabled() ? executor.getThreads() : Runtime.getRuntime().availableProcessors());
+        long publishIntervalMillis = config.getLong(CLUSTER_BUDGET_PUBLISH_INTERVAL_MS,
+                ScryptClusterBudget.DEFAULT_PUBLISH_INTERVAL_MILLIS);
+        int shedQueueLength = config.getInt(CLUSTER_BUDGET_SHED_QUEUE_LENGTH, 0);
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                InfinispanConnectionProvider infinispan = session.getProvider(InfinispanConnectionProvider.class);
+                ScryptClusterBudget budget = new ScryptClusterBudget(
+                        ScryptClusterBudget.getCache(infinispan
+                                .getCache(InfinispanConnectionProvider.WORK_CACHE_NAME).getCacheManager()),
+                        infinispan.getTopologyInfo().getMyNodeName(), slots, publishIntervalMillis, shedQueueLength,
+                        () -> ScryptHelper.getAdmissionController().getQueueLength());
+                ScryptHelper.setClusterBudget(budget);
+                LOG.infof("scrypt load is shared with the cluster as %s (%d slots, shedding from %d queued).",
+                        budget.getNodeName(), slots, shedQueueLength);
+            });
+        } catch (RuntimeException e) {
+            LOG.errorf(e, "Could not start the scrypt cluster budget; only this node's load is taken into account.");
+        }
+    }
+
+    /**
+     * Imports legacy users once Keycloak has finished its own migration and realm
+     * import, on a background thread so that the node starts serving meanwhile.
+     */
+    private void startImport(KeycloakSessionFactory sessionFactory) {
+        Path file = Path.of(config.get(IMPORT_FILE));
+        String realm = config.get(IMPORT_REALM);
+        if (realm == null) {
+            importStatus = "failed: " + IMPORT_REALM + " is not set";
+            LOG.warnf("Not importing %s: no realm configured.", file);
+            return;
+        }
+        ScryptUserImporter importer = new ScryptUserImporter(sessionFactory, realm,
+                config.getInt(IMPORT_BATCH_SIZE, 500), storageFormat);
+        int lockTimeoutSeconds = config.getInt(IMPORT_LOCK_TIMEOUT_SECONDS, 3600);
+        importStatus = "running";
+        Thread thread = new Thread(() -> {
+            try {
+                String checksum = ScryptUserImporter.checksum(file);
+                long[] malformed = new long[1];
+                ScryptUserImporter.Result result = importer.importOnce(checksum, lockTimeoutSeconds, () -> {
+                    try (LegacyScryptUserReader users = LegacyScryptUserReader.open(file)) {
+                        LOG.infof("Importing scrypt users from %s into realm %s.", file, realm);
+                        ScryptUserImporter.Result imported = importer.importUsers(users);
+                        malformed[0] = users.getMalformed();
+                        return imported;
+                    }
+                });
+                if (result == null) {
+                    importStatus = "skipped: already imported or importing on another node";
+                    return;
+                }
+                importStatus = result + ", malformed=" + malformed[0];
+                LOG.infof("Finished importing scrypt users from %s: %s", file, importStatus);
+            } catch (IOException | RuntimeException e) {
+                importStatus = "failed: " + e.getMessage();
+                LOG.errorf(e, "Importing scrypt users from %s failed", file);
+            }
+        }, "scrypt-import");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static ScryptSaltGenerator createSaltGenerator(Config.Scope config) {
+        return new ScryptSaltGenerator(
+                config.getInt(SALT_STRIPES, ScryptSaltGenerator.DEFAULT_STRIPES),
+                config.getLong(SALT_RESEED_INTERVAL_SECONDS, ScryptSaltGenerator.DEFAULT_RESEED_INTERVAL_SECONDS),
+                config.getInt(SALT_PREFILL_BYTES, ScryptSaltGenerator.DEFAULT_PREFILL_BYTES));
+    }
+
+    private static ScryptEngine createEngine(Config.Scope config, ScryptCpuTopology topology) {
+        // Retained arenas never shrink, so together they must fit the admission memory budget
+        long memoryBudgetBytes = config.getLong(ADMISSION_MEMORY_BUDGET_MB,
+                ScryptAdmissionController.DEFAULT_MEMORY_BUDGET_BYTES / (1024 * 1024)) * 1024 * 1024;
+        ScryptScratchPool scratchPool;
+        if (topology == null) {
+            int arenas = ScryptScratchPool.DEFAULT_MAX_POOLED_ARENAS;
+            scratchPool = new ScryptScratchPool(arenas, ScryptScratchPool.maxArenaBytesWithin(memoryBudgetBytes, arenas));
+        } else {
+            // Each hashing thread keeps an arena of its own on top of the shared ones
+            int pooledArenas = topology.getEffectiveCpus();
+            int arenas = pooledArenas + config.getInt(EXECUTOR_THREADS, pooledArenas);
+            scratchPool = new ScryptScratchPool(pooledArenas,
+                    ScryptScratchPool.maxArenaBytesWithin(memoryBudgetBytes, arenas), true);
+        }
+        ScryptOffHeapPool offHeapPool = null;
+        if (config.getBoolean(OFF_HEAP_ENABLED, false)) {
+            offHeapPool = new ScryptOffHeapPool(config.getLong(OFF_HEAP_MAX_MB,
+                    ScryptOffHeapPool.DEFAULT_MAX_BYTES / (1024 * 1024)) * 1024 * 1024);
+            LOG.infof("scrypt V tables are kept off-heap, up to %d MiB.", offHeapPool.getMaxBytes() / (1024 * 1024));
+        }
+        int laneThreads = config.getInt(LANE_THREADS, Runtime.getRuntime().availableProcessors());
+        if (config.getBoolean(VECTOR_ENABLED, false)) {
+            String reason = offHeapPool != null ? "V tables are kept off-heap"
+                    : ScryptVectorSupport.unavailableReason();
+            if (reason == null) {
+                LOG.infof("scrypt BlockMix is vectorised; lanes are mixed on up to %d lane threads.",
+                        Math.max(laneThreads, 1));
+                return ScryptVectorSupport.createEngine(scratchPool, Math.max(laneThreads, 1));
+            }
+            LOG.warnf("Vectorised scrypt is unavailable (%s); using the scalar engine.", reason);
+        }
+        if (laneThreads <= 1) {
+            LOG.infof("scrypt lanes are mixed sequentially on the calling thread.");
+            return new ScryptEngine(scratchPool, offHeapPool);
+        }
+        LOG.infof("scrypt lanes are mixed in parallel on up to %d lane threads.", laneThreads);
+        return new ParallelScryptEngine(scratchPool, offHeapPool, laneThreads);
+    }
+
+    private static ScryptHashingExecutor createHashingExecutor(Config.Scope config, ScryptCpuTopology topology,
+            ScryptEncodingUtils.ScryptParameters defaultParameters) {
+        if (!config.getBoolean(EXECUTOR_ENABLED, false)) {
+            return ScryptHashingExecutor.callerRuns();
+        }
+        if (topology == null) {
+            ScryptHashingExecutor executor = new ScryptHashingExecutor(
+                    config.getInt(EXECUTOR_THREADS, ScryptHashingExecutor.DEFAULT_THREADS),
+                    config.getInt(EXECUTOR_QUEUE_SIZE, ScryptHashingExecutor.DEFAULT_QUEUE_SIZE));
+            LOG.infof("scrypt hashes run on %d dedicated threads (queue of %d).", executor.getThreads(),
+                    executor.getQueueSize());
+            return executor;
+        }
+        // One thread per usable CPU, each keeping a working memory arena allocated when it starts
+        int blockInts = 32 * defaultParameters.getBlockSize();
+        int vInts = defaultParameters.getCost() * blockInts;
+        ScryptHashingExecutor executor = new ScryptHashingExecutor(
+                config.getInt(EXECUTOR_THREADS, topology.getEffectiveCpus()),
+                config.getInt(EXECUTOR_QUEUE_SIZE, ScryptHashingExecutor.DEFAULT_QUEUE_SIZE),
+                () -> ScryptHelper.getEngine().getScratchPool().prewarm(vInts, blockInts));
+        LOG.infof("scrypt hashes run on %d dedicated threads with their own working memory (queue of %d; %s).",
+                executor.getThreads(), executor.getQueueSize(), topology);
+        return executor;
+    }
+
+    private static ScryptVerificationCache createVerificationCache(Config.Scope config) {
+        if (!config.getBoolean(VERIFICATION_CACHE_ENABLED, false)) {
+            return null;
+        }
+        ScryptVerificationCache cache = new ScryptVerificationCache(
+                config.getInt(VERIFICATION_CACHE_MAX_ENTRIES, ScryptVerificationCache.DEFAULT_MAX_ENTRIES),
+                config.getLong(VERIFICATION_CACHE_TTL_SECONDS, ScryptVerificationCache.DEFAULT_TTL_SECONDS));
+        LOG.infof("Successful scrypt verifications are cached for %d seconds (up to %d credentials).",
+                cache.getTtlSeconds(), cache.getMaxEntries());
+        return cache;
+    }
+
+    private static ScryptAttemptThrottle createAttemptThrottle(Config.Scope config) {
+        if (!config.getBoolean(THROTTLE_ENABLED, false)) {
+            return ScryptAttemptThrottle.unlimited();
+        }
+        ScryptAttemptThrottle throttle = new ScryptAttemptThrottle(
+                config.getInt(THROTTLE_STRIPES, ScryptAttemptThrottle.DEFAULT_STRIPES),
+                config.getInt(THROTTLE_ACCOUNT_BURST, ScryptAttemptThrottle.DEFAULT_ACCOUNT_BURST),
+                Double.parseDouble(config.get(THROTTLE_ACCOUNT_PER_MINUTE,
+                        String.valueOf(ScryptAttemptThrottle.DEFAULT_ACCOUNT_PER_MINUTE))),
+                config.getInt(THROTTLE_ADDRESS_BURST, ScryptAttemptThrottle.DEFAULT_ADDRESS_BURST),
+                Double.parseDouble(config.get(THROTTLE_ADDRESS_PER_MINUTE,
+                        String.valueOf(ScryptAttemptThrottle.DEFAULT_ADDRESS_PER_MINUTE))));
+        LOG.infof("scrypt password verifications are throttled: %s.", throttle);
+        return throttle;
+    }
+
+    private static ScryptAdmissionController createAdmissionController(Config.Scope config) {
+        if (!config.getBoolean(ADMISSION_ENABLED, true)) {
+            LOG.infof("scrypt admission control is disabled.");
+            return ScryptAdmissionController.unbounded();
+        }
+        long memoryBudgetBytes = config.getLong(ADMISSION_MEMORY_BUDGET_MB,
+                ScryptAdmissionController.DEFAULT_MEMORY_BUDGET_BYTES / (1024 * 1024)) * 1024 * 1024;
+        int maxQueueLength = config.getInt(ADMISSION_MAX_QUEUE_LENGTH,
+                ScryptAdmissionController.DEFAULT_MAX_QUEUE_LENGTH);
+        long queueTimeoutMillis = config.getLong(ADMISSION_QUEUE_TIMEOUT_MS,
+                ScryptAdmissionController.DEFAULT_QUEUE_TIMEOUT_MILLIS);
+        LOG.infof("scrypt admission control: memory budget %d MiB, queue length %d, queue timeout %d ms.",
+                memoryBudgetBytes / (1024 * 1024), maxQueueLength, queueTimeoutMillis);
+        return new ScryptAdmissionController(memoryBudgetBytes, maxQueueLength, queueTimeoutMillis);
     }
 }
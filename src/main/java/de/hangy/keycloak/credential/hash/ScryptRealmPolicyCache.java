@@ -0,0 +1,108 @@
+package de.hangy.keycloak.credential.hash;
+
+import de.hangy.keycloak.policy.ScryptBlockSizePasswordPolicyProviderFactory;
+import de.hangy.keycloak.policy.ScryptCostPasswordPolicyProviderFactory;
+import de.hangy.keycloak.policy.ScryptHashLengthPasswordPolicyProviderFactory;
+import de.hangy.keycloak.policy.ScryptParallelismPasswordPolicyProviderFactory;
+import de.hangy.keycloak.policy.ScryptSaltLengthPasswordPolicyProviderFactory;
+import de.hangy.keycloak.utils.ScryptEncodingUtils;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.keycloak.models.PasswordPolicy;
+import org.keycloak.models.RealmModel;
+
+/**
+ * Resolved scrypt parameters per realm. An entry is reused as long as the realm
+ * still hands out the same {@link PasswordPolicy} instance (Keycloak's realm cache
+ * replaces it when the policy is updated) or, failing that, a policy with the
+ * same string form; otherwise the parameters are resolved again.
+ */
+public class ScryptRealmPolicyCache {
+    private static final ScryptEncodingUtils.ScryptParameters DEFAULT_PARAMETERS = ScryptEncodingUtils.ScryptParameters.of(
+            ScryptCostPasswordPolicyProviderFactory.DEFAULT_COST,
+            ScryptBlockSizePasswordPolicyProviderFactory.DEFAULT_BLOCK_SIZE,
+            ScryptParallelismPasswordPolicyProviderFactory.DEFAULT_PARALLELISM,
+            ScryptHashLengthPasswordPolicyProviderFactory.DEFAULT_HASH_LENGTH,
+            ScryptSaltLengthPasswordPolicyProviderFactory.DEFAULT_SALT_LENGTH);
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the scrypt parameters configured for the realm, or the defaults for
+     * anything the realm does not configure.
+     */
+    public ScryptEncodingUtils.ScryptParameters get(RealmModel realm) {
+        if (realm == null) {
+            return DEFAULT_PARAMETERS;
+        }
+        PasswordPolicy policy = realm.getPasswordPolicy();
+        if (policy == null) {
+            return DEFAULT_PARAMETERS;
+        }
+
+        String realmId = realm.getId();
+        Entry entry = entries.get(realmId);
+        if (entry != null && entry.policy == policy) {
+            return entry.parameters;
+        }
+
+        String policyString = policy.toString();
+        if (entry != null && entry.policyString.equals(policyString)) {
+            entries.put(realmId, new Entry(policy, policyString, entry.parameters));
+            return entry.parameters;
+        }
+
+        ScryptEncodingUtils.ScryptParameters parameters = resolve(policy, DEFAULT_PARAMETERS);
+        entries.put(realmId, new Entry(policy, policyString, parameters));
+        return parameters;
+    }
+
+    /**
+     * The values used for settings a realm's policy leaves out.
+     */
+    public ScryptEncodingUtils.ScryptParameters getDefaultParameters() {
+        return DEFAULT_PARAMETERS;
+    }
+
+    public void invalidate(String realmId) {
+        entries.remove(realmId);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    private static ScryptEncodingUtils.ScryptParameters resolve(PasswordPolicy policy,
+            ScryptEncodingUtils.ScryptParameters defaults) {
+        return ScryptEncodingUtils.ScryptParameters.of(
+                getPolicyValue(policy, ScryptCostPasswordPolicyProviderFactory.ID, defaults.getCost()),
+                getPolicyValue(policy, ScryptBlockSizePasswordPolicyProviderFactory.ID, defaults.getBlockSize()),
+                getPolicyValue(policy, ScryptParallelismPasswordPolicyProviderFactory.ID, defaults.getParallellism()),
+                getPolicyValue(policy, ScryptHashLengthPasswordPolicyProviderFactory.ID, defaults.getHashLength()),
+                getPolicyValue(policy, ScryptSaltLengthPasswordPolicyProviderFactory.ID, defaults.getSaltLength()));
+    }
+
+    private static int getPolicyValue(PasswordPolicy policy, String providerId, int defaultValue) {
+        Integer ret;
+        try {
+            ret = policy.getPolicyConfig(providerId);
+        } catch (Exception e) {
+            ret = defaultValue;
+        }
+        if (ret == null) ret = defaultValue;
+        return ret;
+    }
+
+    private static final class Entry {
+        private final PasswordPolicy policy;
+        private final String policyString;
+        private final ScryptEncodingUtils.ScryptParameters parameters;
+
+        private Entry(PasswordPolicy policy, String policyString, ScryptEncodingUtils.ScryptParameters parameters) {
+            this.policy = policy;
+            this.policyString = policyString;
+            this.parameters = parameters;
+        }
+    }
+}
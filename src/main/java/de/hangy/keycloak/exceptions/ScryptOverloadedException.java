@@ -0,0 +1,15 @@
+package de.hangy.keycloak.exceptions;
+
+/**
+ * Thrown when a scrypt operation is refused because the node is already running
+ * as much scrypt work as it has been configured to accept.
+ */
+public class ScryptOverloadedException extends ScryptRuntimeException {
+    public ScryptOverloadedException(String message) {
+        super(message);
+    }
+
+    public ScryptOverloadedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,12 @@
+package de.hangy.keycloak.exceptions;
+
+/**
+ * Thrown when the cluster budget sheds a hash: this node's own queue is too long
+ * while another node has room, so the login is better started over on a node
+ * the load balancer picks than left waiting here.
+ */
+public class ScryptShedException extends ScryptOverloadedException {
+    public ScryptShedException(String message) {
+        super(message);
+    }
+}
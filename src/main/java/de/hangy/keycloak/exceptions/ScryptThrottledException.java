@@ -0,0 +1,12 @@
+package de.hangy.keycloak.exceptions;
+
+/**
+ * Thrown when a password verification is refused by the attempt throttle. It is
+ * not a wrong password: the password was never checked, so Keycloak must not
+ * count the attempt as a failed login.
+ */
+public class ScryptThrottledException extends ScryptOverloadedException {
+    public ScryptThrottledException(String message) {
+        super(message);
+    }
+}
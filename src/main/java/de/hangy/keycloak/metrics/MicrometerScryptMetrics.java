@@ -0,0 +1,257 @@
+package de.hangy.keycloak.metrics;
+
+import de.hangy.keycloak.utils.ScryptHelper;
+import de.hangy.keycloak.utils.ScryptOffHeapPool;
+import de.hangy.keycloak.utils.ScryptVerificationCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Micrometer implementation of {@link ScryptMetrics}. Durations go to the
+ * {@code keycloak.scrypt.operation} timer, tagged by operation, outcome and N/r/p
+ * and published as a percentile histogram so p99 can be computed server side.
+ * Gauges report the working memory of in-flight hashes, the admission queue,
+ * the hashing executor, the cluster budget, the scratch pool, off-heap memory
+ * and the salt generator; the time hashes queue for a hashing thread has its own timer, so
+ * that it can be told apart from the hashing itself. The memory bandwidth each
+ * hash achieved is recorded as a distribution, to show when hashes are starved
+ * of memory bandwidth rather than CPU.
+ */
+public class MicrometerScryptMetrics implements ScryptMetrics {
+    public static final String OPERATION_TIMER = "keycloak.scrypt.operation";
+
+    public static final String REHASH_REQUIRED = "keycloak.scrypt.rehash.required";
+
+    public static final String EXECUTOR_WAIT = "keycloak.scrypt.executor.wait";
+
+    public static final String MEMORY_BANDWIDTH = "keycloak.scrypt.memory.bandwidth";
+
+    private final MeterRegistry registry;
+
+    private final ConcurrentHashMap<TimerKey, Timer> timers = new ConcurrentHashMap<>();
+
+    private final List<Meter> meters = new ArrayList<>();
+
+    private final Counter rehashRequired;
+
+    private final Timer executorWait;
+
+    private final DistributionSummary memoryBandwidth;
+
+    public MicrometerScryptMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.rehashRequired = register(Counter.builder(REHASH_REQUIRED)
+                .description("Credentials found by policyCheck to need a rehash")
+                .register(registry));
+        this.executorWait = register(Timer.builder(EXECUTOR_WAIT)
+                .description("Time hashes spent queued for a hashing thread")
+                .publishPercentileHistogram()
+                .register(registry));
+        this.memoryBandwidth = register(DistributionSummary.builder(MEMORY_BANDWIDTH)
+                .description("V table traffic per second of hashing, per hash")
+                .baseUnit("bytes")
+                .publishPercentiles(0.5, 0.95)
+                .register(registry));
+
+        register(Gauge.builder("keycloak.scrypt.memory.inflight", ScryptHelper::getInFlightMemoryBytes)
+                .description("scrypt working memory held by running hashes")
+                .baseUnit("bytes")
+                .register(registry));
+        register(Gauge.builder("keycloak.scrypt.admission.memory.used",
+                () -> ScryptHelper.getAdmissionController().getMemoryInUseBytes())
+                .description("scrypt working memory handed out by admission control")
+                .baseUnit("bytes")
+                .register(registry));
+        register(Gauge.builder("keycloak.scrypt.admission.queue",
+                () -> ScryptHelper.getAdmissionController().getQueueLength())
+                .description("Hashes waiting for working memory")
+                .register(registry));
+        register(FunctionCounter.builder("keycloak.scrypt.admission.rejected", ScryptHelper.class,
+                helper -> ScryptHelper.getAdmissionController().getRejectedCount())
+                .description("Hashes rejected by admission control")
+                .register(registry));
+        register(FunctionCounter.builder("keycloak.scrypt.throttle.rejected", ScryptHelper.class,
+                helper -> ScryptHelper.getAttemptThrottle().getAccountRejectedCount())
+                .description("Password verifications refused by the attempt throttle")
+                .tag("key", "account")
+                .register(registry));
+        register(FunctionCounter.builder("keycloak.scrypt.throttle.rejected", ScryptHelper.class,
+                helper -> ScryptHelper.getAttemptThrottle().getAddressRejectedCount())
+                .description("Password verifications refused by the attempt throttle")
+                .tag("key", "address")
+                .register(registry));
+        register(FunctionCounter.builder("keycloak.scrypt.throttle.evictions", ScryptHelper.class,
+                helper -> ScryptHelper.getAttemptThrottle().getEvictionCount())
+                .description("Throttle buckets evicted before they had refilled")
+                .register(registry));
+        register(FunctionCounter.builder("keycloak.scrypt.verification.cache.requests", ScryptHelper.class,
+                helper -> verificationCacheCount(ScryptVerificationCache::getHitCount))
+                .description("Verifications answered by, or missing from, the verification cache")
+                .tag("result", "hit")
+                .register(registry));
+        register(FunctionCounter.builder("keycloak.scrypt.verification.cache.requests", ScryptHelper.class,
+                helper -> verificationCacheCount(ScryptVerificationCache::getMissCount))
+                .description("Verifications answered by, or missing from, the verification cache")
+                .tag("result", "miss")
+                .register(registry));
+        register(FunctionCounter.builder("keycloak.scrypt.verification.cache.evictions", ScryptHelper.class,
+                helper -> verificationCacheCount(ScryptVerificationCache::getExpirationCount))
+                .description("Entries removed from the verification cache")
+                .tag("cause", "expired")
+                .register(registry));
+        register(FunctionCounter.builder("keycloak.scrypt.verification.cache.evictions", ScryptHelper.class,
+                helper -> verificationCacheCount(ScryptVerificationCache::getEvictionCount))
+                .description("Entries removed from the verification cache")
+                .tag("cause", "size")
+                .register(registry));
+        register(Gauge.builder("keycloak.scrypt.verification.cache.size",
+                () -> verificationCacheCount(ScryptVerificationCache::size))
+                .description("Credentials with a cached verification")
+                .register(registry));
+        register(Gauge.builder("keycloak.scrypt.executor.queue",
+                () -> ScryptHelper.getHashingExecutor().getQueueLength())
+                .description("Hashes waiting for a hashing thread")
+                .register(registry));
+        register(Gauge.builder("keycloak.scrypt.executor.active",
+                () -> ScryptHelper.getHashingExecutor().getActiveThreads())
+                .description("Hashing threads busy right now")
+                .register(registry));
+        register(FunctionCounter.builder("keycloak.scrypt.executor.rejected", ScryptHelper.class,
+                helper -> ScryptHelper.getHashingExecutor().getRejectedCount())
+                .description("Hashes rejected because the hashing queue was full")
+                .register(registry));
+        register(FunctionCounter.builder("keycloak.scrypt.cluster.shed", ScryptHelper.class,
+                helper -> ScryptHelper.getClusterBudget().getShedCount())
+                .description("Hashes turned away because this node's queue was too long while a peer had room")
+                .register(registry));
+        register(FunctionCounter.builder("keycloak.scrypt.cluster.deferred", ScryptHelper.class,
+                helper -> ScryptHelper.getClusterBudget().getDeferredCount())
+                .description("Hashes queued locally while this node was saturated")
+                .register(registry));
+        register(Gauge.builder("keycloak.scrypt.cluster.inflight",
+                () -> ScryptHelper.getClusterBudget().getClusterInFlight())
+                .description("Hashes in flight across the cluster at the last refresh")
+                .register(registry));
+        register(Gauge.builder("keycloak.scrypt.scratch.pooled",
+                () -> ScryptHelper.getEngine().getScratchPool().getPooledBytes())
+                .description("Idle scrypt working memory kept for reuse")
+                .baseUnit("bytes")
+                .register(registry));
+        register(Gauge.builder("keycloak.scrypt.offheap.reserved", () -> {
+            ScryptOffHeapPool offHeapPool = ScryptHelper.getEngine().getOffHeapPool();
+            return offHeapPool == null ? 0 : offHeapPool.getReservedBytes();
+        })
+                .description("Native memory held for off-heap scrypt V tables")
+                .baseUnit("bytes")
+                .register(registry));
+        register(FunctionCounter.builder("keycloak.scrypt.salt.generated", ScryptHelper.class,
+                helper -> ScryptHelper.getSaltGenerator().getSaltsGenerated())
+                .description("Salts generated")
+                .register(registry));
+        register(FunctionCounter.builder("keycloak.scrypt.salt.reseeds", ScryptHelper.class,
+                helper -> ScryptHelper.getSaltGenerator().getReseeds())
+                .description("Salt generator reseeds")
+                .register(registry));
+    }
+
+    @Override
+    public void record(Operation operation, Outcome outcome, int N, int r, int p, long nanos) {
+        timers.computeIfAbsent(new TimerKey(operation, outcome, N, r, p), this::createTimer)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordExecutorWait(long nanos) {
+        executorWait.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordMemoryBandwidth(double bytesPerSecond) {
+        memoryBandwidth.record(bytesPerSecond);
+    }
+
+    @Override
+    public void recordRehashRequired() {
+        rehashRequired.increment();
+    }
+
+    @Override
+    public void close() {
+        synchronized (meters) {
+            meters.forEach(registry::remove);
+            meters.clear();
+        }
+        timers.values().forEach(registry::remove);
+        timers.clear();
+    }
+
+    private Timer createTimer(TimerKey key) {
+        return Timer.builder(OPERATION_TIMER)
+                .description("Duration of scrypt hash and verify operations")
+                .tag("operation", key.operation.name().toLowerCase(Locale.ROOT))
+                .tag("outcome", key.outcome.name().toLowerCase(Locale.ROOT))
+                .tag("N", Integer.toString(key.N))
+                .tag("r", Integer.toString(key.r))
+                .tag("p", Integer.toString(key.p))
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    private static double verificationCacheCount(ToDoubleFunction<ScryptVerificationCache> count) {
+        ScryptVerificationCache cache = ScryptHelper.getVerificationCache();
+        return cache == null ? 0 : count.applyAsDouble(cache);
+    }
+
+    private <M extends Meter> M register(M meter) {
+        synchronized (meters) {
+            meters.add(meter);
+        }
+        return meter;
+    }
+
+    private static final class TimerKey {
+        private final Operation operation;
+        private final Outcome outcome;
+        private final int N;
+        private final int r;
+        private final int p;
+
+        private TimerKey(Operation operation, Outcome outcome, int N, int r, int p) {
+            this.operation = operation;
+            this.outcome = outcome;
+            this.N = N;
+            this.r = r;
+            this.p = p;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof TimerKey))
+                return false;
+            TimerKey that = (TimerKey) o;
+            return operation == that.operation && outcome == that.outcome && N == that.N && r == that.r
+                    && p == that.p;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(operation, outcome, N, r, p);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package de.hangy.keycloak.metrics;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Recording side of the scrypt metrics. The default implementation does nothing;
+ * {@link #create()} returns a Micrometer-backed one when Micrometer is on the
+ * class path (Keycloak ships it and exposes it under {@code /metrics} when
+ * metrics are enabled).
+ */
+public interface ScryptMetrics extends AutoCloseable {
+
+    enum Operation {
+        HASH, VERIFY
+    }
+
+    enum Outcome {
+        /** A hash was produced, or a verified password matched. */
+        SUCCESS,
+        /** A verified password did not match. */
+        MISMATCH,
+        /** The operation failed or was rejected. */
+        ERROR
+    }
+
+    ScryptMetrics NOOP = new ScryptMetrics() {
+    };
+
+    /**
+     * Records one scrypt operation with its duration in nanoseconds and the
+     * parameters it ran with.
+     */
+    default void record(Operation operation, Outcome outcome, int N, int r, int p, long nanos) {
+        // noop
+    }
+
+    /**
+     * Records a {@code policyCheck} that found a credential whose parameters no
+     * longer match the realm policy, i.e. one that Keycloak will rehash.
+     */
+    default void recordRehashRequired() {
+        // noop
+    }
+
+    /**
+     * Records how long a hash waited for a dedicated hashing thread.
+     */
+    default void recordExecutorWait(long nanos) {
+        // noop
+    }
+
+    /**
+     * Records the memory bandwidth one hash achieved, in bytes of V table
+     * traffic per second of hashing.
+     */
+    default void recordMemoryBandwidth(double bytesPerSecond) {
+        // noop
+    }
+
+    @Override
+    default void close() {
+        // noop
+    }
+
+    static ScryptMetrics create() {
+        try {
+            Class.forName("io.micrometer.core.instrument.Metrics", false, ScryptMetrics.class.getClassLoader());
+        } catch (ClassNotFoundException | LinkageError e) {
+            Logger.getLogger(ScryptMetrics.class).infof("Micrometer is not available, scrypt metrics are disabled.");
+            return NOOP;
+        }
+        return new MicrometerScryptMetrics(io.micrometer.core.instrument.Metrics.globalRegistry);
+    }
+}
@@ -0,0 +1,185 @@
+package de.hangy.keycloak.migration;
+
+import java.util.Base64;
+import java.util.Map;
+
+/**
+ * One user of a legacy export. The hash is either given in the
+ * {@code SCRYPT:N:r:p:salt:hash} form written by Perl's Crypt::ScryptKDF, as an
+ * MD5-crypt {@code $1$salt$hash} string, or as separate {@code N}, {@code r},
+ * {@code p}, {@code salt} and {@code hash} fields, with salt and hash
+ * Base64-encoded. The first two are kept as the {@link #getStoredValue() stored
+ * value} and imported verbatim, to be verified by the matching legacy verifier
+ * and rehashed after the next successful login.
+ */
+public final class LegacyScryptUser {
+    private static final String SCRYPT_PREFIX = "SCRYPT:";
+
+    private static final String MD5_CRYPT_PREFIX = "$1$";
+
+    private final String username;
+    private final String email;
+    private final boolean emailVerified;
+    private final String firstName;
+    private final String lastName;
+    private final int cost;
+    private final int blockSize;
+    private final int parallelism;
+    private final String salt;
+    private final String hash;
+    private final String storedValue;
+
+    public LegacyScryptUser(String username, String email, boolean emailVerified, String firstName, String lastName,
+            int cost, int blockSize, int parallelism, String salt, String hash) {
+        this(username, email, emailVerified, firstName, lastName, cost, blockSize, parallelism, salt, hash, null);
+    }
+
+    public LegacyScryptUser(String username, String email, boolean emailVerified, String firstName, String lastName,
+            int cost, int blockSize, int parallelism, String salt, String hash, String storedValue) {
+        this.username = username;
+        this.email = email;
+        this.emailVerified = emailVerified;
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.cost = cost;
+        this.blockSize = blockSize;
+        this.parallelism = parallelism;
+        this.salt = salt;
+        this.hash = hash;
+        this.storedValue = storedValue;
+    }
+
+    /**
+     * Builds a user from the named fields of an NDJSON object or CSV row.
+     *
+     * @throws IllegalArgumentException if the username or hash is missing or malformed
+     */
+    public static LegacyScryptUser fromFields(Map<String, String> fields) {
+        String username = blankToNull(fields.get("username"));
+        if (username == null) {
+            throw new IllegalArgumentException("username is missing");
+        }
+        String hash = blankToNull(fields.get("hash"));
+        if (hash == null) {
+            throw new IllegalArgumentException("hash is missing");
+        }
+
+        int cost;
+        int blockSize;
+        int parallelism;
+        String salt;
+        String storedValue = null;
+        if (hash.startsWith(MD5_CRYPT_PREFIX)) {
+            int saltEnd = hash.indexOf('$', MD5_CRYPT_PREFIX.length());
+            if (saltEnd < 0 || saltEnd - MD5_CRYPT_PREFIX.length() > 8 || hash.length() != saltEnd + 23) {
+                throw new IllegalArgumentException("hash is not of the form $1$salt$hash");
+            }
+            cost = 0;
+            blockSize = 0;
+            parallelism = 0;
+            salt = null;
+            storedValue = hash;
+        } else if (hash.startsWith(SCRYPT_PREFIX)) {
+            String[] parts = hash.split(":");
+            if (parts.length != 6) {
+                throw new IllegalArgumentException("hash is not of the form SCRYPT:N:r:p:salt:hash");
+            }
+            cost = parseInt(parts[1], "N");
+            blockSize = parseInt(parts[2], "r");
+            parallelism = parseInt(parts[3], "p");
+            salt = parts[4];
+            storedValue = hash;
+            hash = parts[5];
+        } else {
+            cost = parseInt(fields.get("N"), "N");
+            blockSize = parseInt(fields.get("r"), "r");
+            parallelism = parseInt(fields.get("p"), "p");
+            salt = blankToNull(fields.get("salt"));
+            if (salt == null) {
+                throw new IllegalArgumentException("salt is missing");
+            }
+        }
+
+        return new LegacyScryptUser(username, blankToNull(fields.get("email")),
+                Boolean.parseBoolean(fields.get("emailVerified")), blankToNull(fields.get("firstName")),
+                blankToNull(fields.get("lastName")), cost, blockSize, parallelism, salt, hash, storedValue);
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public boolean isEmailVerified() {
+        return emailVerified;
+    }
+
+    public String getFirstName() {
+        return firstName;
+    }
+
+    public String getLastName() {
+        return lastName;
+    }
+
+    public int getCost() {
+        return cost;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Base64-encoded salt; {@code null} for MD5-crypt hashes.
+     */
+    public String getSalt() {
+        return salt;
+    }
+
+    /**
+     * Base64-encoded digest.
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * The legacy hash exactly as exported, for formats that are imported
+     * verbatim; {@code null} if the hash was given as separate fields.
+     */
+    public String getStoredValue() {
+        return storedValue;
+    }
+
+    public byte[] decodeSalt() {
+        return Base64.getDecoder().decode(salt);
+    }
+
+    @Override
+    public String toString() {
+        return username;
+    }
+
+    private static int parseInt(String value, String name) {
+        if (value == null || value.isBlank()) {
+            throw new IllegalArgumentException(name + " is missing");
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " is not a number: '" + value + "'", e);
+        }
+    }
+
+    private static String blankToNull(String value) {
+        return value == null || value.isBlank() ? null : value.trim();
+    }
+}
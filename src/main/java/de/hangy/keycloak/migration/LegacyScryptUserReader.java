@@ -0,0 +1,271 @@
+package de.hangy.keycloak.migration;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.jboss.logging.Logger;
+import org.keycloak.util.JsonSerialization;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Streams {@link LegacyScryptUser}s from an NDJSON or CSV export one record at
+ * a time, so that memory use does not depend on the size of the export. NDJSON
+ * is read line by line, each line parsed on its own with Jackson's streaming
+ * parser as one flat object per user; CSV must have a header row naming the
+ * columns. Records that cannot be read, including NDJSON lines that are not
+ * valid JSON objects, are logged with their position, counted and skipped.
+ */
+public abstract class LegacyScryptUserReader implements Iterator<LegacyScryptUser>, Closeable {
+    private static final Logger LOG = Logger.getLogger(LegacyScryptUserReader.class);
+
+    private LegacyScryptUser next;
+
+    private long records;
+
+    private long malformed;
+
+    /**
+     * Opens the file as CSV if its name ends in {@code .csv}, as NDJSON otherwise.
+     */
+    public static LegacyScryptUserReader open(Path file) throws IOException {
+        BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+        if (file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".csv")) {
+            return csv(reader);
+        }
+        return ndjson(reader);
+    }
+
+    public static LegacyScryptUserReader ndjson(Reader reader) {
+        return new Ndjson(reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader));
+    }
+
+    public static LegacyScryptUserReader csv(Reader reader) throws IOException {
+        return new Csv(reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader));
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null) {
+            Map<String, String> fields;
+            try {
+                fields = readFields();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (IllegalArgumentException e) {
+                records++;
+                malformed++;
+                LOG.warnf("Skipping record %d (%s): %s", records, position(), e.getMessage());
+                continue;
+            }
+            if (fields == null) {
+                return false;
+            }
+            records++;
+            try {
+                next = LegacyScryptUser.fromFields(fields);
+            } catch (IllegalArgumentException e) {
+                malformed++;
+                LOG.warnf("Skipping record %d (%s): %s", records, position(), e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public LegacyScryptUser next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        LegacyScryptUser user = next;
+        next = null;
+        return user;
+    }
+
+    /**
+     * Records read so far, including malformed ones.
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    public long getMalformed() {
+        return malformed;
+    }
+
+    /**
+     * Returns the next record as field name to value, or {@code null} at the end
+     * of the input.
+     *
+     * @throws IllegalArgumentException if the record cannot be parsed; reading
+     *                                  carries on with the next one
+     */
+    protected abstract Map<String, String> readFields() throws IOException;
+
+    protected abstract String position();
+
+    private static final class Ndjson extends LegacyScryptUserReader {
+        private final BufferedReader reader;
+
+        private long line;
+
+        Ndjson(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        protected Map<String, String> readFields() throws IOException {
+            String text;
+            do {
+                text = reader.readLine();
+                if (text == null) {
+                    return null;
+                }
+                line++;
+            } while (text.isBlank());
+            try (JsonParser parser = JsonSerialization.mapper.getFactory().createParser(text)) {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new IllegalArgumentException("Expected a JSON object per user");
+                }
+                Map<String, String> fields = new HashMap<>();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.currentName();
+                    JsonToken value = parser.nextToken();
+                    if (value.isScalarValue()) {
+                        fields.put(name, value == JsonToken.VALUE_NULL ? null : parser.getValueAsString());
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                if (parser.nextToken() != null) {
+                    throw new IllegalArgumentException("Expected one JSON object per line");
+                }
+                return fields;
+            } catch (JsonProcessingException e) {
+                throw new IllegalArgumentException("Invalid JSON: " + e.getOriginalMessage());
+            }
+        }
+
+        @Override
+        protected String position() {
+            return "line " + line;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    private static final class Csv extends LegacyScryptUserReader {
+        private final BufferedReader reader;
+
+        private final StringBuilder field = new StringBuilder();
+
+        private List<String> header;
+
+        private long line;
+
+        Csv(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        protected Map<String, String> readFields() throws IOException {
+            if (header == null) {
+                header = readRow();
+                if (header == null) {
+                    return null;
+                }
+            }
+            List<String> row;
+            do {
+                row = readRow();
+                if (row == null) {
+                    return null;
+                }
+            } while (row.size() == 1 && row.get(0).isEmpty());
+            Map<String, String> fields = new HashMap<>();
+            for (int i = 0; i < header.size() && i < row.size(); i++) {
+                fields.put(header.get(i), row.get(i));
+            }
+            return fields;
+        }
+
+        /**
+         * Reads one RFC 4180 row; quoted fields may contain commas, doubled
+         * quotes and line breaks.
+         */
+        private List<String> readRow() throws IOException {
+            String text = reader.readLine();
+            if (text == null) {
+                return null;
+            }
+            line++;
+            List<String> row = new ArrayList<>();
+            field.setLength(0);
+            boolean quoted = false;
+            int i = 0;
+            while (true) {
+                if (i == text.length()) {
+                    if (!quoted) {
+                        break;
+                    }
+                    text = reader.readLine();
+                    if (text == null) {
+                        throw new IOException("Unterminated quoted field at line " + line);
+                    }
+                    line++;
+                    field.append('\n');
+                    i = 0;
+                    continue;
+                }
+                char c = text.charAt(i++);
+                if (quoted) {
+                    if (c != '"') {
+                        field.append(c);
+                    } else if (i < text.length() && text.charAt(i) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    row.add(field.toString());
+                    field.setLength(0);
+                } else {
+                    field.append(c);
+                }
+            }
+            row.add(field.toString());
+            return row;
+        }
+
+        @Override
+        protected String position() {
+            return "line " + line;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
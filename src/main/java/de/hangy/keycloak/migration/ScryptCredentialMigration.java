@@ -0,0 +1,423 @@
+package de.hangy.keycloak.migration;
+
+import de.hangy.keycloak.verifier.ScryptVerifierRegistry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Walks all password credentials in a Keycloak database and rewrites scrypt
+ * credentials through {@link ScryptCredentialNormalizer}. Credentials are read
+ * in pages ordered by id (keyset pagination, so every page is an index range
+ * scan regardless of how far the run has got), normalised on a small thread
+ * pool and written back in one batch and one transaction per page. After each
+ * committed page the last id is stored in a checkpoint file, from which an
+ * interrupted run resumes.
+ * <p>
+ * A row is only updated if its stored JSON is still what was read, so the tool
+ * can run against a live database without overwriting a password that was
+ * changed in the meantime. The rows about to be rewritten are locked and read
+ * again, and compared here rather than in the {@code UPDATE}: the JSON columns
+ * are CLOB or TEXT, which Oracle and SQL Server cannot compare with {@code =}.
+ */
+public class ScryptCredentialMigration {
+    private static final Logger LOG = Logger.getLogger(ScryptCredentialMigration.class);
+
+    private static final String LAST_ID = "lastId";
+
+    // Oracle allows at most 1000 expressions in an IN list
+    private static final int LOCK_BATCH_SIZE = 500;
+
+    private final Connection connection;
+
+    private final String schema;
+
+    private final String realmId;
+
+    private final int pageSize;
+
+    private final int threads;
+
+    private final double rowsPerSecond;
+
+    private final Path checkpoint;
+
+    private final boolean dryRun;
+
+    private final ScryptCredentialNormalizer normalizer;
+
+    /**
+     * @param schema        schema the Keycloak tables live in, or {@code null} for
+     *                      the connection's default
+     * @param realmId       only migrate users of this realm, or {@code null} for
+     *                      all realms
+     * @param rowsPerSecond upper bound on credentials read per second, or 0 for
+     *                      no limit
+     * @param checkpoint    file the progress is stored in and resumed from, or
+     *                      {@code null} to always start from the beginning
+     * @param dryRun        only report what would change; nothing is written
+     */
+    public ScryptCredentialMigration(Connection connection, String schema, String realmId, int pageSize,
+            int threads, double rowsPerSecond, Path checkpoint, boolean dryRun) {
+        this(connection, schema, realmId, pageSize, threads, rowsPerSecond, checkpoint, dryRun,
+                new ScryptCredentialNormalizer(
+                        ScryptVerifierRegistry.load(ScryptCredentialMigration.class.getClassLoader())));
+    }
+
+    ScryptCredentialMigration(Connection connection, String schema, String realmId, int pageSize, int threads,
+            double rowsPerSecond, Path checkpoint, boolean dryRun, ScryptCredentialNormalizer normalizer) {
+        if (pageSize < 1 || threads < 1 || rowsPerSecond < 0) {
+            throw new IllegalArgumentException("pageSize and threads must be >= 1 and rowsPerSecond >= 0");
+        }
+        this.connection = connection;
+        this.schema = schema == null || schema.isEmpty() ? "" : schema + ".";
+        this.realmId = realmId;
+        this.pageSize = pageSize;
+        this.threads = threads;
+        this.rowsPerSecond = rowsPerSecond;
+        this.checkpoint = checkpoint;
+        this.dryRun = dryRun;
+        this.normalizer = normalizer;
+    }
+
+    public Progress run() throws SQLException, IOException {
+        Progress progress = readCheckpoint();
+        if (progress.lastId != null) {
+            LOG.infof("Resuming scrypt credential migration after id %s (%s).", progress.lastId, progress);
+        }
+
+        AtomicInteger threadIndex = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "scrypt-migration-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        boolean sqlServer = connection.getMetaData().getDatabaseProductName().startsWith("Microsoft SQL Server");
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        long started = System.nanoTime();
+        long scannedAtStart = progress.scanned;
+        try (PreparedStatement select = connection.prepareStatement(selectSql());
+                PreparedStatement update = connection.prepareStatement(updateSql())) {
+            select.setMaxRows(pageSize);
+            select.setFetchSize(pageSize);
+            while (true) {
+                List<Row> page = readPage(select, progress.lastId);
+                if (page.isEmpty()) {
+                    break;
+                }
+                List<ScryptCredentialNormalizer.Result> results = normalise(executor, page);
+                Map<String, ScryptCredentialNormalizer.Result> changes = new LinkedHashMap<>();
+                for (int i = 0; i < page.size(); i++) {
+                    Row row = page.get(i);
+                    ScryptCredentialNormalizer.Result result = results.get(i);
+                    switch (result.getStatus()) {
+                        case NORMALISED:
+                            changes.put(row.id, result);
+                            break;
+                        case UNCHANGED:
+                            progress.unchanged++;
+                            break;
+                        case INVALID:
+                            progress.invalid++;
+                            LOG.warnf("Credential %s is not a valid scrypt credential: %s", row.id,
+                                    result.getMessage());
+                            break;
+                        default:
+                            progress.skipped++;
+                    }
+                }
+                if (!changes.isEmpty()) {
+                    write(update, page, changes, sqlServer, progress);
+                }
+                progress.scanned += page.size();
+                progress.lastId = page.get(page.size() - 1).id;
+
+                if (dryRun) {
+                    connection.rollback();
+                } else {
+                    connection.commit();
+                    writeCheckpoint(progress);
+                }
+                long elapsedNanos = System.nanoTime() - started;
+                long scannedThisRun = progress.scanned - scannedAtStart;
+                LOG.infof("Migrated up to credential %s: %s, %.0f credentials/s.", progress.lastId, progress,
+                        scannedThisRun * 1e9 / Math.max(1, elapsedNanos));
+                throttle(scannedThisRun, elapsedNanos);
+            }
+        } catch (SQLException | RuntimeException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            executor.shutdownNow();
+            connection.setAutoCommit(autoCommit);
+        }
+        return progress;
+    }
+
+    private String selectSql() {
+        return "SELECT c.ID, c.CREDENTIAL_DATA, c.SECRET_DATA FROM " + schema + "CREDENTIAL c"
+                + (realmId == null ? "" : " JOIN " + schema + "USER_ENTITY u ON u.ID = c.USER_ID")
+                + " WHERE c.TYPE = 'password' AND c.ID > ?"
+                + (realmId == null ? "" : " AND u.REALM_ID = ?")
+                + " ORDER BY c.ID";
+    }
+
+    private String updateSql() {
+        return "UPDATE " + schema + "CREDENTIAL SET CREDENTIAL_DATA = ?, SECRET_DATA = ? WHERE ID = ?";
+    }
+
+    private String lockSql(int ids, boolean sqlServer) {
+        StringBuilder sql = new StringBuilder("SELECT ID, CREDENTIAL_DATA, SECRET_DATA FROM ").append(schema)
+                .append("CREDENTIAL").append(sqlServer ? " WITH (UPDLOCK, ROWLOCK)" : "").append(" WHERE ID IN (");
+        for (int i = 0; i < ids; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        return sql.append(')').append(sqlServer ? "" : " FOR UPDATE").toString();
+    }
+
+    /**
+     * Locks the rows to be rewritten, and updates those whose stored JSON is
+     * still what the page read; the others count as conflicts.
+     */
+    private void write(PreparedStatement update, List<Row> page, Map<String, ScryptCredentialNormalizer.Result> changes,
+            boolean sqlServer, Progress progress) throws SQLException {
+        Map<String, Row> current = lockRows(new ArrayList<>(changes.keySet()), sqlServer);
+        int updates = 0;
+        for (Row row : page) {
+            ScryptCredentialNormalizer.Result result = changes.get(row.id);
+            if (result == null) {
+                continue;
+            }
+            Row stored = current.get(row.id);
+            if (stored == null || !Objects.equals(stored.credentialData, row.credentialData)
+                    || !Objects.equals(stored.secretData, row.secretData)) {
+                progress.conflicts++;
+                LOG.debugf("Credential %s changed since it was read, leaving it alone.", row.id);
+                continue;
+            }
+            update.setString(1, result.getCredentialData());
+            update.setString(2, result.getSecretData());
+            update.setString(3, row.id);
+            update.addBatch();
+            updates++;
+        }
+        if (updates > 0) {
+            for (int count : update.executeBatch()) {
+                if (count == 0) {
+                    progress.conflicts++;
+                } else {
+                    progress.normalised++;
+                }
+            }
+        }
+    }
+
+    private Map<String, Row> lockRows(List<String> ids, boolean sqlServer) throws SQLException {
+        Map<String, Row> rows = new HashMap<>(ids.size() * 2);
+        for (int from = 0; from < ids.size(); from += LOCK_BATCH_SIZE) {
+            List<String> batch = ids.subList(from, Math.min(ids.size(), from + LOCK_BATCH_SIZE));
+            try (PreparedStatement lock = connection.prepareStatement(lockSql(batch.size(), sqlServer))) {
+                for (int i = 0; i < batch.size(); i++) {
+                    lock.setString(i + 1, batch.get(i));
+                }
+                try (ResultSet rs = lock.executeQuery()) {
+                    while (rs.next()) {
+                        Row row = new Row(rs.getString(1), rs.getString(2), rs.getString(3));
+                        rows.put(row.id, row);
+                    }
+                }
+            }
+        }
+        return rows;
+    }
+
+    private List<Row> readPage(PreparedStatement select, String lastId) throws SQLException {
+        // Credential ids are UUID strings, so "" sorts before all of them
+        select.setString(1, lastId == null ? "" : lastId);
+        if (realmId != null) {
+            select.setString(2, realmId);
+        }
+        List<Row> page = new ArrayList<>(pageSize);
+        try (ResultSet rs = select.executeQuery()) {
+            while (rs.next() && page.size() < pageSize) {
+                page.add(new Row(rs.getString(1), rs.getString(2), rs.getString(3)));
+            }
+        }
+        return page;
+    }
+
+    private List<ScryptCredentialNormalizer.Result> normalise(ExecutorService executor, List<Row> page) {
+        int chunk = (page.size() + threads - 1) / threads;
+        List<Callable<List<ScryptCredentialNormalizer.Result>>> tasks = new ArrayList<>(threads);
+        for (int from = 0; from < page.size(); from += chunk) {
+            List<Row> rows = page.subList(from, Math.min(page.size(), from + chunk));
+            tasks.add(() -> {
+                List<ScryptCredentialNormalizer.Result> results = new ArrayList<>(rows.size());
+                for (Row row : rows) {
+                    results.add(normalise(row));
+                }
+                return results;
+            });
+        }
+        List<ScryptCredentialNormalizer.Result> results = new ArrayList<>(page.size());
+        try {
+            for (Future<List<ScryptCredentialNormalizer.Result>> future : executor.invokeAll(tasks)) {
+                results.addAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while normalising credentials", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Normalising credentials failed", e.getCause());
+        }
+        return results;
+    }
+
+    private ScryptCredentialNormalizer.Result normalise(Row row) {
+        if (row.credentialData == null || row.secretData == null) {
+            return ScryptCredentialNormalizer.Result.invalid("Credential or secret data is missing");
+        }
+        return normalizer.normalise(row.credentialData, row.secretData);
+    }
+
+    private void throttle(long scanned, long elapsedNanos) {
+        if (rowsPerSecond <= 0) {
+            return;
+        }
+        long dueNanos = (long) (scanned / rowsPerSecond * 1e9);
+        if (dueNanos > elapsedNanos) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(dueNanos - elapsedNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while throttling the migration", e);
+            }
+        }
+    }
+
+    private Progress readCheckpoint() throws IOException {
+        Progress progress = new Progress();
+        if (checkpoint == null || !Files.exists(checkpoint)) {
+            return progress;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(checkpoint)) {
+            properties.load(in);
+        }
+        progress.lastId = properties.getProperty(LAST_ID);
+        progress.scanned = Long.parseLong(properties.getProperty("scanned", "0"));
+        progress.normalised = Long.parseLong(properties.getProperty("normalised", "0"));
+        progress.unchanged = Long.parseLong(properties.getProperty("unchanged", "0"));
+        progress.invalid = Long.parseLong(properties.getProperty("invalid", "0"));
+        progress.skipped = Long.parseLong(properties.getProperty("skipped", "0"));
+        progress.conflicts = Long.parseLong(properties.getProperty("conflicts", "0"));
+        return progress;
+    }
+
+    private void writeCheckpoint(Progress progress) throws IOException {
+        if (checkpoint == null) {
+            return;
+        }
+        Properties properties = new Properties();
+        properties.setProperty(LAST_ID, progress.lastId);
+        properties.setProperty("scanned", Long.toString(progress.scanned));
+        properties.setProperty("normalised", Long.toString(progress.normalised));
+        properties.setProperty("unchanged", Long.toString(progress.unchanged));
+        properties.setProperty("invalid", Long.toString(progress.invalid));
+        properties.setProperty("skipped", Long.toString(progress.skipped));
+        properties.setProperty("conflicts", Long.toString(progress.conflicts));
+        Path tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            properties.store(out, "scrypt credential migration");
+        }
+        Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static final class Row {
+        final String id;
+        final String credentialData;
+        final String secretData;
+
+        Row(String id, String credentialData, String secretData) {
+            this.id = id;
+            this.credentialData = credentialData;
+            this.secretData = secretData;
+        }
+    }
+
+    /**
+     * Counters of a migration run, including the runs it resumed from.
+     */
+    public static class Progress {
+        private String lastId;
+        private long scanned;
+        private long normalised;
+        private long unchanged;
+        private long invalid;
+        private long skipped;
+        private long conflicts;
+
+        public String getLastId() {
+            return lastId;
+        }
+
+        public long getScanned() {
+            return scanned;
+        }
+
+        public long getNormalised() {
+            return normalised;
+        }
+
+        public long getUnchanged() {
+            return unchanged;
+        }
+
+        public long getInvalid() {
+            return invalid;
+        }
+
+        public long getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * Credentials that changed between being read and being written, and
+         * were therefore left alone.
+         */
+        public long getConflicts() {
+            return conflicts;
+        }
+
+        @Override
+        public String toString() {
+            return "scanned=" + scanned + ", normalised=" + normalised + ", unchanged=" + unchanged + ", invalid="
+                    + invalid + ", skipped=" + skipped + ", conflicts=" + conflicts;
+        }
+    }
+}
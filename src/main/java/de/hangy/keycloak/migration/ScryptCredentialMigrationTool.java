@@ -0,0 +1,82 @@
+package de.hangy.keycloak.migration;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command line entry point for {@link ScryptCredentialMigration}. Run it with
+ * this module's jar, Keycloak's libraries and the database's JDBC driver on the
+ * class path, e.g.
+ *
+ * <pre>
+ * java -cp "keycloak-scrypt.jar:/opt/keycloak/lib/lib/main/*" \
+ *     de.hangy.keycloak.migration.ScryptCredentialMigrationTool \
+ *     --jdbc-url=jdbc:postgresql://db/keycloak --jdbc-user=keycloak --checkpoint=scrypt.checkpoint
+ * </pre>
+ *
+ * The database password is read from {@code --jdbc-password} or, if that is not
+ * given, from the {@code KC_DB_PASSWORD} environment variable.
+ */
+public class ScryptCredentialMigrationTool {
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: ScryptCredentialMigrationTool --jdbc-url=<url> [options]",
+            "  --jdbc-user=<user>",
+            "  --jdbc-password=<password>     defaults to $KC_DB_PASSWORD",
+            "  --schema=<schema>              schema of the Keycloak tables",
+            "  --realm-id=<id>                only migrate users of this realm",
+            "  --page-size=<n>                credentials per page and transaction (default 1000)",
+            "  --threads=<n>                  normalisation threads (default: available processors)",
+            "  --rows-per-second=<n>          throttle, 0 for unlimited (default 0)",
+            "  --checkpoint=<file>            progress file to resume from (default scrypt-migration.checkpoint)",
+            "  --dry-run                      report what would change without writing");
+
+    private ScryptCredentialMigrationTool() {
+        // noop
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        String url = options.get("jdbc-url");
+        if (url == null || options.containsKey("help")) {
+            System.err.println(USAGE);
+            System.exit(url == null ? 1 : 0);
+            return;
+        }
+        String password = options.getOrDefault("jdbc-password", System.getenv("KC_DB_PASSWORD"));
+
+        try (Connection connection = DriverManager.getConnection(url, options.get("jdbc-user"), password)) {
+            ScryptCredentialMigration migration = new ScryptCredentialMigration(connection,
+                    options.get("schema"),
+                    options.get("realm-id"),
+                    Integer.parseInt(options.getOrDefault("page-size", "1000")),
+                    Integer.parseInt(options.getOrDefault("threads",
+                            Integer.toString(Runtime.getRuntime().availableProcessors()))),
+                    Double.parseDouble(options.getOrDefault("rows-per-second", "0")),
+                    Path.of(options.getOrDefault("checkpoint", "scrypt-migration.checkpoint")),
+                    options.containsKey("dry-run"));
+            ScryptCredentialMigration.Progress progress = migration.run();
+            System.out.println((options.containsKey("dry-run") ? "Dry run finished: " : "Migration finished: ")
+                    + progress);
+        }
+    }
+
+    static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument '" + arg + "'" + System.lineSeparator()
+                        + USAGE);
+            }
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                options.put(arg.substring(2), "true");
+            } else {
+                options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            }
+        }
+        return options;
+    }
+}
@@ -0,0 +1,219 @@
+package de.hangy.keycloak.migration;
+
+import de.hangy.keycloak.credential.hash.ScryptPasswordHashProviderFactory;
+import de.hangy.keycloak.utils.ScryptCredentialEncoder;
+import de.hangy.keycloak.utils.ScryptEncodingUtils;
+import de.hangy.keycloak.utils.ScryptEngine;
+import de.hangy.keycloak.utils.ScryptPhcFormat;
+import de.hangy.keycloak.verifier.ScryptVerifierRegistry;
+
+import java.io.IOException;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+import org.keycloak.models.credential.PasswordCredentialModel;
+import org.keycloak.models.credential.dto.PasswordCredentialData;
+import org.keycloak.models.credential.dto.PasswordSecretData;
+import org.keycloak.util.JsonSerialization;
+
+/**
+ * Validates the stored JSON of a single password credential and rewrites it in
+ * the form the provider itself writes: single-valued {@code N}, {@code r} and
+ * {@code p} additional parameters, {@code hashIterations} of -1 and the digest
+ * and salt as plain Base64. Legacy spellings of the cost ({@code n}, or
+ * {@code ln} as its base-2 logarithm) and values with surrounding whitespace are
+ * accepted on input. Credentials stored as a {@link ScryptPhcFormat PHC string}
+ * are validated and stay in that form. Values claimed by a registered legacy
+ * verifier, such as {@code SCRYPT:} strings or MD5-crypt hashes, are left to be
+ * rehashed at the next login. The hash itself is never recomputed, since that
+ * needs the plaintext password.
+ */
+public class ScryptCredentialNormalizer {
+
+    public enum Status {
+        /** The credential is valid and already in canonical form. */
+        UNCHANGED,
+        /** The credential is valid and {@link Result#getCredentialData()} / {@link Result#getSecretData()} should be stored. */
+        NORMALISED,
+        /** The credential claims to be scrypt but cannot be verified as stored. */
+        INVALID,
+        /** The credential uses another algorithm or a legacy format and is left alone. */
+        SKIPPED
+    }
+
+    private final ScryptVerifierRegistry verifiers;
+
+    public ScryptCredentialNormalizer() {
+        this(ScryptVerifierRegistry.defaults());
+    }
+
+    public ScryptCredentialNormalizer(ScryptVerifierRegistry verifiers) {
+        this.verifiers = verifiers;
+    }
+
+    public Result normalise(String credentialData, String secretData) {
+        PasswordCredentialData credential;
+        try {
+            credential = JsonSerialization.readValue(credentialData, PasswordCredentialData.class);
+        } catch (IOException | RuntimeException e) {
+            return Result.invalid("Unreadable credential data: " + e.getMessage());
+        }
+        if (!ScryptPasswordHashProviderFactory.ID.equals(credential.getAlgorithm())) {
+            return Result.skipped();
+        }
+
+        PasswordSecretData secret;
+        try {
+            secret = JsonSerialization.readValue(secretData, PasswordSecretData.class);
+        } catch (IOException | RuntimeException e) {
+            return Result.invalid("Unreadable secret data: " + e.getMessage());
+        }
+        if (verifiers.claims(PasswordCredentialModel.createFromValues(credential, secret))) {
+            return Result.skipped();
+        }
+
+        if (ScryptPhcFormat.isPhc(secret.getValue())) {
+            return normalisePhc(credentialData, secretData, secret.getValue());
+        }
+
+        Map<String, List<String>> additionalParameters = credential.getAdditionalParameters();
+        if (additionalParameters == null) {
+            return Result.invalid("Additional credential parameters are 'null'");
+        }
+
+        ScryptEncodingUtils.ScryptParameters parameters;
+        byte[] salt = secret.getSalt();
+        String digest = secret.getValue() == null ? null : ScryptEncodingUtils.extractDigest(secret.getValue());
+        try {
+            if (salt == null || salt.length == 0) {
+                throw new IllegalArgumentException("Salt is missing");
+            }
+            if (digest == null || digest.isEmpty()) {
+                throw new IllegalArgumentException("Digest is missing");
+            }
+            int cost = extractCost(additionalParameters);
+            int blockSize = parseSingle(additionalParameters, "r");
+            int parallelism = parseSingle(additionalParameters, "p");
+            int hashLength = Base64.getDecoder().decode(digest).length;
+            ScryptEngine.validateParameters(cost, blockSize, parallelism, hashLength);
+            parameters = ScryptEncodingUtils.ScryptParameters.of(cost, blockSize, parallelism, hashLength,
+                    salt.length);
+        } catch (IllegalArgumentException e) {
+            return Result.invalid(e.getMessage());
+        }
+
+        PasswordCredentialModel canonical = ScryptCredentialEncoder.createJsonCredentialModel(salt, digest,
+                parameters);
+        if (canonical.getCredentialData().equals(credentialData) && canonical.getSecretData().equals(secretData)) {
+            return new Result(Status.UNCHANGED, credentialData, secretData, parameters, null);
+        }
+        return new Result(Status.NORMALISED, canonical.getCredentialData(), canonical.getSecretData(), parameters,
+                null);
+    }
+
+    /**
+     * PHC credentials are kept in PHC form; only the surrounding JSON is
+     * rewritten.
+     */
+    private static Result normalisePhc(String credentialData, String secretData, String phc) {
+        ScryptEncodingUtils.ScryptParameters parameters;
+        try {
+            parameters = ScryptPhcFormat.parse(phc).getParameters();
+            ScryptEngine.validateParameters(parameters.getCost(), parameters.getBlockSize(),
+                    parameters.getParallellism(), parameters.getHashLength());
+        } catch (IllegalArgumentException e) {
+            return Result.invalid(e.getMessage());
+        }
+        PasswordCredentialModel canonical = ScryptCredentialEncoder.createPhcCredentialModel(phc);
+        if (canonical.getCredentialData().equals(credentialData) && canonical.getSecretData().equals(secretData)) {
+            return new Result(Status.UNCHANGED, credentialData, secretData, parameters, null);
+        }
+        return new Result(Status.NORMALISED, canonical.getCredentialData(), canonical.getSecretData(), parameters,
+                null);
+    }
+
+    private static int extractCost(Map<String, List<String>> additionalParameters) {
+        if (additionalParameters.containsKey("N")) {
+            return parseSingle(additionalParameters, "N");
+        }
+        if (additionalParameters.containsKey("n")) {
+            return parseSingle(additionalParameters, "n");
+        }
+        if (additionalParameters.containsKey("ln")) {
+            int ln = parseSingle(additionalParameters, "ln");
+            if (ln < 1 || ln > 30) {
+                throw new IllegalArgumentException("Cost exponent ln must be between 1 and 30");
+            }
+            return 1 << ln;
+        }
+        throw new IllegalArgumentException("Cost parameter N is missing");
+    }
+
+    private static int parseSingle(Map<String, List<String>> additionalParameters, String key) {
+        List<String> values = additionalParameters.get(key);
+        if (values == null || values.isEmpty()) {
+            throw new IllegalArgumentException("Parameter " + key + " is missing");
+        }
+        String value = values.get(0) == null ? "" : values.get(0).trim();
+        for (int i = 1; i < values.size(); i++) {
+            String other = values.get(i) == null ? "" : values.get(i).trim();
+            if (!value.equals(other)) {
+                throw new IllegalArgumentException("Parameter " + key + " has conflicting values " + values);
+            }
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Parameter " + key + " is not a number: '" + value + "'", e);
+        }
+    }
+
+    public static class Result {
+        private final Status status;
+        private final String credentialData;
+        private final String secretData;
+        private final ScryptEncodingUtils.ScryptParameters parameters;
+        private final String message;
+
+        Result(Status status, String credentialData, String secretData,
+                ScryptEncodingUtils.ScryptParameters parameters, String message) {
+            this.status = status;
+            this.credentialData = credentialData;
+            this.secretData = secretData;
+            this.parameters = parameters;
+            this.message = message;
+        }
+
+        static Result invalid(String message) {
+            return new Result(Status.INVALID, null, null, null, message);
+        }
+
+        static Result skipped() {
+            return new Result(Status.SKIPPED, null, null, null, null);
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public String getCredentialData() {
+            return credentialData;
+        }
+
+        public String getSecretData() {
+            return secretData;
+        }
+
+        public ScryptEncodingUtils.ScryptParameters getParameters() {
+            return parameters;
+        }
+
+        /**
+         * Why the credential is {@link Status#INVALID}, {@code null} otherwise.
+         */
+        public String getMessage() {
+            return message;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package de.hangy.keycloak.migration;
+
+import de.hangy.keycloak.utils.ScryptCredentialEncoder;
+import de.hangy.keycloak.utils.ScryptEncodingUtils;
+import de.hangy.keycloak.utils.ScryptEngine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.cluster.ExecutionResult;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.credential.PasswordCredentialModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Creates Keycloak users with their existing password hashes from a stream of
+ * {@link LegacyScryptUser}s, committing {@code batchSize} users per
+ * transaction. Users whose username already exists are left untouched, so an
+ * interrupted import can simply be run again.
+ * <p>
+ * {@link #importOnce} runs an import at most once per file and realm: under a
+ * cluster-wide lock, and only if the realm has no record of a completed import
+ * of a file with the same checksum. Users deleted after the import therefore
+ * stay deleted when Keycloak restarts with the same file configured.
+ * <p>
+ * Credentials are built with {@link ScryptCredentialEncoder}, so no JSON is
+ * serialised per user.
+ */
+public class ScryptUserImporter {
+    private static final Logger LOG = Logger.getLogger(ScryptUserImporter.class);
+
+    /**
+     * Prefix of the realm attribute recording when a file, identified by its
+     * checksum, was imported into the realm.
+     */
+    public static final String COMPLETED_ATTRIBUTE_PREFIX = "scryptImport.";
+
+    private static final String CLUSTER_TASK_PREFIX = "scrypt-import::";
+
+    private final KeycloakSessionFactory sessionFactory;
+
+    private final String realmName;
+
+    private final int batchSize;
+
+    private final ScryptCredentialEncoder.StorageFormat storageFormat;
+
+    public ScryptUserImporter(KeycloakSessionFactory sessionFactory, String realmName, int batchSize) {
+        this(sessionFactory, realmName, batchSize, ScryptCredentialEncoder.StorageFormat.JSON);
+    }
+
+    public ScryptUserImporter(KeycloakSessionFactory sessionFactory, String realmName, int batchSize,
+            ScryptCredentialEncoder.StorageFormat storageFormat) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be >= 1");
+        }
+        this.sessionFactory = sessionFactory;
+        this.realmName = realmName;
+        this.batchSize = batchSize;
+        this.storageFormat = storageFormat;
+    }
+
+    public Result importUsers(Iterator<LegacyScryptUser> users) {
+        Result result = new Result();
+        long started = System.nanoTime();
+        List<LegacyScryptUser> batch = new ArrayList<>(batchSize);
+        while (users.hasNext()) {
+            batch.add(users.next());
+            if (batch.size() == batchSize) {
+                importBatch(batch, result);
+                result.elapsedNanos = System.nanoTime() - started;
+                LOG.infof("Imported %s", result);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            importBatch(batch, result);
+        }
+        result.elapsedNanos = System.nanoTime() - started;
+        return result;
+    }
+
+    /**
+     * Runs {@code importTask} unless the realm records a completed import of the
+     * file with {@code checksum}, holding a cluster-wide lock for the realm while
+     * it runs, and records the import as completed once the task returns.
+     *
+     * @param lockTimeoutSeconds how long the lock is held at most; should exceed
+     *                           the time the import takes
+     * @return the task's result, or {@code null} if the file was already imported
+     *         or another node is importing into the realm right now
+     */
+    // ClusterProvider is deprecated, but still what Keycloak itself uses for cluster-wide tasks
+    @SuppressWarnings("deprecation")
+    public Result importOnce(String checksum, int lockTimeoutSeconds, Callable<Result> importTask) {
+        String attribute = COMPLETED_ATTRIBUTE_PREFIX + checksum;
+        ExecutionResult<Result> execution;
+        try (KeycloakSession session = sessionFactory.create()) {
+            execution = session.getProvider(ClusterProvider.class).executeIfNotExecuted(
+                    CLUSTER_TASK_PREFIX + realmName, lockTimeoutSeconds, () -> {
+                        String completed = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory,
+                                s -> getRealm(s).getAttribute(attribute));
+                        if (completed != null) {
+                            LOG.infof("File %s was already imported into realm %s, not importing it again.",
+                                    checksum, realmName);
+                            return null;
+                        }
+                        Result result = importTask.call();
+                        KeycloakModelUtils.runJobInTransaction(sessionFactory, s -> getRealm(s)
+                                .setAttribute(attribute, String.valueOf(Time.currentTimeMillis())));
+                        return result;
+                    });
+        }
+        if (!execution.isExecuted()) {
+            LOG.infof("Another node is importing users into realm %s, not importing here.", realmName);
+            return null;
+        }
+        return execution.getResult();
+    }
+
+    /**
+     * Hex encoded SHA-256 of the file's contents.
+     */
+    public static String checksum(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Imports the batch in one transaction; if that fails, e.g. on a duplicate
+     * email, each user is retried in a transaction of its own so that one bad
+     * record only costs itself.
+     */
+    private void importBatch(List<LegacyScryptUser> batch, Result result) {
+        List<PasswordCredentialModel> credentials = new ArrayList<>(batch.size());
+        List<LegacyScryptUser> valid = new ArrayList<>(batch.size());
+        for (LegacyScryptUser user : batch) {
+            try {
+                credentials.add(toCredential(user));
+                valid.add(user);
+            } catch (IllegalArgumentException e) {
+                result.failed++;
+                LOG.warnf("Skipping user %s: %s", user, e.getMessage());
+            }
+        }
+
+        int[] counts = new int[2];
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                counts[0] = 0;
+                counts[1] = 0;
+                RealmModel realm = getRealm(session);
+                for (int i = 0; i < valid.size(); i++) {
+                    counts[create(session, realm, valid.get(i), credentials.get(i)) ? 0 : 1]++;
+                }
+            });
+            result.imported += counts[0];
+            result.skipped += counts[1];
+            return;
+        } catch (RuntimeException e) {
+            LOG.debugf(e, "Batch of %d users failed, retrying them one by one", valid.size());
+        }
+
+        for (int i = 0; i < valid.size(); i++) {
+            LegacyScryptUser user = valid.get(i);
+            PasswordCredentialModel credential = credentials.get(i);
+            try {
+                boolean[] created = new boolean[1];
+                KeycloakModelUtils.runJobInTransaction(sessionFactory,
+                        session -> created[0] = create(session, getRealm(session), user, credential));
+                if (created[0]) {
+                    result.imported++;
+                } else {
+                    result.skipped++;
+                }
+            } catch (RuntimeException e) {
+                result.failed++;
+                LOG.warnf("Failed to import user %s: %s", user, e.getMessage());
+            }
+        }
+    }
+
+    private RealmModel getRealm(KeycloakSession session) {
+        RealmModel realm = session.realms().getRealmByName(realmName);
+        if (realm == null) {
+            throw new IllegalStateException("Realm " + realmName + " does not exist");
+        }
+        return realm;
+    }
+
+    private static boolean create(KeycloakSession session, RealmModel realm, LegacyScryptUser legacy,
+            PasswordCredentialModel credential) {
+        if (session.users().getUserByUsername(realm, legacy.getUsername()) != null) {
+            return false;
+        }
+        UserModel user = session.users().addUser(realm, legacy.getUsername());
+        user.setEnabled(true);
+        user.setEmail(legacy.getEmail());
+        user.setEmailVerified(legacy.isEmailVerified());
+        user.setFirstName(legacy.getFirstName());
+        user.setLastName(legacy.getLastName());
+        user.credentialManager().createStoredCredential(credential);
+        return true;
+    }
+
+    /**
+     * Builds the stored credential for a legacy user. {@code SCRYPT:} and
+     * MD5-crypt hashes are stored verbatim, so that they are verified by their
+     * {@link de.hangy.keycloak.verifier.ScryptCredentialVerifier} and rehashed
+     * with the realm's parameters after the next successful login; the scrypt
+     * parameters of a {@code SCRYPT:} hash are still checked here.
+     *
+     * @throws IllegalArgumentException if N/r/p, salt or digest are unusable
+     */
+    PasswordCredentialModel toCredential(LegacyScryptUser user) {
+        PasswordCredentialModel credential;
+        if (user.getStoredValue() != null && user.getSalt() == null) {
+            // MD5-crypt, checked when read
+            credential = ScryptCredentialEncoder.createStoredValueCredentialModel(user.getStoredValue());
+        } else {
+            byte[] salt = user.decodeSalt();
+            if (salt.length == 0) {
+                throw new IllegalArgumentException("salt is empty");
+            }
+            int hashLength = Base64.getDecoder().decode(user.getHash()).length;
+            ScryptEngine.validateParameters(user.getCost(), user.getBlockSize(), user.getParallelism(), hashLength);
+            credential = user.getStoredValue() != null
+                    ? ScryptCredentialEncoder.createStoredValueCredentialModel(user.getStoredValue())
+                    : ScryptCredentialEncoder.createPasswordCredentialModel(storageFormat, salt, user.getHash(),
+                            ScryptEncodingUtils.ScryptParameters.of(user.getCost(), user.getBlockSize(),
+                                    user.getParallelism(), hashLength, salt.length));
+        }
+        credential.setCreatedDate(Time.currentTimeMillis());
+        return credential;
+    }
+
+    public static class Result {
+        private long imported;
+        private long skipped;
+        private long failed;
+        private long elapsedNanos;
+
+        public long getImported() {
+            return imported;
+        }
+
+        /**
+         * Users that already existed.
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public double getUsersPerSecond() {
+            return (imported + skipped + failed) * 1e9 / Math.max(1, elapsedNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("imported=%d, skipped=%d, failed=%d, %.0f users/s", imported, skipped, failed,
+                    getUsersPerSecond());
+        }
+    }
+}
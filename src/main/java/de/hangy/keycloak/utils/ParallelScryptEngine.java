@@ -0,0 +1,87 @@
+package de.hangy.keycloak.utils;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ScryptEngine} that mixes the {@code p} independent lanes concurrently:
+ * the calling thread mixes lane 0 while lanes 1..p-1 run on a dedicated,
+ * size-limited {@link ForkJoinPool}. Lanes write disjoint parts of B, so the
+ * output is identical to the sequential engine.
+ */
+public class ParallelScryptEngine extends ScryptEngine {
+    private final ForkJoinPool lanePool;
+
+    public ParallelScryptEngine(ScryptScratchPool scratchPool, int laneThreads) {
+        this(scratchPool, null, laneThreads);
+    }
+
+    public ParallelScryptEngine(ScryptScratchPool scratchPool, ScryptOffHeapPool offHeapPool, int laneThreads) {
+        super(scratchPool, offHeapPool);
+        if (laneThreads < 1) {
+            throw new IllegalArgumentException("laneThreads must be >= 1");
+        }
+        this.lanePool = new ForkJoinPool(laneThreads, ParallelScryptEngine::newLaneThread, null, false,
+                0, laneThreads, 1, null, 60, TimeUnit.SECONDS);
+    }
+
+    public int getLaneThreads() {
+        return lanePool.getParallelism();
+    }
+
+    /**
+     * Up to one V table per lane can be live at once: the caller's plus one per
+     * lane thread.
+     */
+    @Override
+    public long workingMemoryBytes(int N, int r, int p) {
+        return super.workingMemoryBytes(N, r, p) * Math.min(p, lanePool.getParallelism() + 1);
+    }
+
+    @Override
+    protected void mix(int[] b, int N, int r, int p, int blockInts) {
+        if (p == 1) {
+            smix(b, 0, N, r);
+            return;
+        }
+        ForkJoinTask<?>[] lanes = new ForkJoinTask<?>[p - 1];
+        for (int lane = 1; lane < p; lane++) {
+            int offset = lane * blockInts;
+            lanes[lane - 1] = lanePool.submit(() -> smix(b, offset, N, r));
+        }
+
+        RuntimeException failure = null;
+        try {
+            smix(b, 0, N, r);
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        // Every lane must have finished before the caller wipes or reuses B
+        for (ForkJoinTask<?> lane : lanes) {
+            try {
+                lane.join();
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public void close() {
+        lanePool.shutdown();
+    }
+
+    private static ForkJoinWorkerThread newLaneThread(ForkJoinPool pool) {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("scrypt-lane-" + thread.getPoolIndex());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,235 @@
+package de.hangy.keycloak.utils;
+
+import de.hangy.keycloak.credential.hash.ScryptPasswordHashProviderFactory;
+
+import java.io.IOException;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.keycloak.models.credential.PasswordCredentialModel;
+import org.keycloak.models.credential.dto.PasswordCredentialData;
+import org.keycloak.models.credential.dto.PasswordSecretData;
+import org.keycloak.util.JsonSerialization;
+
+/**
+ * Builds stored scrypt credentials without running Jackson per credential. The
+ * credential data only depends on N, r and p, so its JSON is serialised once
+ * per combination; every credential still gets a {@link PasswordCredentialData}
+ * of its own, since that and its additional parameters are mutable and handed
+ * out to callers. The secret data is written by hand in
+ * exactly the form, field order and escaping Jackson produces for
+ * {@link PasswordSecretData}.
+ * <p>
+ * New credentials are written in the {@link StorageFormat} the caller passes,
+ * which the provider factory takes from its configuration; both formats are
+ * always readable.
+ */
+public final class ScryptCredentialEncoder {
+    /**
+     * How new credentials are stored: N/r/p as additional parameters of the
+     * credential data next to the Base64 digest and salt, or everything in a
+     * single {@link ScryptPhcFormat PHC string}.
+     */
+    public enum StorageFormat {
+        JSON, PHC
+    }
+
+    private static final int MAX_TEMPLATES = 64;
+
+    private static volatile String phcCredentialData;
+
+    private static final ConcurrentHashMap<Long, Template> TEMPLATES = new ConcurrentHashMap<>();
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private ScryptCredentialEncoder() {
+        // noop
+    }
+
+    /**
+     * Creates the credential in the {@link StorageFormat#JSON JSON} storage
+     * format.
+     */
+    public static PasswordCredentialModel createPasswordCredentialModel(byte[] salt, String encodedPassword,
+            ScryptEncodingUtils.ScryptParameters scryptParameters) {
+        return createPasswordCredentialModel(StorageFormat.JSON, salt, encodedPassword, scryptParameters);
+    }
+
+    /**
+     * Creates the credential in the given storage format.
+     */
+    public static PasswordCredentialModel createPasswordCredentialModel(StorageFormat storageFormat, byte[] salt,
+            String encodedPassword, ScryptEncodingUtils.ScryptParameters scryptParameters) {
+        if (storageFormat == StorageFormat.PHC && !ScryptPhcFormat.isPhc(encodedPassword)) {
+            return createPhcCredentialModel(ScryptPhcFormat.encode(scryptParameters.getCost(),
+                    scryptParameters.getBlockSize(), scryptParameters.getParallellism(), salt, encodedPassword));
+        }
+        return createJsonCredentialModel(salt, encodedPassword, scryptParameters);
+    }
+
+    /**
+     * Creates a credential with N/r/p in the credential data's additional
+     * parameters.
+     */
+    public static PasswordCredentialModel createJsonCredentialModel(byte[] salt, String encodedPassword,
+            ScryptEncodingUtils.ScryptParameters scryptParameters) {
+        Template template = template(scryptParameters.getCost(), scryptParameters.getBlockSize(),
+                scryptParameters.getParallellism());
+        PasswordCredentialModel model = PasswordCredentialModel.createFromValues(template.newCredentialData(),
+                new PasswordSecretData(encodedPassword, salt));
+        model.setType(PasswordCredentialModel.TYPE);
+        model.setCredentialData(template.json);
+        model.setSecretData(writeSecretData(encodedPassword, salt));
+        return model;
+    }
+
+    /**
+     * Creates a credential whose secret data holds only the PHC string.
+     */
+    public static PasswordCredentialModel createPhcCredentialModel(String phc) {
+        return createStoredValueCredentialModel(phc);
+    }
+
+    /**
+     * Creates a scrypt credential whose secret data holds only {@code value}, for
+     * PHC strings and for legacy hashes imported verbatim, which the matching
+     * {@link de.hangy.keycloak.verifier.ScryptCredentialVerifier} recognises by
+     * their prefix.
+     */
+    public static PasswordCredentialModel createStoredValueCredentialModel(String value) {
+        PasswordCredentialData credentialData = new PasswordCredentialData(-1, ScryptPasswordHashProviderFactory.ID);
+        PasswordCredentialModel model = PasswordCredentialModel.createFromValues(credentialData,
+                new PasswordSecretData(value, (byte[]) null));
+        model.setType(PasswordCredentialModel.TYPE);
+        model.setCredentialData(phcCredentialData());
+        model.setSecretData(writeSecretData(value, null));
+        return model;
+    }
+
+    /**
+     * The credential data JSON for N, r and p, e.g.
+     * {@code {"hashIterations":-1,"algorithm":"scrypt","additionalParameters":{"p":["1"],"r":["8"],"N":["16384"]}}}.
+     */
+    public static String credentialData(int cost, int blockSize, int parallelism) {
+        return template(cost, blockSize, parallelism).json;
+    }
+
+    /**
+     * {@code {"value":"<value>","salt":"<Base64 salt>","additionalParameters":{}}};
+     * like Keycloak's object mapper, {@code null} fields are left out.
+     */
+    public static String writeSecretData(String value, byte[] salt) {
+        StringBuilder json = new StringBuilder(64 + (value == null ? 0 : value.length())
+                + (salt == null ? 0 : (salt.length + 2) / 3 * 4));
+        json.append('{');
+        if (value != null) {
+            json.append("\"value\":");
+            appendString(json, value);
+            json.append(',');
+        }
+        if (salt != null) {
+            json.append("\"salt\":\"").append(Base64.getEncoder().encodeToString(salt)).append("\",");
+        }
+        json.append("\"additionalParameters\":{}}");
+        return json.toString();
+    }
+
+    private static String phcCredentialData() {
+        String json = phcCredentialData;
+        if (json == null) {
+            try {
+                json = JsonSerialization.writeValueAsString(
+                        new PasswordCredentialData(-1, ScryptPasswordHashProviderFactory.ID));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            phcCredentialData = json;
+        }
+        return json;
+    }
+
+    static int getTemplateCount() {
+        return TEMPLATES.size();
+    }
+
+    private static Template template(int cost, int blockSize, int parallelism) {
+        if (blockSize < 0 || blockSize > 0xFFFF || parallelism < 0 || parallelism > 0xFFFF) {
+            return new Template(cost, blockSize, parallelism);
+        }
+        Long key = ((long) cost << 32) | ((long) blockSize << 16) | parallelism;
+        Template template = TEMPLATES.get(key);
+        if (template != null) {
+            return template;
+        }
+        template = new Template(cost, blockSize, parallelism);
+        if (TEMPLATES.size() >= MAX_TEMPLATES) {
+            return template;
+        }
+        Template existing = TEMPLATES.putIfAbsent(key, template);
+        return existing != null ? existing : template;
+    }
+
+    /**
+     * Same escaping as Jackson's default string serialisation: quote, backslash
+     * and control characters are escaped, everything else is written as is.
+     */
+    private static void appendString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c >= 0x20) {
+                json.append(c);
+            } else {
+                switch (c) {
+                    case '\b':
+                        json.append("\\b");
+                        break;
+                    case '\t':
+                        json.append("\\t");
+                        break;
+                    case '\n':
+                        json.append("\\n");
+                        break;
+                    case '\f':
+                        json.append("\\f");
+                        break;
+                    case '\r':
+                        json.append("\\r");
+                        break;
+                    default:
+                        json.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+                }
+            }
+        }
+        json.append('"');
+    }
+
+    private static final class Template {
+        final String cost;
+        final String blockSize;
+        final String parallelism;
+        final String json;
+
+        Template(int cost, int blockSize, int parallelism) {
+            this.cost = Integer.toString(cost);
+            this.blockSize = Integer.toString(blockSize);
+            this.parallelism = Integer.toString(parallelism);
+            try {
+                json = JsonSerialization.writeValueAsString(newCredentialData());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        PasswordCredentialData newCredentialData() {
+            PasswordCredentialData credentialData = new PasswordCredentialData(-1,
+                    ScryptPasswordHashProviderFactory.ID);
+            credentialData.getAdditionalParameters().putSingle("N", cost);
+            credentialData.getAdditionalParameters().putSingle("r", blockSize);
+            credentialData.getAdditionalParameters().putSingle("p", parallelism);
+            return credentialData;
+        }
+    }
+}
@@ -1,18 +1,13 @@
 package de.hangy.keycloak.utils;
 
-import de.hangy.keycloak.credential.hash.ScryptPasswordHashProviderFactory;
 import de.hangy.keycloak.exceptions.ScryptRuntimeException;
 import de.hangy.keycloak.policy.ScryptHashLengthPasswordPolicyProviderFactory;
 import de.hangy.keycloak.policy.ScryptSaltLengthPasswordPolicyProviderFactory;
 
-import java.io.IOException;
-import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.keycloak.common.util.MultivaluedHashMap;
 import org.keycloak.models.credential.PasswordCredentialModel;
-import org.keycloak.models.credential.dto.PasswordCredentialData;
-import org.keycloak.models.credential.dto.PasswordSecretData;
-import org.keycloak.util.JsonSerialization;
 
 /**
  * @author <a href="mailto:dries.eestermans@is4u.be">Dries Eestermans</a>
@@ -24,40 +19,30 @@ public class ScryptEncodingUtils {
 
     private static final String PARALLELISM = "p";
 
+    private static final ScryptParametersCache PARAMETERS_CACHE = new ScryptParametersCache();
+
     private ScryptEncodingUtils() {
         // noop
     }
 
     public static String extractDigest(String encodedPassword) {
-        String[] explodedEncodedPassword = encodedPassword.split("\\$");
-        if (explodedEncodedPassword.length == 0)
+        if (encodedPassword.isEmpty())
+            return encodedPassword;
+        // Digest is always the last non-empty '$'-separated value
+        int end = encodedPassword.length();
+        while (end > 0 && encodedPassword.charAt(end - 1) == '$')
+            end--;
+        if (end == 0)
             return null;
-        // Digest is always the last value in the split
-        return explodedEncodedPassword[explodedEncodedPassword.length - 1];
+        int start = encodedPassword.lastIndexOf('$', end - 1) + 1;
+        if (start == 0 && end == encodedPassword.length())
+            return encodedPassword;
+        return encodedPassword.substring(start, end);
     }
 
     public static PasswordCredentialModel createPasswordCredentialModel(byte[] salt, String encodedPassword,
             ScryptEncodingUtils.ScryptParameters scryptParameters) {
-        PasswordCredentialData credentialData = new PasswordCredentialData(-1, ScryptPasswordHashProviderFactory.ID);
-        PasswordSecretData secretData = new PasswordSecretData(encodedPassword, salt);
-        MultivaluedHashMap<String, String> additionalParameters = credentialData.getAdditionalParameters();
-        additionalParameters.putSingle(ScryptEncodingUtils.COST, Integer.toString(scryptParameters.getCost()));
-        additionalParameters.putSingle(ScryptEncodingUtils.BLOCK_SIZE,
-                Integer.toString(scryptParameters.getBlockSize()));
-        additionalParameters.putSingle(ScryptEncodingUtils.PARALLELISM,
-                Integer.toString(scryptParameters.getParallellism()));
-
-        PasswordCredentialModel passwordCredentialModel = PasswordCredentialModel.createFromValues(credentialData,
-                secretData);
-
-        try {
-            passwordCredentialModel.setCredentialData(JsonSerialization.writeValueAsString(credentialData));
-            passwordCredentialModel.setSecretData(JsonSerialization.writeValueAsString(secretData));
-            passwordCredentialModel.setType(PasswordCredentialModel.TYPE);
-            return passwordCredentialModel;
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return ScryptCredentialEncoder.createPasswordCredentialModel(salt, encodedPassword, scryptParameters);
     }
 
     public static ScryptEncodingUtils.ScryptParameters extractScryptParametersFromCredentials(
@@ -83,7 +68,37 @@ public class ScryptEncodingUtils {
         }
         // If we reach this point, all parameters were found and we return the
         // ScryptParameters carry object
-        return new ScryptEncodingUtils.ScryptParameters(cost, blockSize, parallelism, hashLength);
+        return ScryptEncodingUtils.ScryptParameters.of(cost, blockSize, parallelism, hashLength);
+    }
+
+    /**
+     * Returns the scrypt parameters stored with a credential, parsed from its PHC
+     * string or served from a bounded per-credential cache after the first parse
+     * of its additional parameters.
+     */
+    public static ScryptEncodingUtils.ScryptParameters getScryptParameters(PasswordCredentialModel credential) {
+        String encodedPassword = credential.getPasswordSecretData().getValue();
+        if (ScryptPhcFormat.isPhc(encodedPassword)) {
+            try {
+                return ScryptPhcFormat.parseParameters(encodedPassword);
+            } catch (IllegalArgumentException e) {
+                throw new ScryptRuntimeException(e.getMessage(), e);
+            }
+        }
+        if (credential.getPasswordCredentialData().getAdditionalParameters() == null) {
+            throw new IllegalArgumentException("Additional credential parameters are 'null'");
+        }
+        try {
+            return PARAMETERS_CACHE.get(credential);
+        } catch (ScryptRuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ScryptRuntimeException(e.getMessage(), e);
+        }
+    }
+
+    public static ScryptParametersCache getParametersCache() {
+        return PARAMETERS_CACHE;
     }
 
     public static int extractCost(MultivaluedHashMap<String, String> credentialParameters) {
@@ -101,11 +116,28 @@ public class ScryptEncodingUtils {
                 credentialParameters.getFirst(PARALLELISM));
     }
 
+    /**
+     * Number of bytes the Base64 string decodes to, computed from its length and
+     * padding without decoding it.
+     */
     public static int getDigestLength(String base64EncodedString) {
-        return Base64.getDecoder().decode(base64EncodedString).length;
+        int length = base64EncodedString.length();
+        int padding = 0;
+        while (padding < 2 && padding < length && base64EncodedString.charAt(length - 1 - padding) == '=')
+            padding++;
+        if (padding > 0 && length % 4 != 0)
+            throw new IllegalArgumentException("Input byte array has wrong 4-byte ending unit");
+        int unpadded = length - padding;
+        if (unpadded % 4 == 1)
+            throw new IllegalArgumentException("Last unit does not have enough valid bits");
+        return unpadded / 4 * 3 + Math.max(0, unpadded % 4 - 1);
     }
 
     public static class ScryptParameters {
+        private static final int MAX_INTERNED = 256;
+
+        private static final ConcurrentHashMap<ScryptParameters, ScryptParameters> INTERNED = new ConcurrentHashMap<>();
+
         private final int cost;
         private final int blockSize;
         private final int parallelism;
@@ -130,6 +162,28 @@ public class ScryptEncodingUtils {
             this.saltLength = saltLength;
         }
 
+        /**
+         * Returns a shared instance for the given values; nearly all credentials use
+         * one of a handful of parameter sets.
+         */
+        public static ScryptParameters of(int cost, int blockSize, int parallelism, int hashLength) {
+            return of(cost, blockSize, parallelism, hashLength,
+                    ScryptSaltLengthPasswordPolicyProviderFactory.DEFAULT_SALT_LENGTH);
+        }
+
+        public static ScryptParameters of(int cost, int blockSize, int parallelism, int hashLength, int saltLength) {
+            ScryptParameters candidate = new ScryptParameters(cost, blockSize, parallelism, hashLength, saltLength);
+            ScryptParameters interned = INTERNED.get(candidate);
+            if (interned != null) {
+                return interned;
+            }
+            if (INTERNED.size() >= MAX_INTERNED) {
+                return candidate;
+            }
+            interned = INTERNED.putIfAbsent(candidate, candidate);
+            return interned != null ? interned : candidate;
+        }
+
         public int getParallellism() {
             return parallelism;
         }
@@ -149,5 +203,32 @@ public class ScryptEncodingUtils {
         public int getSaltLength() {
             return saltLength;
         }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof ScryptParameters))
+                return false;
+            ScryptParameters that = (ScryptParameters) o;
+            return cost == that.cost && blockSize == that.blockSize && parallelism == that.parallelism
+                    && hashLength == that.hashLength && saltLength == that.saltLength;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = cost;
+            result = 31 * result + blockSize;
+            result = 31 * result + parallelism;
+            result = 31 * result + hashLength;
+            result = 31 * result + saltLength;
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "N=" + cost + ", r=" + blockSize + ", p=" + parallelism + ", dkLen=" + hashLength
+                    + ", saltLength=" + saltLength;
+        }
     }
 }
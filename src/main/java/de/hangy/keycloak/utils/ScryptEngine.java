@@ -0,0 +1,332 @@
+package de.hangy.keycloak.utils;
+
+import java.nio.IntBuffer;
+
+import org.bouncycastle.crypto.PBEParametersGenerator;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.generators.PKCS5S2ParametersGenerator;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.util.Arrays;
+import org.bouncycastle.util.Pack;
+
+/**
+ * RFC 7914 scrypt implementation producing the same output as BouncyCastle's
+ * {@code SCrypt.generate}, but running ROMix in working memory borrowed from a
+ * {@link ScryptScratchPool} instead of allocating a fresh V table per hash.
+ * With a {@link ScryptOffHeapPool} the V table lives in native memory and only
+ * the small BlockMix buffers stay on the heap.
+ */
+public class ScryptEngine implements AutoCloseable {
+    private static final int MAX_V_INTS = Integer.MAX_VALUE - 8;
+
+    private final ScryptScratchPool scratchPool;
+
+    private final ScryptOffHeapPool offHeapPool;
+
+    public ScryptEngine() {
+        this(new ScryptScratchPool());
+    }
+
+    public ScryptEngine(ScryptScratchPool scratchPool) {
+        this(scratchPool, null);
+    }
+
+    /**
+     * @param offHeapPool native memory for V tables, or {@code null} to keep them
+     *                    on the heap
+     */
+    public ScryptEngine(ScryptScratchPool scratchPool, ScryptOffHeapPool offHeapPool) {
+        this.scratchPool = scratchPool;
+        this.offHeapPool = offHeapPool;
+    }
+
+    public ScryptScratchPool getScratchPool() {
+        return scratchPool;
+    }
+
+    /**
+     * @return the native memory pool, or {@code null} if V tables are on the heap
+     */
+    public ScryptOffHeapPool getOffHeapPool() {
+        return offHeapPool;
+    }
+
+    /**
+     * Working memory a single {@link #generate} call holds at its peak: one V table
+     * and the two BlockMix buffers, since lanes are mixed one after another.
+     */
+    public long workingMemoryBytes(int N, int r, int p) {
+        return 128L * r * N + 256L * r;
+    }
+
+    /**
+     * Bytes ROMix moves through the V table for one hash: each lane writes all N
+     * blocks of {@code 128·r} bytes and then reads N of them back.
+     */
+    public static long memoryTrafficBytes(int N, int r, int p) {
+        return 2L * 128 * r * N * p;
+    }
+
+    /**
+     * Derives {@code dkLen} bytes from the password and salt.
+     *
+     * @throws IllegalArgumentException for the same parameter combinations
+     *                                  BouncyCastle rejects, and when N·r does not
+     *                                  fit a single Java array
+     */
+    public byte[] generate(byte[] password, byte[] salt, int N, int r, int p, int dkLen) {
+        validate(password, salt, N, r, p, dkLen);
+
+        int blockInts = 32 * r;
+        byte[] bytes = pbkdf2(password, salt, p * 128 * r);
+        int[] b = new int[bytes.length >>> 2];
+        try {
+            Pack.littleEndianToInt(bytes, 0, b);
+            mix(b, N, r, p, blockInts);
+            Pack.intToLittleEndian(b, bytes, 0);
+            return pbkdf2(password, bytes, dkLen);
+        } finally {
+            Arrays.fill(b, 0);
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+
+    /**
+     * Runs SMix over each of the {@code p} lanes of {@code b}.
+     */
+    protected void mix(int[] b, int N, int r, int p, int blockInts) {
+        for (int lane = 0; lane < p; lane++) {
+            smix(b, lane * blockInts, N, r);
+        }
+    }
+
+    /**
+     * Runs SMix over one lane of {@code b} starting at {@code offset}.
+     */
+    protected void smix(int[] b, int offset, int N, int r) {
+        int blockInts = 32 * r;
+        if (offHeapPool != null) {
+            smixOffHeap(b, offset, N, r, blockInts);
+            return;
+        }
+        ScryptScratchPool.Scratch scratch = scratchPool.acquire(N * blockInts, blockInts);
+        try {
+            romix(b, offset, N, r, scratch.v, scratch.x, scratch.y, scratch.salsa);
+        } finally {
+            scratchPool.release(scratch);
+        }
+    }
+
+    private void smixOffHeap(int[] b, int offset, int N, int r, int blockInts) {
+        int vInts = N * blockInts;
+        ScryptOffHeapPool.Arena v = offHeapPool.acquire(vInts);
+        try {
+            ScryptScratchPool.Scratch scratch = scratchPool.acquire(0, blockInts);
+            try {
+                romix(b, offset, N, r, v.ints, scratch.x, scratch.y, scratch.salsa);
+            } finally {
+                scratchPool.release(scratch);
+            }
+        } finally {
+            offHeapPool.release(v, vInts);
+        }
+    }
+
+    /**
+     * Releases threads owned by the engine, if any.
+     */
+    @Override
+    public void close() {
+        // noop
+    }
+
+    static void romix(int[] b, int offset, int N, int r, int[] v, int[] x, int[] y, int[] salsa) {
+        int blockInts = 32 * r;
+        int mask = N - 1;
+        int lastBlock = blockInts - 16;
+
+        System.arraycopy(b, offset, x, 0, blockInts);
+        for (int i = 0, vOff = 0; i < N; i++, vOff += blockInts) {
+            System.arraycopy(x, 0, v, vOff, blockInts);
+            blockMix(x, y, salsa, r);
+            int[] t = x;
+            x = y;
+            y = t;
+        }
+        for (int i = 0; i < N; i++) {
+            int j = x[lastBlock] & mask;
+            xor(v, j * blockInts, x, blockInts);
+            blockMix(x, y, salsa, r);
+            int[] t = x;
+            x = y;
+            y = t;
+        }
+        System.arraycopy(x, 0, b, offset, blockInts);
+    }
+
+    /**
+     * ROMix with V in native memory. Blocks are moved with bulk absolute
+     * get/put; y, which the next BlockMix overwrites anyway, is used to stage
+     * V[j] before it is XORed into x.
+     */
+    static void romix(int[] b, int offset, int N, int r, IntBuffer v, int[] x, int[] y, int[] salsa) {
+        int blockInts = 32 * r;
+        int mask = N - 1;
+        int lastBlock = blockInts - 16;
+
+        System.arraycopy(b, offset, x, 0, blockInts);
+        for (int i = 0, vOff = 0; i < N; i++, vOff += blockInts) {
+            v.put(vOff, x, 0, blockInts);
+            blockMix(x, y, salsa, r);
+            int[] t = x;
+            x = y;
+            y = t;
+        }
+        for (int i = 0; i < N; i++) {
+            int j = x[lastBlock] & mask;
+            v.get(j * blockInts, y, 0, blockInts);
+            xor(y, 0, x, blockInts);
+            blockMix(x, y, salsa, r);
+            int[] t = x;
+            x = y;
+            y = t;
+        }
+        System.arraycopy(x, 0, b, offset, blockInts);
+    }
+
+    static void blockMix(int[] in, int[] out, int[] x, int r) {
+        System.arraycopy(in, (2 * r - 1) * 16, x, 0, 16);
+        int evenOff = 0;
+        int oddOff = r * 16;
+        for (int inOff = 0; inOff < 32 * r; inOff += 32) {
+            xor(in, inOff, x, 16);
+            salsa20_8(x);
+            System.arraycopy(x, 0, out, evenOff, 16);
+            evenOff += 16;
+
+            xor(in, inOff + 16, x, 16);
+            salsa20_8(x);
+            System.arraycopy(x, 0, out, oddOff, 16);
+            oddOff += 16;
+        }
+    }
+
+    static void xor(int[] src, int srcOff, int[] dst, int len) {
+        for (int i = 0; i < len; i++) {
+            dst[i] ^= src[srcOff + i];
+        }
+    }
+
+    /**
+     * Salsa20/8 core, applied in place: {@code b = b + salsa20_8(b)}.
+     */
+    static void salsa20_8(int[] b) {
+        int x00 = b[0], x01 = b[1], x02 = b[2], x03 = b[3];
+        int x04 = b[4], x05 = b[5], x06 = b[6], x07 = b[7];
+        int x08 = b[8], x09 = b[9], x10 = b[10], x11 = b[11];
+        int x12 = b[12], x13 = b[13], x14 = b[14], x15 = b[15];
+
+        for (int i = 8; i > 0; i -= 2) {
+            x04 ^= Integer.rotateLeft(x00 + x12, 7);
+            x08 ^= Integer.rotateLeft(x04 + x00, 9);
+            x12 ^= Integer.rotateLeft(x08 + x04, 13);
+            x00 ^= Integer.rotateLeft(x12 + x08, 18);
+            x09 ^= Integer.rotateLeft(x05 + x01, 7);
+            x13 ^= Integer.rotateLeft(x09 + x05, 9);
+            x01 ^= Integer.rotateLeft(x13 + x09, 13);
+            x05 ^= Integer.rotateLeft(x01 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x06, 7);
+            x02 ^= Integer.rotateLeft(x14 + x10, 9);
+            x06 ^= Integer.rotateLeft(x02 + x14, 13);
+            x10 ^= Integer.rotateLeft(x06 + x02, 18);
+            x03 ^= Integer.rotateLeft(x15 + x11, 7);
+            x07 ^= Integer.rotateLeft(x03 + x15, 9);
+            x11 ^= Integer.rotateLeft(x07 + x03, 13);
+            x15 ^= Integer.rotateLeft(x11 + x07, 18);
+
+            x01 ^= Integer.rotateLeft(x00 + x03, 7);
+            x02 ^= Integer.rotateLeft(x01 + x00, 9);
+            x03 ^= Integer.rotateLeft(x02 + x01, 13);
+            x00 ^= Integer.rotateLeft(x03 + x02, 18);
+            x06 ^= Integer.rotateLeft(x05 + x04, 7);
+            x07 ^= Integer.rotateLeft(x06 + x05, 9);
+            x04 ^= Integer.rotateLeft(x07 + x06, 13);
+            x05 ^= Integer.rotateLeft(x04 + x07, 18);
+            x11 ^= Integer.rotateLeft(x10 + x09, 7);
+            x08 ^= Integer.rotateLeft(x11 + x10, 9);
+            x09 ^= Integer.rotateLeft(x08 + x11, 13);
+            x10 ^= Integer.rotateLeft(x09 + x08, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7);
+            x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13);
+            x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+
+        b[0] += x00;
+        b[1] += x01;
+        b[2] += x02;
+        b[3] += x03;
+        b[4] += x04;
+        b[5] += x05;
+        b[6] += x06;
+        b[7] += x07;
+        b[8] += x08;
+        b[9] += x09;
+        b[10] += x10;
+        b[11] += x11;
+        b[12] += x12;
+        b[13] += x13;
+        b[14] += x14;
+        b[15] += x15;
+    }
+
+    static byte[] pbkdf2(byte[] password, byte[] salt, int dkLen) {
+        PBEParametersGenerator generator = new PKCS5S2ParametersGenerator(new SHA256Digest());
+        generator.init(password, salt, 1);
+        KeyParameter key = (KeyParameter) generator.generateDerivedMacParameters(dkLen * 8);
+        return key.getKey();
+    }
+
+    /**
+     * Same checks, in the same order and with the same messages, as
+     * BouncyCastle's {@code SCrypt.generate}.
+     */
+    static void validate(byte[] password, byte[] salt, int N, int r, int p, int dkLen) {
+        if (password == null) {
+            throw new IllegalArgumentException("Passphrase P must be provided.");
+        }
+        if (salt == null) {
+            throw new IllegalArgumentException("Salt S must be provided.");
+        }
+        validateParameters(N, r, p, dkLen);
+    }
+
+    /**
+     * Checks N, r, p and dkLen the way {@link #generate} does, without hashing.
+     *
+     * @throws IllegalArgumentException if the combination cannot be hashed
+     */
+    public static void validateParameters(int N, int r, int p, int dkLen) {
+        if (N <= 1 || (N & (N - 1)) != 0) {
+            throw new IllegalArgumentException("Cost parameter N must be > 1 and a power of 2");
+        }
+        // Only value of r that cost (as an int) could be exceeded for is 1
+        if (r == 1 && N >= 65536) {
+            throw new IllegalArgumentException("Cost parameter N must be > 1 and < 65536.");
+        }
+        if (r < 1) {
+            throw new IllegalArgumentException("Block size r must be >= 1.");
+        }
+        int maxParallel = Integer.MAX_VALUE / (128 * r * 8);
+        if (p < 1 || p > maxParallel) {
+            throw new IllegalArgumentException("Parallelisation parameter p must be >= 1 and <= " + maxParallel
+                    + " (based on block size r of " + r + ")");
+        }
+        if (dkLen < 1) {
+            throw new IllegalArgumentException("Generated key length dkLen must be >= 1.");
+        }
+        if ((long) N * 32 * r > MAX_V_INTS) {
+            throw new IllegalArgumentException("Cost parameter N and block size r exceed the addressable working memory");
+        }
+    }
+}
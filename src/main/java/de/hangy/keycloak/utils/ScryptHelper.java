@@ -1,8 +1,12 @@
 package de.hangy.keycloak.utils;
 
+import de.hangy.keycloak.concurrent.ScryptAdmissionController;
+import de.hangy.keycloak.concurrent.ScryptAttemptThrottle;
+import de.hangy.keycloak.concurrent.ScryptClusterBudget;
+import de.hangy.keycloak.concurrent.ScryptHashingExecutor;
+import de.hangy.keycloak.exceptions.ScryptOverloadedException;
 import de.hangy.keycloak.exceptions.ScryptRuntimeException;
-import org.bouncycastle.crypto.generators.SCrypt;
-import org.bouncycastle.util.Strings;
+import de.hangy.keycloak.metrics.ScryptMetrics;
 import org.jboss.logging.Logger;
 import org.keycloak.common.util.MultivaluedHashMap;
 import org.keycloak.models.credential.PasswordCredentialModel;
@@ -10,8 +14,10 @@ import org.keycloak.models.credential.PasswordCredentialModel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
-import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * @author <a href="mailto:dries.eestermans@is4u.be">Dries Eestermans</a>
@@ -21,16 +27,235 @@ public class ScryptHelper {
 
     private static final Charset CHARSET = StandardCharsets.UTF_8;
 
+    private static volatile ScryptEngine engine = new ScryptEngine();
+
+    private static volatile ScryptAdmissionController admissionController = ScryptAdmissionController.unbounded();
+
+    private static volatile ScryptHashingExecutor hashingExecutor = ScryptHashingExecutor.callerRuns();
+
+    private static volatile ScryptAttemptThrottle attemptThrottle = ScryptAttemptThrottle.unlimited();
+
+    private static volatile ScryptClusterBudget clusterBudget = ScryptClusterBudget.standalone();
+
+    private static volatile ScryptVerificationCache verificationCache;
+
+    private static volatile ScryptSaltGenerator saltGenerator = new ScryptSaltGenerator();
+
+    private static volatile ScryptMetrics metrics = ScryptMetrics.NOOP;
+
+    private static final AtomicLong IN_FLIGHT_MEMORY_BYTES = new AtomicLong();
+
+    private static final LongAdder MEMORY_TRAFFIC_BYTES = new LongAdder();
+
+    private static final LongAdder HASHING_NANOS = new LongAdder();
+
     private ScryptHelper() {
         throw new IllegalStateException("Helper class");
     }
 
+    public static ScryptEngine getEngine() {
+        return engine;
+    }
+
+    public static void setEngine(ScryptEngine scryptEngine) {
+        engine = scryptEngine;
+    }
+
+    public static ScryptAdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    public static void setAdmissionController(ScryptAdmissionController controller) {
+        admissionController = controller;
+    }
+
+    public static ScryptHashingExecutor getHashingExecutor() {
+        return hashingExecutor;
+    }
+
+    public static void setHashingExecutor(ScryptHashingExecutor executor) {
+        hashingExecutor = executor;
+    }
+
+    public static ScryptAttemptThrottle getAttemptThrottle() {
+        return attemptThrottle;
+    }
+
+    public static void setAttemptThrottle(ScryptAttemptThrottle throttle) {
+        attemptThrottle = throttle;
+    }
+
+    public static ScryptClusterBudget getClusterBudget() {
+        return clusterBudget;
+    }
+
+    public static void setClusterBudget(ScryptClusterBudget budget) {
+        clusterBudget = budget;
+    }
+
+    /**
+     * The cache of recent successful verifications, or {@code null} if caching
+     * is disabled.
+     */
+    public static ScryptVerificationCache getVerificationCache() {
+        return verificationCache;
+    }
+
+    public static void setVerificationCache(ScryptVerificationCache cache) {
+        verificationCache = cache;
+    }
+
+    public static ScryptSaltGenerator getSaltGenerator() {
+        return saltGenerator;
+    }
+
+    public static void setSaltGenerator(ScryptSaltGenerator generator) {
+        saltGenerator = generator;
+    }
+
+    public static ScryptMetrics getMetrics() {
+        return metrics;
+    }
+
+    public static void setMetrics(ScryptMetrics scryptMetrics) {
+        metrics = scryptMetrics;
+    }
+
+    /**
+     * Working memory held by the hashes running right now.
+     */
+    public static long getInFlightMemoryBytes() {
+        return IN_FLIGHT_MEMORY_BYTES.get();
+    }
+
+    /**
+     * Average memory bandwidth a hash has achieved since startup: V table
+     * traffic divided by the time spent hashing, not counting time queued.
+     */
+    public static double getMemoryBandwidthBytesPerSecond() {
+        long nanos = HASHING_NANOS.sum();
+        return nanos == 0 ? 0 : MEMORY_TRAFFIC_BYTES.sum() * 1e9 / nanos;
+    }
+
     public static String hashPassword(String rawPassword, byte[] salt, int N,
             int r, int p, int dkLen) {
 
         if (rawPassword == null)
             throw new ScryptRuntimeException("Password can't be empty");
 
+        long start = System.nanoTime();
+        ScryptMetrics.Outcome outcome = ScryptMetrics.Outcome.ERROR;
+        byte[] password = rawPassword.getBytes(CHARSET);
+        byte[] result = null;
+        try {
+            result = deriveKey(password, salt, N, r, p, dkLen);
+            outcome = ScryptMetrics.Outcome.SUCCESS;
+            // Return an encoded representation of the scrypt password hash
+            return Base64.getEncoder().encodeToString(result);
+        } finally {
+            metrics.record(ScryptMetrics.Operation.HASH, outcome, N, r, p, System.nanoTime() - start);
+            Arrays.fill(password, (byte) 0);
+            if (result != null)
+                Arrays.fill(result, (byte) 0);
+        }
+    }
+
+    public static boolean verifyPassword(String rawPassword, PasswordCredentialModel credential) {
+        if (rawPassword == null)
+            throw new ScryptRuntimeException("Password can't be empty");
+
+        // Retrieve the stored encoded password
+        String storedEncodedPassword = credential.getPasswordSecretData().getValue();
+        ScryptEncodingUtils.ScryptParameters scryptParameters;
+        byte[] salt;
+        byte[] storedKey;
+        if (ScryptPhcFormat.isPhc(storedEncodedPassword)) {
+            // Parameters, salt and digest all come from the PHC string, parsed once
+            try {
+                ScryptPhcFormat.Hash phc = ScryptPhcFormat.parse(storedEncodedPassword);
+                scryptParameters = phc.getParameters();
+                salt = phc.getSalt();
+                storedKey = phc.getHash();
+            } catch (IllegalArgumentException e) {
+                LOG.errorf("There's something wrong with the stored password encoding, the PHC string is not valid.");
+                throw new ScryptRuntimeException("Something went wrong.", e);
+            }
+        } else {
+            // Retrieved the salt
+            salt = credential.getPasswordSecretData().getSalt();
+            // Extract all the stored parameters
+            MultivaluedHashMap<String, String> additionalParameters = credential.getPasswordCredentialData().getAdditionalParameters();
+            if (additionalParameters == null) {
+                LOG.errorf("There's something wrong with the stored password encoding, couldn't find the parameters.");
+                throw new ScryptRuntimeException("Something went wrong.");
+            }
+
+            scryptParameters = ScryptEncodingUtils.getScryptParameters(credential);
+
+            // Extract and decode the stored digest
+            String storedPasswordDigest = ScryptEncodingUtils.extractDigest(storedEncodedPassword);
+            if (storedPasswordDigest == null) {
+                LOG.errorf("There's something wrong with the stored password encoding, couldn't find the actual hash.");
+                throw new ScryptRuntimeException("Something went wrong.");
+            }
+            try {
+                storedKey = Base64.getDecoder().decode(storedPasswordDigest);
+            } catch (IllegalArgumentException e) {
+                LOG.errorf("There's something wrong with the stored password encoding, the hash is not valid Base64.");
+                throw new ScryptRuntimeException("Something went wrong.", e);
+            }
+        }
+
+        return verifyKey(rawPassword, salt, storedKey, scryptParameters);
+    }
+
+    /**
+     * Checks {@code rawPassword} against a raw scrypt key derived with the given
+     * salt and parameters, in constant time. {@code storedKey} is wiped
+     * afterwards.
+     */
+    public static boolean verifyKey(String rawPassword, byte[] salt, byte[] storedKey,
+            ScryptEncodingUtils.ScryptParameters scryptParameters) {
+        if (rawPassword == null)
+            throw new ScryptRuntimeException("Password can't be empty");
+
+        // Derive the key of the incoming password (according to stored password's parameters)
+        long start = System.nanoTime();
+        ScryptMetrics.Outcome outcome = ScryptMetrics.Outcome.ERROR;
+        byte[] password = rawPassword.getBytes(CHARSET);
+        byte[] attemptedKey = null;
+        try {
+            attemptedKey = deriveKey(
+                    password,
+                    salt,
+                    scryptParameters.getCost(),
+                    scryptParameters.getBlockSize(),
+                    scryptParameters.getParallellism(),
+                    scryptParameters.getHashLength());
+
+            // Compare the 2 keys using constant-time comparison
+            boolean samePassword = MessageDigest.isEqual(storedKey, attemptedKey);
+
+            LOG.debugf("Password match = %s", String.valueOf(samePassword));
+
+            outcome = samePassword ? ScryptMetrics.Outcome.SUCCESS : ScryptMetrics.Outcome.MISMATCH;
+            return samePassword;
+        } finally {
+            metrics.record(ScryptMetrics.Operation.VERIFY, outcome, scryptParameters.getCost(),
+                    scryptParameters.getBlockSize(), scryptParameters.getParallellism(), System.nanoTime() - start);
+            Arrays.fill(password, (byte) 0);
+            Arrays.fill(storedKey, (byte) 0);
+            if (attemptedKey != null)
+                Arrays.fill(attemptedKey, (byte) 0);
+        }
+    }
+
+    /**
+     * Derives the raw scrypt key, waiting for the admission controller first.
+     * Failures other than overload are logged and reported as a generic
+     * {@link ScryptRuntimeException}.
+     */
+    private static byte[] deriveKey(byte[] password, byte[] salt, int N, int r, int p, int dkLen) {
         LOG.debugf("Using the following Scrypt settings:");
         LOG.debugf("\tCPU/memory cost: %d", N);
         LOG.debugf("\tBlock Size: %d", r);
@@ -40,77 +265,64 @@ public class ScryptHelper {
 
         try {
             // Keep track of hashing runtime
-            long start = System.currentTimeMillis();
+            long start = System.nanoTime();
 
-            // Perform the hashing
-            byte[] result = SCrypt.generate(rawPassword.getBytes(CHARSET), salt, N, r, p, dkLen);
+            // Perform the hashing once enough of the working memory budget is available,
+            // on a hashing thread if those are enabled, unless it is shed while a peer has room
+            ScryptEngine scryptEngine = engine;
+            ScryptHashingExecutor executor = hashingExecutor;
+            ScryptClusterBudget budget = clusterBudget;
+            long memoryBytes = scryptEngine.workingMemoryBytes(N, r, p);
+            budget.acquire();
+            byte[] result;
+            try {
+                result = admissionController.execute(memoryBytes, () -> {
+                    long submitted = System.nanoTime();
+                    return executor.execute(() -> {
+                        if (executor.isEnabled()) {
+                            metrics.recordExecutorWait(System.nanoTime() - submitted);
+                        }
+                        IN_FLIGHT_MEMORY_BYTES.addAndGet(memoryBytes);
+                        long hashingStart = System.nanoTime();
+                        try {
+                            byte[] key = scryptEngine.generate(password, salt, N, r, p, dkLen);
+                            recordMemoryTraffic(ScryptEngine.memoryTrafficBytes(N, r, p), System.nanoTime() - hashingStart);
+                            return key;
+                        } finally {
+                            IN_FLIGHT_MEMORY_BYTES.addAndGet(-memoryBytes);
+                        }
+                    });
+                });
+            } finally {
+                budget.release();
+            }
 
             // Stop timing
-            long end = System.currentTimeMillis();
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
 
             // Print the hashing runtime for debug purposes
-            LOG.debugf("Hashing runtime was %d milliseconds (%d seconds).", end - start, (end - start) / 1000);
+            LOG.debugf("Hashing runtime was %d milliseconds (%d seconds).", elapsedMillis, elapsedMillis / 1000);
 
-            // Return an encoded representation of the scrypt password hash
-            return Base64.getEncoder().encodeToString(result);
+            return result;
+        } catch (ScryptOverloadedException e) {
+            throw e;
         } catch (Exception e) {
             LOG.errorf("Something went wrong while hashing the password, message = '%s'", e.getMessage());
         }
         throw new ScryptRuntimeException("Something went wrong while securing the password.");
     }
 
-    public static boolean verifyPassword(String rawPassword, PasswordCredentialModel credential) {
-        // Retrieve the stored encoded password
-        String storedEncodedPassword = credential.getPasswordSecretData().getValue();
-        // Retrieved the salt
-        byte[] salt = credential.getPasswordSecretData().getSalt();
-        // Extract all the stored parameters
-        MultivaluedHashMap<String, String> additionalParameters = credential.getPasswordCredentialData().getAdditionalParameters();
-        if (additionalParameters == null) {
-            LOG.errorf("There's something wrong with the stored password encoding, couldn't find the parameters.");
-            throw new ScryptRuntimeException("Something went wrong.");
-        }
-
-        ScryptEncodingUtils.ScryptParameters scryptParameters = ScryptEncodingUtils
-                .extractScryptParametersFromCredentials(storedEncodedPassword, additionalParameters);
-
-        // Extract the digest
-        String storedPasswordDigest = ScryptEncodingUtils.extractDigest(storedEncodedPassword);
-        if (storedPasswordDigest == null) {
-            LOG.errorf("There's something wrong with the stored password encoding, couldn't find the actual hash.");
-            throw new ScryptRuntimeException("Something went wrong.");
+    private static void recordMemoryTraffic(long bytes, long nanos) {
+        if (nanos <= 0) {
+            return;
         }
-
-        // Hash the incoming password (according to stored password's parameters)
-        String attemptedEncodedPassword = hashPassword(
-                rawPassword,
-                salt,
-                scryptParameters.getCost(),
-                scryptParameters.getBlockSize(),
-                scryptParameters.getParallellism(),
-                scryptParameters.getHashLength());
-
-        // Extract the digest of the attempted hashed password
-        String attemptedPasswordDigest = ScryptEncodingUtils.extractDigest(attemptedEncodedPassword);
-        if (attemptedPasswordDigest == null) {
-            LOG.errorf("There's something wrong with the attempted password encoding, couldn't find the actual hash.");
-            throw new ScryptRuntimeException("Something went wrong.");
-        }
-
-        // Compare the 2 digests using constant-time comparison
-        boolean samePassword = MessageDigest.isEqual(Strings.toByteArray(storedPasswordDigest),
-                Strings.toByteArray(attemptedPasswordDigest));
-
-        LOG.debugf("Password match = %s", String.valueOf(samePassword));
-
-        return samePassword;
+        MEMORY_TRAFFIC_BYTES.add(bytes);
+        HASHING_NANOS.add(nanos);
+        metrics.recordMemoryBandwidth(bytes * 1e9 / nanos);
     }
 
     public static byte[] getSalt(int saltLength) {
         LOG.debugf("Generating salt with length '%d'.", saltLength);
-        byte[] buffer = new byte[saltLength];
-        SecureRandom secureRandom = new SecureRandom();
-        secureRandom.nextBytes(buffer);
-        return buffer;
+        return saltGenerator.nextSalt(saltLength);
     }
 }
@@ -0,0 +1,240 @@
+package de.hangy.keycloak.utils;
+
+import de.hangy.keycloak.exceptions.ScryptOverloadedException;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.Cleaner;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of native (direct buffer) memory for scrypt V tables, so that large N
+ * does not need a large Java heap. All arenas allocated and not yet given up,
+ * whether in use or idle, count against {@code maxBytes}; an allocation that
+ * would exceed it fails with a {@link ScryptOverloadedException} rather than
+ * growing native memory further. Arenas are zeroed when they are returned.
+ * <p>
+ * When a larger arena does not fit, only as many idle arenas that are too small
+ * are given up as it needs, and only if that is enough; otherwise the pool is
+ * left as it was, so that hashes at the smaller N keep their arenas. Given-up
+ * arenas are freed explicitly where the JDK allows it. Elsewhere their native
+ * memory is only returned once they have been garbage collected, so their bytes
+ * stay reserved until a {@link Cleaner} sees them collected.
+ */
+public class ScryptOffHeapPool {
+    public static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+
+    private static final int[] ZEROS = new int[4096];
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private static final MethodHandle INVOKE_CLEANER = findInvokeCleaner();
+
+    private final long maxBytes;
+
+    private final ConcurrentLinkedDeque<Arena> free = new ConcurrentLinkedDeque<>();
+
+    private final AtomicLong reservedBytes = new AtomicLong();
+
+    private final AtomicLong releasingBytes = new AtomicLong();
+
+    public ScryptOffHeapPool() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    public ScryptOffHeapPool(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be > 0");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns an arena of at least {@code ints} ints, reusing an idle one if it is
+     * large enough.
+     *
+     * @throws ScryptOverloadedException if allocating it would exceed the cap
+     * @throws IllegalArgumentException  if it would not fit a single direct buffer
+     */
+    public Arena acquire(int ints) {
+        long bytes = 4L * ints;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Off-heap scrypt working memory is limited to 2 GiB per lane");
+        }
+        List<Arena> tooSmall = new ArrayList<>();
+        Arena arena;
+        while ((arena = free.pollFirst()) != null) {
+            if (arena.capacity() >= ints) {
+                tooSmall.forEach(free::offerLast);
+                return arena;
+            }
+            tooSmall.add(arena);
+        }
+        if (!tryReserve(bytes) && !(giveUp(tooSmall, bytes) && tryReserve(bytes))) {
+            tooSmall.forEach(free::offerLast);
+            throw new ScryptOverloadedException("Off-heap scrypt memory exhausted");
+        }
+        tooSmall.forEach(free::offerLast);
+        return allocate(bytes);
+    }
+
+    private boolean tryReserve(long bytes) {
+        long reserved;
+        do {
+            reserved = reservedBytes.get();
+            if (reserved + bytes > maxBytes) {
+                return false;
+            }
+        } while (!reservedBytes.compareAndSet(reserved, reserved + bytes));
+        return true;
+    }
+
+    /**
+     * Gives up the largest of the idle {@code candidates} until {@code bytes}
+     * more fit under the cap, removing them from the list. Gives up nothing if
+     * all of them together would not be enough.
+     *
+     * @return whether {@code bytes} fit now
+     */
+    private boolean giveUp(List<Arena> candidates, long bytes) {
+        long shortfall = reservedBytes.get() - releasingBytes.get() + bytes - maxBytes;
+        if (shortfall <= 0) {
+            // Enough is already waiting to be collected
+            return false;
+        }
+        long available = 0;
+        for (Arena candidate : candidates) {
+            available += candidate.sizeInBytes();
+        }
+        if (available < shortfall) {
+            return false;
+        }
+        candidates.sort(Comparator.comparingLong(Arena::sizeInBytes).reversed());
+        boolean freed = true;
+        while (shortfall > 0) {
+            Arena candidate = candidates.remove(0);
+            shortfall -= candidate.sizeInBytes();
+            freed &= free(candidate);
+        }
+        return freed;
+    }
+
+    /**
+     * @return whether the native memory was freed right away
+     */
+    private boolean free(Arena arena) {
+        long bytes = arena.sizeInBytes();
+        if (INVOKE_CLEANER != null) {
+            try {
+                INVOKE_CLEANER.invokeExact(arena.bytes);
+                reservedBytes.addAndGet(-bytes);
+                return true;
+            } catch (Throwable e) {
+                // Leave it to the garbage collector
+            }
+        }
+        releasingBytes.addAndGet(bytes);
+        CLEANER.register(arena.bytes, () -> {
+            releasingBytes.addAndGet(-bytes);
+            reservedBytes.addAndGet(-bytes);
+        });
+        return false;
+    }
+
+    private Arena allocate(long bytes) {
+        try {
+            return new Arena(ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder()));
+        } catch (OutOfMemoryError e) {
+            reservedBytes.addAndGet(-bytes);
+            throw new ScryptOverloadedException("Off-heap scrypt memory exhausted", e);
+        }
+    }
+
+    /**
+     * Zeroes the first {@code usedInts} ints of the arena and keeps it for reuse.
+     */
+    public void release(Arena arena, int usedInts) {
+        for (int i = 0; i < usedInts; i += ZEROS.length) {
+            arena.ints.put(i, ZEROS, 0, Math.min(ZEROS.length, usedInts - i));
+        }
+        free.offerFirst(arena);
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Native memory held by arenas, idle, in use or given up but not yet
+     * collected.
+     */
+    public long getReservedBytes() {
+        return reservedBytes.get();
+    }
+
+    /**
+     * Native memory of arenas that were given up and are waiting to be
+     * collected; it still counts against the cap. Always zero where arenas can
+     * be freed explicitly.
+     */
+    public long getReleasingBytes() {
+        return releasingBytes.get();
+    }
+
+    public long getPooledBytes() {
+        long bytes = 0;
+        for (Arena arena : free) {
+            bytes += arena.sizeInBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * {@code sun.misc.Unsafe#invokeCleaner}, which frees a direct buffer without
+     * waiting for the garbage collector, or {@code null} where the JDK does not
+     * offer it.
+     */
+    private static MethodHandle findInvokeCleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A direct buffer and its int view, the V table of one SMix invocation.
+     */
+    public static class Arena {
+        private final ByteBuffer bytes;
+
+        final IntBuffer ints;
+
+        Arena(ByteBuffer bytes) {
+            this.bytes = bytes;
+            this.ints = bytes.asIntBuffer();
+        }
+
+        public int capacity() {
+            return ints.capacity();
+        }
+
+        long sizeInBytes() {
+            return bytes.capacity();
+        }
+    }
+}
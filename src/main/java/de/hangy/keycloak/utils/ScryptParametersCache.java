@@ -0,0 +1,103 @@
+package de.hangy.keycloak.utils;
+
+import de.hangy.keycloak.exceptions.ScryptRuntimeException;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.keycloak.models.credential.PasswordCredentialModel;
+
+/**
+ * Bounded cache of the {@link ScryptEncodingUtils.ScryptParameters} stored with a
+ * credential, keyed by credential id. Only N, r and p are cached, and an entry is
+ * only used while the credential's serialised credential data is the one it was
+ * parsed from. The hash length is not part of the credential data, and a rehash
+ * keeps the credential id, so it is always taken from the stored digest itself.
+ */
+public class ScryptParametersCache {
+    public static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+    private final int maxEntries;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public ScryptParametersCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public ScryptParametersCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the credential's parameters, parsing them only when no current entry
+     * exists. Credentials without an id or serialised credential data are parsed
+     * every time.
+     */
+    public ScryptEncodingUtils.ScryptParameters get(PasswordCredentialModel credential) {
+        String id = credential.getId();
+        String credentialData = credential.getCredentialData();
+        String encodedPassword = credential.getPasswordSecretData().getValue();
+        if (id == null || credentialData == null || encodedPassword == null || maxEntries <= 0) {
+            return parse(credential);
+        }
+
+        Entry entry = entries.get(id);
+        if (entry != null && entry.credentialData.equals(credentialData)) {
+            int hashLength;
+            try {
+                hashLength = ScryptEncodingUtils.getDigestLength(encodedPassword);
+            } catch (IllegalArgumentException e) {
+                throw new ScryptRuntimeException(e.getMessage(), e);
+            }
+            return ScryptEncodingUtils.ScryptParameters.of(entry.cost, entry.blockSize, entry.parallelism, hashLength);
+        }
+
+        ScryptEncodingUtils.ScryptParameters parameters = parse(credential);
+        if (entries.size() >= maxEntries) {
+            evictOne();
+        }
+        entries.put(id, new Entry(credentialData, parameters));
+        return parameters;
+    }
+
+    public void invalidate(String credentialId) {
+        entries.remove(credentialId);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static ScryptEncodingUtils.ScryptParameters parse(PasswordCredentialModel credential) {
+        return ScryptEncodingUtils.extractScryptParametersFromCredentials(
+                credential.getPasswordSecretData().getValue(),
+                credential.getPasswordCredentialData().getAdditionalParameters());
+    }
+
+    private void evictOne() {
+        Iterator<String> keys = entries.keySet().iterator();
+        if (keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    private static final class Entry {
+        private final String credentialData;
+        private final int cost;
+        private final int blockSize;
+        private final int parallelism;
+
+        private Entry(String credentialData, ScryptEncodingUtils.ScryptParameters parameters) {
+            this.credentialData = credentialData;
+            this.cost = parameters.getCost();
+            this.blockSize = parameters.getBlockSize();
+            this.parallelism = parameters.getParallellism();
+        }
+    }
+}
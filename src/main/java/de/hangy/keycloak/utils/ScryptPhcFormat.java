@@ -0,0 +1,201 @@
+package de.hangy.keycloak.utils;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * PHC string format for scrypt hashes:
+ * {@code $scrypt$ln=<log2 N>,r=<r>,p=<p>$<salt>$<hash>}, with salt and hash in
+ * Base64 without padding. A credential stored this way carries everything
+ * needed to verify it in the secret data value, so no additional parameters
+ * are stored in the credential data.
+ * <p>
+ * Parsing works directly on the string in a single pass: no substrings, splits
+ * or regular expressions are created, and the salt and hash are decoded
+ * straight from their positions into the only arrays a verification needs.
+ */
+public final class ScryptPhcFormat {
+    public static final String PREFIX = "$scrypt$";
+
+    private static final int[] DECODE = new int[128];
+
+    static {
+        Arrays.fill(DECODE, -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            DECODE[alphabet.charAt(i)] = i;
+        }
+    }
+
+    private ScryptPhcFormat() {
+        // noop
+    }
+
+    public static boolean isPhc(String value) {
+        return value != null && value.startsWith(PREFIX);
+    }
+
+    /**
+     * @param base64Hash the hash as returned by {@link ScryptHelper#hashPassword},
+     *                   padded or not
+     */
+    public static String encode(int N, int r, int p, byte[] salt, String base64Hash) {
+        if (N <= 1 || Integer.bitCount(N) != 1) {
+            throw new IllegalArgumentException("Cost parameter N must be > 1 and a power of 2");
+        }
+        int hashEnd = base64Hash.length();
+        while (hashEnd > 0 && base64Hash.charAt(hashEnd - 1) == '=') {
+            hashEnd--;
+        }
+        StringBuilder phc = new StringBuilder(32 + (salt.length + 2) / 3 * 4 + hashEnd);
+        phc.append(PREFIX)
+                .append("ln=").append(Integer.numberOfTrailingZeros(N))
+                .append(",r=").append(r)
+                .append(",p=").append(p)
+                .append('$').append(Base64.getEncoder().withoutPadding().encodeToString(salt))
+                .append('$').append(base64Hash, 0, hashEnd);
+        return phc.toString();
+    }
+
+    /**
+     * Returns N, r, p, the hash length and the salt length of a PHC string.
+     *
+     * @throws IllegalArgumentException if the string is not a well-formed scrypt
+     *                                  PHC string
+     */
+    public static ScryptEncodingUtils.ScryptParameters parseParameters(String value) {
+        Layout layout = new Layout(value);
+        return ScryptEncodingUtils.ScryptParameters.of(1 << layout.ln, layout.r, layout.p,
+                decodedLength(value, layout.hashStart, value.length()),
+                decodedLength(value, layout.saltStart, layout.hashStart - 1));
+    }
+
+    /**
+     * Returns N, r, p, the salt and the hash of a PHC string, read in one pass.
+     *
+     * @throws IllegalArgumentException if the string is not a well-formed scrypt
+     *                                  PHC string
+     */
+    public static Hash parse(String value) {
+        Layout layout = new Layout(value);
+        byte[] salt = decode(value, layout.saltStart, layout.hashStart - 1);
+        byte[] hash = decode(value, layout.hashStart, value.length());
+        return new Hash(ScryptEncodingUtils.ScryptParameters.of(1 << layout.ln, layout.r, layout.p, hash.length,
+                salt.length), salt, hash);
+    }
+
+    private static int decodedLength(String value, int start, int end) {
+        while (end > start && value.charAt(end - 1) == '=') {
+            end--;
+        }
+        int length = end - start;
+        if (length % 4 == 1) {
+            throw new IllegalArgumentException("Invalid Base64 length in scrypt PHC string");
+        }
+        return length / 4 * 3 + Math.max(0, length % 4 - 1);
+    }
+
+    private static byte[] decode(String value, int start, int end) {
+        while (end > start && value.charAt(end - 1) == '=') {
+            end--;
+        }
+        byte[] out = new byte[decodedLength(value, start, end)];
+        int bits = 0;
+        int buffer = 0;
+        int o = 0;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            int d = c < 128 ? DECODE[c] : -1;
+            if (d < 0) {
+                throw new IllegalArgumentException("Invalid Base64 character in scrypt PHC string");
+            }
+            buffer = (buffer << 6) | d;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                out[o++] = (byte) (buffer >> bits);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * A parsed PHC string.
+     */
+    public static final class Hash {
+        private final ScryptEncodingUtils.ScryptParameters parameters;
+        private final byte[] salt;
+        private final byte[] hash;
+
+        private Hash(ScryptEncodingUtils.ScryptParameters parameters, byte[] salt, byte[] hash) {
+            this.parameters = parameters;
+            this.salt = salt;
+            this.hash = hash;
+        }
+
+        public ScryptEncodingUtils.ScryptParameters getParameters() {
+            return parameters;
+        }
+
+        public byte[] getSalt() {
+            return salt;
+        }
+
+        public byte[] getHash() {
+            return hash;
+        }
+    }
+
+    /**
+     * Positions and numeric fields of a PHC string.
+     */
+    private static final class Layout {
+        final int ln;
+        final int r;
+        final int p;
+        final int saltStart;
+        final int hashStart;
+
+        private int pos;
+
+        Layout(String value) {
+            if (!isPhc(value)) {
+                throw new IllegalArgumentException("Not a scrypt PHC string");
+            }
+            pos = PREFIX.length();
+            ln = field(value, "ln=", ',');
+            r = field(value, "r=", ',');
+            p = field(value, "p=", '$');
+            if (ln < 1 || ln > 30) {
+                throw new IllegalArgumentException("Cost exponent ln must be between 1 and 30");
+            }
+            saltStart = pos;
+            int saltEnd = value.indexOf('$', saltStart);
+            if (saltEnd < 0 || saltEnd == saltStart || saltEnd == value.length() - 1) {
+                throw new IllegalArgumentException("Missing salt or hash in scrypt PHC string");
+            }
+            hashStart = saltEnd + 1;
+        }
+
+        private int field(String value, String name, char terminator) {
+            if (!value.startsWith(name, pos)) {
+                throw new IllegalArgumentException("Expected '" + name + "' in scrypt PHC string");
+            }
+            pos += name.length();
+            int result = 0;
+            int digits = 0;
+            while (pos < value.length() && value.charAt(pos) != terminator) {
+                char c = value.charAt(pos++);
+                if (c < '0' || c > '9' || ++digits > 9) {
+                    throw new IllegalArgumentException("Invalid number for '" + name + "' in scrypt PHC string");
+                }
+                result = result * 10 + (c - '0');
+            }
+            if (digits == 0 || pos == value.length()) {
+                throw new IllegalArgumentException("Invalid number for '" + name + "' in scrypt PHC string");
+            }
+            pos++;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package de.hangy.keycloak.utils;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Salt source shared by all hash operations. Salts come from a fixed number of
+ * pre-seeded {@link SecureRandom} stripes picked by thread, so concurrent
+ * registrations neither create and seed a generator per salt nor all contend on
+ * one. Stripes are replaced by freshly seeded generators on a background thread,
+ * and can optionally serve salts from a prefilled block of random bytes.
+ */
+public class ScryptSaltGenerator implements AutoCloseable {
+    private static final Logger LOG = Logger.getLogger(ScryptSaltGenerator.class);
+
+    public static final int DEFAULT_STRIPES = Integer.highestOneBit(
+            Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+    public static final long DEFAULT_RESEED_INTERVAL_SECONDS = 3600;
+
+    public static final int DEFAULT_PREFILL_BYTES = 0;
+
+    private final Stripe[] stripes;
+
+    private final int mask;
+
+    private final int prefillBytes;
+
+    private final ScheduledExecutorService reseeder;
+
+    private final AtomicLong saltsGenerated = new AtomicLong();
+
+    private final AtomicLong bytesGenerated = new AtomicLong();
+
+    private final AtomicLong prefills = new AtomicLong();
+
+    private final AtomicLong reseeds = new AtomicLong();
+
+    public ScryptSaltGenerator() {
+        this(DEFAULT_STRIPES, 0, DEFAULT_PREFILL_BYTES);
+    }
+
+    /**
+     * @param stripes               number of generators, rounded up to a power of
+     *                              two
+     * @param reseedIntervalSeconds how often each stripe is replaced by a freshly
+     *                              seeded generator; {@code 0} disables reseeding
+     * @param prefillBytes          size of the per-stripe block of random bytes
+     *                              salts are cut from; {@code 0} draws every salt
+     *                              from the generator directly
+     */
+    public ScryptSaltGenerator(int stripes, long reseedIntervalSeconds, int prefillBytes) {
+        int count = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.stripes = new Stripe[count];
+        this.mask = count - 1;
+        this.prefillBytes = Math.max(0, prefillBytes);
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = new Stripe(newSeededRandom(), this.prefillBytes);
+        }
+        if (reseedIntervalSeconds > 0) {
+            reseeder = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "scrypt-salt-reseeder");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reseeder.scheduleWithFixedDelay(this::reseed, reseedIntervalSeconds, reseedIntervalSeconds,
+                    TimeUnit.SECONDS);
+        } else {
+            reseeder = null;
+        }
+    }
+
+    public byte[] nextSalt(int saltLength) {
+        byte[] salt = new byte[saltLength];
+        Stripe stripe = stripes[(int) Thread.currentThread().getId() & mask];
+        synchronized (stripe) {
+            if (prefillBytes >= saltLength) {
+                if (stripe.position + saltLength > prefillBytes) {
+                    stripe.random.nextBytes(stripe.buffer);
+                    stripe.position = 0;
+                    prefills.incrementAndGet();
+                }
+                System.arraycopy(stripe.buffer, stripe.position, salt, 0, saltLength);
+                Arrays.fill(stripe.buffer, stripe.position, stripe.position + saltLength, (byte) 0);
+                stripe.position += saltLength;
+            } else {
+                stripe.random.nextBytes(salt);
+            }
+        }
+        saltsGenerated.incrementAndGet();
+        bytesGenerated.addAndGet(saltLength);
+        return salt;
+    }
+
+    /**
+     * Replaces every stripe's generator with a freshly seeded one. Seeding happens
+     * before the stripe lock is taken, so callers never wait on the entropy source.
+     */
+    public void reseed() {
+        for (Stripe stripe : stripes) {
+            try {
+                SecureRandom random = newSeededRandom();
+                synchronized (stripe) {
+                    stripe.random = random;
+                    // Unused prefilled bytes came from the old generator
+                    stripe.position = prefillBytes;
+                }
+                reseeds.incrementAndGet();
+            } catch (RuntimeException e) {
+                LOG.warnf("Could not reseed salt generator, keeping the current one: %s", e.getMessage());
+            }
+        }
+    }
+
+    public int getStripes() {
+        return stripes.length;
+    }
+
+    public int getPrefillBytes() {
+        return prefillBytes;
+    }
+
+    public long getSaltsGenerated() {
+        return saltsGenerated.get();
+    }
+
+    public long getBytesGenerated() {
+        return bytesGenerated.get();
+    }
+
+    public long getPrefills() {
+        return prefills.get();
+    }
+
+    public long getReseeds() {
+        return reseeds.get();
+    }
+
+    @Override
+    public void close() {
+        if (reseeder != null) {
+            reseeder.shutdownNow();
+        }
+    }
+
+    private static SecureRandom newSeededRandom() {
+        SecureRandom random;
+        try {
+            random = SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            random = new SecureRandom();
+        }
+        // Force the (possibly blocking) self-seeding now rather than on first use
+        random.nextBytes(new byte[1]);
+        return random;
+    }
+
+    private static final class Stripe {
+        private SecureRandom random;
+        private final byte[] buffer;
+        private int position;
+
+        private Stripe(SecureRandom random, int prefillBytes) {
+            this.random = random;
+            this.buffer = new byte[prefillBytes];
+            this.position = prefillBytes;
+        }
+    }
+}
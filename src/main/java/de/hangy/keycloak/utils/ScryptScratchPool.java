@@ -0,0 +1,238 @@
+package de.hangy.keycloak.utils;
+
+import de.hangy.keycloak.concurrent.ScryptAdmissionController;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of scrypt ROMix working memory. Arenas are handed out to one hash
+ * at a time, zeroed when they are returned and only retained while the pool holds
+ * fewer than {@code maxPooledArenas} of them and the arena is no larger than
+ * {@code maxArenaBytes}; anything else is left to the garbage collector.
+ * <p>
+ * With worker arenas enabled, a thread that is an {@link ArenaOwner} (the
+ * dedicated hashing threads) keeps its arena for itself instead of returning it
+ * to the shared pool, so its hashes neither contend on the pool nor allocate.
+ * Worker arenas do not count against {@code maxPooledArenas}.
+ * <p>
+ * Arenas only ever grow, so everything the pool retains stays on the heap for
+ * the life of the node. By default {@code maxArenaBytes} is therefore the
+ * admission memory budget shared out over the arenas the pool can retain.
+ */
+public class ScryptScratchPool {
+    public static final int DEFAULT_MAX_POOLED_ARENAS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Upper bound on {@code maxArenaBytes}, whatever the memory budget.
+     */
+    public static final long DEFAULT_MAX_ARENA_BYTES = 256L * 1024 * 1024;
+
+    private final int maxPooledArenas;
+
+    private final long maxArenaBytes;
+
+    private final ConcurrentLinkedDeque<Scratch> free = new ConcurrentLinkedDeque<>();
+
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    private final boolean workerArenas;
+
+    private final AtomicInteger ownedArenas = new AtomicInteger();
+
+    private final AtomicLong ownedBytes = new AtomicLong();
+
+    public ScryptScratchPool() {
+        this(DEFAULT_MAX_POOLED_ARENAS, maxArenaBytesWithin(ScryptAdmissionController.DEFAULT_MEMORY_BUDGET_BYTES,
+                DEFAULT_MAX_POOLED_ARENAS));
+    }
+
+    public ScryptScratchPool(int maxPooledArenas, long maxArenaBytes) {
+        this(maxPooledArenas, maxArenaBytes, false);
+    }
+
+    /**
+     * @param workerArenas whether {@link ArenaOwner} threads keep their own
+     *                     arena
+     */
+    public ScryptScratchPool(int maxPooledArenas, long maxArenaBytes, boolean workerArenas) {
+        if (maxPooledArenas < 0) {
+            throw new IllegalArgumentException("maxPooledArenas must be >= 0");
+        }
+        this.maxPooledArenas = maxPooledArenas;
+        this.maxArenaBytes = maxArenaBytes;
+        this.workerArenas = workerArenas;
+    }
+
+    /**
+     * The largest arena that may be retained so that {@code arenas} idle arenas
+     * together stay within {@code memoryBudgetBytes}, capped at
+     * {@link #DEFAULT_MAX_ARENA_BYTES}.
+     */
+    public static long maxArenaBytesWithin(long memoryBudgetBytes, int arenas) {
+        return Math.min(DEFAULT_MAX_ARENA_BYTES, memoryBudgetBytes / Math.max(arenas, 1));
+    }
+
+    /**
+     * Returns an arena whose V table holds at least {@code vInts} ints and whose
+     * block buffers hold at least {@code blockInts} ints.
+     */
+    public Scratch acquire(int vInts, int blockInts) {
+        ArenaOwner owner = currentOwner();
+        if (owner != null && owner.getArena() != null) {
+            Scratch own = owner.getArena();
+            owner.setArena(null);
+            ownedArenas.decrementAndGet();
+            ownedBytes.addAndGet(-own.sizeInBytes());
+            own.ensureCapacity(vInts, blockInts);
+            return own;
+        }
+        Scratch scratch = free.pollFirst();
+        if (scratch == null) {
+            return new Scratch(vInts, blockInts);
+        }
+        pooled.decrementAndGet();
+        scratch.ensureCapacity(vInts, blockInts);
+        return scratch;
+    }
+
+    /**
+     * Zeroes the used part of the arena and keeps it for reuse if the pool has
+     * room for it.
+     */
+    public void release(Scratch scratch) {
+        scratch.wipe();
+        if (scratch.sizeInBytes() > maxArenaBytes) {
+            return;
+        }
+        ArenaOwner owner = currentOwner();
+        if (owner != null && owner.getArena() == null) {
+            keep(owner, scratch);
+            return;
+        }
+        if (pooled.incrementAndGet() > maxPooledArenas) {
+            pooled.decrementAndGet();
+            return;
+        }
+        free.offerFirst(scratch);
+    }
+
+    /**
+     * Allocates an arena of the given size for the calling thread to keep, so
+     * that its first hash does not pay for the allocation. Does nothing unless
+     * worker arenas are enabled and the thread is an {@link ArenaOwner} without
+     * an arena.
+     *
+     * @return whether an arena was allocated
+     */
+    public boolean prewarm(int vInts, int blockInts) {
+        ArenaOwner owner = currentOwner();
+        if (owner == null || owner.getArena() != null || 4L * (vInts + 2L * blockInts + 16) > maxArenaBytes) {
+            return false;
+        }
+        keep(owner, new Scratch(vInts, blockInts));
+        return true;
+    }
+
+    public boolean isWorkerArenas() {
+        return workerArenas;
+    }
+
+    public int getPooledArenas() {
+        return pooled.get();
+    }
+
+    /**
+     * Idle arenas kept by the threads that own them.
+     */
+    public int getWorkerArenas() {
+        return ownedArenas.get();
+    }
+
+    public long getPooledBytes() {
+        long bytes = ownedBytes.get();
+        for (Scratch scratch : free) {
+            bytes += scratch.sizeInBytes();
+        }
+        return bytes;
+    }
+
+    public int getMaxPooledArenas() {
+        return maxPooledArenas;
+    }
+
+    public long getMaxArenaBytes() {
+        return maxArenaBytes;
+    }
+
+    private ArenaOwner currentOwner() {
+        if (!workerArenas) {
+            return null;
+        }
+        Thread thread = Thread.currentThread();
+        return thread instanceof ArenaOwner ? (ArenaOwner) thread : null;
+    }
+
+    private void keep(ArenaOwner owner, Scratch scratch) {
+        owner.setArena(scratch);
+        ownedArenas.incrementAndGet();
+        ownedBytes.addAndGet(scratch.sizeInBytes());
+    }
+
+    /**
+     * A thread that can hold an arena of its own. Only the owning thread reads
+     * or writes its arena.
+     */
+    public interface ArenaOwner {
+        Scratch getArena();
+
+        void setArena(Scratch arena);
+    }
+
+    /**
+     * Working memory of a single SMix invocation: the V table, the two
+     * alternating block buffers X/Y and the 64-byte Salsa20 state.
+     */
+    public static class Scratch {
+        int[] v;
+        int[] x;
+        int[] y;
+        final int[] salsa = new int[16];
+
+        private int usedVInts;
+        private int usedBlockInts;
+
+        Scratch(int vInts, int blockInts) {
+            v = new int[vInts];
+            x = new int[blockInts];
+            y = new int[blockInts];
+            usedVInts = vInts;
+            usedBlockInts = blockInts;
+        }
+
+        void ensureCapacity(int vInts, int blockInts) {
+            if (v.length < vInts) {
+                v = new int[vInts];
+            }
+            if (x.length < blockInts) {
+                x = new int[blockInts];
+                y = new int[blockInts];
+            }
+            usedVInts = vInts;
+            usedBlockInts = blockInts;
+        }
+
+        void wipe() {
+            Arrays.fill(v, 0, usedVInts, 0);
+            Arrays.fill(x, 0, usedBlockInts, 0);
+            Arrays.fill(y, 0, usedBlockInts, 0);
+            Arrays.fill(salsa, 0);
+        }
+
+        long sizeInBytes() {
+            return 4L * (v.length + x.length + y.length + salsa.length);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package de.hangy.keycloak.utils;
+
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Runtime lookup of the optional {@code VectorScryptEngine}. That engine is
+ * compiled from {@code src/vector/java} only with the {@code vector} Maven
+ * profile, because {@code jdk.incubator.vector} is an incubator module on Java
+ * 17, and it can only be loaded when the JVM was started with
+ * {@code --add-modules jdk.incubator.vector}. Everything here goes through
+ * reflection so that the main code neither links against the incubator module
+ * nor against the engine class.
+ */
+public final class ScryptVectorSupport {
+    static final String ENGINE_CLASS = "de.hangy.keycloak.utils.VectorScryptEngine";
+
+    static final String VECTOR_MODULE = "jdk.incubator.vector";
+
+    private ScryptVectorSupport() {
+    }
+
+    /**
+     * Why the vector engine cannot be used on this JVM, or {@code null} if it
+     * can.
+     */
+    public static String unavailableReason() {
+        if (ModuleLayer.boot().findModule(VECTOR_MODULE).isEmpty()) {
+            return "the JVM was not started with --add-modules " + VECTOR_MODULE;
+        }
+        Class<?> engineClass;
+        try {
+            engineClass = Class.forName(ENGINE_CLASS);
+        } catch (ClassNotFoundException | LinkageError e) {
+            return "the provider was built without the 'vector' profile";
+        }
+        try {
+            if (!(Boolean) engineClass.getMethod("isSupported").invoke(null)) {
+                return "the CPU has no 128-bit integer vectors";
+            }
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return "the vector engine failed to initialise: " + e;
+        }
+        return null;
+    }
+
+    /**
+     * Creates the vector engine.
+     *
+     * @throws IllegalStateException if {@link #unavailableReason()} is not
+     *                               {@code null}
+     */
+    public static ScryptEngine createEngine(ScryptScratchPool scratchPool, int laneThreads) {
+        String reason = unavailableReason();
+        if (reason != null) {
+            throw new IllegalStateException("Vectorised scrypt is unavailable: " + reason);
+        }
+        try {
+            return (ScryptEngine) Class.forName(ENGINE_CLASS)
+                    .getConstructor(ScryptScratchPool.class, int.class)
+                    .newInstance(scratchPool, laneThreads);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Vectorised scrypt engine could not be created", e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Vectorised scrypt engine could not be created", e);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package de.hangy.keycloak.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.keycloak.models.credential.PasswordCredentialModel;
+
+/**
+ * Bounded, short-lived cache of successful password verifications, so that a
+ * client repeating the same direct grant does not pay for a full scrypt hash
+ * every time. Entries are keyed by credential id and hold only an HMAC, under a
+ * random per-node key, of the credential's stored data together with the
+ * password; the plaintext is never kept. Because the stored data is part of the
+ * MAC, an entry stops matching as soon as the credential is updated.
+ * <p>
+ * When the cache is full a few entries are sampled and the first expired one,
+ * or else the one closest to expiry, is evicted.
+ */
+public class ScryptVerificationCache {
+    public static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+    public static final long DEFAULT_TTL_SECONDS = 60;
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private static final int EVICTION_SAMPLE = 16;
+
+    private final int maxEntries;
+
+    private final long ttlNanos;
+
+    private final LongSupplier nanoClock;
+
+    private final SecretKeySpec key;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder expirations = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    public ScryptVerificationCache(int maxEntries, long ttlSeconds) {
+        this(maxEntries, ttlSeconds, System::nanoTime);
+    }
+
+    ScryptVerificationCache(int maxEntries, long ttlSeconds, LongSupplier nanoClock) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be >= 1");
+        }
+        if (ttlSeconds < 1) {
+            throw new IllegalArgumentException("ttlSeconds must be >= 1");
+        }
+        this.maxEntries = maxEntries;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.nanoClock = nanoClock;
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        this.key = new SecretKeySpec(secret, MAC_ALGORITHM);
+    }
+
+    /**
+     * Whether {@code rawPassword} was verified against this very credential
+     * within the TTL.
+     */
+    public boolean contains(PasswordCredentialModel credential, String rawPassword) {
+        String id = credential.getId();
+        Entry entry = id == null ? null : entries.get(id);
+        if (entry == null) {
+            misses.increment();
+            return false;
+        }
+        if (nanoClock.getAsLong() - entry.expiresAtNanos >= 0) {
+            if (entries.remove(id, entry)) {
+                expirations.increment();
+            }
+            misses.increment();
+            return false;
+        }
+        byte[] mac = mac(credential, rawPassword);
+        if (mac == null || !MessageDigest.isEqual(entry.mac, mac)) {
+            misses.increment();
+            return false;
+        }
+        hits.increment();
+        return true;
+    }
+
+    /**
+     * Remembers a successful verification of {@code rawPassword} against the
+     * credential. Credentials without an id or stored data are not cached.
+     */
+    public void put(PasswordCredentialModel credential, String rawPassword) {
+        String id = credential.getId();
+        byte[] mac = id == null ? null : mac(credential, rawPassword);
+        if (mac == null) {
+            return;
+        }
+        if (entries.size() >= maxEntries && !entries.containsKey(id)) {
+            evictOne();
+        }
+        entries.put(id, new Entry(mac, nanoClock.getAsLong() + ttlNanos));
+    }
+
+    public void invalidate(String credentialId) {
+        entries.remove(credentialId);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getTtlSeconds() {
+        return TimeUnit.NANOSECONDS.toSeconds(ttlNanos);
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Entries dropped because their TTL had passed.
+     */
+    public long getExpirationCount() {
+        return expirations.sum();
+    }
+
+    /**
+     * Entries dropped before their TTL because the cache was full.
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    private byte[] mac(PasswordCredentialModel credential, String rawPassword) {
+        String credentialData = credential.getCredentialData();
+        String secretData = credential.getSecretData();
+        if (credentialData == null || secretData == null || rawPassword == null) {
+            return null;
+        }
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+            update(mac, credential.getId());
+            update(mac, credentialData);
+            update(mac, secretData);
+            update(mac, rawPassword);
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC_ALGORITHM + " is not available", e);
+        }
+    }
+
+    private static void update(Mac mac, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        // Length-prefixed so that field boundaries cannot be shifted
+        mac.update((byte) (bytes.length >>> 24));
+        mac.update((byte) (bytes.length >>> 16));
+        mac.update((byte) (bytes.length >>> 8));
+        mac.update((byte) bytes.length);
+        mac.update(bytes);
+    }
+
+    private void evictOne() {
+        long now = nanoClock.getAsLong();
+        Map.Entry<String, Entry> victim = null;
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        for (int i = 0; i < EVICTION_SAMPLE && iterator.hasNext(); i++) {
+            Map.Entry<String, Entry> candidate = iterator.next();
+            if (now - candidate.getValue().expiresAtNanos >= 0) {
+                if (entries.remove(candidate.getKey(), candidate.getValue())) {
+                    expirations.increment();
+                }
+                return;
+            }
+            if (victim == null || candidate.getValue().expiresAtNanos - victim.getValue().expiresAtNanos < 0) {
+                victim = candidate;
+            }
+        }
+        if (victim != null && entries.remove(victim.getKey(), victim.getValue())) {
+            evictions.increment();
+        }
+    }
+
+    private static final class Entry {
+        private final byte[] mac;
+        private final long expiresAtNanos;
+
+        private Entry(byte[] mac, long expiresAtNanos) {
+            this.mac = mac;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+}
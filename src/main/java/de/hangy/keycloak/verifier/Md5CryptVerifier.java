@@ -0,0 +1,113 @@
+package de.hangy.keycloak.verifier;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.credential.PasswordCredentialModel;
+
+/**
+ * FreeBSD MD5-crypt hashes ({@code $1$salt$hash}), as produced by Perl's
+ * {@code Crypt::PasswdMD5::unix_md5_crypt} for the oldest Open Food Facts
+ * accounts. MD5-crypt is weak; these credentials are only ever verified, and
+ * rehashed with scrypt after the next successful login.
+ */
+public class Md5CryptVerifier implements ScryptCredentialVerifier {
+    private static final Logger LOG = Logger.getLogger(Md5CryptVerifier.class);
+
+    public static final String FORMAT = "md5-crypt";
+
+    private static final String MAGIC = "$1$";
+
+    private static final char[] ITOA64 = "./0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz"
+            .toCharArray();
+
+    @Override
+    public String getFormat() {
+        return FORMAT;
+    }
+
+    @Override
+    public boolean matches(String storedValue, PasswordCredentialModel credential) {
+        return storedValue != null && storedValue.startsWith(MAGIC);
+    }
+
+    @Override
+    public boolean verify(String rawPassword, String storedValue, PasswordCredentialModel credential) {
+        int saltEnd = storedValue.indexOf('$', MAGIC.length());
+        if (saltEnd < 0 || saltEnd - MAGIC.length() > 8 || storedValue.length() != saltEnd + 23) {
+            LOG.warnf("Stored %s credential %s is malformed.", FORMAT, credential.getId());
+            return false;
+        }
+        String salt = storedValue.substring(MAGIC.length(), saltEnd);
+        byte[] password = rawPassword.getBytes(StandardCharsets.UTF_8);
+        try {
+            byte[] expected = storedValue.getBytes(StandardCharsets.US_ASCII);
+            byte[] actual = crypt(password, salt).getBytes(StandardCharsets.US_ASCII);
+            return MessageDigest.isEqual(expected, actual);
+        } finally {
+            Arrays.fill(password, (byte) 0);
+        }
+    }
+
+    static String crypt(byte[] password, String salt) {
+        byte[] saltBytes = salt.getBytes(StandardCharsets.UTF_8);
+        MessageDigest md5 = md5();
+
+        md5.update(password);
+        md5.update(saltBytes);
+        md5.update(password);
+        byte[] alternate = md5.digest();
+
+        md5.update(password);
+        md5.update(MAGIC.getBytes(StandardCharsets.US_ASCII));
+        md5.update(saltBytes);
+        for (int remaining = password.length; remaining > 0; remaining -= 16) {
+            md5.update(alternate, 0, Math.min(remaining, 16));
+        }
+        for (int i = password.length; i != 0; i >>>= 1) {
+            md5.update((i & 1) != 0 ? 0 : password.length == 0 ? 0 : password[0]);
+        }
+        byte[] digest = md5.digest();
+
+        for (int round = 0; round < 1000; round++) {
+            md5.update((round & 1) != 0 ? password : digest);
+            if (round % 3 != 0) {
+                md5.update(saltBytes);
+            }
+            if (round % 7 != 0) {
+                md5.update(password);
+            }
+            md5.update((round & 1) != 0 ? digest : password);
+            digest = md5.digest();
+        }
+
+        StringBuilder out = new StringBuilder(MAGIC.length() + salt.length() + 23);
+        out.append(MAGIC).append(salt).append('$');
+        encode(out, digest[0], digest[6], digest[12], 4);
+        encode(out, digest[1], digest[7], digest[13], 4);
+        encode(out, digest[2], digest[8], digest[14], 4);
+        encode(out, digest[3], digest[9], digest[15], 4);
+        encode(out, digest[4], digest[10], digest[5], 4);
+        encode(out, (byte) 0, (byte) 0, digest[11], 2);
+        return out.toString();
+    }
+
+    private static void encode(StringBuilder out, byte high, byte middle, byte low, int chars) {
+        int value = (high & 0xff) << 16 | (middle & 0xff) << 8 | (low & 0xff);
+        for (int i = 0; i < chars; i++) {
+            out.append(ITOA64[value & 0x3f]);
+            value >>>= 6;
+        }
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+}
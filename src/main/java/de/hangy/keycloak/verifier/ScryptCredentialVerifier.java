@@ -0,0 +1,42 @@
+package de.hangy.keycloak.verifier;
+
+import org.keycloak.models.credential.PasswordCredentialModel;
+
+/**
+ * Checks passwords against one stored hash format. The
+ * {@link ScryptVerifierRegistry} asks each verifier in turn whether it
+ * {@link #matches} a credential and hands the credential to the first one that
+ * does, so {@code matches} must be cheap (a prefix test, typically) and must not
+ * throw.
+ * <p>
+ * Additional verifiers can be added by listing them in
+ * {@code META-INF/services/de.hangy.keycloak.verifier.ScryptCredentialVerifier}.
+ */
+public interface ScryptCredentialVerifier {
+
+    /**
+     * Short name of the format, for logs and provider info.
+     */
+    String getFormat();
+
+    /**
+     * Whether {@code storedValue}, the credential's stored password value, is in
+     * this verifier's format.
+     */
+    boolean matches(String storedValue, PasswordCredentialModel credential);
+
+    /**
+     * Whether {@code rawPassword} matches the stored credential. Malformed
+     * credentials do not match.
+     */
+    boolean verify(String rawPassword, String storedValue, PasswordCredentialModel credential);
+
+    /**
+     * Whether credentials in this format should be rehashed with the configured
+     * scrypt parameters after the next successful login. Only the provider's own
+     * scrypt formats are not legacy.
+     */
+    default boolean isLegacy() {
+        return true;
+    }
+}
@@ -0,0 +1,58 @@
+package de.hangy.keycloak.verifier;
+
+import de.hangy.keycloak.utils.ScryptEncodingUtils;
+import de.hangy.keycloak.utils.ScryptEngine;
+import de.hangy.keycloak.utils.ScryptHelper;
+
+import java.util.Base64;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.credential.PasswordCredentialModel;
+
+/**
+ * Scrypt hashes stored verbatim in the {@code SCRYPT:N:r:p:salt:hash} form
+ * written by Perl's {@code Crypt::ScryptKDF}, which the legacy Open Food Facts
+ * accounts use, with salt and hash Base64-encoded.
+ */
+public class ScryptKdfStringVerifier implements ScryptCredentialVerifier {
+    private static final Logger LOG = Logger.getLogger(ScryptKdfStringVerifier.class);
+
+    public static final String FORMAT = "scrypt-kdf";
+
+    private static final String PREFIX = "SCRYPT:";
+
+    @Override
+    public String getFormat() {
+        return FORMAT;
+    }
+
+    @Override
+    public boolean matches(String storedValue, PasswordCredentialModel credential) {
+        return storedValue != null && storedValue.startsWith(PREFIX);
+    }
+
+    @Override
+    public boolean verify(String rawPassword, String storedValue, PasswordCredentialModel credential) {
+        String[] parts = storedValue.split(":", -1);
+        if (parts.length != 6) {
+            LOG.warnf("Stored %s credential %s is malformed.", FORMAT, credential.getId());
+            return false;
+        }
+        ScryptEncodingUtils.ScryptParameters parameters;
+        byte[] salt;
+        byte[] key;
+        try {
+            salt = Base64.getDecoder().decode(parts[4]);
+            key = Base64.getDecoder().decode(parts[5]);
+            int cost = Integer.parseInt(parts[1]);
+            int blockSize = Integer.parseInt(parts[2]);
+            int parallelism = Integer.parseInt(parts[3]);
+            ScryptEngine.validateParameters(cost, blockSize, parallelism, key.length);
+            parameters = ScryptEncodingUtils.ScryptParameters.of(cost, blockSize, parallelism, key.length, salt.length);
+        } catch (IllegalArgumentException e) {
+            LOG.warnf("Stored %s credential %s is malformed: %s", FORMAT, credential.getId(), e.getMessage());
+            return false;
+        }
+        return ScryptHelper.verifyKey(rawPassword, salt, key, parameters);
+    }
+}
@@ -0,0 +1,35 @@
+package de.hangy.keycloak.verifier;
+
+import de.hangy.keycloak.utils.ScryptHelper;
+
+import org.keycloak.models.credential.PasswordCredentialModel;
+
+/**
+ * The provider's own formats: a Base64 digest with N/r/p in the credential
+ * data, or a {@link de.hangy.keycloak.utils.ScryptPhcFormat PHC string}. Used
+ * for every credential no other verifier claims.
+ */
+public class ScryptNativeVerifier implements ScryptCredentialVerifier {
+
+    public static final String FORMAT = "scrypt";
+
+    @Override
+    public String getFormat() {
+        return FORMAT;
+    }
+
+    @Override
+    public boolean matches(String storedValue, PasswordCredentialModel credential) {
+        return true;
+    }
+
+    @Override
+    public boolean verify(String rawPassword, String storedValue, PasswordCredentialModel credential) {
+        return ScryptHelper.verifyPassword(rawPassword, credential);
+    }
+
+    @Override
+    public boolean isLegacy() {
+        return false;
+    }
+}
@@ -0,0 +1,90 @@
+package de.hangy.keycloak.verifier;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.credential.PasswordCredentialModel;
+
+/**
+ * Picks the {@link ScryptCredentialVerifier} for a stored credential by looking
+ * at its stored value: each registered verifier is asked in order whether it
+ * {@link ScryptCredentialVerifier#matches matches}, and credentials no verifier
+ * claims are the provider's own scrypt credentials. Detection is a handful of
+ * prefix tests; nothing is parsed, reflected on or thrown to find the format.
+ */
+public class ScryptVerifierRegistry {
+    private static final Logger LOG = Logger.getLogger(ScryptVerifierRegistry.class);
+
+    private static final ScryptCredentialVerifier NATIVE = new ScryptNativeVerifier();
+
+    private final ScryptCredentialVerifier[] verifiers;
+
+    public ScryptVerifierRegistry(List<? extends ScryptCredentialVerifier> verifiers) {
+        this.verifiers = verifiers.toArray(new ScryptCredentialVerifier[0]);
+    }
+
+    /**
+     * The legacy formats this provider knows: {@code Crypt::ScryptKDF} strings
+     * and MD5-crypt.
+     */
+    public static ScryptVerifierRegistry defaults() {
+        return new ScryptVerifierRegistry(defaultVerifiers());
+    }
+
+    /**
+     * The default verifiers followed by any registered as services with the
+     * given class loader.
+     */
+    public static ScryptVerifierRegistry load(ClassLoader classLoader) {
+        List<ScryptCredentialVerifier> verifiers = defaultVerifiers();
+        for (ScryptCredentialVerifier verifier : ServiceLoader.load(ScryptCredentialVerifier.class, classLoader)) {
+            LOG.infof("Verifying %s credentials with %s.", verifier.getFormat(), verifier.getClass().getName());
+            verifiers.add(verifier);
+        }
+        return new ScryptVerifierRegistry(verifiers);
+    }
+
+    private static List<ScryptCredentialVerifier> defaultVerifiers() {
+        List<ScryptCredentialVerifier> verifiers = new ArrayList<>();
+        verifiers.add(new ScryptKdfStringVerifier());
+        verifiers.add(new Md5CryptVerifier());
+        return verifiers;
+    }
+
+    /**
+     * The verifier for the credential; the native scrypt verifier if no other
+     * one matches.
+     */
+    public ScryptCredentialVerifier find(PasswordCredentialModel credential) {
+        String storedValue = credential.getPasswordSecretData().getValue();
+        for (ScryptCredentialVerifier verifier : verifiers) {
+            if (verifier.matches(storedValue, credential)) {
+                return verifier;
+            }
+        }
+        return NATIVE;
+    }
+
+    /**
+     * Whether one of the registered verifiers, not counting the native one,
+     * claims the credential.
+     */
+    public boolean claims(PasswordCredentialModel credential) {
+        return find(credential) != NATIVE;
+    }
+
+    /**
+     * Formats of the registered verifiers, in detection order, not counting the
+     * native one.
+     */
+    public List<String> getFormats() {
+        List<String> formats = new ArrayList<>(verifiers.length);
+        for (ScryptCredentialVerifier verifier : verifiers) {
+            formats.add(verifier.getFormat());
+        }
+        return Collections.unmodifiableList(formats);
+    }
+}
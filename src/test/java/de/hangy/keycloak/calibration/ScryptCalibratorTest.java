@@ -0,0 +1,36 @@
+package de.hangy.keycloak.calibration;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import de.hangy.keycloak.utils.ScryptEngine;
+
+public class ScryptCalibratorTest {
+
+    private static final long MIB = 1024 * 1024;
+
+    @Test
+    public void testPicksLargestCostWithinGenerousBudget() {
+        ScryptCalibrator.Result result = new ScryptCalibrator(new ScryptEngine(), 60_000_000_000L, 64 * MIB,
+                8, 1, 32, 16, 1024, 4096, 2).calibrate();
+        Assertions.assertTrue(result.isWithinBudget());
+        Assertions.assertEquals(4096, result.getParameters().getCost());
+        Assertions.assertEquals(3, result.getMeasurements().size());
+    }
+
+    @Test
+    public void testStopsAtMemoryBudget() {
+        ScryptCalibrator.Result result = new ScryptCalibrator(new ScryptEngine(), 60_000_000_000L, 2 * MIB,
+                8, 1, 32, 16, 1024, 1 << 20, 2).calibrate();
+        Assertions.assertEquals(1024, result.getParameters().getCost());
+        Assertions.assertTrue(result.getMemoryBytes() <= 2 * MIB);
+    }
+
+    @Test
+    public void testReportsWhenNothingFitsLatencyBudget() {
+        ScryptCalibrator.Result result = new ScryptCalibrator(new ScryptEngine(), 1, 64 * MIB,
+                8, 1, 32, 16, 1024, 4096, 1).calibrate();
+        Assertions.assertFalse(result.isWithinBudget());
+        Assertions.assertEquals(1024, result.getParameters().getCost());
+    }
+}
@@ -0,0 +1,135 @@
+package de.hangy.keycloak.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import de.hangy.keycloak.exceptions.ScryptOverloadedException;
+
+public class ScryptAdmissionControllerTest {
+
+    private static final long MIB = 1024 * 1024;
+
+    private ExecutorService executor;
+
+    @BeforeEach
+    public void createExecutor() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterEach
+    public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testAdmitsWithinBudget() {
+        ScryptAdmissionController controller = new ScryptAdmissionController(32 * MIB, 0, 0);
+        Assertions.assertEquals("ok", controller.execute(16 * MIB, () -> "ok"));
+        Assertions.assertEquals(0, controller.getMemoryInUseBytes());
+    }
+
+    @Test
+    public void testRejectsWhenQueueIsFull() throws Exception {
+        ScryptAdmissionController controller = new ScryptAdmissionController(16 * MIB, 0, 1000);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<?> holder = occupy(controller, running, release);
+        running.await(5, TimeUnit.SECONDS);
+
+        Assertions.assertThrows(ScryptOverloadedException.class, () -> controller.execute(16 * MIB, () -> "no"));
+        Assertions.assertEquals(1, controller.getRejectedCount());
+
+        release.countDown();
+        holder.get(5, TimeUnit.SECONDS);
+        Assertions.assertEquals("ok", controller.execute(16 * MIB, () -> "ok"));
+    }
+
+    @Test
+    public void testRejectsAfterQueueTimeout() throws Exception {
+        ScryptAdmissionController controller = new ScryptAdmissionController(16 * MIB, 4, 50);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<?> holder = occupy(controller, running, release);
+        running.await(5, TimeUnit.SECONDS);
+
+        Assertions.assertThrows(ScryptOverloadedException.class, () -> controller.execute(MIB, () -> "no"));
+        Assertions.assertEquals(0, controller.getQueueLength());
+
+        release.countDown();
+        holder.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testQueuedOperationRunsOnceMemoryIsReleased() throws Exception {
+        ScryptAdmissionController controller = new ScryptAdmissionController(16 * MIB, 4, 5000);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        occupy(controller, running, release);
+        running.await(5, TimeUnit.SECONDS);
+
+        Future<String> queued = executor.submit(() -> controller.execute(16 * MIB, () -> "ok"));
+        release.countDown();
+        Assertions.assertEquals("ok", queued.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testQueuedOperationIsServedBeforeLaterArrivals() throws Exception {
+        ScryptAdmissionController controller = new ScryptAdmissionController(32 * MIB, 4, 5000);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        occupy(controller, running, release);
+        running.await(5, TimeUnit.SECONDS);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+        // Needs the whole budget, so it waits for the holder
+        Future<?> large = executor.submit(() -> controller.execute(32 * MIB, () -> order.add("large")));
+        awaitQueueLength(controller, 1);
+        // Would fit in the free half right now, but must not overtake the caller already waiting
+        Future<?> small = executor.submit(() -> controller.execute(MIB, () -> order.add("small")));
+        awaitQueueLength(controller, 2);
+        Assertions.assertTrue(order.isEmpty());
+
+        release.countDown();
+        large.get(5, TimeUnit.SECONDS);
+        small.get(5, TimeUnit.SECONDS);
+        Assertions.assertEquals(List.of("large", "small"), order);
+    }
+
+    @Test
+    public void testOversizedOperationIsAdmittedAlone() {
+        ScryptAdmissionController controller = new ScryptAdmissionController(MIB, 0, 0);
+        Assertions.assertEquals("ok", controller.execute(64 * MIB, () -> "ok"));
+    }
+
+    private static void awaitQueueLength(ScryptAdmissionController controller, int expected)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (controller.getQueueLength() != expected && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        Assertions.assertEquals(expected, controller.getQueueLength());
+    }
+
+    private Future<?> occupy(ScryptAdmissionController controller, CountDownLatch running, CountDownLatch release) {
+        return executor.submit(() -> controller.execute(16 * MIB, () -> {
+            running.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }));
+    }
+}
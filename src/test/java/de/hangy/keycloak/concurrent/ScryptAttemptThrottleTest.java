@@ -0,0 +1,147 @@
+package de.hangy.keycloak.concurrent;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ScryptAttemptThrottleTest {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toNanos(1);
+
+    private final AtomicLong clock = new AtomicLong(1_000_000_000L);
+
+    @Test
+    public void testAccountBurstThenRefill() {
+        ScryptAttemptThrottle throttle = new ScryptAttemptThrottle(1024, 3, 2, 0, 0, clock::get);
+
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertTrue(throttle.tryAcquire("alice", "10.0.0.1"));
+        }
+        Assertions.assertFalse(throttle.tryAcquire("alice", "10.0.0.1"));
+        Assertions.assertTrue(throttle.tryAcquire("bob", "10.0.0.1"));
+        Assertions.assertEquals(1, throttle.getAccountRejectedCount());
+
+        clock.addAndGet(MINUTE / 2);
+        Assertions.assertTrue(throttle.tryAcquire("alice", "10.0.0.1"));
+        Assertions.assertFalse(throttle.tryAcquire("alice", "10.0.0.1"));
+
+        clock.addAndGet(10 * MINUTE);
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertTrue(throttle.tryAcquire("alice", "10.0.0.1"));
+        }
+        Assertions.assertFalse(throttle.tryAcquire("alice", "10.0.0.1"));
+    }
+
+    @Test
+    public void testAccountLimitIsKeptPerAddress() {
+        ScryptAttemptThrottle throttle = new ScryptAttemptThrottle(1024, 2, 0, 0, 0, clock::get);
+
+        // Someone guessing alice's password from one address...
+        for (int i = 0; i < 100; i++) {
+            throttle.tryAcquire("alice", "10.0.0.66");
+        }
+        Assertions.assertEquals(98, throttle.getAccountRejectedCount());
+
+        // ...does not lock her out from her own
+        Assertions.assertTrue(throttle.tryAcquire("alice", "10.0.0.1"));
+        Assertions.assertTrue(throttle.tryAcquire("alice", "10.0.0.1"));
+        Assertions.assertFalse(throttle.tryAcquire("alice", "10.0.0.1"));
+    }
+
+    @Test
+    public void testAddressLimitRefundsAccountAttempt() {
+        ScryptAttemptThrottle throttle = new ScryptAttemptThrottle(1024, 2, 0, 2, 1, clock::get);
+
+        Assertions.assertTrue(throttle.tryAcquire("alice", "10.0.0.1"));
+        Assertions.assertTrue(throttle.tryAcquire("bob", "10.0.0.1"));
+        // The address is exhausted; alice's attempts are refused without using up her bucket
+        Assertions.assertFalse(throttle.tryAcquire("alice", "10.0.0.1"));
+        Assertions.assertFalse(throttle.tryAcquire("alice", "10.0.0.1"));
+        Assertions.assertEquals(2, throttle.getAddressRejectedCount());
+
+        clock.addAndGet(MINUTE);
+        Assertions.assertTrue(throttle.tryAcquire("alice", "10.0.0.1"));
+        clock.addAndGet(MINUTE);
+        Assertions.assertFalse(throttle.tryAcquire("alice", "10.0.0.1"));
+        Assertions.assertEquals(1, throttle.getAccountRejectedCount());
+    }
+
+    @Test
+    public void testUnknownAddressDoesNotChargeTheAccount() {
+        ScryptAttemptThrottle throttle = new ScryptAttemptThrottle(1024, 2, 0, 2, 0, clock::get);
+
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertTrue(throttle.tryAcquire("alice", null));
+        }
+        Assertions.assertTrue(throttle.tryAcquire("alice", "10.0.0.1"));
+        Assertions.assertTrue(throttle.tryAcquire("alice", "10.0.0.1"));
+        Assertions.assertFalse(throttle.tryAcquire("alice", "10.0.0.1"));
+        Assertions.assertEquals(1, throttle.getAccountRejectedCount());
+    }
+
+    @Test
+    public void testMemoryIsBoundedAndIdleBucketsAreReused() {
+        ScryptAttemptThrottle throttle = new ScryptAttemptThrottle(16, 1, 60, 0, 0, clock::get);
+        Assertions.assertEquals(16, throttle.getStripes());
+
+        for (int i = 0; i < 1000; i++) {
+            Assertions.assertTrue(throttle.tryAcquire("user-" + i, "10.0.0.1"));
+        }
+        Assertions.assertTrue(throttle.getEvictionCount() > 0);
+
+        // Once every bucket has refilled, replacing it loses nothing; keys are hashed with a random
+        // seed, so the clock also moves on after each key in case the next one lands next to it
+        long evictions = throttle.getEvictionCount();
+        for (int i = 0; i < 4; i++) {
+            clock.addAndGet(MINUTE);
+            Assertions.assertTrue(throttle.tryAcquire("late-" + i, "10.0.0.1"));
+        }
+        Assertions.assertEquals(evictions, throttle.getEvictionCount());
+    }
+
+    @Test
+    public void testConcurrentAttemptsNeverExceedTheBurst() throws Exception {
+        ScryptAttemptThrottle throttle = new ScryptAttemptThrottle(1024, 50, 0, 0, 0, clock::get);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        AtomicInteger admitted = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            for (int t = 0; t < 8; t++) {
+                executor.execute(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    for (int i = 0; i < 100; i++) {
+                        if (throttle.tryAcquire("alice", "10.0.0.1")) {
+                            admitted.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            start.countDown();
+        } finally {
+            executor.shutdown();
+            Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+        Assertions.assertEquals(50, admitted.get());
+        Assertions.assertEquals(750, throttle.getAccountRejectedCount());
+    }
+
+    @Test
+    public void testUnlimitedAdmitsEverything() {
+        ScryptAttemptThrottle throttle = ScryptAttemptThrottle.unlimited();
+        Assertions.assertFalse(throttle.isEnabled());
+        for (int i = 0; i < 1000; i++) {
+            Assertions.assertTrue(throttle.tryAcquire("alice", "10.0.0.1"));
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package de.hangy.keycloak.concurrent;
+
+import de.hangy.keycloak.exceptions.ScryptShedException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.remoting.transport.jgroups.JGroupsTransport;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class ScryptClusterBudgetTest {
+
+    private final List<EmbeddedCacheManager> nodes = new ArrayList<>();
+
+    private Cache<String, String> nodeA;
+
+    private Cache<String, String> nodeB;
+
+    @BeforeEach
+    public void startCluster() {
+        nodeA = startNode("a");
+        nodeB = startNode("b");
+        Assertions.assertEquals(2, nodeA.getCacheManager().getMembers().size());
+    }
+
+    @AfterEach
+    public void stopCluster() {
+        nodes.forEach(EmbeddedCacheManager::stop);
+    }
+
+    @Test
+    public void testShedsOnlyOnceTheLocalQueueIsLongWhilePeersHaveRoom() {
+        AtomicInteger queued = new AtomicInteger();
+        try (ScryptClusterBudget a = budget(nodeA, "a", 1, 2, queued); ScryptClusterBudget b = budget(nodeB, "b", 2)) {
+            a.acquire();
+            a.refresh();
+            b.refresh();
+            Assertions.assertEquals(2, a.getNodes());
+            Assertions.assertEquals(3, a.getClusterSlots());
+            Assertions.assertEquals(1, b.getClusterInFlight());
+
+            // Saturated, but the local queue is still short: wait here
+            queued.set(1);
+            a.acquire();
+            Assertions.assertEquals(1, a.getDeferredCount());
+            a.release();
+
+            queued.set(2);
+            Assertions.assertThrows(ScryptShedException.class, a::acquire);
+            Assertions.assertEquals(1, a.getShedCount());
+            Assertions.assertEquals(1, a.getInFlight());
+
+            a.release();
+            a.acquire();
+            a.release();
+            Assertions.assertEquals(0, a.getInFlight());
+        }
+    }
+
+    @Test
+    public void testDefersByDefaultWhilePeersHaveRoom() {
+        try (ScryptClusterBudget a = budget(nodeA, "a", 1); ScryptClusterBudget b = budget(nodeB, "b", 4)) {
+            a.acquire();
+            a.refresh();
+
+            for (int i = 0; i < 10; i++) {
+                a.acquire();
+            }
+            Assertions.assertEquals(10, a.getDeferredCount());
+            Assertions.assertEquals(0, a.getShedCount());
+        }
+    }
+
+    @Test
+    public void testDefersWhenTheWholeClusterIsBusy() {
+        try (ScryptClusterBudget a = budget(nodeA, "a", 1); ScryptClusterBudget b = budget(nodeB, "b", 1)) {
+            a.acquire();
+            b.acquire();
+            b.refresh();
+            a.refresh();
+
+            a.acquire();
+            Assertions.assertEquals(2, a.getInFlight());
+            Assertions.assertEquals(1, a.getDeferredCount());
+            Assertions.assertEquals(0, a.getShedCount());
+        }
+    }
+
+    @Test
+    public void testDepartedNodesNoLongerCount() {
+        ScryptClusterBudget a = budget(nodeA, "a", 1);
+        ScryptClusterBudget b = budget(nodeB, "b", 4);
+        a.refresh();
+        Assertions.assertEquals(5, a.getClusterSlots());
+
+        b.close();
+        a.refresh();
+        a.acquire();
+        a.acquire();
+
+        Assertions.assertEquals(1, a.getNodes());
+        Assertions.assertEquals(1, a.getDeferredCount());
+        a.close();
+    }
+
+    @Test
+    public void testStandaloneAdmitsEverything() {
+        ScryptClusterBudget budget = ScryptClusterBudget.standalone();
+        for (int i = 0; i < 100; i++) {
+            budget.acquire();
+        }
+        Assertions.assertFalse(budget.isEnabled());
+        Assertions.assertEquals(0, budget.getShedCount());
+    }
+
+    @Test
+    public void testDefinesItsCacheOnLocalManagers() {
+        EmbeddedCacheManager local = new DefaultCacheManager();
+        nodes.add(local);
+        Cache<String, String> cache = ScryptClusterBudget.getCache(local);
+        Assertions.assertEquals(CacheMode.LOCAL, cache.getCacheConfiguration().clustering().cacheMode());
+        Assertions.assertSame(cache, ScryptClusterBudget.getCache(local));
+    }
+
+    private static ScryptClusterBudget budget(Cache<String, String> cache, String node, int slots) {
+        return budget(cache, node, slots, 0, new AtomicInteger());
+    }
+
+    private static ScryptClusterBudget budget(Cache<String, String> cache, String node, int slots,
+            int shedQueueLength, AtomicInteger queued) {
+        return new ScryptClusterBudget(cache, node, slots, 60_000, shedQueueLength, queued::get, false);
+    }
+
+    private Cache<String, String> startNode(String name) {
+        GlobalConfigurationBuilder global = GlobalConfigurationBuilder.defaultClusteredBuilder();
+        global.transport().clusterName("scrypt-budget-test").nodeName(name)
+                .addProperty(JGroupsTransport.CONFIGURATION_FILE, "scrypt-jgroups-test.xml");
+        // Synchronous replication, so that a refresh sees the other node's last write
+        ConfigurationBuilder cache = new ConfigurationBuilder();
+        cache.clustering().cacheMode(CacheMode.REPL_SYNC);
+        EmbeddedCacheManager manager = new DefaultCacheManager(global.build());
+        nodes.add(manager);
+        manager.defineConfiguration(ScryptClusterBudget.CACHE_NAME, cache.build());
+        return manager.getCache(ScryptClusterBudget.CACHE_NAME);
+    }
+}
@@ -0,0 +1,57 @@
+package de.hangy.keycloak.concurrent;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ScryptCpuTopologyTest {
+
+    @TempDir
+    Path root;
+
+    @Test
+    public void testParsesCpuLists() {
+        BitSet cpus = ScryptCpuTopology.parseCpuList("0-3,8-9,16\n");
+        Assertions.assertEquals(7, cpus.cardinality());
+        Assertions.assertTrue(cpus.get(9));
+        Assertions.assertFalse(cpus.get(10));
+        Assertions.assertTrue(cpus.get(16));
+    }
+
+    @Test
+    public void testReadsCpuSetAndNodes() throws IOException {
+        write("proc/self/status", "Name:\tjava\nCpus_allowed:\tff0f\nCpus_allowed_list:\t0-3,8-11\n");
+        write("sys/devices/system/node/node0/cpulist", "0-7\n");
+        write("sys/devices/system/node/node1/cpulist", "8-15\n");
+        write("sys/devices/system/node/node2/cpulist", "16-23\n");
+
+        // The JVM reports 6 processors, e.g. because of a cgroup CPU quota
+        ScryptCpuTopology topology = ScryptCpuTopology.read(root, 6);
+
+        Assertions.assertEquals(8, topology.getAllowedCpus());
+        Assertions.assertEquals(6, topology.getEffectiveCpus());
+        Assertions.assertEquals(Arrays.asList(4, 4), topology.getCpusPerNode());
+    }
+
+    @Test
+    public void testFallsBackToAvailableProcessors() {
+        ScryptCpuTopology topology = ScryptCpuTopology.read(root, 3);
+
+        Assertions.assertEquals(3, topology.getEffectiveCpus());
+        Assertions.assertEquals(Collections.singletonList(3), topology.getCpusPerNode());
+    }
+
+    private void write(String path, String content) throws IOException {
+        Path file = root.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,130 @@
+package de.hangy.keycloak.concurrent;
+
+import de.hangy.keycloak.exceptions.ScryptOverloadedException;
+import de.hangy.keycloak.utils.ScryptEngine;
+import de.hangy.keycloak.utils.ScryptScratchPool;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ScryptHashingExecutorTest {
+
+    @Test
+    public void testRunsOnDedicatedThreads() {
+        try (ScryptHashingExecutor executor = new ScryptHashingExecutor(2, 8)) {
+            String thread = executor.execute(() -> Thread.currentThread().getName());
+            Assertions.assertTrue(thread.startsWith("scrypt-hash-"), thread);
+        }
+        String caller = Thread.currentThread().getName();
+        Assertions.assertEquals(caller, ScryptHashingExecutor.callerRuns().execute(() -> Thread.currentThread().getName()));
+    }
+
+    @Test
+    public void testWorkersKeepTheirOwnArenas() {
+        byte[] password = "password".getBytes(StandardCharsets.UTF_8);
+        byte[] salt = "NaCl".getBytes(StandardCharsets.UTF_8);
+        ScryptScratchPool pool = new ScryptScratchPool(4, ScryptScratchPool.DEFAULT_MAX_ARENA_BYTES, true);
+        ScryptEngine engine = new ScryptEngine(pool);
+        byte[] expected = new ScryptEngine().generate(password, salt, 1024, 8, 1, 32);
+
+        try (ScryptHashingExecutor executor = new ScryptHashingExecutor(1, 8, () -> pool.prewarm(1024 * 256, 256))) {
+            Assertions.assertEquals(1, (int) executor.execute(pool::getWorkerArenas));
+            for (int i = 0; i < 3; i++) {
+                Assertions.assertArrayEquals(expected, executor.execute(() -> engine.generate(password, salt, 1024, 8, 1, 32)));
+                Assertions.assertEquals(1, pool.getWorkerArenas());
+                Assertions.assertEquals(0, pool.getPooledArenas());
+            }
+        }
+
+        // Threads that are not hashing threads share the pool as before
+        Assertions.assertArrayEquals(expected, engine.generate(password, salt, 1024, 8, 1, 32));
+        Assertions.assertEquals(1, pool.getPooledArenas());
+    }
+
+    @Test
+    public void testLimitsConcurrentHashesToItsThreads() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        ExecutorService requestThreads = Executors.newFixedThreadPool(12);
+        try (ScryptHashingExecutor executor = new ScryptHashingExecutor(2, 64)) {
+            List<CompletableFuture<Integer>> callers = new ArrayList<>();
+            for (int i = 0; i < 12; i++) {
+                callers.add(CompletableFuture.supplyAsync(() -> executor.execute(() -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    sleep(20);
+                    running.decrementAndGet();
+                    return 1;
+                }), requestThreads));
+            }
+            for (CompletableFuture<Integer> caller : callers) {
+                Assertions.assertEquals(1, caller.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            requestThreads.shutdown();
+        }
+        Assertions.assertEquals(2, maxRunning.get());
+    }
+
+    @Test
+    public void testRejectsWhenQueueIsFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        try (ScryptHashingExecutor executor = new ScryptHashingExecutor(1, 1)) {
+            CompletableFuture<Integer> running = CompletableFuture.supplyAsync(() -> executor.execute(() -> {
+                started.countDown();
+                await(release);
+                return 1;
+            }));
+            Assertions.assertTrue(started.await(5, TimeUnit.SECONDS));
+            CompletableFuture<Integer> queued = CompletableFuture.supplyAsync(() -> executor.execute(() -> 2));
+            while (executor.getQueueLength() == 0) {
+                Thread.sleep(1);
+            }
+
+            Assertions.assertThrows(ScryptOverloadedException.class, () -> executor.execute(() -> 3));
+            Assertions.assertEquals(1, executor.getRejectedCount());
+
+            release.countDown();
+            Assertions.assertEquals(1, running.get(5, TimeUnit.SECONDS));
+            Assertions.assertEquals(2, queued.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testPropagatesFailures() {
+        try (ScryptHashingExecutor executor = new ScryptHashingExecutor(1, 1)) {
+            IllegalStateException failure = Assertions.assertThrows(IllegalStateException.class,
+                    () -> executor.execute(() -> {
+                        throw new IllegalStateException("boom");
+                    }));
+            Assertions.assertEquals("boom", failure.getMessage());
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
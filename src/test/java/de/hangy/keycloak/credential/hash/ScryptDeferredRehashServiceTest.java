@@ -0,0 +1,243 @@
+package de.hangy.keycloak.credential.hash;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.credential.hash.PasswordHashProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.PasswordPolicy;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.credential.PasswordCredentialModel;
+import org.keycloak.models.jpa.entities.CredentialEntity;
+
+import de.hangy.keycloak.testing.KeycloakModelStub;
+import de.hangy.keycloak.testing.KeycloakSessionStub;
+import de.hangy.keycloak.utils.ScryptEncodingUtils;
+import de.hangy.keycloak.utils.ScryptHelper;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+
+public class ScryptDeferredRehashServiceTest {
+
+    private final KeycloakModelStub model = new KeycloakModelStub();
+
+    private final RealmModel realm = model.addRealm("realm", KeycloakSessionStub.policy(2048, 8, 1, 32, 16));
+
+    private ScryptDeferredRehashService service;
+
+    @AfterEach
+    public void close() {
+        if (service != null) {
+            service.close();
+        }
+    }
+
+    @Test
+    public void testUpgradesCredentialInTheBackground() throws InterruptedException {
+        model.setPasswordHashProvider(session -> new ScryptPasswordHashProvider(ScryptPasswordHashProviderFactory.ID,
+                session));
+        service = service(1, 4, 100);
+        CredentialModel stored = addUser("alice");
+
+        Assertions.assertTrue(schedule("alice", stored));
+        await(service::getCompleted, 1);
+
+        PasswordCredentialModel upgraded = PasswordCredentialModel
+                .createFromCredentialModel(model.getPasswordCredential("realm", "alice"));
+        Assertions.assertEquals(stored.getId(), upgraded.getId());
+        Assertions.assertEquals(stored.getCreatedDate(), upgraded.getCreatedDate());
+        Assertions.assertEquals("label", upgraded.getUserLabel());
+        Assertions.assertEquals(2048, ScryptEncodingUtils.getScryptParameters(upgraded).getCost());
+        Assertions.assertTrue(ScryptHelper.verifyPassword("secret", upgraded));
+        Assertions.assertEquals(1, service.getScheduled());
+        Assertions.assertEquals(0, service.getFailed());
+    }
+
+    @Test
+    public void testSkipsPendingAndQueuedOverflow() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        model.setPasswordHashProvider(session -> blockingProvider(session, release));
+        service = service(1, 1, 1_000_000);
+        CredentialModel alice = addUser("alice");
+        CredentialModel bob = addUser("bob");
+        CredentialModel carol = addUser("carol");
+
+        // Runs at once on the only thread
+        Assertions.assertTrue(schedule("alice", alice));
+        // Already pending
+        Assertions.assertTrue(schedule("alice", alice));
+        // Queued behind alice
+        Assertions.assertTrue(schedule("bob", bob));
+        // Queue is full
+        Assertions.assertTrue(schedule("carol", carol));
+        Assertions.assertEquals(2, service.getScheduled());
+        Assertions.assertEquals(2, service.getSkipped());
+
+        release.countDown();
+        await(service::getCompleted, 2);
+        Assertions.assertEquals(carol.getSecretData(),
+                model.getPasswordCredential("realm", "carol").getSecretData());
+    }
+
+    @Test
+    public void testRateLimitSkipsExcessUpgrades() throws InterruptedException {
+        model.setPasswordHashProvider(session -> new ScryptPasswordHashProvider(ScryptPasswordHashProviderFactory.ID,
+                session));
+        CredentialModel alice = addUser("alice");
+        CredentialModel bob = addUser("bob");
+        service = service(1, 16, 1);
+
+        Assertions.assertTrue(schedule("alice", alice));
+        Assertions.assertTrue(schedule("bob", bob));
+
+        Assertions.assertEquals(1, service.getScheduled());
+        Assertions.assertEquals(1, service.getSkipped());
+        await(service::getCompleted, 1);
+        Assertions.assertEquals(bob.getSecretData(), model.getPasswordCredential("realm", "bob").getSecretData());
+    }
+
+    @Test
+    public void testDropsUpgradeWhenPasswordChanged() throws InterruptedException {
+        model.setPasswordHashProvider(session -> new ScryptPasswordHashProvider(ScryptPasswordHashProviderFactory.ID,
+                session));
+        service = service(1, 4, 100);
+        CredentialModel stored = addUser("alice");
+        CredentialModel changed = model.getPasswordCredential("realm", "alice");
+        changed.setSecretData("{\"value\":\"changed\",\"additionalParameters\":{}}");
+        model.overwriteCredential("realm", "alice", changed);
+
+        Assertions.assertTrue(schedule("alice", stored));
+        await(service::getCompleted, 1);
+
+        Assertions.assertEquals(changed.getSecretData(),
+                model.getPasswordCredential("realm", "alice").getSecretData());
+    }
+
+    @Test
+    public void testComparesAgainstTheLockedRow() throws InterruptedException {
+        model.setPasswordHashProvider(session -> new ScryptPasswordHashProvider(ScryptPasswordHashProviderFactory.ID,
+                session));
+        CredentialModel stored = addUser("alice");
+        // The row in the database has already been changed by another node; the cached credential has not
+        AtomicReference<String> rowSecretData = new AtomicReference<>("{\"value\":\"changed\"}");
+        AtomicReference<LockModeType> lockMode = new AtomicReference<>();
+        EntityManager entityManager = (EntityManager) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { EntityManager.class }, (proxy, method, args) -> {
+                    if ("find".equals(method.getName()) && args.length == 3) {
+                        lockMode.set((LockModeType) args[2]);
+                        CredentialEntity entity = new CredentialEntity();
+                        entity.setId((String) args[1]);
+                        entity.setSecretData(rowSecretData.get());
+                        return entity;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+        JpaConnectionProvider jpa = (JpaConnectionProvider) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { JpaConnectionProvider.class }, (proxy, method, args) -> {
+                    if ("getEntityManager".equals(method.getName())) {
+                        return entityManager;
+                    }
+                    return null;
+                });
+        model.setProvider(JpaConnectionProvider.class, session -> jpa);
+        service = service(1, 4, 1_000_000);
+        CredentialModel bob = addUser("bob");
+
+        Assertions.assertTrue(schedule("alice", stored));
+        await(service::getCompleted, 1);
+        Assertions.assertEquals(LockModeType.PESSIMISTIC_WRITE, lockMode.get());
+        Assertions.assertEquals(stored.getSecretData(), model.getPasswordCredential("realm", "alice").getSecretData());
+
+        rowSecretData.set(bob.getSecretData());
+        Assertions.assertTrue(schedule("bob", bob));
+        await(service::getCompleted, 2);
+        Assertions.assertNotEquals(bob.getSecretData(), model.getPasswordCredential("realm", "bob").getSecretData());
+    }
+
+    @Test
+    public void testCloseStopsScheduling() {
+        service = service(1, 4, 100);
+        CredentialModel stored = addUser("alice");
+
+        service.close();
+
+        Assertions.assertFalse(schedule("alice", stored));
+        Assertions.assertEquals(0, service.getScheduled());
+    }
+
+    private ScryptDeferredRehashService service(int threads, int queueSize, double permitsPerSecond) {
+        return new ScryptDeferredRehashService(model.getSessionFactory(), ScryptPasswordHashProviderFactory.ID,
+                threads, queueSize, permitsPerSecond);
+    }
+
+    /**
+     * Adds a user whose password "secret" is hashed with a lower cost than the
+     * realm's policy.
+     */
+    private CredentialModel addUser(String username) {
+        KeycloakSession session = model.getSessionFactory().create();
+        UserModel user = session.users().addUser(realm, username);
+        byte[] salt = new byte[16];
+        PasswordCredentialModel credential = ScryptEncodingUtils.createPasswordCredentialModel(salt,
+                ScryptHelper.hashPassword("secret", salt, 1024, 8, 1, 32),
+                ScryptEncodingUtils.ScryptParameters.of(1024, 8, 1, 32));
+        credential.setCreatedDate(1000L);
+        credential.setUserLabel("label");
+        return user.credentialManager().createStoredCredential(credential);
+    }
+
+    private boolean schedule(String username, CredentialModel stored) {
+        return service.schedule(realm.getId(), model.getUser("realm", username).getId(), stored.getId(),
+                stored.getSecretData(), "secret");
+    }
+
+    private static PasswordHashProvider blockingProvider(KeycloakSession session, CountDownLatch release) {
+        ScryptPasswordHashProvider delegate = new ScryptPasswordHashProvider(ScryptPasswordHashProviderFactory.ID,
+                session);
+        return new PasswordHashProvider() {
+            @Override
+            public boolean policyCheck(PasswordPolicy policy, PasswordCredentialModel credential) {
+                return delegate.policyCheck(policy, credential);
+            }
+
+            @Override
+            public PasswordCredentialModel encodedCredential(String rawPassword, int iterations) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(e);
+                }
+                return delegate.encodedCredential(rawPassword, iterations);
+            }
+
+            @Override
+            public boolean verify(String rawPassword, PasswordCredentialModel credential) {
+                return delegate.verify(rawPassword, credential);
+            }
+
+            @Override
+            public void close() {
+                delegate.close();
+            }
+        };
+    }
+
+    private static void await(LongSupplier value, long expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (value.getAsLong() != expected && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        Assertions.assertEquals(expected, value.getAsLong());
+    }
+}
@@ -0,0 +1,44 @@
+package de.hangy.keycloak.credential.hash;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.Config;
+
+import de.hangy.keycloak.utils.ScryptEngine;
+import de.hangy.keycloak.utils.ScryptHelper;
+import de.hangy.keycloak.utils.ScryptSaltGenerator;
+
+public class ScryptPasswordHashProviderFactoryTest {
+
+    private static final String PREFIX = "scrypt.factory.test.";
+
+    @AfterEach
+    public void clearProperties() {
+        System.clearProperty(PREFIX + ScryptPasswordHashProviderFactory.THROTTLE_ENABLED);
+        System.clearProperty(PREFIX + ScryptPasswordHashProviderFactory.VERIFICATION_CACHE_ENABLED);
+    }
+
+    @Test
+    public void testCloseRestoresEveryHelperDefault() {
+        System.setProperty(PREFIX + ScryptPasswordHashProviderFactory.THROTTLE_ENABLED, "true");
+        System.setProperty(PREFIX + ScryptPasswordHashProviderFactory.VERIFICATION_CACHE_ENABLED, "true");
+        ScryptPasswordHashProviderFactory factory = new ScryptPasswordHashProviderFactory();
+        factory.init(new Config.SystemPropertiesScope(PREFIX));
+        ScryptEngine engine = ScryptHelper.getEngine();
+        ScryptSaltGenerator saltGenerator = ScryptHelper.getSaltGenerator();
+        Assertions.assertTrue(ScryptHelper.getAdmissionController().isEnabled());
+        Assertions.assertTrue(ScryptHelper.getAttemptThrottle().isEnabled());
+        Assertions.assertNotNull(ScryptHelper.getVerificationCache());
+
+        factory.close();
+
+        Assertions.assertNotSame(engine, ScryptHelper.getEngine());
+        Assertions.assertNotSame(saltGenerator, ScryptHelper.getSaltGenerator());
+        Assertions.assertFalse(ScryptHelper.getAdmissionController().isEnabled());
+        Assertions.assertFalse(ScryptHelper.getAttemptThrottle().isEnabled());
+        Assertions.assertNull(ScryptHelper.getVerificationCache());
+        // A hash that arrives after close still runs on live components
+        Assertions.assertNotNull(ScryptHelper.hashPassword("password", ScryptHelper.getSalt(16), 1024, 8, 1, 32));
+    }
+}
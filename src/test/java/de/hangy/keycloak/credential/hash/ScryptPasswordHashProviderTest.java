@@ -0,0 +1,56 @@
+package de.hangy.keycloak.credential.hash;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.credential.PasswordCredentialModel;
+
+import de.hangy.keycloak.concurrent.ScryptAttemptThrottle;
+import de.hangy.keycloak.exceptions.ScryptThrottledException;
+import de.hangy.keycloak.testing.KeycloakModelStub;
+import de.hangy.keycloak.testing.KeycloakSessionStub;
+import de.hangy.keycloak.utils.ScryptHelper;
+
+public class ScryptPasswordHashProviderTest {
+
+    @AfterEach
+    public void resetThrottle() {
+        ScryptHelper.setAttemptThrottle(ScryptAttemptThrottle.unlimited());
+    }
+
+    @Test
+    public void testThrottledAttemptIsNotAWrongPassword() {
+        KeycloakModelStub model = new KeycloakModelStub();
+        model.addRealm("realm", KeycloakSessionStub.policy(1024, 8, 1, 32, 16));
+        KeycloakSession session = model.createLoginSession("realm", "alice", "10.0.0.1");
+        ScryptPasswordHashProvider provider = new ScryptPasswordHashProvider(ScryptPasswordHashProviderFactory.ID,
+                session);
+        PasswordCredentialModel credential = provider.encodedCredential("secret", -1);
+        credential.setId("credential-1");
+
+        ScryptHelper.setAttemptThrottle(new ScryptAttemptThrottle(1024, 1, 0, 0, 0));
+        Assertions.assertFalse(provider.verify("wrong", credential));
+        Assertions.assertThrows(ScryptThrottledException.class, () -> provider.verify("secret", credential));
+    }
+
+    @Test
+    public void testAttackerAddressDoesNotLockOutTheOwner() {
+        KeycloakModelStub model = new KeycloakModelStub();
+        model.addRealm("realm", KeycloakSessionStub.policy(1024, 8, 1, 32, 16));
+        ScryptPasswordHashProvider attacker = new ScryptPasswordHashProvider(ScryptPasswordHashProviderFactory.ID,
+                model.createLoginSession("realm", "alice", "203.0.113.7"));
+        ScryptPasswordHashProvider owner = new ScryptPasswordHashProvider(ScryptPasswordHashProviderFactory.ID,
+                model.createLoginSession("realm", "alice", "10.0.0.1"));
+        PasswordCredentialModel credential = owner.encodedCredential("secret", -1);
+        credential.setId("credential-1");
+
+        ScryptHelper.setAttemptThrottle(new ScryptAttemptThrottle(1024, 3, 0, 100, 0));
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertFalse(attacker.verify("guess-" + i, credential));
+        }
+        Assertions.assertThrows(ScryptThrottledException.class, () -> attacker.verify("guess-3", credential));
+
+        Assertions.assertTrue(owner.verify("secret", credential));
+    }
+}
@@ -0,0 +1,39 @@
+package de.hangy.keycloak.credential.hash;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.RealmModel;
+
+import de.hangy.keycloak.testing.KeycloakSessionStub;
+import de.hangy.keycloak.utils.ScryptEncodingUtils;
+
+public class ScryptRealmPolicyCacheTest {
+
+    @Test
+    public void testResolvesRealmPolicy() {
+        KeycloakSessionStub stub = new KeycloakSessionStub("realm", 32768, 4, 2, 64, 24);
+        ScryptEncodingUtils.ScryptParameters parameters = new ScryptRealmPolicyCache()
+                .get(stub.getSession().getContext().getRealm());
+        Assertions.assertEquals(ScryptEncodingUtils.ScryptParameters.of(32768, 4, 2, 64, 24), parameters);
+    }
+
+    @Test
+    public void testFollowsPolicyChanges() {
+        KeycloakSessionStub stub = new KeycloakSessionStub("realm", 16384, 8, 1, 32, 16);
+        RealmModel realm = stub.getSession().getContext().getRealm();
+        ScryptRealmPolicyCache cache = new ScryptRealmPolicyCache();
+        ScryptEncodingUtils.ScryptParameters before = cache.get(realm);
+        Assertions.assertSame(before, cache.get(realm));
+
+        stub.setPasswordPolicy(KeycloakSessionStub.policy(65536, 8, 1, 32, 16));
+        Assertions.assertEquals(65536, cache.get(realm).getCost());
+    }
+
+    @Test
+    public void testFallsBackToDefaults() {
+        KeycloakSessionStub stub = new KeycloakSessionStub("realm", "scryptSaltLength(16)");
+        ScryptRealmPolicyCache cache = new ScryptRealmPolicyCache();
+        Assertions.assertEquals(16384, cache.get(stub.getSession().getContext().getRealm()).getCost());
+        Assertions.assertEquals(16384, cache.get(null).getCost());
+    }
+}
@@ -0,0 +1,90 @@
+package de.hangy.keycloak.metrics;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.credential.PasswordCredentialModel;
+
+import de.hangy.keycloak.concurrent.ScryptHashingExecutor;
+import de.hangy.keycloak.utils.ScryptEncodingUtils;
+import de.hangy.keycloak.utils.ScryptHelper;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class MicrometerScryptMetricsTest {
+
+    private SimpleMeterRegistry registry;
+
+    private MicrometerScryptMetrics metrics;
+
+    @BeforeEach
+    public void registerMetrics() {
+        registry = new SimpleMeterRegistry();
+        metrics = new MicrometerScryptMetrics(registry);
+        ScryptHelper.setMetrics(metrics);
+    }
+
+    @AfterEach
+    public void unregisterMetrics() {
+        ScryptHelper.setMetrics(ScryptMetrics.NOOP);
+        metrics.close();
+    }
+
+    @Test
+    public void testRecordsHashAndVerifyOutcomes() {
+        byte[] salt = ScryptHelper.getSalt(16);
+        String hash = ScryptHelper.hashPassword("secret", salt, 1024, 8, 1, 32);
+        PasswordCredentialModel credential = ScryptEncodingUtils.createPasswordCredentialModel(salt, hash,
+                new ScryptEncodingUtils.ScryptParameters(1024, 8, 1, 32));
+        Assertions.assertTrue(ScryptHelper.verifyPassword("secret", credential));
+        Assertions.assertFalse(ScryptHelper.verifyPassword("wrong", credential));
+
+        Assertions.assertEquals(1, timer("hash", "success").count());
+        Assertions.assertEquals(1, timer("verify", "success").count());
+        Assertions.assertEquals(1, timer("verify", "mismatch").count());
+        Assertions.assertEquals(0, ScryptHelper.getInFlightMemoryBytes());
+    }
+
+    @Test
+    public void testRecordsExecutorWaitSeparately() {
+        ScryptHashingExecutor executor = new ScryptHashingExecutor(1, 4);
+        ScryptHelper.setHashingExecutor(executor);
+        try {
+            ScryptHelper.hashPassword("secret", ScryptHelper.getSalt(16), 1024, 8, 1, 32);
+        } finally {
+            ScryptHelper.setHashingExecutor(ScryptHashingExecutor.callerRuns());
+            executor.close();
+        }
+
+        Assertions.assertEquals(1, registry.get(MicrometerScryptMetrics.EXECUTOR_WAIT).timer().count());
+        Assertions.assertEquals(1, timer("hash", "success").count());
+    }
+
+    @Test
+    public void testRecordsMemoryBandwidthPerHash() {
+        ScryptHelper.hashPassword("secret", ScryptHelper.getSalt(16), 1024, 8, 1, 32);
+
+        DistributionSummary bandwidth = registry.get(MicrometerScryptMetrics.MEMORY_BANDWIDTH).summary();
+        Assertions.assertEquals(1, bandwidth.count());
+        Assertions.assertTrue(bandwidth.totalAmount() > 0);
+        Assertions.assertTrue(ScryptHelper.getMemoryBandwidthBytesPerSecond() > 0);
+    }
+
+    @Test
+    public void testRemovesMetersOnClose() {
+        metrics.recordRehashRequired();
+        Assertions.assertEquals(1, registry.get(MicrometerScryptMetrics.REHASH_REQUIRED).counter().count());
+        metrics.close();
+        Assertions.assertTrue(registry.getMeters().isEmpty());
+    }
+
+    private Timer timer(String operation, String outcome) {
+        return registry.get(MicrometerScryptMetrics.OPERATION_TIMER)
+                .tag("operation", operation)
+                .tag("outcome", outcome)
+                .tag("N", "1024")
+                .timer();
+    }
+}
@@ -0,0 +1,89 @@
+package de.hangy.keycloak.migration;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class LegacyScryptUserReaderTest {
+
+    @Test
+    public void testReadsNdjson() throws Exception {
+        String ndjson = "{\"username\":\"alice\",\"email\":\"alice@example.org\",\"emailVerified\":true,"
+                + "\"hash\":\"SCRYPT:16384:8:1:AAAAAAAAAAAAAAAAAAAAAA==:AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=\","
+                + "\"groups\":[\"ignored\"]}\n"
+                + "{\"username\":\"broken\"}\n"
+                + "{\"username\":\"bob\",\"N\":1024,\"r\":8,\"p\":2,\"salt\":\"c2FsdA==\",\"hash\":\"aGFzaA==\"}\n";
+
+        try (LegacyScryptUserReader reader = LegacyScryptUserReader.ndjson(new StringReader(ndjson))) {
+            List<LegacyScryptUser> users = readAll(reader);
+
+            Assertions.assertEquals(2, users.size());
+            Assertions.assertEquals(3, reader.getRecords());
+            Assertions.assertEquals(1, reader.getMalformed());
+
+            LegacyScryptUser alice = users.get(0);
+            Assertions.assertEquals("alice", alice.getUsername());
+            Assertions.assertEquals("alice@example.org", alice.getEmail());
+            Assertions.assertTrue(alice.isEmailVerified());
+            Assertions.assertEquals(16384, alice.getCost());
+            Assertions.assertEquals(8, alice.getBlockSize());
+            Assertions.assertEquals(1, alice.getParallelism());
+            Assertions.assertEquals("AAAAAAAAAAAAAAAAAAAAAA==", alice.getSalt());
+
+            LegacyScryptUser bob = users.get(1);
+            Assertions.assertEquals(1024, bob.getCost());
+            Assertions.assertEquals(2, bob.getParallelism());
+            Assertions.assertEquals("aGFzaA==", bob.getHash());
+            Assertions.assertNull(bob.getEmail());
+        }
+    }
+
+    @Test
+    public void testSkipsUnparseableNdjsonLines() throws Exception {
+        String ndjson = "{\"username\":\"alice\",\"hash\":\"SCRYPT:16384:8:1:c2FsdA==:aGFzaA==\"}\n"
+                + "{\"username\":\"truncated\",\"hash\":\"SCRYPT:16384:8\n"
+                + "[\"not\",\"an\",\"object\"]\n"
+                + "\n"
+                + "{\"username\":\"carol\"} {\"username\":\"dave\"}\n"
+                + "{\"username\":\"bob\",\"hash\":\"SCRYPT:2048:8:1:c2FsdA==:aGFzaA==\"}\n";
+
+        try (LegacyScryptUserReader reader = LegacyScryptUserReader.ndjson(new StringReader(ndjson))) {
+            List<LegacyScryptUser> users = readAll(reader);
+
+            Assertions.assertEquals(2, users.size());
+            Assertions.assertEquals("alice", users.get(0).getUsername());
+            Assertions.assertEquals("bob", users.get(1).getUsername());
+            Assertions.assertEquals(5, reader.getRecords());
+            Assertions.assertEquals(3, reader.getMalformed());
+        }
+    }
+
+    @Test
+    public void testReadsCsvWithQuotedFields() throws Exception {
+        String csv = "username,email,lastName,hash\n"
+                + "alice,alice@example.org,\"Smith, \"\"Jr\"\"\",SCRYPT:16384:8:1:c2FsdA==:aGFzaA==\n"
+                + "\n"
+                + "carol,,\"multi\nline\",SCRYPT:2048:4:1:c2FsdA==:aGFzaA==\n"
+                + "dave,,,not-a-hash\n";
+
+        try (LegacyScryptUserReader reader = LegacyScryptUserReader.csv(new StringReader(csv))) {
+            List<LegacyScryptUser> users = readAll(reader);
+
+            Assertions.assertEquals(2, users.size());
+            Assertions.assertEquals(1, reader.getMalformed());
+            Assertions.assertEquals("Smith, \"Jr\"", users.get(0).getLastName());
+            Assertions.assertEquals("multi\nline", users.get(1).getLastName());
+            Assertions.assertNull(users.get(1).getEmail());
+            Assertions.assertEquals(2048, users.get(1).getCost());
+        }
+    }
+
+    private static List<LegacyScryptUser> readAll(LegacyScryptUserReader reader) {
+        List<LegacyScryptUser> users = new ArrayList<>();
+        reader.forEachRemaining(users::add);
+        return users;
+    }
+}
@@ -0,0 +1,214 @@
+package de.hangy.keycloak.migration;
+
+import de.hangy.keycloak.utils.ScryptEncodingUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.keycloak.models.credential.PasswordCredentialModel;
+
+public class ScryptCredentialMigrationTest {
+
+    private static final String SECRET_DATA = "{\"value\":\"" + Base64.getEncoder().encodeToString(new byte[32])
+            + "\",\"salt\":\"" + Base64.getEncoder().encodeToString(new byte[16]) + "\",\"additionalParameters\":{}}";
+
+    private static final String LEGACY_CREDENTIAL_DATA = "{\"hashIterations\":1,\"algorithm\":\"scrypt\","
+            + "\"additionalParameters\":{\"ln\":[\"14\"],\"r\":[\" 8 \"],\"p\":[\"1\"]}}";
+
+    private static final String INVALID_CREDENTIAL_DATA = "{\"algorithm\":\"scrypt\","
+            + "\"additionalParameters\":{\"N\":[\"1000\"],\"r\":[\"8\"],\"p\":[\"1\"]}}";
+
+    private static final String PBKDF2_CREDENTIAL_DATA = "{\"hashIterations\":27500,\"algorithm\":\"pbkdf2-sha256\","
+            + "\"additionalParameters\":{}}";
+
+    private static final PasswordCredentialModel CANONICAL = ScryptEncodingUtils.createPasswordCredentialModel(
+            new byte[16], Base64.getEncoder().encodeToString(new byte[32]),
+            ScryptEncodingUtils.ScryptParameters.of(16384, 8, 1, 32));
+
+    @TempDir
+    Path tempDir;
+
+    private String url;
+
+    private Connection connection;
+
+    @BeforeEach
+    public void createSchema() throws SQLException {
+        url = "jdbc:h2:mem:migration-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1";
+        connection = DriverManager.getConnection(url);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE USER_ENTITY (ID VARCHAR(36) PRIMARY KEY, REALM_ID VARCHAR(255))");
+            statement.execute("CREATE TABLE CREDENTIAL (ID VARCHAR(36) PRIMARY KEY, TYPE VARCHAR(255),"
+                    + " USER_ID VARCHAR(36), CREDENTIAL_DATA CLOB, SECRET_DATA CLOB)");
+            statement.execute("INSERT INTO USER_ENTITY VALUES ('user-a', 'realm-a'), ('user-b', 'realm-b')");
+        }
+    }
+
+    @AfterEach
+    public void dropDatabase() throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SHUTDOWN");
+        }
+        connection.close();
+    }
+
+    @Test
+    public void testMigratesEveryPageOfTheRealm() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            insert("legacy-" + i, "user-a", "password", LEGACY_CREDENTIAL_DATA);
+        }
+        insert("canonical-1", "user-a", "password", CANONICAL.getCredentialData(), CANONICAL.getSecretData());
+        insert("canonical-2", "user-a", "password", CANONICAL.getCredentialData(), CANONICAL.getSecretData());
+        insert("invalid", "user-a", "password", INVALID_CREDENTIAL_DATA);
+        insert("pbkdf2", "user-a", "password", PBKDF2_CREDENTIAL_DATA);
+        insert("otp", "user-a", "otp", LEGACY_CREDENTIAL_DATA);
+        insert("other-realm", "user-b", "password", LEGACY_CREDENTIAL_DATA);
+
+        ScryptCredentialMigration.Progress progress = new ScryptCredentialMigration(connection, null, "realm-a", 3,
+                2, 0, null, false).run();
+
+        Assertions.assertEquals(14, progress.getScanned());
+        Assertions.assertEquals(10, progress.getNormalised());
+        Assertions.assertEquals(2, progress.getUnchanged());
+        Assertions.assertEquals(1, progress.getInvalid());
+        Assertions.assertEquals(1, progress.getSkipped());
+        Assertions.assertEquals(0, progress.getConflicts());
+        Assertions.assertEquals("pbkdf2", progress.getLastId());
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertEquals(CANONICAL.getCredentialData(), credentialData("legacy-" + i));
+            Assertions.assertEquals(CANONICAL.getSecretData(), secretData("legacy-" + i));
+        }
+        Assertions.assertEquals(INVALID_CREDENTIAL_DATA, credentialData("invalid"));
+        Assertions.assertEquals(LEGACY_CREDENTIAL_DATA, credentialData("otp"));
+        Assertions.assertEquals(LEGACY_CREDENTIAL_DATA, credentialData("other-realm"));
+        Assertions.assertTrue(connection.getAutoCommit());
+    }
+
+    @Test
+    public void testResumesFromCheckpoint() throws Exception {
+        Path checkpoint = tempDir.resolve("migration.checkpoint");
+        insert("m-1", "user-a", "password", LEGACY_CREDENTIAL_DATA);
+        insert("m-2", "user-a", "password", CANONICAL.getCredentialData(), CANONICAL.getSecretData());
+
+        ScryptCredentialMigration.Progress first = new ScryptCredentialMigration(connection, null, null, 1, 1, 0,
+                checkpoint, false).run();
+        Assertions.assertEquals(2, first.getScanned());
+        Assertions.assertTrue(Files.readString(checkpoint).contains("lastId=m-2"));
+
+        // Rows before the checkpoint are not looked at again, rows after it are
+        insert("a-1", "user-a", "password", LEGACY_CREDENTIAL_DATA);
+        insert("z-1", "user-a", "password", LEGACY_CREDENTIAL_DATA);
+        ScryptCredentialMigration.Progress second = new ScryptCredentialMigration(connection, null, null, 1, 1, 0,
+                checkpoint, false).run();
+
+        Assertions.assertEquals(3, second.getScanned());
+        Assertions.assertEquals(2, second.getNormalised());
+        Assertions.assertEquals(1, second.getUnchanged());
+        Assertions.assertEquals("z-1", second.getLastId());
+        Assertions.assertEquals(LEGACY_CREDENTIAL_DATA, credentialData("a-1"));
+        Assertions.assertEquals(CANONICAL.getCredentialData(), credentialData("z-1"));
+    }
+
+    @Test
+    public void testDryRunWritesNothing() throws Exception {
+        Path checkpoint = tempDir.resolve("migration.checkpoint");
+        insert("legacy-1", "user-a", "password", LEGACY_CREDENTIAL_DATA);
+        insert("legacy-2", "user-a", "password", LEGACY_CREDENTIAL_DATA);
+        insert("invalid", "user-a", "password", INVALID_CREDENTIAL_DATA);
+
+        ScryptCredentialMigration.Progress progress = new ScryptCredentialMigration(connection, null, null, 2, 1, 0,
+                checkpoint, true).run();
+
+        Assertions.assertEquals(3, progress.getScanned());
+        Assertions.assertEquals(2, progress.getNormalised());
+        Assertions.assertEquals(1, progress.getInvalid());
+        Assertions.assertEquals(LEGACY_CREDENTIAL_DATA, credentialData("legacy-1"));
+        Assertions.assertEquals(LEGACY_CREDENTIAL_DATA, credentialData("legacy-2"));
+        Assertions.assertFalse(Files.exists(checkpoint));
+    }
+
+    @Test
+    public void testCredentialsChangedWhileMigratingAreLeftAlone() throws Exception {
+        insert("legacy-1", "user-a", "password", LEGACY_CREDENTIAL_DATA);
+        insert("legacy-2", "user-a", "password", LEGACY_CREDENTIAL_DATA);
+        String changedSecretData = "{\"value\":\"changed\",\"additionalParameters\":{}}";
+
+        // Another node changes the password of legacy-2 after the page was read
+        AtomicBoolean changed = new AtomicBoolean();
+        ScryptCredentialNormalizer normalizer = new ScryptCredentialNormalizer() {
+            @Override
+            public Result normalise(String credentialData, String secretData) {
+                if (changed.compareAndSet(false, true)) {
+                    try (Connection other = DriverManager.getConnection(url);
+                            PreparedStatement update = other.prepareStatement(
+                                    "UPDATE CREDENTIAL SET SECRET_DATA = ? WHERE ID = 'legacy-2'")) {
+                        update.setString(1, changedSecretData);
+                        update.executeUpdate();
+                    } catch (SQLException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                return super.normalise(credentialData, secretData);
+            }
+        };
+
+        ScryptCredentialMigration.Progress progress = new ScryptCredentialMigration(connection, null, null, 10, 1,
+                0, null, false, normalizer).run();
+
+        Assertions.assertEquals(1, progress.getNormalised());
+        Assertions.assertEquals(1, progress.getConflicts());
+        Assertions.assertEquals(CANONICAL.getCredentialData(), credentialData("legacy-1"));
+        Assertions.assertEquals(LEGACY_CREDENTIAL_DATA, credentialData("legacy-2"));
+        Assertions.assertEquals(changedSecretData, secretData("legacy-2"));
+    }
+
+    private void insert(String id, String userId, String type, String credentialData) throws SQLException {
+        insert(id, userId, type, credentialData, SECRET_DATA);
+    }
+
+    private void insert(String id, String userId, String type, String credentialData, String secretData)
+            throws SQLException {
+        try (PreparedStatement insert = connection.prepareStatement(
+                "INSERT INTO CREDENTIAL (ID, TYPE, USER_ID, CREDENTIAL_DATA, SECRET_DATA) VALUES (?, ?, ?, ?, ?)")) {
+            insert.setString(1, id);
+            insert.setString(2, type);
+            insert.setString(3, userId);
+            insert.setString(4, credentialData);
+            insert.setString(5, secretData);
+            insert.executeUpdate();
+        }
+    }
+
+    private String credentialData(String id) throws SQLException {
+        return column(id, "CREDENTIAL_DATA");
+    }
+
+    private String secretData(String id) throws SQLException {
+        return column(id, "SECRET_DATA");
+    }
+
+    private String column(String id, String column) throws SQLException {
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT " + column + " FROM CREDENTIAL WHERE ID = ?")) {
+            select.setString(1, id);
+            try (ResultSet rs = select.executeQuery()) {
+                Assertions.assertTrue(rs.next(), id);
+                return rs.getString(1);
+            }
+        }
+    }
+}
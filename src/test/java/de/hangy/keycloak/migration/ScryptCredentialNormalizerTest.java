@@ -0,0 +1,106 @@
+package de.hangy.keycloak.migration;
+
+import de.hangy.keycloak.utils.ScryptCredentialEncoder;
+import de.hangy.keycloak.utils.ScryptEncodingUtils;
+import de.hangy.keycloak.utils.ScryptPhcFormat;
+
+import java.util.Base64;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.credential.PasswordCredentialModel;
+
+public class ScryptCredentialNormalizerTest {
+
+    private static final byte[] SALT = new byte[16];
+
+    private static final String DIGEST = Base64.getEncoder().encodeToString(new byte[32]);
+
+    private static final String SECRET_DATA = "{\"value\":\"" + DIGEST + "\",\"salt\":\""
+            + Base64.getEncoder().encodeToString(SALT) + "\",\"additionalParameters\":{}}";
+
+    private final ScryptCredentialNormalizer normalizer = new ScryptCredentialNormalizer();
+
+    @Test
+    public void testCanonicalCredentialIsUnchanged() {
+        PasswordCredentialModel credential = ScryptEncodingUtils.createPasswordCredentialModel(SALT, DIGEST,
+                ScryptEncodingUtils.ScryptParameters.of(16384, 8, 1, 32));
+
+        ScryptCredentialNormalizer.Result result = normalizer.normalise(credential.getCredentialData(),
+                credential.getSecretData());
+
+        Assertions.assertEquals(ScryptCredentialNormalizer.Status.UNCHANGED, result.getStatus());
+        Assertions.assertEquals(credential.getCredentialData(), result.getCredentialData());
+    }
+
+    @Test
+    public void testLegacyParametersAreNormalised() {
+        String credentialData = "{\"hashIterations\":1,\"algorithm\":\"scrypt\","
+                + "\"additionalParameters\":{\"ln\":[\"14\"],\"r\":[\" 8 \",\"8\"],\"p\":[\"1\"]}}";
+
+        ScryptCredentialNormalizer.Result result = normalizer.normalise(credentialData, SECRET_DATA);
+
+        Assertions.assertEquals(ScryptCredentialNormalizer.Status.NORMALISED, result.getStatus());
+        Assertions.assertEquals(ScryptEncodingUtils.ScryptParameters.of(16384, 8, 1, 32, 16), result.getParameters());
+        PasswordCredentialModel expected = ScryptEncodingUtils.createPasswordCredentialModel(SALT, DIGEST,
+                result.getParameters());
+        Assertions.assertEquals(expected.getCredentialData(), result.getCredentialData());
+        Assertions.assertEquals(expected.getSecretData(), result.getSecretData());
+        Assertions.assertEquals(ScryptCredentialNormalizer.Status.UNCHANGED,
+                normalizer.normalise(result.getCredentialData(), result.getSecretData()).getStatus());
+    }
+
+    @Test
+    public void testInvalidParametersAreReported() {
+        String[] invalid = {
+                "{\"algorithm\":\"scrypt\",\"additionalParameters\":{\"N\":[\"1000\"],\"r\":[\"8\"],\"p\":[\"1\"]}}",
+                "{\"algorithm\":\"scrypt\",\"additionalParameters\":{\"N\":[\"16384\"],\"r\":[\"x\"],\"p\":[\"1\"]}}",
+                "{\"algorithm\":\"scrypt\",\"additionalParameters\":{\"N\":[\"16384\"],\"r\":[\"8\"]}}",
+                "{\"algorithm\":\"scrypt\",\"additionalParameters\":{\"N\":[\"16384\",\"32768\"],\"r\":[\"8\"],\"p\":[\"1\"]}}",
+                "not json"
+        };
+        for (String credentialData : invalid) {
+            ScryptCredentialNormalizer.Result result = normalizer.normalise(credentialData, SECRET_DATA);
+            Assertions.assertEquals(ScryptCredentialNormalizer.Status.INVALID, result.getStatus(), credentialData);
+            Assertions.assertNotNull(result.getMessage(), credentialData);
+        }
+    }
+
+    @Test
+    public void testPhcCredentialsStayPhc() {
+        String phc = ScryptPhcFormat.encode(16384, 8, 1, SALT, DIGEST);
+        PasswordCredentialModel canonical = ScryptCredentialEncoder.createPhcCredentialModel(phc);
+
+        Assertions.assertEquals(ScryptCredentialNormalizer.Status.UNCHANGED,
+                normalizer.normalise(canonical.getCredentialData(), canonical.getSecretData()).getStatus());
+
+        ScryptCredentialNormalizer.Result result = normalizer.normalise(
+                "{\"hashIterations\":27500,\"algorithm\":\"scrypt\"}", canonical.getSecretData());
+        Assertions.assertEquals(ScryptCredentialNormalizer.Status.NORMALISED, result.getStatus());
+        Assertions.assertEquals(canonical.getCredentialData(), result.getCredentialData());
+
+        Assertions.assertEquals(ScryptCredentialNormalizer.Status.INVALID, normalizer.normalise(
+                canonical.getCredentialData(), "{\"value\":\"$scrypt$ln=14,r=8$x$y\"}").getStatus());
+    }
+
+    @Test
+    public void testOtherAlgorithmsAreSkipped() {
+        String credentialData = "{\"hashIterations\":27500,\"algorithm\":\"pbkdf2-sha256\",\"additionalParameters\":{}}";
+
+        Assertions.assertEquals(ScryptCredentialNormalizer.Status.SKIPPED,
+                normalizer.normalise(credentialData, SECRET_DATA).getStatus());
+    }
+
+    @Test
+    public void testLegacyFormatsAreSkipped() {
+        String[] legacy = { "SCRYPT:16384:8:1:" + Base64.getEncoder().encodeToString(SALT) + ":" + DIGEST,
+                "$1$saltsalt$qjXMvbEw8oaL.CzflDtaK/" };
+        for (String storedValue : legacy) {
+            PasswordCredentialModel credential = ScryptCredentialEncoder.createStoredValueCredentialModel(storedValue);
+
+            Assertions.assertEquals(ScryptCredentialNormalizer.Status.SKIPPED,
+                    normalizer.normalise(credential.getCredentialData(), credential.getSecretData()).getStatus(),
+                    storedValue);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package de.hangy.keycloak.migration;
+
+import de.hangy.keycloak.credential.hash.ScryptDeferredRehashService;
+import de.hangy.keycloak.credential.hash.ScryptPasswordHashProvider;
+import de.hangy.keycloak.credential.hash.ScryptPasswordHashProviderFactory;
+import de.hangy.keycloak.credential.hash.ScryptRealmPolicyCache;
+import de.hangy.keycloak.testing.KeycloakModelStub;
+import de.hangy.keycloak.testing.KeycloakSessionStub;
+import de.hangy.keycloak.utils.ScryptEncodingUtils;
+import de.hangy.keycloak.utils.ScryptHelper;
+import de.hangy.keycloak.verifier.Md5CryptVerifier;
+import de.hangy.keycloak.verifier.ScryptKdfStringVerifier;
+import de.hangy.keycloak.verifier.ScryptNativeVerifier;
+import de.hangy.keycloak.verifier.ScryptVerifierRegistry;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.credential.PasswordCredentialModel;
+
+public class ScryptUserImporterTest {
+
+    private final ScryptUserImporter importer = new ScryptUserImporter(null, "realm", 100);
+
+    @Test
+    public void testCredentialMatchesProviderOutput() {
+        byte[] salt = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 };
+        String hash = Base64.getEncoder().encodeToString(new byte[32]);
+        LegacyScryptUser user = new LegacyScryptUser("alice", null, false, null, null, 16384, 8, 1,
+                Base64.getEncoder().encodeToString(salt), hash);
+
+        PasswordCredentialModel credential = importer.toCredential(user);
+        PasswordCredentialModel expected = ScryptEncodingUtils.createPasswordCredentialModel(salt, hash,
+                ScryptEncodingUtils.ScryptParameters.of(16384, 8, 1, 32));
+
+        Assertions.assertEquals(expected.getCredentialData(), credential.getCredentialData());
+        Assertions.assertEquals(expected.getSecretData(), credential.getSecretData());
+        Assertions.assertEquals(PasswordCredentialModel.TYPE, credential.getType());
+        Assertions.assertEquals("16384",
+                credential.getPasswordCredentialData().getAdditionalParameters().getFirst("N"));
+        Assertions.assertArrayEquals(salt, credential.getPasswordSecretData().getSalt());
+    }
+
+    @Test
+    public void testUnusableParametersAreRejected() {
+        String salt = Base64.getEncoder().encodeToString(new byte[16]);
+        String hash = Base64.getEncoder().encodeToString(new byte[32]);
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> importer.toCredential(
+                new LegacyScryptUser("a", null, false, null, null, 1000, 8, 1, salt, hash)));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> importer.toCredential(
+                new LegacyScryptUser("a", null, false, null, null, 16384, 8, 1, "not base64!", hash)));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> importer.toCredential(
+                new LegacyScryptUser("a", null, false, null, null, 16384, 8, 1, salt, "")));
+    }
+
+    @Test
+    public void testImportRunsOncePerFile() {
+        KeycloakModelStub model = new KeycloakModelStub();
+        model.addRealm("realm", KeycloakSessionStub.policy(16384, 8, 1, 32, 16));
+        ScryptUserImporter importer = new ScryptUserImporter(model.getSessionFactory(), "realm", 100);
+        List<LegacyScryptUser> users = List.of(user("alice"), user("bob"));
+
+        ScryptUserImporter.Result result = importer.importOnce("abc", 60, () -> importer.importUsers(users.iterator()));
+        Assertions.assertEquals(2, result.getImported());
+        Assertions.assertNotNull(model.getSessionFactory().create().realms().getRealmByName("realm")
+                .getAttribute(ScryptUserImporter.COMPLETED_ATTRIBUTE_PREFIX + "abc"));
+
+        // An account erased after the import must not come back on the next startup
+        model.removeUser("realm", "bob");
+        Assertions.assertNull(importer.importOnce("abc", 60, () -> importer.importUsers(users.iterator())));
+        Assertions.assertNull(model.getUser("realm", "bob"));
+
+        // A different file is imported
+        ScryptUserImporter.Result next = importer.importOnce("def", 60,
+                () -> importer.importUsers(List.of(user("carol")).iterator()));
+        Assertions.assertEquals(1, next.getImported());
+        Assertions.assertEquals(2, model.getUserCount("realm"));
+    }
+
+    @Test
+    public void testImportIsSkippedWhileAnotherNodeImports() {
+        KeycloakModelStub model = new KeycloakModelStub();
+        model.addRealm("realm", KeycloakSessionStub.policy(16384, 8, 1, 32, 16));
+        ScryptUserImporter importer = new ScryptUserImporter(model.getSessionFactory(), "realm", 100);
+
+        ScryptUserImporter.Result result = importer.importOnce("abc", 60, () -> {
+            Assertions.assertNull(importer.importOnce("abc", 60, () -> {
+                throw new AssertionError("imported twice");
+            }));
+            return importer.importUsers(List.of(user("alice")).iterator());
+        });
+        Assertions.assertEquals(1, result.getImported());
+    }
+
+    @Test
+    public void testLegacyHashesAreVerifiedAndUpgradedAfterImport() throws Exception {
+        byte[] salt = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+        String scryptKdf = "SCRYPT:1024:8:1:" + Base64.getEncoder().encodeToString(salt) + ":"
+                + ScryptHelper.hashPassword("secret", salt, 1024, 8, 1, 32);
+        String md5Crypt = "$1$saltsalt$qjXMvbEw8oaL.CzflDtaK/";
+        String ndjson = "{\"username\":\"alice\",\"hash\":\"" + scryptKdf + "\"}\n"
+                + "{\"username\":\"bob\",\"hash\":\"" + md5Crypt + "\"}\n";
+
+        KeycloakModelStub model = new KeycloakModelStub();
+        RealmModel realm = model.addRealm("realm", KeycloakSessionStub.policy(2048, 8, 1, 32, 16));
+        model.setPasswordHashProvider(session -> new ScryptPasswordHashProvider(ScryptPasswordHashProviderFactory.ID,
+                session));
+        ScryptUserImporter importer = new ScryptUserImporter(model.getSessionFactory(), "realm", 100);
+        try (LegacyScryptUserReader reader = LegacyScryptUserReader.ndjson(new StringReader(ndjson))) {
+            Assertions.assertEquals(2, importer.importUsers(reader).getImported());
+        }
+
+        ScryptDeferredRehashService rehash = new ScryptDeferredRehashService(model.getSessionFactory(),
+                ScryptPasswordHashProviderFactory.ID, 1, 16, 100);
+        ScryptVerifierRegistry verifiers = ScryptVerifierRegistry.defaults();
+        try {
+            assertLoginUpgrades(model, realm, rehash, verifiers, "alice", scryptKdf, "secret",
+                    ScryptKdfStringVerifier.FORMAT, 1);
+            assertLoginUpgrades(model, realm, rehash, verifiers, "bob", md5Crypt, "password",
+                    Md5CryptVerifier.FORMAT, 2);
+        } finally {
+            rehash.close();
+        }
+    }
+
+    /**
+     * Logs in with the imported credential, which must still be stored
+     * verbatim, and waits for the deferred rehash to replace it with a native
+     * scrypt credential using the realm's parameters.
+     */
+    private static void assertLoginUpgrades(KeycloakModelStub model, RealmModel realm,
+            ScryptDeferredRehashService rehash, ScryptVerifierRegistry verifiers, String username, String storedValue,
+            String password, String format, long upgrades) throws InterruptedException {
+        PasswordCredentialModel imported = PasswordCredentialModel
+                .createFromCredentialModel(model.getPasswordCredential("realm", username));
+        Assertions.assertEquals(storedValue, imported.getPasswordSecretData().getValue());
+        Assertions.assertEquals(ScryptPasswordHashProviderFactory.ID,
+                imported.getPasswordCredentialData().getAlgorithm());
+        Assertions.assertEquals(format, verifiers.find(imported).getFormat());
+
+        ScryptPasswordHashProvider provider = new ScryptPasswordHashProvider(ScryptPasswordHashProviderFactory.ID,
+                model.createLoginSession("realm", username, "192.0.2.1"), new ScryptRealmPolicyCache(), rehash,
+                verifiers);
+        Assertions.assertFalse(provider.verify(password + "!", imported));
+        Assertions.assertTrue(provider.verify(password, imported));
+        Assertions.assertTrue(provider.policyCheck(realm.getPasswordPolicy(), imported));
+
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (rehash.getCompleted() < upgrades && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        Assertions.assertEquals(upgrades, rehash.getCompleted());
+
+        PasswordCredentialModel upgraded = PasswordCredentialModel
+                .createFromCredentialModel(model.getPasswordCredential("realm", username));
+        Assertions.assertEquals(imported.getId(), upgraded.getId());
+        Assertions.assertEquals(ScryptNativeVerifier.FORMAT, verifiers.find(upgraded).getFormat());
+        Assertions.assertEquals(2048, ScryptEncodingUtils.getScryptParameters(upgraded).getCost());
+        Assertions.assertTrue(provider.verify(password, upgraded));
+        Assertions.assertTrue(provider.policyCheck(realm.getPasswordPolicy(), upgraded));
+    }
+
+    private static LegacyScryptUser user(String username) {
+        return new LegacyScryptUser(username, null, false, null, null, 16384, 8, 1,
+                Base64.getEncoder().encodeToString(new byte[16]), Base64.getEncoder().encodeToString(new byte[32]));
+    }
+}
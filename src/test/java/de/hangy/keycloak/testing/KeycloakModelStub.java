@@ -0,0 +1,430 @@
+package de.hangy.keycloak.testing;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.cluster.ExecutionResult;
+import org.keycloak.common.ClientConnection;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.credential.hash.PasswordHashProvider;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.PasswordPolicy;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.SubjectCredentialManager;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.sessions.AuthenticationSessionModel;
+
+/**
+ * In-memory stand-in for the parts of Keycloak's model that the importer, the
+ * deferred rehash service and a password login touch: realms with attributes
+ * and a scrypt password policy, users with stored credentials, a session
+ * factory whose sessions run {@code KeycloakModelUtils.runJobInTransaction}
+ * jobs, and a cluster provider for {@code executeIfNotExecuted}. Changes are
+ * visible at once; there is no rollback.
+ */
+public class KeycloakModelStub {
+    private final Map<String, Realm> realms = new ConcurrentHashMap<>();
+
+    private final Map<String, String> clusterTasks = new ConcurrentHashMap<>();
+
+    private final Map<Class<?>, Function<KeycloakSession, Object>> providers = new ConcurrentHashMap<>();
+
+    private final AtomicInteger ids = new AtomicInteger();
+
+    private final KeycloakSessionFactory sessionFactory;
+
+    private volatile Function<KeycloakSession, PasswordHashProvider> passwordHashProvider;
+
+    public KeycloakModelStub() {
+        this.sessionFactory = proxy(KeycloakSessionFactory.class, (proxy, method, args) -> {
+            if ("create".equals(method.getName())) {
+                return createSession(null);
+            }
+            return objectMethod(proxy, method, args, "KeycloakSessionFactoryStub");
+        });
+    }
+
+    public KeycloakSessionFactory getSessionFactory() {
+        return sessionFactory;
+    }
+
+    /**
+     * Adds a realm whose password policy is {@code passwordPolicy}, in
+     * {@link PasswordPolicy#parse} syntax.
+     */
+    public RealmModel addRealm(String name, String passwordPolicy) {
+        Realm realm = new Realm(name, passwordPolicy);
+        realms.put(name, realm);
+        return realm.model;
+    }
+
+    public void setPasswordHashProvider(Function<KeycloakSession, PasswordHashProvider> passwordHashProvider) {
+        this.passwordHashProvider = passwordHashProvider;
+    }
+
+    /**
+     * Answers {@code session.getProvider(type)} for a provider the stub does not
+     * know itself.
+     */
+    public <T> void setProvider(Class<T> type, Function<KeycloakSession, T> provider) {
+        providers.put(type, provider::apply);
+    }
+
+    /**
+     * A session as it is during a login: its context carries the realm, the
+     * user being authenticated and the client's address.
+     */
+    public KeycloakSession createLoginSession(String realmName, String username, String remoteAddress) {
+        Realm realm = realm(realmName);
+        User user = realm.usersByName.get(username);
+        AuthenticationSessionModel authSession = proxy(AuthenticationSessionModel.class, (proxy, method, args) -> {
+            if ("getAuthenticatedUser".equals(method.getName())) {
+                return user == null ? null : user.model;
+            }
+            return objectMethod(proxy, method, args, "AuthenticationSessionStub");
+        });
+        ClientConnection connection = proxy(ClientConnection.class, (proxy, method, args) -> {
+            if ("getRemoteAddr".equals(method.getName())) {
+                return remoteAddress;
+            }
+            return objectMethod(proxy, method, args, "ClientConnectionStub");
+        });
+        Context context = new Context();
+        context.realm = realm.model;
+        context.authSession = authSession;
+        context.connection = connection;
+        return createSession(context);
+    }
+
+    public UserModel getUser(String realmName, String username) {
+        User user = realm(realmName).usersByName.get(username);
+        return user == null ? null : user.model;
+    }
+
+    public void removeUser(String realmName, String username) {
+        Realm realm = realm(realmName);
+        User user = realm.usersByName.remove(username);
+        if (user != null) {
+            realm.usersById.remove(user.id);
+        }
+    }
+
+    public int getUserCount(String realmName) {
+        return realm(realmName).usersByName.size();
+    }
+
+    /**
+     * The user's stored password credential, as it would be read back from the
+     * database.
+     */
+    public CredentialModel getPasswordCredential(String realmName, String username) {
+        User user = realm(realmName).usersByName.get(username);
+        if (user == null) {
+            return null;
+        }
+        synchronized (user.credentials) {
+            return user.credentials.stream().filter(c -> "password".equals(c.getType())).findFirst()
+                    .map(KeycloakModelStub::copy).orElse(null);
+        }
+    }
+
+    /**
+     * Replaces the secret and credential data of a stored credential, as a
+     * password change from another node would.
+     */
+    public void overwriteCredential(String realmName, String username, CredentialModel replacement) {
+        User user = realm(realmName).usersByName.get(username);
+        synchronized (user.credentials) {
+            for (CredentialModel stored : user.credentials) {
+                if (stored.getId().equals(replacement.getId())) {
+                    stored.setSecretData(replacement.getSecretData());
+                    stored.setCredentialData(replacement.getCredentialData());
+                }
+            }
+        }
+    }
+
+    private Realm realm(String name) {
+        Realm realm = realms.get(name);
+        if (realm == null) {
+            throw new IllegalArgumentException("No realm " + name);
+        }
+        return realm;
+    }
+
+    private Realm realmById(String id) {
+        return realms.values().stream().filter(r -> r.id.equals(id)).findFirst().orElse(null);
+    }
+
+    private String nextId(String prefix) {
+        return prefix + "-" + ids.incrementAndGet();
+    }
+
+    @SuppressWarnings("deprecation")
+    private KeycloakSession createSession(Context initialContext) {
+        Context context = initialContext == null ? new Context() : initialContext;
+        KeycloakContext keycloakContext = proxy(KeycloakContext.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getRealm":
+                    return context.realm;
+                case "setRealm":
+                    context.realm = (RealmModel) args[0];
+                    return null;
+                case "getAuthenticationSession":
+                    return context.authSession;
+                case "getConnection":
+                    return context.connection;
+                default:
+                    return objectMethod(proxy, method, args, "KeycloakContextStub");
+            }
+        });
+        KeycloakTransactionManager transactionManager = proxy(KeycloakTransactionManager.class,
+                (proxy, method, args) -> objectMethod(proxy, method, args, "KeycloakTransactionManagerStub"));
+        RealmProvider realmProvider = proxy(RealmProvider.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getRealm": {
+                    Realm realm = realmById((String) args[0]);
+                    return realm == null ? null : realm.model;
+                }
+                case "getRealmByName": {
+                    Realm realm = realms.get((String) args[0]);
+                    return realm == null ? null : realm.model;
+                }
+                default:
+                    return objectMethod(proxy, method, args, "RealmProviderStub");
+            }
+        });
+        UserProvider userProvider = proxy(UserProvider.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getUserByUsername": {
+                    User user = realm(((RealmModel) args[0]).getName()).usersByName.get((String) args[1]);
+                    return user == null ? null : user.model;
+                }
+                case "getUserById": {
+                    User user = realm(((RealmModel) args[0]).getName()).usersById.get((String) args[1]);
+                    return user == null ? null : user.model;
+                }
+                case "addUser":
+                    if (args.length == 2) {
+                        return realm(((RealmModel) args[0]).getName()).addUser((String) args[1]).model;
+                    }
+                    return objectMethod(proxy, method, args, "UserProviderStub");
+                default:
+                    return objectMethod(proxy, method, args, "UserProviderStub");
+            }
+        });
+        ClusterProvider clusterProvider = proxy(ClusterProvider.class, (proxy, method, args) -> {
+            if ("executeIfNotExecuted".equals(method.getName())) {
+                return executeIfNotExecuted((String) args[0], (Callable<?>) args[2]);
+            }
+            return objectMethod(proxy, method, args, "ClusterProviderStub");
+        });
+        return proxy(KeycloakSession.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getContext":
+                    return keycloakContext;
+                case "getTransactionManager":
+                    return transactionManager;
+                case "realms":
+                    return realmProvider;
+                case "users":
+                    return userProvider;
+                case "getKeycloakSessionFactory":
+                    return sessionFactory;
+                case "getProvider":
+                    if (args[0] == ClusterProvider.class) {
+                        return clusterProvider;
+                    }
+                    if (args[0] == PasswordHashProvider.class && passwordHashProvider != null) {
+                        return passwordHashProvider.apply((KeycloakSession) proxy);
+                    }
+                    Function<KeycloakSession, Object> provider = providers.get(args[0]);
+                    return provider == null ? null : provider.apply((KeycloakSession) proxy);
+                default:
+                    return objectMethod(proxy, method, args, "KeycloakSessionStub");
+            }
+        });
+    }
+
+    private <T> ExecutionResult<T> executeIfNotExecuted(String taskKey, Callable<T> task) throws Exception {
+        if (clusterTasks.putIfAbsent(taskKey, Thread.currentThread().getName()) != null) {
+            return ExecutionResult.notExecuted();
+        }
+        try {
+            return ExecutionResult.executed(task.call());
+        } finally {
+            clusterTasks.remove(taskKey);
+        }
+    }
+
+    private static CredentialModel copy(CredentialModel credential) {
+        CredentialModel copy = new CredentialModel();
+        copy.setId(credential.getId());
+        copy.setType(credential.getType());
+        copy.setUserLabel(credential.getUserLabel());
+        copy.setCreatedDate(credential.getCreatedDate());
+        copy.setSecretData(credential.getSecretData());
+        copy.setCredentialData(credential.getCredentialData());
+        return copy;
+    }
+
+    private static Object objectMethod(Object proxy, Method method, Object[] args, String name) {
+        switch (method.getName()) {
+            case "toString":
+                return name;
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            default:
+                return defaultValue(method.getReturnType());
+        }
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(KeycloakModelStub.class.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    private static final class Context {
+        private volatile RealmModel realm;
+        private volatile AuthenticationSessionModel authSession;
+        private volatile ClientConnection connection;
+    }
+
+    private final class Realm {
+        private final String id;
+        private final String name;
+        private final PasswordPolicy passwordPolicy;
+        private final Map<String, String> attributes = new ConcurrentHashMap<>();
+        private final Map<String, User> usersByName = new ConcurrentHashMap<>();
+        private final Map<String, User> usersById = new ConcurrentHashMap<>();
+        private final RealmModel model;
+
+        private Realm(String name, String passwordPolicy) {
+            this.id = nextId("realm");
+            this.name = name;
+            this.passwordPolicy = new KeycloakSessionStub(id, passwordPolicy).getPasswordPolicy();
+            this.model = proxy(RealmModel.class, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getId":
+                        return id;
+                    case "getName":
+                        return this.name;
+                    case "getPasswordPolicy":
+                        return this.passwordPolicy;
+                    case "getAttribute":
+                        if (args.length == 1) {
+                            return attributes.get((String) args[0]);
+                        }
+                        return objectMethod(proxy, method, args, "RealmStub[" + this.name + "]");
+                    case "setAttribute":
+                        attributes.put((String) args[0], String.valueOf(args[1]));
+                        return null;
+                    case "removeAttribute":
+                        attributes.remove((String) args[0]);
+                        return null;
+                    case "getAttributes":
+                        return new HashMap<>(attributes);
+                    default:
+                        return objectMethod(proxy, method, args, "RealmStub[" + this.name + "]");
+                }
+            });
+        }
+
+        private synchronized User addUser(String username) {
+            if (usersByName.containsKey(username)) {
+                throw new IllegalStateException("User " + username + " exists");
+            }
+            User user = new User(nextId("user"), username);
+            usersByName.put(username, user);
+            usersById.put(user.id, user);
+            return user;
+        }
+    }
+
+    private final class User {
+        private final String id;
+        private final String username;
+        private final List<CredentialModel> credentials = new ArrayList<>();
+        private final UserModel model;
+
+        private User(String id, String username) {
+            this.id = id;
+            this.username = username;
+            SubjectCredentialManager credentialManager = proxy(SubjectCredentialManager.class,
+                    (proxy, method, args) -> credentialMethod(proxy, method, args));
+            this.model = proxy(UserModel.class, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getId":
+                        return this.id;
+                    case "getUsername":
+                        return this.username;
+                    case "credentialManager":
+                        return credentialManager;
+                    default:
+                        return objectMethod(proxy, method, args, "UserStub[" + this.username + "]");
+                }
+            });
+        }
+
+        private Object credentialMethod(Object proxy, Method method, Object[] args) {
+            synchronized (credentials) {
+                switch (method.getName()) {
+                    case "createStoredCredential": {
+                        CredentialModel credential = copy((CredentialModel) args[0]);
+                        if (credential.getId() == null) {
+                            credential.setId(nextId("credential"));
+                        }
+                        credentials.add(credential);
+                        return copy(credential);
+                    }
+                    case "updateStoredCredential": {
+                        CredentialModel update = (CredentialModel) args[0];
+                        credentials.replaceAll(c -> Objects.equals(c.getId(), update.getId()) ? copy(update) : c);
+                        return null;
+                    }
+                    case "getStoredCredentialById":
+                        return credentials.stream().filter(c -> c.getId().equals(args[0])).findFirst()
+                                .map(KeycloakModelStub::copy).orElse(null);
+                    case "getStoredCredentialsByTypeStream":
+                        return new ArrayList<>(credentials).stream().filter(c -> c.getType().equals(args[0]))
+                                .map(KeycloakModelStub::copy);
+                    case "getStoredCredentialsStream":
+                        return new ArrayList<>(credentials).stream().map(KeycloakModelStub::copy);
+                    default:
+                        return objectMethod(proxy, method, args, "SubjectCredentialManagerStub[" + username + "]");
+                }
+            }
+        }
+    }
+}
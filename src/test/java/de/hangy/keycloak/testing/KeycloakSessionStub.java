@@ -0,0 +1,147 @@
+package de.hangy.keycloak.testing;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.PasswordPolicy;
+import org.keycloak.models.RealmModel;
+import org.keycloak.policy.PasswordPolicyProvider;
+
+import de.hangy.keycloak.policy.ScryptBlockSizePasswordPolicyProviderFactory;
+import de.hangy.keycloak.policy.ScryptCostPasswordPolicyProviderFactory;
+import de.hangy.keycloak.policy.ScryptGenericPolicyProviderFactory;
+import de.hangy.keycloak.policy.ScryptHashLengthPasswordPolicyProviderFactory;
+import de.hangy.keycloak.policy.ScryptParallelismPasswordPolicyProviderFactory;
+import de.hangy.keycloak.policy.ScryptSaltLengthPasswordPolicyProviderFactory;
+
+/**
+ * Minimal dynamic-proxy stand-in for a {@link KeycloakSession} whose context
+ * exposes a single realm with a configurable scrypt password policy. Only the
+ * calls made by the hash provider are answered; everything else returns
+ * {@code null} (or the primitive default).
+ */
+public class KeycloakSessionStub {
+    private static final Map<String, ScryptGenericPolicyProviderFactory> POLICY_PROVIDERS = new HashMap<>();
+
+    static {
+        register(new ScryptCostPasswordPolicyProviderFactory());
+        register(new ScryptBlockSizePasswordPolicyProviderFactory());
+        register(new ScryptParallelismPasswordPolicyProviderFactory());
+        register(new ScryptHashLengthPasswordPolicyProviderFactory());
+        register(new ScryptSaltLengthPasswordPolicyProviderFactory());
+    }
+
+    private final String realmId;
+
+    private final KeycloakSession session;
+
+    private volatile PasswordPolicy passwordPolicy;
+
+    private volatile String passwordPolicyString;
+
+    public KeycloakSessionStub(String realmId, int N, int r, int p, int hashLength, int saltLength) {
+        this(realmId, policy(N, r, p, hashLength, saltLength));
+    }
+
+    public KeycloakSessionStub(String realmId, String passwordPolicy) {
+        this.realmId = realmId;
+        this.session = createSession();
+        setPasswordPolicy(passwordPolicy);
+    }
+
+    public static String policy(int N, int r, int p, int hashLength, int saltLength) {
+        return ScryptCostPasswordPolicyProviderFactory.ID + "(" + N + ") and "
+                + ScryptBlockSizePasswordPolicyProviderFactory.ID + "(" + r + ") and "
+                + ScryptParallelismPasswordPolicyProviderFactory.ID + "(" + p + ") and "
+                + ScryptHashLengthPasswordPolicyProviderFactory.ID + "(" + hashLength + ") and "
+                + ScryptSaltLengthPasswordPolicyProviderFactory.ID + "(" + saltLength + ")";
+    }
+
+    public KeycloakSession getSession() {
+        return session;
+    }
+
+    public PasswordPolicy getPasswordPolicy() {
+        return passwordPolicy;
+    }
+
+    public void setPasswordPolicy(String passwordPolicy) {
+        this.passwordPolicyString = passwordPolicy;
+        this.passwordPolicy = PasswordPolicy.parse(session, passwordPolicy);
+    }
+
+    private static void register(ScryptGenericPolicyProviderFactory factory) {
+        POLICY_PROVIDERS.put(factory.getId(), factory);
+    }
+
+    private KeycloakSession createSession() {
+        RealmModel realm = proxy(RealmModel.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getId":
+                case "getName":
+                    return realmId;
+                case "getPasswordPolicy":
+                    return passwordPolicy;
+                case "getAttribute":
+                    return null;
+                default:
+                    return objectMethod(proxy, method, args);
+            }
+        });
+        KeycloakContext context = proxy(KeycloakContext.class, (proxy, method, args) -> {
+            if ("getRealm".equals(method.getName())) {
+                return realm;
+            }
+            return objectMethod(proxy, method, args);
+        });
+        return proxy(KeycloakSession.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getContext":
+                    return context;
+                case "getProvider":
+                    if (args != null && args.length == 2 && args[0] == PasswordPolicyProvider.class) {
+                        return POLICY_PROVIDERS.get((String) args[1]);
+                    }
+                    return null;
+                default:
+                    return objectMethod(proxy, method, args);
+            }
+        });
+    }
+
+    private Object objectMethod(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "toString":
+                return "KeycloakSessionStub[" + realmId + ", " + passwordPolicyString + "]";
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            default:
+                return defaultValue(method.getReturnType());
+        }
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(KeycloakSessionStub.class.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+}
@@ -0,0 +1,169 @@
+package de.hangy.keycloak.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.hangy.keycloak.migration.LegacyScryptUser;
+
+import org.bouncycastle.crypto.generators.SCrypt;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.credential.PasswordCredentialModel;
+import org.keycloak.util.JsonSerialization;
+
+/**
+ * Checks every engine configuration against the RFC 7914 test vectors, a
+ * corpus of stored legacy hashes and BouncyCastle, so that a faster engine
+ * cannot silently produce hashes existing credentials no longer verify
+ * against. The vector engine is included when it is available
+ * ({@code mvn -Pvector test}).
+ */
+public class ScryptConformanceTest {
+
+    private static final String CORPUS = "/scrypt/legacy-corpus.ndjson";
+
+    private static final Map<String, ScryptEngine> ENGINES = new LinkedHashMap<>();
+
+    @BeforeAll
+    public static void createEngines() {
+        ENGINES.put("sequential", new ScryptEngine());
+        ENGINES.put("parallel", new ParallelScryptEngine(new ScryptScratchPool(), 3));
+        ENGINES.put("off-heap", new ScryptEngine(new ScryptScratchPool(), new ScryptOffHeapPool(64L * 1024 * 1024)));
+        ENGINES.put("parallel off-heap", new ParallelScryptEngine(new ScryptScratchPool(),
+                new ScryptOffHeapPool(64L * 1024 * 1024), 2));
+        if (ScryptVectorSupport.unavailableReason() == null) {
+            ENGINES.put("vector", ScryptVectorSupport.createEngine(new ScryptScratchPool(), 2));
+        }
+    }
+
+    @AfterAll
+    public static void closeEngines() {
+        ENGINES.values().forEach(ScryptEngine::close);
+        ENGINES.clear();
+    }
+
+    @Test
+    public void testRfc7914Salsa20Core() {
+        int[] b = toInts(Hex.decode("7e879a214f3ec9867ca940e641718f26baee555b8c61c1b50df846116dcd3b1d"
+                + "ee24f319df9b3d8514121e4b5ac5aa3276021d2909c74829edebc68db8b8c25e"));
+        ScryptEngine.salsa20_8(b);
+        Assertions.assertArrayEquals(toInts(Hex.decode("a41f859c6608cc993b81cacb020cef05044b2181a2fd337dfd7b1c6396682f29"
+                + "b4393168e3c9e6bcfe6bc5b7a06d96bae424cc102c91745c24ad673dc7618f81")), b);
+    }
+
+    @Test
+    public void testRfc7914Pbkdf2() {
+        Assertions.assertArrayEquals(Hex.decode("55ac046e56e3089fec1691c22544b605f94185216dde0465e68b9d57c20dacbc"
+                + "49ca9cccf179b645991664b39d77ef317c71b845b1e30bd509112041d3a19783"),
+                ScryptEngine.pbkdf2(bytes("passwd"), bytes("salt"), 64));
+    }
+
+    @Test
+    public void testRfc7914Scrypt() {
+        // The fourth vector (N=1048576) needs 1 GiB of working memory and is left out
+        for (Map.Entry<String, ScryptEngine> engine : ENGINES.entrySet()) {
+            Assertions.assertArrayEquals(Hex.decode("77d6576238657b203b19ca42c18a0497f16b4844e3074ae8dfdffa3fede21442"
+                    + "fcd0069ded0948f8326a753a0fc81f17e8d3e0fb2e0d3628cf35e20c38d18906"),
+                    engine.getValue().generate(new byte[0], new byte[0], 16, 1, 1, 64), engine.getKey());
+            Assertions.assertArrayEquals(Hex.decode("fdbabe1c9d3472007856e7190d01e9fe7c6ad7cbc8237830e77376634b373162"
+                    + "2eaf30d92e22a3886ff109279d9830dac727afb94a83ee6d8360cbdfa2cc0640"),
+                    engine.getValue().generate(bytes("password"), bytes("NaCl"), 1024, 8, 16, 64), engine.getKey());
+            Assertions.assertArrayEquals(Hex.decode("7023bdcb3afd7348461c06cd81fd38ebfda8fbba904f8e3ea9b543f6545da1f2"
+                    + "d5432955613f0fcf62d49705242a9af9e61e85dc0d651e40dfcf017b45575887"),
+                    engine.getValue().generate(bytes("pleaseletmein"), bytes("SodiumChloride"), 16384, 8, 1, 64),
+                    engine.getKey());
+        }
+    }
+
+    @Test
+    public void testLegacyCorpusVerifiesOnEveryEngine() throws IOException {
+        List<Map<String, String>> corpus = readCorpus();
+        Assertions.assertFalse(corpus.isEmpty());
+        for (Map<String, String> entry : corpus) {
+            LegacyScryptUser user = LegacyScryptUser.fromFields(entry);
+            byte[] password = bytes(entry.get("password"));
+            byte[] expected = Base64.getDecoder().decode(user.getHash());
+            for (Map.Entry<String, ScryptEngine> engine : ENGINES.entrySet()) {
+                Assertions.assertArrayEquals(expected, engine.getValue().generate(password, user.decodeSalt(),
+                        user.getCost(), user.getBlockSize(), user.getParallelism(), expected.length),
+                        user.getUsername() + " on " + engine.getKey());
+            }
+        }
+    }
+
+    @Test
+    public void testLegacyCorpusVerifiesInBothStorageFormats() throws IOException {
+        for (Map<String, String> entry : readCorpus()) {
+            LegacyScryptUser user = LegacyScryptUser.fromFields(entry);
+            byte[] salt = user.decodeSalt();
+            ScryptEncodingUtils.ScryptParameters parameters = ScryptEncodingUtils.ScryptParameters.of(user.getCost(),
+                    user.getBlockSize(), user.getParallelism(), Base64.getDecoder().decode(user.getHash()).length);
+
+            PasswordCredentialModel json = ScryptCredentialEncoder.createJsonCredentialModel(salt, user.getHash(),
+                    parameters);
+            PasswordCredentialModel phc = ScryptCredentialEncoder.createPhcCredentialModel(ScryptPhcFormat.encode(
+                    user.getCost(), user.getBlockSize(), user.getParallelism(), salt, user.getHash()));
+            for (PasswordCredentialModel credential : List.of(json, phc)) {
+                Assertions.assertTrue(ScryptHelper.verifyPassword(entry.get("password"), credential),
+                        user.getUsername());
+                Assertions.assertFalse(ScryptHelper.verifyPassword(entry.get("password") + " ", credential),
+                        user.getUsername());
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesBouncyCastleOnEveryEngine() {
+        int[][] parameters = { { 2, 1, 1, 1 }, { 16, 2, 3, 20 }, { 128, 7, 2, 33 }, { 1024, 8, 5, 64 },
+                { 4096, 16, 1, 32 }, { 16384, 8, 2, 32 } };
+        byte[] password = bytes("openfoodfacts");
+        for (int[] parameter : parameters) {
+            byte[] salt = ScryptHelper.getSalt(parameter[3] % 32 + 1);
+            byte[] expected = SCrypt.generate(password, salt, parameter[0], parameter[1], parameter[2], parameter[3]);
+            for (Map.Entry<String, ScryptEngine> engine : ENGINES.entrySet()) {
+                Assertions.assertArrayEquals(expected, engine.getValue().generate(password, salt, parameter[0],
+                        parameter[1], parameter[2], parameter[3]), "N=" + parameter[0] + " r=" + parameter[1]
+                        + " p=" + parameter[2] + " on " + engine.getKey());
+            }
+        }
+    }
+
+    private static List<Map<String, String>> readCorpus() throws IOException {
+        List<Map<String, String>> corpus = new ArrayList<>();
+        try (InputStream in = ScryptConformanceTest.class.getResourceAsStream(CORPUS);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    @SuppressWarnings("unchecked")
+                    Map<String, String> entry = JsonSerialization.readValue(line, Map.class);
+                    corpus.add(entry);
+                }
+            }
+        }
+        return corpus;
+    }
+
+    private static int[] toInts(byte[] bytes) {
+        int[] ints = new int[bytes.length / 4];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(ints);
+        return ints;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,79 @@
+package de.hangy.keycloak.utils;
+
+import de.hangy.keycloak.credential.hash.ScryptPasswordHashProviderFactory;
+
+import java.util.Base64;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.credential.PasswordCredentialModel;
+import org.keycloak.models.credential.dto.PasswordCredentialData;
+import org.keycloak.models.credential.dto.PasswordSecretData;
+import org.keycloak.util.JsonSerialization;
+
+public class ScryptCredentialEncoderTest {
+
+    @Test
+    public void testCredentialDataMatchesJackson() throws Exception {
+        int[][] parameters = { { 16384, 8, 1 }, { 1024, 1, 16 }, { 1 << 20, 16, 2 } };
+        for (int[] p : parameters) {
+            PasswordCredentialData data = new PasswordCredentialData(-1, ScryptPasswordHashProviderFactory.ID);
+            data.getAdditionalParameters().putSingle("N", Integer.toString(p[0]));
+            data.getAdditionalParameters().putSingle("r", Integer.toString(p[1]));
+            data.getAdditionalParameters().putSingle("p", Integer.toString(p[2]));
+
+            Assertions.assertEquals(JsonSerialization.writeValueAsString(data),
+                    ScryptCredentialEncoder.credentialData(p[0], p[1], p[2]));
+        }
+        Assertions.assertSame(ScryptCredentialEncoder.credentialData(16384, 8, 1),
+                ScryptCredentialEncoder.credentialData(16384, 8, 1));
+    }
+
+    @Test
+    public void testSecretDataMatchesJackson() throws Exception {
+        String[] values = { Base64.getEncoder().encodeToString(new byte[32]), "", "quote\" back\\slash",
+                "control \b\t\n\f\r \u0000\u001f\u007f", "unicode é ✓ 😀", "$scrypt$ln=14,r=8,p=1$c2FsdA$aGFzaA",
+                null };
+        byte[][] salts = { new byte[16], new byte[] { -1, 0, 1 }, new byte[0], null };
+        for (String value : values) {
+            for (byte[] salt : salts) {
+                Assertions.assertEquals(JsonSerialization.writeValueAsString(new PasswordSecretData(value, salt)),
+                        ScryptCredentialEncoder.writeSecretData(value, salt), value);
+            }
+        }
+    }
+
+    @Test
+    public void testModelMatchesPreviousEncoding() throws Exception {
+        byte[] salt = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 };
+        String hash = Base64.getEncoder().encodeToString(new byte[32]);
+        ScryptEncodingUtils.ScryptParameters parameters = ScryptEncodingUtils.ScryptParameters.of(16384, 8, 1, 32);
+
+        PasswordCredentialModel model = ScryptCredentialEncoder.createPasswordCredentialModel(salt, hash, parameters);
+
+        Assertions.assertEquals(PasswordCredentialModel.TYPE, model.getType());
+        Assertions.assertEquals(JsonSerialization.writeValueAsString(model.getPasswordCredentialData()),
+                model.getCredentialData());
+        Assertions.assertEquals(JsonSerialization.writeValueAsString(model.getPasswordSecretData()),
+                model.getSecretData());
+        Assertions.assertEquals(parameters, ScryptEncodingUtils.getScryptParameters(model));
+    }
+
+    @Test
+    public void testCredentialsDoNotShareCredentialData() {
+        byte[] salt = new byte[16];
+        String hash = Base64.getEncoder().encodeToString(new byte[32]);
+        ScryptEncodingUtils.ScryptParameters parameters = ScryptEncodingUtils.ScryptParameters.of(16384, 8, 1, 32);
+        PasswordCredentialModel first = ScryptCredentialEncoder.createPasswordCredentialModel(salt, hash, parameters);
+
+        first.getPasswordCredentialData().getAdditionalParameters().putSingle("N", "1024");
+        first.getPasswordCredentialData().getAdditionalParameters().putSingle("extra", "x");
+        PasswordCredentialModel second = ScryptCredentialEncoder.createPasswordCredentialModel(salt, hash, parameters);
+
+        Assertions.assertEquals("16384",
+                second.getPasswordCredentialData().getAdditionalParameters().getFirst("N"));
+        Assertions.assertFalse(second.getPasswordCredentialData().getAdditionalParameters().containsKey("extra"));
+        Assertions.assertEquals(parameters, ScryptEncodingUtils.getScryptParameters(second));
+        Assertions.assertEquals(ScryptCredentialEncoder.credentialData(16384, 8, 1), second.getCredentialData());
+    }
+}
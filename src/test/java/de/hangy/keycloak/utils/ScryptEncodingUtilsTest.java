@@ -0,0 +1,94 @@
+package de.hangy.keycloak.utils;
+
+import java.util.Base64;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.credential.PasswordCredentialModel;
+
+public class ScryptEncodingUtilsTest {
+
+    private static final byte[] SALT = new byte[16];
+
+    @Test
+    public void testDigestLengthMatchesDecodedLength() {
+        for (int length = 0; length < 70; length++) {
+            byte[] bytes = new byte[length];
+            String padded = Base64.getEncoder().encodeToString(bytes);
+            String unpadded = Base64.getEncoder().withoutPadding().encodeToString(bytes);
+            Assertions.assertEquals(length, ScryptEncodingUtils.getDigestLength(padded));
+            Assertions.assertEquals(length, ScryptEncodingUtils.getDigestLength(unpadded));
+        }
+        Assertions.assertThrows(IllegalArgumentException.class, () -> ScryptEncodingUtils.getDigestLength("abcde"));
+    }
+
+    @Test
+    public void testExtractDigestMatchesSplit() {
+        String[] values = { "digest", "", "a$b", "$scrypt$ln=14,r=8,p=1$salt$digest", "a$b$", "$$", "$a" };
+        for (String value : values) {
+            String[] split = value.split("\\$");
+            String expected = split.length == 0 ? null : split[split.length - 1];
+            Assertions.assertEquals(expected, ScryptEncodingUtils.extractDigest(value), value);
+        }
+    }
+
+    @Test
+    public void testParametersAreInterned() {
+        Assertions.assertSame(ScryptEncodingUtils.ScryptParameters.of(16384, 8, 1, 32),
+                ScryptEncodingUtils.ScryptParameters.of(16384, 8, 1, 32));
+    }
+
+    @Test
+    public void testCachedParametersFollowCredentialUpdates() {
+        ScryptParametersCache cache = new ScryptParametersCache();
+        PasswordCredentialModel credential = credential("c1", 16384, 32);
+        ScryptEncodingUtils.ScryptParameters first = cache.get(credential);
+        Assertions.assertSame(first, cache.get(credential("c1", 16384, 32)));
+
+        ScryptEncodingUtils.ScryptParameters updated = cache.get(credential("c1", 32768, 64));
+        Assertions.assertEquals(32768, updated.getCost());
+        Assertions.assertEquals(64, updated.getHashLength());
+    }
+
+    @Test
+    public void testCachedParametersFollowHashLengthChanges() {
+        // 32 and 33 byte digests encode to the same length and share the credential data
+        ScryptParametersCache cache = new ScryptParametersCache();
+        Assertions.assertEquals(32, cache.get(credential("c1", 16384, 32)).getHashLength());
+        Assertions.assertEquals(33, cache.get(credential("c1", 16384, 33)).getHashLength());
+    }
+
+    @Test
+    public void testVerifiesAfterRehashToLongerDigest() {
+        byte[] salt = ScryptHelper.getSalt(16);
+        PasswordCredentialModel before = ScryptEncodingUtils.createPasswordCredentialModel(salt,
+                ScryptHelper.hashPassword("secret", salt, 1024, 8, 1, 32),
+                new ScryptEncodingUtils.ScryptParameters(1024, 8, 1, 32));
+        before.setId("rehashed-credential");
+        Assertions.assertTrue(ScryptHelper.verifyPassword("secret", before));
+
+        PasswordCredentialModel after = ScryptEncodingUtils.createPasswordCredentialModel(salt,
+                ScryptHelper.hashPassword("secret", salt, 1024, 8, 1, 33),
+                new ScryptEncodingUtils.ScryptParameters(1024, 8, 1, 33));
+        after.setId("rehashed-credential");
+        Assertions.assertEquals(before.getCredentialData(), after.getCredentialData());
+        Assertions.assertTrue(ScryptHelper.verifyPassword("secret", after));
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        ScryptParametersCache cache = new ScryptParametersCache(2);
+        for (int i = 0; i < 5; i++) {
+            cache.get(credential("c" + i, 16384, 32));
+        }
+        Assertions.assertTrue(cache.size() <= 2);
+    }
+
+    private static PasswordCredentialModel credential(String id, int cost, int hashLength) {
+        String hash = Base64.getEncoder().encodeToString(new byte[hashLength]);
+        PasswordCredentialModel model = ScryptEncodingUtils.createPasswordCredentialModel(SALT, hash,
+                new ScryptEncodingUtils.ScryptParameters(cost, 8, 1, hashLength));
+        model.setId(id);
+        return model;
+    }
+}
@@ -0,0 +1,148 @@
+package de.hangy.keycloak.utils;
+
+import java.nio.charset.StandardCharsets;
+
+import de.hangy.keycloak.concurrent.ScryptAdmissionController;
+import de.hangy.keycloak.exceptions.ScryptOverloadedException;
+
+import org.bouncycastle.crypto.generators.SCrypt;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ScryptEngineTest {
+
+    private static final byte[] PASSWORD = "pleaseletmein".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] SALT = "SodiumChloride".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testMatchesBouncyCastleAcrossParameters() {
+        ScryptEngine engine = new ScryptEngine();
+        int[][] parameters = { { 2, 1, 1, 16 }, { 16, 1, 1, 64 }, { 1024, 8, 1, 32 }, { 1024, 8, 3, 32 },
+                { 256, 3, 2, 48 }, { 16384, 8, 1, 32 } };
+        for (int[] parameter : parameters) {
+            byte[] expected = SCrypt.generate(PASSWORD, SALT, parameter[0], parameter[1], parameter[2], parameter[3]);
+            byte[] actual = engine.generate(PASSWORD, SALT, parameter[0], parameter[1], parameter[2], parameter[3]);
+            Assertions.assertArrayEquals(expected, actual, "N=" + parameter[0] + " r=" + parameter[1]
+                    + " p=" + parameter[2]);
+        }
+    }
+
+    @Test
+    public void testParallelLanesMatchSequentialLanes() {
+        try (ParallelScryptEngine parallel = new ParallelScryptEngine(new ScryptScratchPool(), 3)) {
+            ScryptEngine sequential = new ScryptEngine();
+            for (int p = 1; p <= 5; p++) {
+                Assertions.assertArrayEquals(sequential.generate(PASSWORD, SALT, 1024, 8, p, 32),
+                        parallel.generate(PASSWORD, SALT, 1024, 8, p, 32), "p=" + p);
+            }
+        }
+    }
+
+    @Test
+    public void testReusesAndWipesPooledScratch() {
+        ScryptScratchPool pool = new ScryptScratchPool(1, ScryptScratchPool.DEFAULT_MAX_ARENA_BYTES);
+        ScryptEngine engine = new ScryptEngine(pool);
+        byte[] first = engine.generate(PASSWORD, SALT, 1024, 8, 1, 32);
+        Assertions.assertEquals(1, pool.getPooledArenas());
+
+        ScryptScratchPool.Scratch scratch = pool.acquire(1024 * 256, 256);
+        for (int value : scratch.v) {
+            Assertions.assertEquals(0, value);
+        }
+        pool.release(scratch);
+
+        Assertions.assertArrayEquals(first, engine.generate(PASSWORD, SALT, 1024, 8, 1, 32));
+        Assertions.assertEquals(1, pool.getPooledArenas());
+    }
+
+    @Test
+    public void testDoesNotPoolOversizedArenas() {
+        ScryptScratchPool pool = new ScryptScratchPool(4, 1024);
+        new ScryptEngine(pool).generate(PASSWORD, SALT, 1024, 8, 1, 32);
+        Assertions.assertEquals(0, pool.getPooledArenas());
+    }
+
+    @Test
+    public void testRetainedArenasFitTheMemoryBudget() {
+        Assertions.assertEquals(128L * 1024 * 1024, ScryptScratchPool.maxArenaBytesWithin(1024L * 1024 * 1024, 8));
+        Assertions.assertEquals(ScryptScratchPool.DEFAULT_MAX_ARENA_BYTES,
+                ScryptScratchPool.maxArenaBytesWithin(64L * 1024 * 1024 * 1024, 8));
+
+        ScryptScratchPool pool = new ScryptScratchPool();
+        Assertions.assertTrue(pool.getMaxArenaBytes() * pool.getMaxPooledArenas()
+                <= ScryptAdmissionController.DEFAULT_MEMORY_BUDGET_BYTES);
+    }
+
+    @Test
+    public void testRejectsInvalidCost() {
+        ScryptEngine engine = new ScryptEngine();
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> engine.generate(PASSWORD, SALT, 1000, 8, 1, 32));
+    }
+
+    @Test
+    public void testOffHeapMatchesBouncyCastle() {
+        ScryptOffHeapPool offHeapPool = new ScryptOffHeapPool(32L * 1024 * 1024);
+        ScryptEngine engine = new ScryptEngine(new ScryptScratchPool(), offHeapPool);
+        int[][] parameters = { { 2, 1, 1, 16 }, { 1024, 8, 3, 32 }, { 256, 3, 2, 48 }, { 16384, 8, 1, 32 } };
+        for (int[] parameter : parameters) {
+            byte[] expected = SCrypt.generate(PASSWORD, SALT, parameter[0], parameter[1], parameter[2], parameter[3]);
+            byte[] actual = engine.generate(PASSWORD, SALT, parameter[0], parameter[1], parameter[2], parameter[3]);
+            Assertions.assertArrayEquals(expected, actual, "N=" + parameter[0] + " r=" + parameter[1]
+                    + " p=" + parameter[2]);
+        }
+        Assertions.assertEquals(offHeapPool.getReservedBytes(),
+                offHeapPool.getPooledBytes() + offHeapPool.getReleasingBytes());
+        Assertions.assertTrue(engine.getScratchPool().getPooledBytes() < 64 * 1024);
+    }
+
+    @Test
+    public void testGivesUpOnlyTheArenasALargerOneNeeds() {
+        ScryptOffHeapPool offHeapPool = new ScryptOffHeapPool(3 * 1024 * 1024);
+        ScryptOffHeapPool.Arena first = offHeapPool.acquire(256 * 1024);
+        ScryptOffHeapPool.Arena second = offHeapPool.acquire(256 * 1024);
+        offHeapPool.release(first, 0);
+        offHeapPool.release(second, 0);
+
+        // Growing to 2 MiB needs one of the idle 1 MiB arenas, the other stays for hashes at the smaller N
+        Assertions.assertEquals(512 * 1024, offHeapPool.acquire(512 * 1024).capacity());
+        Assertions.assertEquals(3 * 1024 * 1024, offHeapPool.getReservedBytes());
+        Assertions.assertEquals(0, offHeapPool.getReleasingBytes());
+        Assertions.assertEquals(1024 * 1024, offHeapPool.getPooledBytes());
+        Assertions.assertEquals(256 * 1024, offHeapPool.acquire(256 * 1024).capacity());
+    }
+
+    @Test
+    public void testKeepsIdleArenasWhenGivingThemUpIsNotEnough() {
+        ScryptOffHeapPool offHeapPool = new ScryptOffHeapPool(2 * 1024 * 1024);
+        ScryptOffHeapPool.Arena inUse = offHeapPool.acquire(256 * 1024);
+        offHeapPool.release(offHeapPool.acquire(256 * 1024), 0);
+
+        Assertions.assertThrows(ScryptOverloadedException.class, () -> offHeapPool.acquire(512 * 1024));
+        Assertions.assertEquals(2 * 1024 * 1024, offHeapPool.getReservedBytes());
+        Assertions.assertEquals(1024 * 1024, offHeapPool.getPooledBytes());
+
+        ScryptOffHeapPool.Arena idle = offHeapPool.acquire(256 * 1024);
+        Assertions.assertEquals(0, offHeapPool.getPooledBytes());
+        offHeapPool.release(idle, 0);
+        offHeapPool.release(inUse, 0);
+    }
+
+    @Test
+    public void testOffHeapArenasAreWipedAndCapped() {
+        ScryptOffHeapPool offHeapPool = new ScryptOffHeapPool(1024 * 1024);
+        ScryptEngine engine = new ScryptEngine(new ScryptScratchPool(), offHeapPool);
+        engine.generate(PASSWORD, SALT, 1024, 8, 1, 32);
+        Assertions.assertEquals(1024 * 1024, offHeapPool.getReservedBytes());
+
+        ScryptOffHeapPool.Arena arena = offHeapPool.acquire(1024 * 256);
+        for (int i = 0; i < arena.capacity(); i++) {
+            Assertions.assertEquals(0, arena.ints.get(i));
+        }
+        Assertions.assertThrows(ScryptOverloadedException.class, () -> offHeapPool.acquire(16));
+        offHeapPool.release(arena, 0);
+
+        Assertions.assertThrows(ScryptOverloadedException.class, () -> engine.generate(PASSWORD, SALT, 2048, 8, 1, 32));
+    }
+}
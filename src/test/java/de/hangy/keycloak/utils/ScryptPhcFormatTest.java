@@ -0,0 +1,76 @@
+package de.hangy.keycloak.utils;
+
+import java.util.Base64;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.credential.PasswordCredentialModel;
+
+public class ScryptPhcFormatTest {
+
+    private static final byte[] SALT = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 };
+
+    @Test
+    public void testEncodeAndParse() {
+        byte[] hash = new byte[32];
+        hash[0] = (byte) 0xfb;
+        String phc = ScryptPhcFormat.encode(16384, 8, 1, SALT, Base64.getEncoder().encodeToString(hash));
+
+        Assertions.assertEquals("$scrypt$ln=14,r=8,p=1$" + Base64.getEncoder().withoutPadding().encodeToString(SALT)
+                + "$" + Base64.getEncoder().withoutPadding().encodeToString(hash), phc);
+        Assertions.assertTrue(ScryptPhcFormat.isPhc(phc));
+        Assertions.assertSame(ScryptEncodingUtils.ScryptParameters.of(16384, 8, 1, 32, 16),
+                ScryptPhcFormat.parseParameters(phc));
+        ScryptPhcFormat.Hash parsed = ScryptPhcFormat.parse(phc);
+        Assertions.assertSame(ScryptPhcFormat.parseParameters(phc), parsed.getParameters());
+        Assertions.assertArrayEquals(SALT, parsed.getSalt());
+        Assertions.assertArrayEquals(hash, parsed.getHash());
+    }
+
+    @Test
+    public void testDecodeMatchesJdkForAllLengths() {
+        for (int length = 1; length < 70; length++) {
+            byte[] salt = new byte[length];
+            for (int i = 0; i < length; i++) {
+                salt[i] = (byte) (i * 37 + length);
+            }
+            String phc = ScryptPhcFormat.encode(1024, 1, 1, salt, "AAAA");
+            Assertions.assertArrayEquals(salt, ScryptPhcFormat.parse(phc).getSalt());
+            Assertions.assertEquals(length, ScryptPhcFormat.parseParameters(phc).getSaltLength());
+        }
+    }
+
+    @Test
+    public void testMalformedStringsAreRejected() {
+        String[] malformed = { "$scrypt$", "$scrypt$ln=14,r=8$c2FsdA$aGFzaA", "$scrypt$ln=x,r=8,p=1$c2FsdA$aGFzaA",
+                "$scrypt$ln=31,r=8,p=1$c2FsdA$aGFzaA", "$scrypt$ln=14,r=8,p=1$c2FsdA", "$scrypt$ln=14,r=8,p=1$$aGFzaA",
+                "$scrypt$ln=14,r=8,p=1$c2FsdA$", "$scrypt$ln=14,r=,p=1$c2FsdA$aGFzaA",
+                "$scrypt$ln=14,r=99999999999,p=1$c2FsdA$aGFzaA", "$argon2id$v=19$m=65536,t=3,p=4$c2FsdA$aGFzaA" };
+        for (String value : malformed) {
+            Assertions.assertThrows(IllegalArgumentException.class, () -> ScryptPhcFormat.parseParameters(value),
+                    value);
+        }
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> ScryptPhcFormat.parse("$scrypt$ln=14,r=8,p=1$c2FsdA$a*Fz"));
+    }
+
+    @Test
+    public void testPhcCredentialsVerify() {
+        ScryptEncodingUtils.ScryptParameters parameters = ScryptEncodingUtils.ScryptParameters.of(1024, 8, 1, 32);
+        String hash = ScryptHelper.hashPassword("secret", SALT, 1024, 8, 1, 32);
+        PasswordCredentialModel credential = ScryptCredentialEncoder.createPasswordCredentialModel(
+                ScryptCredentialEncoder.StorageFormat.PHC, SALT, hash, parameters);
+
+        Assertions.assertTrue(ScryptPhcFormat.isPhc(credential.getPasswordSecretData().getValue()));
+        Assertions.assertNull(credential.getPasswordSecretData().getSalt());
+        Assertions.assertEquals("{\"hashIterations\":-1,\"algorithm\":\"scrypt\",\"additionalParameters\":{}}",
+                credential.getCredentialData());
+        Assertions.assertEquals(ScryptEncodingUtils.ScryptParameters.of(1024, 8, 1, 32, 16),
+                ScryptEncodingUtils.getScryptParameters(credential));
+        Assertions.assertTrue(ScryptHelper.verifyPassword("secret", credential));
+        Assertions.assertFalse(ScryptHelper.verifyPassword("wrong", credential));
+
+        PasswordCredentialModel stored = PasswordCredentialModel.createFromCredentialModel(credential);
+        Assertions.assertTrue(ScryptHelper.verifyPassword("secret", stored));
+    }
+}
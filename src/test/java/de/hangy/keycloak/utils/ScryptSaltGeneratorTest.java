@@ -0,0 +1,43 @@
+package de.hangy.keycloak.utils;
+
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ScryptSaltGeneratorTest {
+
+    @Test
+    public void testPrefilledSaltsAreDistinct() {
+        try (ScryptSaltGenerator generator = new ScryptSaltGenerator(2, 0, 64)) {
+            Set<String> salts = new HashSet<>();
+            for (int i = 0; i < 100; i++) {
+                byte[] salt = generator.nextSalt(16);
+                Assertions.assertEquals(16, salt.length);
+                Assertions.assertTrue(salts.add(Base64.getEncoder().encodeToString(salt)));
+            }
+            Assertions.assertEquals(100, generator.getSaltsGenerated());
+            Assertions.assertEquals(25, generator.getPrefills());
+        }
+    }
+
+    @Test
+    public void testSaltsLargerThanPrefillBypassBuffer() {
+        try (ScryptSaltGenerator generator = new ScryptSaltGenerator(1, 0, 8)) {
+            Assertions.assertEquals(32, generator.nextSalt(32).length);
+            Assertions.assertEquals(0, generator.getPrefills());
+        }
+    }
+
+    @Test
+    public void testReseedReplacesEveryStripe() {
+        try (ScryptSaltGenerator generator = new ScryptSaltGenerator(3, 0, 0)) {
+            Assertions.assertEquals(4, generator.getStripes());
+            generator.reseed();
+            Assertions.assertEquals(4, generator.getReseeds());
+            Assertions.assertEquals(16, generator.nextSalt(16).length);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package de.hangy.keycloak.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Supplier;
+
+import org.bouncycastle.crypto.generators.SCrypt;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+/**
+ * Fails when hashes per second from one calling thread at fixed parameters drop by more
+ * than {@code scrypt.throughput.maxRegression} (default 0.2) below the stored
+ * baseline in {@code /scrypt/throughput-baseline.properties}.
+ * <p>
+ * The baseline was recorded on one machine, so BouncyCastle is measured
+ * alongside as a reference and every baseline figure is scaled by how much
+ * faster or slower BouncyCastle runs here than it did there. Timing tests are
+ * too noisy for every build, so this only runs on request:
+ *
+ * <pre>
+ * mvn -B test -Dtest=ScryptThroughputGuardTest -Dscrypt.throughput.guard=true
+ * </pre>
+ *
+ * With {@code -Dscrypt.throughput.record=true} the measured figures are written
+ * to {@code target/scrypt-throughput-baseline.properties} instead of being
+ * checked, for copying over the stored baseline after an intended change.
+ */
+@EnabledIfSystemProperty(named = "scrypt.throughput.guard", matches = "true")
+public class ScryptThroughputGuardTest {
+
+    private static final String BASELINE = "/scrypt/throughput-baseline.properties";
+
+    private static final String REFERENCE = "bouncycastle";
+
+    private static final int N = 16384;
+
+    private static final int R = 8;
+
+    private static final int P = 2;
+
+    private static final int DK_LEN = 32;
+
+    private static final long MEASUREMENT_NANOS = 2_000_000_000L;
+
+    private static final int ROUNDS = 3;
+
+    private static final byte[] PASSWORD = "correct horse battery staple".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] SALT = new byte[16];
+
+    @Test
+    public void testThroughputHasNotRegressed() throws IOException {
+        double maxRegression = Double.parseDouble(System.getProperty("scrypt.throughput.maxRegression", "0.2"));
+
+        Map<String, Supplier<ScryptEngine>> engines = new LinkedHashMap<>();
+        engines.put("sequential", ScryptEngine::new);
+        engines.put("parallel", () -> new ParallelScryptEngine(new ScryptScratchPool(), P));
+        engines.put("off-heap", () -> new ScryptEngine(new ScryptScratchPool(), new ScryptOffHeapPool()));
+        if (ScryptVectorSupport.unavailableReason() == null) {
+            engines.put("vector", () -> ScryptVectorSupport.createEngine(new ScryptScratchPool(), P));
+        }
+
+        Map<String, Double> measured = new LinkedHashMap<>();
+        measured.put(REFERENCE, measure(() -> SCrypt.generate(PASSWORD, SALT, N, R, P, DK_LEN)));
+        for (Map.Entry<String, Supplier<ScryptEngine>> engine : engines.entrySet()) {
+            try (ScryptEngine instance = engine.getValue().get()) {
+                measured.put(engine.getKey(), measure(() -> instance.generate(PASSWORD, SALT, N, R, P, DK_LEN)));
+            }
+        }
+
+        if (Boolean.getBoolean("scrypt.throughput.record")) {
+            record(measured);
+            return;
+        }
+
+        Properties baseline = new Properties();
+        try (InputStream in = ScryptThroughputGuardTest.class.getResourceAsStream(BASELINE)) {
+            baseline.load(in);
+        }
+        Assertions.assertEquals(String.valueOf(N) + ":" + R + ":" + P + ":" + DK_LEN,
+                baseline.getProperty("parameters"), "Baseline was recorded with other parameters");
+        double hostFactor = measured.get(REFERENCE) / Double.parseDouble(baseline.getProperty(REFERENCE));
+
+        List<String> regressions = new ArrayList<>();
+        for (Map.Entry<String, Double> entry : measured.entrySet()) {
+            String expected = baseline.getProperty(entry.getKey());
+            if (entry.getKey().equals(REFERENCE) || expected == null) {
+                continue;
+            }
+            double floor = Double.parseDouble(expected) * hostFactor * (1 - maxRegression);
+            System.out.printf("%s: %.1f hashes/s (floor %.1f)%n", entry.getKey(), entry.getValue(), floor);
+            if (entry.getValue() < floor) {
+                regressions.add(String.format("%s: %.1f hashes/s, expected at least %.1f", entry.getKey(),
+                        entry.getValue(), floor));
+            }
+        }
+        Assertions.assertTrue(regressions.isEmpty(), "scrypt throughput regressed: " + regressions);
+    }
+
+    /**
+     * Best of {@link #ROUNDS} timed rounds, after one untimed warm-up round.
+     */
+    private static double measure(Runnable hash) {
+        double best = 0;
+        for (int round = 0; round <= ROUNDS; round++) {
+            int hashes = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                hash.run();
+                hashes++;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < MEASUREMENT_NANOS);
+            if (round > 0) {
+                best = Math.max(best, hashes * 1e9 / elapsed);
+            }
+        }
+        return best;
+    }
+
+    private static void record(Map<String, Double> measured) throws IOException {
+        Properties baseline = new Properties();
+        baseline.setProperty("parameters", String.valueOf(N) + ":" + R + ":" + P + ":" + DK_LEN);
+        measured.forEach((engine, hashesPerSecond) -> baseline.setProperty(engine,
+                String.format(Locale.ROOT, "%.1f", hashesPerSecond)));
+        Path file = Paths.get("target", "scrypt-throughput-baseline.properties");
+        Files.createDirectories(file.getParent());
+        try (OutputStream out = Files.newOutputStream(file)) {
+            baseline.store(out, "Hashes per second from one calling thread at N:r:p:dkLen");
+        }
+        System.out.println("Recorded scrypt throughput baseline in " + file.toAbsolutePath());
+    }
+}
@@ -0,0 +1,91 @@
+package de.hangy.keycloak.utils;
+
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.credential.PasswordCredentialModel;
+
+public class ScryptVerificationCacheTest {
+
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    public void testCachesOnlyTheVerifiedPassword() {
+        ScryptVerificationCache cache = new ScryptVerificationCache(10, 60, clock::get);
+        PasswordCredentialModel credential = credential("c1", 1);
+
+        Assertions.assertFalse(cache.contains(credential, "secret"));
+        cache.put(credential, "secret");
+
+        Assertions.assertTrue(cache.contains(credential, "secret"));
+        Assertions.assertTrue(cache.contains(credential("c1", 1), "secret"));
+        Assertions.assertFalse(cache.contains(credential, "secret "));
+        Assertions.assertFalse(cache.contains(credential("c2", 1), "secret"));
+        Assertions.assertEquals(2, cache.getHitCount());
+        Assertions.assertEquals(3, cache.getMissCount());
+    }
+
+    @Test
+    public void testUpdatedCredentialNoLongerMatches() {
+        ScryptVerificationCache cache = new ScryptVerificationCache(10, 60, clock::get);
+        cache.put(credential("c1", 1), "secret");
+
+        Assertions.assertFalse(cache.contains(credential("c1", 2), "secret"));
+    }
+
+    @Test
+    public void testEntriesExpire() {
+        ScryptVerificationCache cache = new ScryptVerificationCache(10, 60, clock::get);
+        PasswordCredentialModel credential = credential("c1", 1);
+        cache.put(credential, "secret");
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(59));
+        Assertions.assertTrue(cache.contains(credential, "secret"));
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        Assertions.assertFalse(cache.contains(credential, "secret"));
+        Assertions.assertEquals(1, cache.getExpirationCount());
+        Assertions.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testIsBounded() {
+        ScryptVerificationCache cache = new ScryptVerificationCache(4, 60, clock::get);
+        for (int i = 0; i < 10; i++) {
+            clock.incrementAndGet();
+            cache.put(credential("c" + i, 1), "secret");
+        }
+
+        Assertions.assertEquals(4, cache.size());
+        Assertions.assertEquals(6, cache.getEvictionCount());
+        Assertions.assertTrue(cache.contains(credential("c9", 1), "secret"));
+
+        // Expired entries are dropped before live ones
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(120));
+        cache.put(credential("fresh", 1), "secret");
+        Assertions.assertEquals(6, cache.getEvictionCount());
+        Assertions.assertEquals(1, cache.getExpirationCount());
+    }
+
+    @Test
+    public void testCredentialsWithoutIdAreNotCached() {
+        ScryptVerificationCache cache = new ScryptVerificationCache(10, 60, clock::get);
+        PasswordCredentialModel credential = credential(null, 1);
+        cache.put(credential, "secret");
+
+        Assertions.assertEquals(0, cache.size());
+        Assertions.assertFalse(cache.contains(credential, "secret"));
+    }
+
+    private static PasswordCredentialModel credential(String id, int version) {
+        byte[] salt = new byte[16];
+        byte[] hash = new byte[32];
+        hash[0] = (byte) version;
+        PasswordCredentialModel credential = ScryptEncodingUtils.createPasswordCredentialModel(salt,
+                Base64.getEncoder().encodeToString(hash), ScryptEncodingUtils.ScryptParameters.of(1024, 8, 1, 32));
+        credential.setId(id);
+        return credential;
+    }
+}
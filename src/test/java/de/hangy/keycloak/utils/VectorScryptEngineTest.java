@@ -0,0 +1,56 @@
+package de.hangy.keycloak.utils;
+
+import java.nio.charset.StandardCharsets;
+
+import org.bouncycastle.crypto.generators.SCrypt;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Only runs when the vector engine is available, i.e. with {@code mvn -Pvector test}.
+ */
+public class VectorScryptEngineTest {
+
+    private static final byte[] PASSWORD = "pleaseletmein".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] SALT = "SodiumChloride".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testRfc7914Vectors() {
+        try (ScryptEngine engine = createEngine()) {
+            Assertions.assertArrayEquals(Hex.decode("77d6576238657b203b19ca42c18a0497f16b4844e3074ae8dfdffa3fede21442"
+                    + "fcd0069ded0948f8326a753a0fc81f17e8d3e0fb2e0d3628cf35e20c38d18906"),
+                    engine.generate(new byte[0], new byte[0], 16, 1, 1, 64));
+            Assertions.assertArrayEquals(Hex.decode("fdbabe1c9d3472007856e7190d01e9fe7c6ad7cbc8237830e77376634b373162"
+                    + "2eaf30d92e22a3886ff109279d9830dac727afb94a83ee6d8360cbdfa2cc0640"),
+                    engine.generate("password".getBytes(StandardCharsets.UTF_8),
+                            "NaCl".getBytes(StandardCharsets.UTF_8), 1024, 8, 16, 64));
+            Assertions.assertArrayEquals(Hex.decode("7023bdcb3afd7348461c06cd81fd38ebfda8fbba904f8e3ea9b543f6545da1f2"
+                    + "d5432955613f0fcf62d49705242a9af9e61e85dc0d651e40dfcf017b45575887"),
+                    engine.generate(PASSWORD, SALT, 16384, 8, 1, 64));
+        }
+    }
+
+    @Test
+    public void testMatchesBouncyCastleAcrossParameters() {
+        try (ScryptEngine engine = createEngine()) {
+            int[][] parameters = { { 2, 1, 1, 16 }, { 1024, 8, 3, 32 }, { 256, 3, 2, 48 }, { 512, 5, 1, 32 } };
+            for (int[] parameter : parameters) {
+                byte[] expected = SCrypt.generate(PASSWORD, SALT, parameter[0], parameter[1], parameter[2],
+                        parameter[3]);
+                byte[] actual = engine.generate(PASSWORD, SALT, parameter[0], parameter[1], parameter[2],
+                        parameter[3]);
+                Assertions.assertArrayEquals(expected, actual, "N=" + parameter[0] + " r=" + parameter[1]
+                        + " p=" + parameter[2]);
+            }
+        }
+    }
+
+    private static ScryptEngine createEngine() {
+        String reason = ScryptVectorSupport.unavailableReason();
+        Assumptions.assumeTrue(reason == null, () -> "Vector engine unavailable: " + reason);
+        return ScryptVectorSupport.createEngine(new ScryptScratchPool(), 2);
+    }
+}
@@ -0,0 +1,100 @@
+package de.hangy.keycloak.verifier;
+
+import de.hangy.keycloak.credential.hash.ScryptPasswordHashProvider;
+import de.hangy.keycloak.credential.hash.ScryptPasswordHashProviderFactory;
+import de.hangy.keycloak.testing.KeycloakSessionStub;
+import de.hangy.keycloak.utils.ScryptEncodingUtils;
+import de.hangy.keycloak.utils.ScryptHelper;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.credential.PasswordCredentialModel;
+
+public class ScryptVerifierRegistryTest {
+
+    private final ScryptVerifierRegistry registry = ScryptVerifierRegistry.defaults();
+
+    @Test
+    public void testMd5CryptMatchesReferenceHashes() {
+        // Produced with "openssl passwd -1 -salt <salt> <password>"
+        Assertions.assertEquals("$1$saltsalt$qjXMvbEw8oaL.CzflDtaK/",
+                Md5CryptVerifier.crypt("password".getBytes(StandardCharsets.UTF_8), "saltsalt"));
+        Assertions.assertEquals("$1$Zx.9$lAaNzCKT23.9FDnIc8mhZ.",
+                Md5CryptVerifier.crypt("pâté".getBytes(StandardCharsets.UTF_8), "Zx.9"));
+        Assertions.assertEquals("$1$abc$Or2rbeUYTvt12aiVzMuS/.",
+                Md5CryptVerifier.crypt(new byte[0], "abc"));
+    }
+
+    @Test
+    public void testDetectsAndVerifiesMd5Crypt() {
+        PasswordCredentialModel credential = credential("$1$saltsalt$qjXMvbEw8oaL.CzflDtaK/");
+
+        ScryptCredentialVerifier verifier = registry.find(credential);
+
+        Assertions.assertEquals(Md5CryptVerifier.FORMAT, verifier.getFormat());
+        Assertions.assertTrue(verifier.isLegacy());
+        Assertions.assertTrue(verify(credential, "password"));
+        Assertions.assertFalse(verify(credential, "Password"));
+    }
+
+    @Test
+    public void testDetectsAndVerifiesScryptKdfString() {
+        byte[] salt = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+        String hash = ScryptHelper.hashPassword("secret", salt, 1024, 8, 1, 32);
+        PasswordCredentialModel credential = credential(
+                "SCRYPT:1024:8:1:" + Base64.getEncoder().encodeToString(salt) + ":" + hash);
+
+        Assertions.assertEquals(ScryptKdfStringVerifier.FORMAT, registry.find(credential).getFormat());
+        Assertions.assertTrue(verify(credential, "secret"));
+        Assertions.assertFalse(verify(credential, "secret!"));
+    }
+
+    @Test
+    public void testMalformedLegacyValuesDoNotMatch() {
+        Assertions.assertFalse(verify(credential("SCRYPT:1000:8:1:AAAA:AAAA"), "secret"));
+        Assertions.assertFalse(verify(credential("SCRYPT:1024:8"), "secret"));
+        Assertions.assertFalse(verify(credential("SCRYPT:1024:8:1:not base64!:AAAA"), "secret"));
+        Assertions.assertFalse(verify(credential("$1$saltsalt$short"), "password"));
+        Assertions.assertFalse(verify(credential("$1$nodollar"), "password"));
+    }
+
+    @Test
+    public void testNativeCredentialsFallBackToScrypt() {
+        byte[] salt = new byte[16];
+        ScryptEncodingUtils.ScryptParameters parameters = ScryptEncodingUtils.ScryptParameters.of(1024, 8, 1, 32);
+        PasswordCredentialModel credential = ScryptEncodingUtils.createPasswordCredentialModel(salt,
+                ScryptHelper.hashPassword("secret", salt, 1024, 8, 1, 32), parameters);
+
+        ScryptCredentialVerifier verifier = registry.find(credential);
+
+        Assertions.assertEquals(ScryptNativeVerifier.FORMAT, verifier.getFormat());
+        Assertions.assertFalse(verifier.isLegacy());
+        Assertions.assertTrue(verify(credential, "secret"));
+    }
+
+    @Test
+    public void testLegacyCredentialsFailPolicyCheckAfterLogin() {
+        KeycloakSessionStub stub = new KeycloakSessionStub("realm", 1024, 8, 1, 32, 16);
+        ScryptPasswordHashProvider provider = new ScryptPasswordHashProvider(ScryptPasswordHashProviderFactory.ID,
+                stub.getSession());
+        PasswordCredentialModel credential = credential("$1$saltsalt$qjXMvbEw8oaL.CzflDtaK/");
+
+        Assertions.assertTrue(provider.verify("password", credential));
+        Assertions.assertFalse(provider.policyCheck(stub.getPasswordPolicy(), credential));
+    }
+
+    private boolean verify(PasswordCredentialModel credential, String rawPassword) {
+        return registry.find(credential).verify(rawPassword, credential.getPasswordSecretData().getValue(),
+                credential);
+    }
+
+    private static PasswordCredentialModel credential(String storedValue) {
+        PasswordCredentialModel credential = PasswordCredentialModel.createFromValues(
+                ScryptPasswordHashProviderFactory.ID, new byte[0], 1, storedValue);
+        credential.setId("credential");
+        return credential;
+    }
+}
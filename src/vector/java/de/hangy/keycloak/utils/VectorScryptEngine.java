@@ -0,0 +1,173 @@
+package de.hangy.keycloak.utils;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link ScryptEngine} whose BlockMix runs Salsa20/8 on 128-bit int vectors
+ * and XORs blocks with the widest vectors the CPU offers.
+ * <p>
+ * Each 64-byte block is kept in the "diagonal" word order used by SIMD scrypt
+ * implementations ({@code X[i] = B[i * 5 % 16]}) for the whole of SMix, so that
+ * the four quarter-rounds of a Salsa20 column or row round are one vector
+ * operation each and only three lane rotations are needed between rounds. Word
+ * 0 keeps its place, so Integerify reads the same position, and XOR does not
+ * care about order; the lane is reordered once on the way in and once on the
+ * way out.
+ * <p>
+ * Lives outside the main source tree because {@code jdk.incubator.vector} is
+ * only compiled with the {@code vector} profile and only usable with
+ * {@code --add-modules jdk.incubator.vector}; see {@link ScryptVectorSupport}.
+ */
+public class VectorScryptEngine extends ParallelScryptEngine {
+    private static final VectorSpecies<Integer> S128 = IntVector.SPECIES_128;
+
+    private static final VectorSpecies<Integer> WIDE = IntVector.SPECIES_PREFERRED;
+
+    private static final VectorShuffle<Integer> ROTATE_1 = VectorShuffle.fromValues(S128, 1, 2, 3, 0);
+
+    private static final VectorShuffle<Integer> ROTATE_2 = VectorShuffle.fromValues(S128, 2, 3, 0, 1);
+
+    private static final VectorShuffle<Integer> ROTATE_3 = VectorShuffle.fromValues(S128, 3, 0, 1, 2);
+
+    public VectorScryptEngine(ScryptScratchPool scratchPool, int laneThreads) {
+        super(scratchPool, laneThreads);
+    }
+
+    /**
+     * Whether the CPU has at least 128-bit integer vectors, i.e. whether this
+     * engine beats the scalar one.
+     */
+    public static boolean isSupported() {
+        return WIDE.length() >= 4;
+    }
+
+    @Override
+    protected void smix(int[] b, int offset, int N, int r) {
+        int blockInts = 32 * r;
+        ScryptScratchPool.Scratch scratch = getScratchPool().acquire(N * blockInts, blockInts);
+        try {
+            romix(b, offset, N, r, scratch.v, scratch.x, scratch.y);
+        } finally {
+            getScratchPool().release(scratch);
+        }
+    }
+
+    static void romix(int[] b, int offset, int N, int r, int[] v, int[] x, int[] y) {
+        int blockInts = 32 * r;
+        int mask = N - 1;
+        int lastBlock = blockInts - 16;
+
+        shuffle(b, offset, x, blockInts);
+        for (int i = 0, vOff = 0; i < N; i++, vOff += blockInts) {
+            System.arraycopy(x, 0, v, vOff, blockInts);
+            blockMix(x, y, r);
+            int[] t = x;
+            x = y;
+            y = t;
+        }
+        for (int i = 0; i < N; i++) {
+            int j = x[lastBlock] & mask;
+            xor(v, j * blockInts, x, blockInts);
+            blockMix(x, y, r);
+            int[] t = x;
+            x = y;
+            y = t;
+        }
+        unshuffle(x, b, offset, blockInts);
+    }
+
+    /**
+     * BlockMix with Salsa20/8 on the diagonal layout; X stays in four vector
+     * registers across all 2r blocks.
+     */
+    static void blockMix(int[] in, int[] out, int r) {
+        int last = (2 * r - 1) * 16;
+        IntVector x0 = IntVector.fromArray(S128, in, last);
+        IntVector x1 = IntVector.fromArray(S128, in, last + 4);
+        IntVector x2 = IntVector.fromArray(S128, in, last + 8);
+        IntVector x3 = IntVector.fromArray(S128, in, last + 12);
+
+        int evenOff = 0;
+        int oddOff = r * 16;
+        for (int inOff = 0; inOff < 32 * r; inOff += 16) {
+            x0 = x0.lanewise(VectorOperators.XOR, IntVector.fromArray(S128, in, inOff));
+            x1 = x1.lanewise(VectorOperators.XOR, IntVector.fromArray(S128, in, inOff + 4));
+            x2 = x2.lanewise(VectorOperators.XOR, IntVector.fromArray(S128, in, inOff + 8));
+            x3 = x3.lanewise(VectorOperators.XOR, IntVector.fromArray(S128, in, inOff + 12));
+
+            IntVector s0 = x0;
+            IntVector s1 = x1;
+            IntVector s2 = x2;
+            IntVector s3 = x3;
+            for (int i = 0; i < 8; i += 2) {
+                // Columns
+                x1 = x1.lanewise(VectorOperators.XOR, x0.add(x3).lanewise(VectorOperators.ROL, 7));
+                x2 = x2.lanewise(VectorOperators.XOR, x1.add(x0).lanewise(VectorOperators.ROL, 9));
+                x3 = x3.lanewise(VectorOperators.XOR, x2.add(x1).lanewise(VectorOperators.ROL, 13));
+                x0 = x0.lanewise(VectorOperators.XOR, x3.add(x2).lanewise(VectorOperators.ROL, 18));
+
+                x1 = x1.rearrange(ROTATE_3);
+                x2 = x2.rearrange(ROTATE_2);
+                x3 = x3.rearrange(ROTATE_1);
+
+                // Rows
+                x3 = x3.lanewise(VectorOperators.XOR, x0.add(x1).lanewise(VectorOperators.ROL, 7));
+                x2 = x2.lanewise(VectorOperators.XOR, x3.add(x0).lanewise(VectorOperators.ROL, 9));
+                x1 = x1.lanewise(VectorOperators.XOR, x2.add(x3).lanewise(VectorOperators.ROL, 13));
+                x0 = x0.lanewise(VectorOperators.XOR, x1.add(x2).lanewise(VectorOperators.ROL, 18));
+
+                x1 = x1.rearrange(ROTATE_1);
+                x2 = x2.rearrange(ROTATE_2);
+                x3 = x3.rearrange(ROTATE_3);
+            }
+            x0 = x0.add(s0);
+            x1 = x1.add(s1);
+            x2 = x2.add(s2);
+            x3 = x3.add(s3);
+
+            int outOff;
+            if ((inOff & 16) == 0) {
+                outOff = evenOff;
+                evenOff += 16;
+            } else {
+                outOff = oddOff;
+                oddOff += 16;
+            }
+            x0.intoArray(out, outOff);
+            x1.intoArray(out, outOff + 4);
+            x2.intoArray(out, outOff + 8);
+            x3.intoArray(out, outOff + 12);
+        }
+    }
+
+    static void xor(int[] src, int srcOff, int[] dst, int len) {
+        int i = 0;
+        for (int bound = WIDE.loopBound(len); i < bound; i += WIDE.length()) {
+            IntVector.fromArray(WIDE, dst, i)
+                    .lanewise(VectorOperators.XOR, IntVector.fromArray(WIDE, src, srcOff + i))
+                    .intoArray(dst, i);
+        }
+        for (; i < len; i++) {
+            dst[i] ^= src[srcOff + i];
+        }
+    }
+
+    private static void shuffle(int[] src, int srcOff, int[] dst, int len) {
+        for (int block = 0; block < len; block += 16) {
+            for (int i = 0; i < 16; i++) {
+                dst[block + i] = src[srcOff + block + (i * 5 & 15)];
+            }
+        }
+    }
+
+    private static void unshuffle(int[] src, int[] dst, int dstOff, int len) {
+        for (int block = 0; block < len; block += 16) {
+            for (int i = 0; i < 16; i++) {
+                dst[dstOff + block + (i * 5 & 15)] = src[block + i];
+            }
+        }
+    }
+}